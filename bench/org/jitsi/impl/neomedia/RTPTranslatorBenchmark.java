@@ -0,0 +1,400 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package org.jitsi.impl.neomedia;
+
+import java.util.*;
+import java.util.concurrent.locks.*;
+
+import javax.media.rtp.*;
+
+import org.jitsi.service.configuration.*;
+import org.jitsi.service.libjitsi.*;
+
+/**
+ * Benchmarks the latency with which <tt>RTPTranslatorImpl</tt> forwards a
+ * packet to each of its destinations when the destinations are written to one
+ * after another on a single thread (the default) and when they are written to
+ * in parallel through their own send queues (see
+ * {@link RTPTranslatorImpl#PARALLEL_FAN_OUT_PNAME}) for increasing numbers of
+ * participants. One of the destinations is congested i.e. blocks every now and
+ * then the way a socket with a full send buffer does. Reports the median and
+ * the 99th percentile of the time from the write of a packet to the
+ * translator to its write to each of the other destinations and the number of
+ * packets dropped because a queue was full.
+ * <p>
+ * Run with <tt>ant translator-bench</tt>. The benchmarks to run may be limited
+ * with the Ant property <tt>bench.arg.line</tt> which is a list of substrings
+ * of the names of the benchmarks (e.g. <tt>-Dbench.arg.line="parallel/30"</tt>).
+ * The Java property <tt>bench.packets</tt> specifies the number of packets
+ * written to the translator by each benchmark. The size of the worker pool of
+ * the parallel mode is {@link RTPTranslatorImpl#FAN_OUT_THREAD_COUNT_PNAME}.
+ * </p>
+ */
+public class RTPTranslatorBenchmark
+{
+    /**
+     * The number of writes to the congested destination after which it
+     * blocks.
+     */
+    private static final int CONGESTION_INTERVAL = 20;
+
+    /**
+     * The time in milliseconds for which the congested destination blocks.
+     */
+    private static final long CONGESTION_MILLIS = 1;
+
+    /**
+     * The length in bytes of the forwarded packets.
+     */
+    private static final int PACKET_LENGTH = 1200;
+
+    /**
+     * The interval in nanoseconds at which packets are written to the
+     * translator.
+     */
+    private static final long PACKET_INTERVAL_NANOS = 500000;
+
+    /**
+     * The numbers of participants i.e. destinations which are benchmarked.
+     */
+    private static final int[] PARTICIPANT_COUNTS = { 2, 5, 10, 20, 30, 50 };
+
+    /**
+     * The time in nanoseconds spent by a destination which is not congested
+     * in the write of a packet (i.e. in the system call which sends it).
+     */
+    private static final long SEND_NANOS = 5000;
+
+    /**
+     * The number of packets written to the translator at the beginning of
+     * each benchmark whose latencies are not measured.
+     */
+    private static final int WARMUP_PACKETS = 500;
+
+    /**
+     * Runs the benchmarks whose names contain any of the specified strings
+     * (or all benchmarks if no string is specified).
+     *
+     * @param args the substrings of the names of the benchmarks to run
+     */
+    public static void main(String[] args)
+    {
+        int packets = Integer.getInteger("bench.packets", 10000);
+        int status = 0;
+
+        LibJitsi.start();
+        try
+        {
+            ConfigurationService cfg = LibJitsi.getConfigurationService();
+            int threadCount = Runtime.getRuntime().availableProcessors();
+
+            if (cfg != null)
+            {
+                threadCount
+                    = cfg.getInt(
+                            RTPTranslatorImpl.FAN_OUT_THREAD_COUNT_PNAME,
+                            threadCount);
+            }
+            System.out.println(
+                    "Fan-out worker threads: " + threadCount + ", "
+                        + (1000000000L / PACKET_INTERVAL_NANOS)
+                        + " packets/s, " + packets + " packets");
+            System.out.println(
+                    String.format(
+                            "%-14s %10s %10s %10s %14s %8s",
+                            "Benchmark",
+                            "p50 (us)",
+                            "p99 (us)",
+                            "max (us)",
+                            "congested p99",
+                            "dropped"));
+            for (boolean parallelFanOut : new boolean[] { false, true })
+            {
+                for (int participantCount : PARTICIPANT_COUNTS)
+                {
+                    String name
+                        = (parallelFanOut ? "parallel/" : "serial/")
+                            + participantCount;
+
+                    if (matches(name, args))
+                    {
+                        run(name, parallelFanOut, participantCount, packets);
+                    }
+                }
+            }
+        }
+        catch (Throwable t)
+        {
+            t.printStackTrace();
+            status = 1;
+        }
+        finally
+        {
+            LibJitsi.stop();
+        }
+        // The timer of the ConfigurationService would otherwise keep the
+        // Java virtual machine running.
+        System.exit(status);
+    }
+
+    /**
+     * Determines whether the name of a benchmark is selected by the
+     * command-line arguments.
+     *
+     * @param name the name of the benchmark
+     * @param args the substrings of the names of the benchmarks to run
+     * @return <tt>true</tt> if <tt>args</tt> is empty or <tt>name</tt>
+     * contains any of its elements; otherwise, <tt>false</tt>
+     */
+    private static boolean matches(String name, String[] args)
+    {
+        if (args.length == 0)
+            return true;
+        for (String arg : args)
+        {
+            if (name.contains(arg))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Gets a specific percentile of specific sorted latencies.
+     *
+     * @param latencies the sorted latencies in nanoseconds
+     * @param count the number of elements of <tt>latencies</tt> to consider
+     * @param percentile the percentile to get
+     * @return the <tt>percentile</tt>th percentile of the first
+     * <tt>count</tt> elements of <tt>latencies</tt> in microseconds
+     */
+    private static double percentile(
+            long[] latencies, int count,
+            double percentile)
+    {
+        if (count == 0)
+            return 0;
+
+        int index = (int) Math.ceil(percentile / 100 * count) - 1;
+
+        return latencies[Math.max(0, Math.min(index, count - 1))] / 1000.0;
+    }
+
+    /**
+     * Runs a benchmark.
+     *
+     * @param name the name of the benchmark
+     * @param parallelFanOut <tt>true</tt> to fan the packets out to the
+     * destinations in parallel or <tt>false</tt> to write to them one after
+     * another
+     * @param participantCount the number of destinations
+     * @param packets the number of packets to measure the latencies of
+     * @throws InterruptedException if the benchmarking thread is interrupted
+     */
+    private static void run(
+            String name,
+            boolean parallelFanOut,
+            int participantCount,
+            int packets)
+        throws InterruptedException
+    {
+        int totalPackets = WARMUP_PACKETS + packets;
+        RTPTranslatorImpl.OutputDataStreamImpl outputStream
+            = new RTPTranslatorImpl.OutputDataStreamImpl(
+                    false,
+                    parallelFanOut);
+        Destination[] destinations = new Destination[participantCount];
+
+        for (int i = 0; i < participantCount; i++)
+        {
+            destinations[i] = new Destination(i == 0, packets);
+
+            RTPTranslatorImpl.StreamRTPManagerDesc streamRTPManagerDesc
+                = new RTPTranslatorImpl.StreamRTPManagerDesc(null);
+
+            outputStream.addStream(
+                    new RTPTranslatorImpl.RTPConnectorDesc(
+                            streamRTPManagerDesc,
+                            null),
+                    destinations[i]);
+        }
+
+        byte[] buffer = new byte[PACKET_LENGTH];
+        long nextWriteTime = System.nanoTime();
+
+        for (int seq = 0; seq < totalPackets; seq++)
+        {
+            long now;
+
+            while ((now = System.nanoTime()) < nextWriteTime)
+                LockSupport.parkNanos(nextWriteTime - now);
+            nextWriteTime += PACKET_INTERVAL_NANOS;
+
+            // The sequence number of the packet and the time of its write.
+            writeLong(buffer, 0, seq - WARMUP_PACKETS);
+            writeLong(buffer, 8, System.nanoTime());
+            outputStream.write(buffer, 0, PACKET_LENGTH, null, null);
+        }
+
+        // Wait for the queues to drain.
+        long deadline = System.currentTimeMillis() + 5000;
+
+        for (Destination destination : destinations)
+        {
+            while ((destination.receivedCount < totalPackets)
+                    && (System.currentTimeMillis() < deadline))
+                Thread.sleep(10);
+        }
+        outputStream.close();
+
+        long[] latencies = new long[(participantCount - 1) * packets];
+        int count = 0;
+
+        for (int i = 1; i < participantCount; i++)
+        {
+            Destination destination = destinations[i];
+            int latencyCount = destination.latencyCount;
+
+            System.arraycopy(
+                    destination.latencies, 0,
+                    latencies, count,
+                    latencyCount);
+            count += latencyCount;
+        }
+        Arrays.sort(latencies, 0, count);
+
+        long[] congestedLatencies = destinations[0].latencies;
+        int congestedCount = destinations[0].latencyCount;
+
+        Arrays.sort(congestedLatencies, 0, congestedCount);
+
+        System.out.println(
+                String.format(
+                        "%-14s %10.1f %10.1f %10.1f %14.1f %8d",
+                        name,
+                        percentile(latencies, count, 50),
+                        percentile(latencies, count, 99),
+                        percentile(latencies, count, 100),
+                        percentile(congestedLatencies, congestedCount, 99),
+                        outputStream.getDroppedPacketCount()));
+    }
+
+    /**
+     * Reads a <tt>long</tt> from a specific <tt>byte</tt> buffer.
+     *
+     * @param buffer the buffer to read from
+     * @param offset the offset in <tt>buffer</tt> to read at
+     * @return the <tt>long</tt> read from <tt>buffer</tt> at <tt>offset</tt>
+     */
+    private static long readLong(byte[] buffer, int offset)
+    {
+        long value = 0;
+
+        for (int i = 0; i < 8; i++)
+            value = (value << 8) | (buffer[offset + i] & 0xff);
+        return value;
+    }
+
+    /**
+     * Writes a <tt>long</tt> into a specific <tt>byte</tt> buffer.
+     *
+     * @param buffer the buffer to write into
+     * @param offset the offset in <tt>buffer</tt> to write at
+     * @param value the <tt>long</tt> to write
+     */
+    private static void writeLong(byte[] buffer, int offset, long value)
+    {
+        for (int i = 7; i >= 0; i--)
+        {
+            buffer[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    /**
+     * Implements a destination of the translator which measures the latency
+     * of the packets written to it. Written to by one thread at a time.
+     */
+    private static class Destination
+        implements OutputDataStream
+    {
+        /**
+         * Whether this destination blocks every {@link #CONGESTION_INTERVAL}
+         * writes.
+         */
+        private final boolean congested;
+
+        /**
+         * The number of elements of {@link #latencies} which have been
+         * measured.
+         */
+        volatile int latencyCount;
+
+        /**
+         * The latencies in nanoseconds of the measured packets.
+         */
+        final long[] latencies;
+
+        /**
+         * The number of packets which have been written to this destination.
+         */
+        volatile int receivedCount;
+
+        /**
+         * Initializes a new <tt>Destination</tt> instance.
+         *
+         * @param congested <tt>true</tt> if the new instance is to block
+         * every now and then
+         * @param packets the number of packets to measure the latencies of
+         */
+        Destination(boolean congested, int packets)
+        {
+            this.congested = congested;
+            latencies = new long[packets];
+        }
+
+        /**
+         * {@inheritDoc}
+         *
+         * Measures the latency of the packet and simulates its sending.
+         */
+        @Override
+        public int write(byte[] buffer, int offset, int length)
+        {
+            long now = System.nanoTime();
+            long seq = readLong(buffer, offset);
+
+            if ((seq >= 0) && (latencyCount < latencies.length))
+            {
+                latencies[latencyCount]
+                    = now - readLong(buffer, offset + 8);
+                latencyCount++;
+            }
+
+            int receivedCount = this.receivedCount + 1;
+
+            this.receivedCount = receivedCount;
+            if (congested && (receivedCount % CONGESTION_INTERVAL == 0))
+            {
+                try
+                {
+                    Thread.sleep(CONGESTION_MILLIS);
+                }
+                catch (InterruptedException ie)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            else
+            {
+                long sent = now + SEND_NANOS;
+
+                while (System.nanoTime() < sent);
+            }
+            return length;
+        }
+    }
+}
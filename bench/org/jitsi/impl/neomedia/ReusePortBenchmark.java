@@ -0,0 +1,304 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package org.jitsi.impl.neomedia;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import javax.media.protocol.*;
+
+import org.jitsi.service.libjitsi.*;
+
+/**
+ * Benchmarks the number of packets per second which a
+ * <tt>ReusePortReceiver</tt> receives on a single local port and delivers to
+ * the <tt>RTPConnectorUDPInputStream</tt>s of the remote endpoints depending
+ * on the number of <tt>DatagramChannel</tt>s it binds to the port with
+ * <tt>SO_REUSEPORT</tt>. Multiple sending threads send RTP packets over the
+ * loopback interface as fast as they can from many local ports (i.e. flows
+ * which the kernel spreads among the channels). Reports the number of packets
+ * per second sent and received and the number of packets which could not be
+ * demultiplexed.
+ * <p>
+ * Run with <tt>ant reuseport-bench</tt>. The benchmarks to run may be limited
+ * with the Ant property <tt>bench.arg.line</tt> which is a list of substrings
+ * of the names of the benchmarks (e.g. <tt>-Dbench.arg.line="sockets=4"</tt>).
+ * The Java properties <tt>bench.flows</tt>, <tt>bench.senders</tt> and
+ * <tt>bench.seconds</tt> specify the number of flows, the number of sending
+ * threads and the duration of each benchmark. The channels are read by the
+ * selector threads of <tt>RTPConnectorSelectorPool</tt> the number of which
+ * is {@link RTPConnectorSelectorPool#SELECTOR_COUNT_PNAME}.
+ * </p>
+ */
+public class ReusePortBenchmark
+{
+    /**
+     * The length in bytes of the sent packets.
+     */
+    private static final int PACKET_LENGTH = 1200;
+
+    /**
+     * The numbers of <tt>DatagramChannel</tt>s which are benchmarked.
+     */
+    private static final int[] SOCKET_COUNTS = { 1, 2, 4, 8 };
+
+    /**
+     * The time in milliseconds at the beginning of each benchmark during
+     * which the received packets are not counted.
+     */
+    private static final long WARMUP_MILLIS = 1000;
+
+    /**
+     * Runs the benchmarks whose names contain any of the specified strings
+     * (or all benchmarks if no string is specified).
+     *
+     * @param args the substrings of the names of the benchmarks to run
+     */
+    public static void main(String[] args)
+    {
+        int flows = Integer.getInteger("bench.flows", 64);
+        int senders = Integer.getInteger("bench.senders", 2);
+        int seconds = Integer.getInteger("bench.seconds", 5);
+        int status = 0;
+
+        LibJitsi.start();
+        try
+        {
+            if (!ReusePortReceiver.isReusePortSupported())
+            {
+                System.out.println(
+                        "SO_REUSEPORT is not supported, only a single socket"
+                            + " will be used.");
+            }
+            System.out.println(
+                    "Selector threads: "
+                        + RTPConnectorSelectorPool.getInstance()
+                            .getSelectorCount()
+                        + ", flows: " + flows + ", sending threads: "
+                        + senders + ", " + seconds + " s per benchmark");
+            System.out.println(
+                    String.format(
+                            "%-12s %12s %12s %8s %10s",
+                            "Benchmark",
+                            "sent pkt/s",
+                            "recv pkt/s",
+                            "recv %",
+                            "unmatched"));
+            for (int socketCount : SOCKET_COUNTS)
+            {
+                String name = "sockets=" + socketCount;
+
+                if (matches(name, args))
+                    run(name, socketCount, flows, senders, seconds);
+            }
+        }
+        catch (Throwable t)
+        {
+            t.printStackTrace();
+            status = 1;
+        }
+        finally
+        {
+            LibJitsi.stop();
+        }
+        // The timer of the ConfigurationService would otherwise keep the
+        // Java virtual machine running.
+        System.exit(status);
+    }
+
+    /**
+     * Determines whether the name of a benchmark is selected by the
+     * command-line arguments.
+     *
+     * @param name the name of the benchmark
+     * @param args the substrings of the names of the benchmarks to run
+     * @return <tt>true</tt> if <tt>args</tt> is empty or <tt>name</tt>
+     * contains any of its elements; otherwise, <tt>false</tt>
+     */
+    private static boolean matches(String name, String[] args)
+    {
+        if (args.length == 0)
+            return true;
+        for (String arg : args)
+        {
+            if (name.contains(arg))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Runs a benchmark.
+     *
+     * @param name the name of the benchmark
+     * @param socketCount the number of <tt>DatagramChannel</tt>s to bind to
+     * the local port
+     * @param flowCount the number of flows i.e. remote endpoints
+     * @param senderCount the number of sending threads
+     * @param seconds the duration in seconds of the measurement
+     * @throws Exception if the benchmark fails
+     */
+    private static void run(
+            String name,
+            int socketCount,
+            int flowCount,
+            int senderCount,
+            int seconds)
+        throws Exception
+    {
+        ReusePortReceiver receiver
+            = ReusePortReceiver.acquire(
+                    new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+                    socketCount);
+        final AtomicLong receivedCount = new AtomicLong();
+        final AtomicLong sentCount = new AtomicLong();
+        final AtomicBoolean stop = new AtomicBoolean();
+        List<RTPConnectorUDPInputStream> inputStreams
+            = new ArrayList<RTPConnectorUDPInputStream>();
+        DatagramChannel[] flows = new DatagramChannel[flowCount];
+        Thread[] senders = new Thread[senderCount];
+
+        try
+        {
+            SourceTransferHandler transferHandler
+                = new SourceTransferHandler()
+                {
+                    @Override
+                    public void transferData(PushSourceStream stream)
+                    {
+                        receivedCount.incrementAndGet();
+                    }
+                };
+
+            // A flow and the input stream of its remote endpoint.
+            for (int i = 0; i < flowCount; i++)
+            {
+                DatagramChannel flow = DatagramChannel.open();
+
+                flows[i] = flow;
+                flow.socket().bind(
+                        new InetSocketAddress(
+                                InetAddress.getLoopbackAddress(),
+                                0));
+                flow.connect(receiver.getLocalAddress());
+
+                RTPConnectorUDPInputStream inputStream
+                    = new RTPConnectorUDPInputStream(receiver.getSocket());
+
+                inputStream.setTransferHandler(transferHandler);
+                receiver.addRemoteAddress(
+                        flow.socket().getLocalSocketAddress(),
+                        inputStream);
+                inputStreams.add(inputStream);
+            }
+
+            for (int i = 0; i < senderCount; i++)
+            {
+                final List<DatagramChannel> senderFlows
+                    = new ArrayList<DatagramChannel>();
+
+                for (int j = i; j < flowCount; j += senderCount)
+                    senderFlows.add(flows[j]);
+                senders[i]
+                    = new Thread(name + " sender " + i)
+                    {
+                        @Override
+                        public void run()
+                        {
+                            send(senderFlows, sentCount, stop);
+                        }
+                    };
+                senders[i].setDaemon(true);
+                senders[i].start();
+            }
+
+            Thread.sleep(WARMUP_MILLIS);
+
+            long sent0 = sentCount.get();
+            long received0 = receivedCount.get();
+            long unmatched0 = receiver.getUnmatchedPacketCount();
+            long time0 = System.nanoTime();
+
+            Thread.sleep(seconds * 1000L);
+
+            long sent = sentCount.get() - sent0;
+            long received = receivedCount.get() - received0;
+            long unmatched = receiver.getUnmatchedPacketCount() - unmatched0;
+            double elapsed = (System.nanoTime() - time0) / 1e9;
+
+            System.out.println(
+                    String.format(
+                            "%-12s %12.0f %12.0f %7.1f%% %10d",
+                            name,
+                            sent / elapsed,
+                            received / elapsed,
+                            100.0 * received / Math.max(1, sent),
+                            unmatched));
+        }
+        finally
+        {
+            stop.set(true);
+            for (Thread sender : senders)
+            {
+                if (sender != null)
+                    sender.join();
+            }
+            for (RTPConnectorUDPInputStream inputStream : inputStreams)
+                inputStream.close();
+            for (DatagramChannel flow : flows)
+            {
+                if (flow != null)
+                    flow.close();
+            }
+            receiver.release();
+        }
+    }
+
+    /**
+     * Sends RTP packets through specific flows one after another until told
+     * to stop.
+     *
+     * @param flows the connected <tt>DatagramChannel</tt>s to send through
+     * @param sentCount the number of sent packets to increment
+     * @param stop the indicator which tells to stop sending
+     */
+    private static void send(
+            List<DatagramChannel> flows,
+            AtomicLong sentCount,
+            AtomicBoolean stop)
+    {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(PACKET_LENGTH);
+        int seq = 0;
+
+        while (!stop.get())
+        {
+            for (int i = 0, count = flows.size(); i < count; i++)
+            {
+                // An RTP header with the index of the flow as its SSRC.
+                buffer.clear();
+                buffer.put(0, (byte) 0x80);
+                buffer.put(1, (byte) 100);
+                buffer.putShort(2, (short) seq);
+                buffer.putInt(8, flows.get(i).socket().getLocalPort());
+                try
+                {
+                    flows.get(i).write(buffer);
+                    sentCount.incrementAndGet();
+                }
+                catch (IOException ioe)
+                {
+                    // ECONNREFUSED et al. are not of interest here.
+                }
+            }
+            seq++;
+        }
+    }
+}
@@ -0,0 +1,518 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package org.jitsi.impl.neomedia.transform.fec;
+
+import java.lang.management.*;
+import java.util.*;
+
+import org.jitsi.impl.neomedia.*;
+import org.jitsi.service.libjitsi.*;
+
+/**
+ * Simulates the transmission of a video stream protected with ULPFEC by
+ * <tt>UlpfecEncoder</tt> and <tt>UlpfecDecoder</tt> over channels with random
+ * and bursty (Gilbert-Elliott) loss. Reports the overhead of the ULPFEC
+ * packets, the loss rate before and after the recovery and the number of
+ * bytes allocated per packet by the encoder and the decoder. Every recovered
+ * packet is compared with the original and any difference fails the
+ * simulation.
+ * <p>
+ * Run with <tt>ant fec-simulation</tt>. The scenarios to run may be limited
+ * with the Ant property <tt>bench.arg.line</tt> which is a list of substrings
+ * of the names of the scenarios (e.g.
+ * <tt>-Dbench.arg.line="random/5% adaptive"</tt>). The Java properties
+ * <tt>bench.packets</tt> and <tt>bench.seed</tt> specify the number of media
+ * packets of each scenario and the seed of the simulated loss.
+ * </p>
+ */
+public class UlpfecSimulation
+{
+    /**
+     * The RTP payload type of the simulated ULPFEC packets.
+     */
+    private static final byte FEC_PAYLOAD_TYPE = 116;
+
+    /**
+     * The group sizes which are simulated in addition to the adaptive one.
+     */
+    private static final int[] GROUP_SIZES = { 4, 8, 16 };
+
+    /**
+     * The loss rates in percent of the simulated channels.
+     */
+    private static final int[] LOSS_RATES = { 1, 2, 5, 10, 20 };
+
+    /**
+     * The mean length in packets of the loss bursts of the simulated bursty
+     * channels.
+     */
+    private static final double MEAN_BURST_LENGTH = 3;
+
+    /**
+     * The RTP payload type of the simulated media packets.
+     */
+    private static final byte MEDIA_PAYLOAD_TYPE = 100;
+
+    /**
+     * The number of most recent media packets which are kept in order to
+     * verify the recovered packets. Must be a power of two.
+     */
+    private static final int ORIGINALS = 1024;
+
+    /**
+     * The number of media packets of a video frame.
+     */
+    private static final int PACKETS_PER_FRAME = 4;
+
+    /**
+     * The SSRC of the simulated media packets.
+     */
+    private static final int SSRC = 0x12345678;
+
+    /**
+     * The <tt>ThreadMXBean</tt> which measures the number of bytes allocated
+     * by the simulating thread or <tt>null</tt> if the Java virtual machine
+     * does not support the measurement.
+     */
+    private static final com.sun.management.ThreadMXBean threadMXBean;
+
+    static
+    {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+
+        if ((bean instanceof com.sun.management.ThreadMXBean)
+                && ((com.sun.management.ThreadMXBean) bean)
+                        .isThreadAllocatedMemorySupported())
+        {
+            threadMXBean = (com.sun.management.ThreadMXBean) bean;
+            threadMXBean.setThreadAllocatedMemoryEnabled(true);
+        }
+        else
+        {
+            threadMXBean = null;
+        }
+    }
+
+    /**
+     * Gets the number of bytes allocated by the current thread so far.
+     *
+     * @return the number of bytes allocated by the current thread so far or
+     * <tt>0</tt> if the measurement is not supported
+     */
+    private static long getAllocatedBytes()
+    {
+        return
+            (threadMXBean == null)
+                ? 0
+                : threadMXBean.getThreadAllocatedBytes(
+                        Thread.currentThread().getId());
+    }
+
+    /**
+     * Runs the scenarios whose names contain any of the specified strings (or
+     * all scenarios if no string is specified).
+     *
+     * @param args the substrings of the names of the scenarios to run
+     */
+    public static void main(String[] args)
+    {
+        int packets = Integer.getInteger("bench.packets", 200000);
+        long seed = Long.getLong("bench.seed", 1);
+        int status = 0;
+
+        LibJitsi.start();
+        try
+        {
+            System.out.println(
+                    String.format(
+                            "%-26s %9s %9s %9s %9s %11s",
+                            "scenario",
+                            "overhead",
+                            "loss",
+                            "residual",
+                            "recovered",
+                            "alloc/pkt"));
+            for (String channel : new String[] { "random", "bursty" })
+            {
+                for (int lossRate : LOSS_RATES)
+                {
+                    for (int i = 0; i <= GROUP_SIZES.length; i++)
+                    {
+                        int groupSize
+                            = (i == GROUP_SIZES.length) ? -1 : GROUP_SIZES[i];
+                        String name
+                            = channel + "/" + lossRate + "% "
+                                + ((groupSize == -1)
+                                        ? "adaptive"
+                                        : ("group=" + groupSize));
+
+                        if (!matches(name, args))
+                            continue;
+
+                        UlpfecSimulation simulation
+                            = new UlpfecSimulation(
+                                    "bursty".equals(channel),
+                                    lossRate / 100.0,
+                                    groupSize,
+                                    seed);
+
+                        if (!simulation.run(name, packets))
+                            status = 1;
+                    }
+                }
+            }
+        }
+        finally
+        {
+            LibJitsi.stop();
+        }
+        System.exit(status);
+    }
+
+    /**
+     * Determines whether the name of a scenario contains any of the specified
+     * strings.
+     *
+     * @param name the name of the scenario
+     * @param args the strings to look for in <tt>name</tt>
+     * @return <tt>true</tt> if <tt>args</tt> is empty or <tt>name</tt>
+     * contains any of its elements; otherwise, <tt>false</tt>
+     */
+    private static boolean matches(String name, String[] args)
+    {
+        if (args.length == 0)
+            return true;
+        for (String arg : args)
+        {
+            if (name.contains(arg))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Whether the simulated channel is in its bad (i.e. lossy) state. Used by
+     * bursty channels only.
+     */
+    private boolean bad;
+
+    /**
+     * The probability of a bursty channel to go from its bad state to its good
+     * state.
+     */
+    private final double badToGood;
+
+    /**
+     * Whether the simulated channel loses packets in bursts.
+     */
+    private final boolean bursty;
+
+    /**
+     * The <tt>UlpfecDecoder</tt> at the receiving end of the simulated
+     * channel.
+     */
+    private final UlpfecDecoder decoder;
+
+    /**
+     * The <tt>UlpfecEncoder</tt> at the sending end of the simulated channel.
+     */
+    private final UlpfecEncoder encoder;
+
+    /**
+     * The packet which wraps the buffer of the ULPFEC packets of
+     * {@link #encoder}.
+     */
+    private final RawPacket fecPacket;
+
+    /**
+     * The number of ULPFEC packets sent.
+     */
+    private long fecPacketCount;
+
+    /**
+     * The number of bytes of the ULPFEC packets sent.
+     */
+    private long fecByteCount;
+
+    /**
+     * The probability of a bursty channel to go from its good state to its
+     * bad state.
+     */
+    private final double goodToBad;
+
+    /**
+     * The number of media packets protected by a ULPFEC packet or <tt>-1</tt>
+     * if it adapts to the loss rate.
+     */
+    private final int groupSize;
+
+    /**
+     * The number of media packets lost by the simulated channel.
+     */
+    private long lostPacketCount;
+
+    /**
+     * The loss rate of the simulated channel.
+     */
+    private final double lossRate;
+
+    /**
+     * The buffer of the simulated media packets.
+     */
+    private final byte[] mediaBuffer
+        = new byte[UlpfecUtils.MAX_PACKET_LENGTH];
+
+    /**
+     * The number of bytes of the media packets sent.
+     */
+    private long mediaByteCount;
+
+    /**
+     * The packet which wraps {@link #mediaBuffer}.
+     */
+    private final RawPacket mediaPacket;
+
+    /**
+     * The number of recovered packets which differ from their originals.
+     */
+    private long mismatchCount;
+
+    /**
+     * The lengths of the packets in {@link #originals}.
+     */
+    private final int[] originalLengths = new int[ORIGINALS];
+
+    /**
+     * The copies of the most recently sent media packets indexed by the low
+     * bits of their sequence numbers.
+     */
+    private final byte[][] originals
+        = new byte[ORIGINALS][UlpfecUtils.MAX_PACKET_LENGTH];
+
+    /**
+     * The source of the simulated loss and payloads.
+     */
+    private final Random random;
+
+    /**
+     * The number of lost media packets which have been recovered.
+     */
+    private long recoveredPacketCount;
+
+    /**
+     * Initializes a new <tt>UlpfecSimulation</tt> instance.
+     *
+     * @param bursty <tt>true</tt> if the simulated channel is to lose packets
+     * in bursts or <tt>false</tt> if it is to lose them randomly
+     * @param lossRate the loss rate of the simulated channel
+     * @param groupSize the number of media packets to be protected by a
+     * ULPFEC packet or <tt>-1</tt> if it is to adapt to the loss rate
+     * @param seed the seed of the simulated loss and payloads
+     */
+    private UlpfecSimulation(
+            boolean bursty,
+            double lossRate,
+            int groupSize,
+            long seed)
+    {
+        this.bursty = bursty;
+        this.lossRate = lossRate;
+        this.groupSize = groupSize;
+
+        // The stationary loss rate of a Gilbert-Elliott channel which loses
+        // every packet in its bad state is goodToBad / (goodToBad + badToGood).
+        badToGood = 1 / MEAN_BURST_LENGTH;
+        goodToBad = lossRate * badToGood / (1 - lossRate);
+
+        random = new Random(seed);
+        encoder = new UlpfecEncoder(SSRC + 1, 0);
+        decoder
+            = new UlpfecDecoder(
+                    SSRC,
+                    new UlpfecDecoder.Handler()
+                    {
+                        @Override
+                        public void packetRecovered(RawPacket pkt)
+                        {
+                            verify(pkt);
+                            RawPacketPool.returnRawPacket(pkt);
+                        }
+                    });
+        mediaPacket = new RawPacket(mediaBuffer, 0, 0);
+        fecPacket = new RawPacket(encoder.getFecPacket(), 0, 0);
+    }
+
+    /**
+     * Determines whether the simulated channel loses the next packet.
+     *
+     * @return <tt>true</tt> if the simulated channel loses the next packet;
+     * otherwise, <tt>false</tt>
+     */
+    private boolean lose()
+    {
+        if (!bursty)
+            return random.nextDouble() < lossRate;
+
+        bad = random.nextDouble() < (bad ? (1 - badToGood) : goodToBad);
+        return bad;
+    }
+
+    /**
+     * Writes the next media packet into {@link #mediaBuffer} and keeps a copy
+     * of it.
+     *
+     * @param index the index of the media packet
+     */
+    private void nextMediaPacket(int index)
+    {
+        int sequenceNumber = index & 0xFFFF;
+        boolean endOfFrame = (index % PACKETS_PER_FRAME == PACKETS_PER_FRAME - 1);
+        // The last packet of a frame is usually shorter.
+        int payloadLength
+            = endOfFrame
+                ? (1 + random.nextInt(1100))
+                : (1000 + random.nextInt(200));
+        int length = UlpfecUtils.RTP_HEADER_LENGTH + payloadLength;
+
+        mediaBuffer[0] = (byte) 0x80;
+        mediaBuffer[1]
+            = (byte) ((endOfFrame ? 0x80 : 0) | MEDIA_PAYLOAD_TYPE);
+        UlpfecUtils.writeShort(mediaBuffer, 2, sequenceNumber);
+        UlpfecUtils.writeInt(
+                mediaBuffer, 4,
+                (index / PACKETS_PER_FRAME) * 3000);
+        UlpfecUtils.writeInt(mediaBuffer, 8, SSRC);
+        for (int i = UlpfecUtils.RTP_HEADER_LENGTH; i < length; i += 4)
+            UlpfecUtils.writeInt(mediaBuffer, i, random.nextInt());
+        mediaPacket.setLength(length);
+
+        int slot = sequenceNumber & (ORIGINALS - 1);
+
+        System.arraycopy(mediaBuffer, 0, originals[slot], 0, length);
+        originalLengths[slot] = length;
+    }
+
+    /**
+     * Runs this simulation and reports its results.
+     *
+     * @param name the name of this simulation
+     * @param packets the number of media packets to simulate
+     * @return <tt>true</tt> if all recovered packets are identical to their
+     * originals; otherwise, <tt>false</tt>
+     */
+    private boolean run(String name, int packets)
+    {
+        // Warm up so that the allocations of the first packets (e.g. of the
+        // buffers of the decoder) are not measured.
+        int warmup = Math.min(packets, 10 * ORIGINALS);
+
+        simulate(0, warmup);
+
+        long lostPacketCount = this.lostPacketCount;
+        long recoveredPacketCount = this.recoveredPacketCount;
+        long fecByteCount = this.fecByteCount;
+        long mediaByteCount = this.mediaByteCount;
+        long allocatedBytes = getAllocatedBytes();
+
+        simulate(warmup, packets);
+        allocatedBytes = getAllocatedBytes() - allocatedBytes;
+        lostPacketCount = this.lostPacketCount - lostPacketCount;
+        recoveredPacketCount = this.recoveredPacketCount - recoveredPacketCount;
+        fecByteCount = this.fecByteCount - fecByteCount;
+        mediaByteCount = this.mediaByteCount - mediaByteCount;
+
+        int measured = Math.max(1, packets - warmup);
+
+        System.out.println(
+                String.format(
+                        "%-26s %8.2f%% %8.2f%% %8.3f%% %9d %11s",
+                        name,
+                        100.0 * fecByteCount / Math.max(1, mediaByteCount),
+                        100.0 * lostPacketCount / measured,
+                        100.0 * (lostPacketCount - recoveredPacketCount)
+                            / measured,
+                        recoveredPacketCount,
+                        (threadMXBean == null)
+                            ? "n/a"
+                            : Long.toString(allocatedBytes / measured)));
+        if (mismatchCount != 0)
+        {
+            System.out.println(
+                    name + ": " + mismatchCount
+                        + " recovered packets differ from their originals");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Sends a range of media packets (and the ULPFEC packets protecting them)
+     * over the simulated channel.
+     *
+     * @param from the index of the first media packet to send
+     * @param to the index of the media packet after the last one to send
+     */
+    private void simulate(int from, int to)
+    {
+        for (int i = from; i < to; i++)
+        {
+            nextMediaPacket(i);
+
+            int groupSize
+                = (this.groupSize == -1)
+                    ? UlpfecTransformEngine.getGroupSize(
+                            100 * lossRate,
+                            4,
+                            UlpfecUtils.MAX_GROUP_SIZE)
+                    : this.groupSize;
+            int fecPacketLength
+                = encoder.add(mediaPacket, groupSize, FEC_PAYLOAD_TYPE);
+
+            mediaByteCount += mediaPacket.getLength();
+
+            // UlpfecTransformEngine sends the ULPFEC packet of a group before
+            // the last media packet of the group.
+            if (fecPacketLength > 0)
+            {
+                fecPacketCount++;
+                fecByteCount += fecPacketLength;
+                if (!lose())
+                {
+                    fecPacket.setLength(fecPacketLength);
+                    decoder.fecPacketReceived(fecPacket);
+                }
+            }
+            if (lose())
+                lostPacketCount++;
+            else
+                decoder.mediaPacketReceived(mediaPacket);
+        }
+    }
+
+    /**
+     * Compares a specific recovered packet with its original.
+     *
+     * @param pkt the recovered packet
+     */
+    private void verify(RawPacket pkt)
+    {
+        recoveredPacketCount++;
+
+        int slot = pkt.getSequenceNumber() & (ORIGINALS - 1);
+        int length = originalLengths[slot];
+        byte[] original = originals[slot];
+        boolean match = (pkt.getLength() == length);
+
+        for (int i = 0; match && (i < length); i++)
+        {
+            if (original[i] != pkt.getBuffer()[pkt.getOffset() + i])
+                match = false;
+        }
+        if (!match)
+            mismatchCount++;
+    }
+}
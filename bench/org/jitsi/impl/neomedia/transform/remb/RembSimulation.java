@@ -0,0 +1,254 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package org.jitsi.impl.neomedia.transform.remb;
+
+import java.util.*;
+
+/**
+ * Simulates a video stream sent over a bottleneck link whose capacity changes
+ * over time. The receiver estimates the available bandwidth with a
+ * <tt>RemoteBitrateEstimator</tt> and reports it in (simulated) REMB messages
+ * the way <tt>RembTransformEngine</tt> does and the sender adapts its bitrate
+ * to them. Reports the capacity of the link, the bitrate of the sender, the
+ * estimate, the queuing delay and the loss over time and the utilization of
+ * the link and the mean queuing delay per phase.
+ * <p>
+ * Run with <tt>ant remb-simulation</tt>. The Java property <tt>bench.seed</tt>
+ * specifies the seed of the simulated jitter.
+ * </p>
+ */
+public class RembSimulation
+{
+    /**
+     * The frame rate of the simulated video stream.
+     */
+    private static final int FRAME_RATE = 30;
+
+    /**
+     * The bitrate in bits per second at which the sender starts.
+     */
+    private static final long INITIAL_BITRATE = 300000;
+
+    /**
+     * The maximum bitrate in bits per second of the sender.
+     */
+    private static final long MAX_BITRATE = 2500000;
+
+    /**
+     * The maximum length in bytes of the simulated RTP packets.
+     */
+    private static final int MAX_PACKET_LENGTH = 1200;
+
+    /**
+     * The maximum queuing delay in milliseconds of the bottleneck link after
+     * which packets are dropped.
+     */
+    private static final long MAX_QUEUING_DELAY = 300;
+
+    /**
+     * The capacities in bits per second of the bottleneck link in the
+     * successive phases of the simulation.
+     */
+    private static final long[] PHASE_CAPACITIES
+        = { 1000000, 500000, 1500000, 800000 };
+
+    /**
+     * The duration in milliseconds of a phase of the simulation.
+     */
+    private static final long PHASE_DURATION = 30000;
+
+    /**
+     * The interval in milliseconds at which the receiver checks the estimate
+     * for being due to be reported (as <tt>RembTransformEngine</tt> does).
+     */
+    private static final long PROCESS_INTERVAL = 100;
+
+    /**
+     * The one-way propagation delay in milliseconds of the simulated path.
+     */
+    private static final long PROPAGATION_DELAY = 40;
+
+    /**
+     * The fraction of the most recently reported estimate below which a
+     * decreased estimate is reported immediately (as
+     * <tt>RembTransformEngine</tt> does).
+     */
+    private static final double REMB_DECREASE_THRESHOLD = 0.97;
+
+    /**
+     * The interval in milliseconds at which the estimate is reported if it
+     * does not decrease (as <tt>RembTransformEngine</tt> does).
+     */
+    private static final long REMB_INTERVAL = 1000;
+
+    /**
+     * The interval in milliseconds at which the state of the simulation is
+     * reported.
+     */
+    private static final long REPORT_INTERVAL = 2000;
+
+    /**
+     * The SSRC of the simulated video stream.
+     */
+    private static final long SSRC = 0x12345678L;
+
+    /**
+     * Runs the simulation.
+     *
+     * @param args ignored
+     */
+    public static void main(String[] args)
+    {
+        Random random = new Random(Long.getLong("bench.seed", 1));
+        RemoteBitrateEstimator estimator
+            = new RemoteBitrateEstimator(30000, 20000000);
+        // The packets on their way from the sender to the receiver in the
+        // order of their arrival as { arrival time, RTP timestamp, length }.
+        ArrayDeque<long[]> inFlight = new ArrayDeque<long[]>();
+        // The REMB messages on their way from the receiver to the sender as
+        // { arrival time, bitrate }.
+        ArrayDeque<long[]> rembs = new ArrayDeque<long[]>();
+        long bitrate = INITIAL_BITRATE;
+        long lastArrivalTime = 0;
+        double linkFreeTime = 0;
+        long lastRembBitrate = -1;
+        long lastRembTime = -REMB_INTERVAL;
+        long frameIndex = 0;
+        long duration = PHASE_DURATION * PHASE_CAPACITIES.length;
+        long phaseSentBytes = 0, phaseLostPackets = 0, phasePackets = 0;
+        double phaseDelaySum = 0;
+        long reportSentBytes = 0, reportLostPackets = 0, reportPackets = 0;
+        double reportDelaySum = 0;
+
+        System.out.println(
+                String.format(
+                        "%8s %10s %10s %10s %9s %7s",
+                        "time",
+                        "capacity",
+                        "sent",
+                        "estimate",
+                        "queuing",
+                        "loss"));
+        for (long now = 0; now < duration; now++)
+        {
+            int phase = (int) (now / PHASE_DURATION);
+            long capacity = PHASE_CAPACITIES[phase];
+
+            // Sender: REMB messages and video frames.
+            while (!rembs.isEmpty() && (rembs.peekFirst()[0] <= now))
+                bitrate = Math.min(rembs.pollFirst()[1], MAX_BITRATE);
+            if (now >= frameIndex * 1000 / FRAME_RATE)
+            {
+                long rtpTimestamp = frameIndex * 90000 / FRAME_RATE;
+                int frameLength = (int) (bitrate / 8 / FRAME_RATE);
+
+                frameIndex++;
+                while (frameLength > 0)
+                {
+                    int length = Math.min(frameLength, MAX_PACKET_LENGTH);
+                    double serialization = length * 8 * 1000.0 / capacity;
+                    double departureTime
+                        = Math.max(now, linkFreeTime) + serialization;
+                    double queuingDelay = departureTime - now - serialization;
+
+                    frameLength -= length;
+                    phasePackets++;
+                    reportPackets++;
+                    if (queuingDelay > MAX_QUEUING_DELAY)
+                    {
+                        phaseLostPackets++;
+                        reportLostPackets++;
+                        continue;
+                    }
+                    linkFreeTime = departureTime;
+                    phaseSentBytes += length;
+                    reportSentBytes += length;
+                    phaseDelaySum += queuingDelay;
+                    reportDelaySum += queuingDelay;
+
+                    // Up to 2 ms of jitter which does not reorder the packets.
+                    long arrivalTime
+                        = Math.max(
+                                lastArrivalTime,
+                                (long) departureTime + PROPAGATION_DELAY
+                                    + random.nextInt(3));
+
+                    lastArrivalTime = arrivalTime;
+                    inFlight.addLast(
+                            new long[] { arrivalTime, rtpTimestamp, length });
+                }
+            }
+
+            // Receiver: estimation and REMB messages.
+            while (!inFlight.isEmpty() && (inFlight.peekFirst()[0] <= now))
+            {
+                long[] pkt = inFlight.pollFirst();
+
+                estimator.packetReceived(
+                        SSRC, pkt[1], 90000, (int) pkt[2], true, now);
+            }
+            if (now % PROCESS_INTERVAL == 0)
+            {
+                long estimate = estimator.getEstimate(now);
+
+                if ((estimate > 0)
+                        && ((now - lastRembTime >= REMB_INTERVAL)
+                                || (estimate
+                                        < lastRembBitrate
+                                            * REMB_DECREASE_THRESHOLD)))
+                {
+                    lastRembBitrate = estimate;
+                    lastRembTime = now;
+                    rembs.addLast(
+                            new long[] { now + PROPAGATION_DELAY, estimate });
+                }
+            }
+
+            if ((now + 1) % REPORT_INTERVAL == 0)
+            {
+                System.out.println(
+                        String.format(
+                                "%7.1fs %10d %10d %10d %7.1fms %6.2f%%",
+                                (now + 1) / 1000.0,
+                                capacity,
+                                reportSentBytes * 8 * 1000 / REPORT_INTERVAL,
+                                estimator.getEstimate(now),
+                                reportDelaySum
+                                    / Math.max(
+                                            1,
+                                            reportPackets - reportLostPackets),
+                                100.0 * reportLostPackets
+                                    / Math.max(1, reportPackets)));
+                reportSentBytes = 0;
+                reportLostPackets = 0;
+                reportPackets = 0;
+                reportDelaySum = 0;
+            }
+            if ((now + 1) % PHASE_DURATION == 0)
+            {
+                System.out.println(
+                        String.format(
+                                "phase %d: capacity %d, utilization %.1f%%,"
+                                    + " mean queuing delay %.1fms, loss %.2f%%",
+                                phase + 1,
+                                capacity,
+                                100.0 * phaseSentBytes * 8 * 1000
+                                    / PHASE_DURATION / capacity,
+                                phaseDelaySum
+                                    / Math.max(
+                                            1,
+                                            phasePackets - phaseLostPackets),
+                                100.0 * phaseLostPackets
+                                    / Math.max(1, phasePackets)));
+                phaseSentBytes = 0;
+                phaseLostPackets = 0;
+                phasePackets = 0;
+                phaseDelaySum = 0;
+            }
+        }
+    }
+}
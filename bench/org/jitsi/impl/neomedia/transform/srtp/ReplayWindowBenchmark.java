@@ -0,0 +1,365 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package org.jitsi.impl.neomedia.transform.srtp;
+
+import java.util.*;
+
+/**
+ * Benchmarks the replay check and the update of <tt>ReplayWindow</tt> of
+ * various sizes against the single <tt>long</tt> 64-packet window which
+ * <tt>SRTPCryptoContext</tt> used before <tt>ReplayWindow</tt> for packet
+ * index sequences which are in order and which are reordered (within and
+ * beyond 64 packets). Reports the time per packet and the percentage of the
+ * packets which are accepted.
+ * <p>
+ * Run with <tt>ant replay-bench</tt>. The benchmarks to run may be limited
+ * with the Ant property <tt>bench.arg.line</tt> which is a list of substrings
+ * of the names of the benchmarks (e.g. <tt>-Dbench.arg.line="in-order"</tt>).
+ * The Java properties <tt>bench.warmupIterations</tt>,
+ * <tt>bench.iterations</tt> and <tt>bench.iterationMillis</tt> specify the
+ * number and the duration of the (warm-up) iterations of each benchmark.
+ * </p>
+ */
+public class ReplayWindowBenchmark
+{
+    /**
+     * The number of packet indices of each sequence.
+     */
+    private static final int PACKETS = 1 << 16;
+
+    /**
+     * The sizes of the benchmarked <tt>ReplayWindow</tt>s.
+     */
+    private static final int[] SIZES = { 64, 1024, 4096 };
+
+    /**
+     * Runs the benchmarks whose names contain any of the specified strings
+     * (or all benchmarks if no string is specified).
+     *
+     * @param args the substrings of the names of the benchmarks to run
+     */
+    public static void main(String[] args)
+    {
+        ReplayWindowBenchmark benchmark
+            = new ReplayWindowBenchmark(
+                    Integer.getInteger("bench.warmupIterations", 3),
+                    Integer.getInteger("bench.iterations", 5),
+                    Long.getLong("bench.iterationMillis", 1000L));
+        Random random = new Random(1);
+        Map<String, long[]> sequences = new LinkedHashMap<String, long[]>();
+
+        sequences.put("in-order", createSequence(random, 0, 0));
+        sequences.put("reordered 10%/32", createSequence(random, 0.1, 32));
+        sequences.put("reordered 10%/500", createSequence(random, 0.1, 500));
+
+        System.out.println(
+                String.format(
+                        "%-40s %10s %10s",
+                        "Benchmark", "ns/packet", "accepted"));
+        for (Map.Entry<String, long[]> e : sequences.entrySet())
+        {
+            String name = e.getKey() + " legacy/64";
+
+            if (matches(name, args))
+                benchmark.measureLegacy(name, e.getValue());
+            for (int size : SIZES)
+            {
+                name = e.getKey() + " ReplayWindow/" + size;
+                if (matches(name, args))
+                    benchmark.measure(name, e.getValue(), size);
+            }
+        }
+    }
+
+    /**
+     * Creates a sequence of packet indices in which a specific fraction of
+     * the packets arrive late by up to a specific number of packets.
+     *
+     * @param random the source of the reordering
+     * @param reorderRate the fraction of the packets which arrive late
+     * @param maxDelay the maximum number of packets by which a packet arrives
+     * late
+     * @return the sequence of packet indices
+     */
+    private static long[] createSequence(
+            Random random,
+            double reorderRate,
+            int maxDelay)
+    {
+        long[] indices = new long[PACKETS];
+
+        for (int i = 0; i < PACKETS; i++)
+            indices[i] = i;
+        for (int i = PACKETS - maxDelay - 1; i >= 0; i--)
+        {
+            if (random.nextDouble() < reorderRate)
+            {
+                // Delay the packet by moving it later in the sequence.
+                int delay = 1 + random.nextInt(maxDelay);
+                long index = indices[i];
+
+                System.arraycopy(indices, i + 1, indices, i, delay);
+                indices[i + delay] = index;
+            }
+        }
+        return indices;
+    }
+
+    /**
+     * Determines whether the name of a benchmark is selected by the
+     * command-line arguments.
+     *
+     * @param name the name of the benchmark
+     * @param args the substrings of the names of the benchmarks to run
+     * @return <tt>true</tt> if the benchmark with the specified <tt>name</tt>
+     * is to be run; otherwise, <tt>false</tt>
+     */
+    private static boolean matches(String name, String[] args)
+    {
+        if (args.length == 0)
+            return true;
+        for (String arg : args)
+        {
+            if (name.contains(arg))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * The duration in milliseconds of an iteration of a benchmark.
+     */
+    private final long iterationMillis;
+
+    /**
+     * The number of measured iterations of a benchmark.
+     */
+    private final int iterations;
+
+    /**
+     * The number of iterations of a benchmark which warm up the Java virtual
+     * machine and are not measured.
+     */
+    private final int warmupIterations;
+
+    /**
+     * Initializes a new <tt>ReplayWindowBenchmark</tt> instance.
+     *
+     * @param warmupIterations the number of iterations of a benchmark which
+     * warm up the Java virtual machine and are not measured
+     * @param iterations the number of measured iterations of a benchmark
+     * @param iterationMillis the duration in milliseconds of an iteration of
+     * a benchmark
+     */
+    private ReplayWindowBenchmark(
+            int warmupIterations,
+            int iterations,
+            long iterationMillis)
+    {
+        this.warmupIterations = warmupIterations;
+        this.iterations = iterations;
+        this.iterationMillis = iterationMillis;
+    }
+
+    /**
+     * Measures a <tt>ReplayWindow</tt> of a specific size and reports the
+     * result.
+     *
+     * @param name the name of the benchmark
+     * @param indices the sequence of packet indices to check and update the
+     * window with
+     * @param size the size of the <tt>ReplayWindow</tt>
+     */
+    private void measure(String name, long[] indices, int size)
+    {
+        long iterationNanos = iterationMillis * 1000000L;
+        long totalPackets = 0;
+        long totalNanos = 0;
+        long totalAccepted = 0;
+
+        for (int i = 0, count = warmupIterations + iterations;
+                i < count;
+                i++)
+        {
+            long packets = 0;
+            long nanos = 0;
+            long accepted = 0;
+
+            do
+            {
+                ReplayWindow window = new ReplayWindow(size);
+                long highestIndex = -1;
+                long startNanos = System.nanoTime();
+
+                for (long index : indices)
+                {
+                    if (window.check(index, highestIndex))
+                    {
+                        window.update(index, highestIndex);
+                        if (index > highestIndex)
+                            highestIndex = index;
+                        accepted++;
+                    }
+                }
+                nanos += System.nanoTime() - startNanos;
+                packets += indices.length;
+            }
+            while (nanos < iterationNanos);
+
+            if (i >= warmupIterations)
+            {
+                totalPackets += packets;
+                totalNanos += nanos;
+                totalAccepted += accepted;
+            }
+        }
+        report(name, totalPackets, totalNanos, totalAccepted);
+    }
+
+    /**
+     * Measures the single <tt>long</tt> 64-packet window which
+     * <tt>SRTPCryptoContext</tt> used before <tt>ReplayWindow</tt> and reports
+     * the result.
+     *
+     * @param name the name of the benchmark
+     * @param indices the sequence of packet indices to check and update the
+     * window with
+     */
+    private void measureLegacy(String name, long[] indices)
+    {
+        long iterationNanos = iterationMillis * 1000000L;
+        long totalPackets = 0;
+        long totalNanos = 0;
+        long totalAccepted = 0;
+
+        for (int i = 0, count = warmupIterations + iterations;
+                i < count;
+                i++)
+        {
+            long packets = 0;
+            long nanos = 0;
+            long accepted = 0;
+
+            do
+            {
+                LegacyReplayWindow window = new LegacyReplayWindow();
+                long highestIndex = -1;
+                long startNanos = System.nanoTime();
+
+                for (long index : indices)
+                {
+                    if (window.check(index, highestIndex))
+                    {
+                        window.update(index, highestIndex);
+                        if (index > highestIndex)
+                            highestIndex = index;
+                        accepted++;
+                    }
+                }
+                nanos += System.nanoTime() - startNanos;
+                packets += indices.length;
+            }
+            while (nanos < iterationNanos);
+
+            if (i >= warmupIterations)
+            {
+                totalPackets += packets;
+                totalNanos += nanos;
+                totalAccepted += accepted;
+            }
+        }
+        report(name, totalPackets, totalNanos, totalAccepted);
+    }
+
+    /**
+     * Reports the result of a benchmark.
+     *
+     * @param name the name of the benchmark
+     * @param packets the number of measured packets
+     * @param nanos the time in nanoseconds the measured packets took
+     * @param accepted the number of measured packets which were accepted
+     */
+    private static void report(
+            String name,
+            long packets,
+            long nanos,
+            long accepted)
+    {
+        System.out.println(
+                String.format(
+                        "%-40s %10.2f %9.2f%%",
+                        name,
+                        (double) nanos / packets,
+                        100.0 * accepted / packets));
+    }
+
+    /**
+     * Implements the single <tt>long</tt> 64-packet replay window of
+     * <tt>SRTPCryptoContext</tt> before <tt>ReplayWindow</tt>. The check and
+     * the update are those of <tt>SRTPCryptoContext</tt> at the time
+     * (including the wrong bit set for late packets).
+     */
+    private static class LegacyReplayWindow
+    {
+        /**
+         * Bit mask for replay check
+         */
+        private long replayWindow;
+
+        /**
+         * Checks whether a packet with a specific index may be accepted.
+         *
+         * @param index the index of the packet to check
+         * @param highestIndex the index of the newest packet received so far
+         * @return <tt>true</tt> if the packet is not a replayed one
+         */
+        boolean check(long index, long highestIndex)
+        {
+            long delta = index - highestIndex;
+
+            if (delta > 0)
+            {
+                /* Packet not yet received */
+                return true;
+            }
+            else
+            {
+                if (-delta > 64)
+                {
+                    /* Packet too old */
+                    return false;
+                }
+                else
+                {
+                    return ((this.replayWindow >> (-delta)) & 0x1) == 0;
+                }
+            }
+        }
+
+        /**
+         * Records the reception of a packet with a specific index.
+         *
+         * @param index the index of the received packet
+         * @param highestIndex the index of the newest packet received so far
+         */
+        void update(long index, long highestIndex)
+        {
+            long delta = index - highestIndex;
+
+            /* update the replay bit mask */
+            if (delta > 0)
+            {
+                replayWindow = replayWindow << delta;
+                replayWindow |= 1;
+            }
+            else
+            {
+                replayWindow |= (1 << delta);
+            }
+        }
+    }
+}
@@ -0,0 +1,704 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package org.jitsi.impl.neomedia.transform.srtp;
+
+import java.lang.management.*;
+import java.util.*;
+
+import org.jitsi.impl.neomedia.*;
+import org.jitsi.impl.neomedia.transform.*;
+import org.jitsi.service.libjitsi.*;
+
+/**
+ * Benchmarks the protection (<tt>transform</tt>) and the unprotection
+ * (<tt>reverseTransform</tt>) of RTP and RTCP packets by
+ * <tt>SRTPTransformer</tt> and <tt>SRTCPTransformer</tt> for every
+ * combination of the ciphers and the authentication algorithms of
+ * <tt>SRTPPolicy</tt> and packet sizes from audio to video. Reports the
+ * throughput in operations (i.e. packets) per second and the number of bytes
+ * allocated per operation by the benchmarking thread.
+ * <p>
+ * Run with <tt>ant bench</tt>. The benchmarks to run may be limited with the
+ * Ant property <tt>bench.arg.line</tt> which is a list of substrings of the
+ * names of the benchmarks (e.g. <tt>-Dbench.arg.line="AES_CM SRTCP"</tt>).
+ * The Java properties <tt>bench.warmupIterations</tt>,
+ * <tt>bench.iterations</tt> and <tt>bench.iterationMillis</tt> specify the
+ * number and the duration of the (warm-up) iterations of each benchmark.
+ * </p>
+ */
+public class SRTPBenchmark
+{
+    /**
+     * The number of packets which are protected in advance (i.e. not
+     * measured) for each round of an unprotection benchmark. Packets may be
+     * unprotected only once because of the replay protection.
+     */
+    private static final int BATCH = 1024;
+
+    /**
+     * The lengths in bytes of the payloads of the benchmarked packets i.e.
+     * from 20 ms of G.729 (20 bytes) to a video packet of a full MTU.
+     */
+    private static final int[] PAYLOAD_LENGTHS = { 20, 160, 480, 1200 };
+
+    /**
+     * The length in bytes of the header of the benchmarked RTP packets.
+     */
+    private static final int RTP_HEADER_LENGTH = 12;
+
+    /**
+     * The length in bytes of the header of the benchmarked RTCP packets.
+     */
+    private static final int RTCP_HEADER_LENGTH = 8;
+
+    /**
+     * The SSRC of the benchmarked packets.
+     */
+    private static final int SSRC = 0x12345678;
+
+    /**
+     * The <tt>ThreadMXBean</tt> which measures the number of bytes allocated
+     * by the benchmarking thread or <tt>null</tt> if the Java virtual machine
+     * does not support the measurement.
+     */
+    private static final com.sun.management.ThreadMXBean threadMXBean;
+
+    static
+    {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+
+        if ((bean instanceof com.sun.management.ThreadMXBean)
+                && ((com.sun.management.ThreadMXBean) bean)
+                        .isThreadAllocatedMemorySupported())
+        {
+            threadMXBean = (com.sun.management.ThreadMXBean) bean;
+            threadMXBean.setThreadAllocatedMemoryEnabled(true);
+        }
+        else
+        {
+            threadMXBean = null;
+        }
+    }
+
+    /**
+     * Creates the combinations of <tt>SRTPPolicy</tt> to be benchmarked.
+     *
+     * @return the combinations of <tt>SRTPPolicy</tt> to be benchmarked
+     * mapped to their names
+     */
+    private static Map<String, SRTPPolicy> createPolicies()
+    {
+        Map<String, SRTPPolicy> policies
+            = new LinkedHashMap<String, SRTPPolicy>();
+        String[] encNames = { "AES_CM", "AES_F8", "TWOFISH_CM", "TWOFISH_F8" };
+        int[] encTypes
+            = {
+                SRTPPolicy.AESCM_ENCRYPTION,
+                SRTPPolicy.AESF8_ENCRYPTION,
+                SRTPPolicy.TWOFISH_ENCRYPTION,
+                SRTPPolicy.TWOFISHF8_ENCRYPTION
+            };
+
+        for (int i = 0; i < encTypes.length; i++)
+        {
+            int encType = encTypes[i];
+            String encName = encNames[i];
+
+            policies.put(
+                    encName + "_128_HMAC_SHA1_80",
+                    new SRTPPolicy(
+                            encType, 16,
+                            SRTPPolicy.HMACSHA1_AUTHENTICATION, 20, 10,
+                            14));
+            policies.put(
+                    encName + "_128_HMAC_SHA1_32",
+                    new SRTPPolicy(
+                            encType, 16,
+                            SRTPPolicy.HMACSHA1_AUTHENTICATION, 20, 4,
+                            14));
+            policies.put(
+                    encName + "_128_SKEIN_64",
+                    new SRTPPolicy(
+                            encType, 16,
+                            SRTPPolicy.SKEIN_AUTHENTICATION, 32, 8,
+                            14));
+            policies.put(
+                    encName + "_128_SKEIN_32",
+                    new SRTPPolicy(
+                            encType, 16,
+                            SRTPPolicy.SKEIN_AUTHENTICATION, 32, 4,
+                            14));
+            policies.put(
+                    encName + "_128_NULL_AUTH",
+                    new SRTPPolicy(
+                            encType, 16,
+                            SRTPPolicy.NULL_AUTHENTICATION, 0, 0,
+                            14));
+        }
+        // NULL_ENCRYPTION is not benchmarked because SRTPCryptoContext and
+        // SRTCPCryptoContext derive the session keys with the cipher of the
+        // policy and thus cannot be used without one.
+        policies.put("AEAD_AES_128_GCM", SRTPPolicy.createAESGCMPolicy(16));
+        policies.put("AEAD_AES_256_GCM", SRTPPolicy.createAESGCMPolicy(32));
+        return policies;
+    }
+
+    /**
+     * Initializes a new <tt>SRTPContextFactory</tt> with a random master key
+     * and master salt for a specific <tt>SRTPPolicy</tt>.
+     *
+     * @param policy the <tt>SRTPPolicy</tt> of SRTP and SRTCP
+     * @param random the source of the master key and master salt
+     * @return a new <tt>SRTPContextFactory</tt> for <tt>policy</tt>
+     */
+    private static SRTPContextFactory createFactory(
+            SRTPPolicy policy,
+            Random random)
+    {
+        byte[] masterKey = new byte[policy.getEncKeyLength()];
+        byte[] masterSalt = new byte[policy.getSaltKeyLength()];
+
+        random.nextBytes(masterKey);
+        random.nextBytes(masterSalt);
+        return new SRTPContextFactory(masterKey, masterSalt, policy, policy);
+    }
+
+    /**
+     * Gets the number of bytes allocated by the current thread so far.
+     *
+     * @return the number of bytes allocated by the current thread so far or
+     * <tt>0</tt> if the measurement is not supported
+     */
+    private static long getAllocatedBytes()
+    {
+        return
+            (threadMXBean == null)
+                ? 0
+                : threadMXBean.getThreadAllocatedBytes(
+                        Thread.currentThread().getId());
+    }
+
+    /**
+     * Runs the benchmarks whose names contain any of the specified strings
+     * (or all benchmarks if no string is specified).
+     *
+     * @param args the substrings of the names of the benchmarks to run
+     */
+    public static void main(String[] args)
+    {
+        int status = 0;
+
+        LibJitsi.start();
+        try
+        {
+            SRTPBenchmark benchmark
+                = new SRTPBenchmark(
+                        Integer.getInteger("bench.warmupIterations", 3),
+                        Integer.getInteger("bench.iterations", 5),
+                        Long.getLong("bench.iterationMillis", 1000L));
+
+            System.out.println(
+                    "AES implementation: " + AES.getProvider()
+                        + ", replay window: "
+                        + ReplayWindow.getConfiguredSize() + " packets");
+            System.out.println(
+                    String.format(
+                            "%-60s %14s %12s %12s",
+                            "Benchmark", "ops/s", "MB/s", "B/op"));
+            for (Map.Entry<String, SRTPPolicy> e
+                    : createPolicies().entrySet())
+            {
+                for (int payloadLength : PAYLOAD_LENGTHS)
+                {
+                    benchmark.run(
+                            e.getKey(), e.getValue(), payloadLength,
+                            args);
+                }
+            }
+        }
+        catch (Throwable t)
+        {
+            t.printStackTrace();
+            status = 1;
+        }
+        finally
+        {
+            LibJitsi.stop();
+        }
+        // The timer of the ConfigurationService would otherwise keep the
+        // Java virtual machine running.
+        System.exit(status);
+    }
+
+    /**
+     * Determines whether the name of a benchmark is selected by the
+     * command-line arguments.
+     *
+     * @param name the name of the benchmark
+     * @param args the substrings of the names of the benchmarks to run
+     * @return <tt>true</tt> if the benchmark with the specified <tt>name</tt>
+     * is to be run; otherwise, <tt>false</tt>
+     */
+    private static boolean matches(String name, String[] args)
+    {
+        if (args.length == 0)
+            return true;
+        for (String arg : args)
+        {
+            if (name.contains(arg))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Initializes a new RTCP sender report (without report blocks) with a
+     * specific payload length.
+     *
+     * @param payloadLength the length in bytes of the payload
+     * @return a new RTCP packet with a payload of <tt>payloadLength</tt>
+     * bytes and room for the SRTCP trailer
+     */
+    private static RawPacket newRTCPPacket(int payloadLength)
+    {
+        int length = RTCP_HEADER_LENGTH + payloadLength;
+        byte[] buffer = new byte[length + 64];
+
+        buffer[0] = (byte) 0x80;
+        buffer[1] = (byte) 200;
+        buffer[2] = (byte) (((length / 4) - 1) >> 8);
+        buffer[3] = (byte) ((length / 4) - 1);
+        writeSSRC(buffer, 4);
+        return new RawPacket(buffer, 0, length);
+    }
+
+    /**
+     * Initializes a new RTP packet with a specific payload length.
+     *
+     * @param payloadLength the length in bytes of the payload
+     * @return a new RTP packet with a payload of <tt>payloadLength</tt> bytes
+     * and room for the SRTP authentication tag
+     */
+    private static RawPacket newRTPPacket(int payloadLength)
+    {
+        int length = RTP_HEADER_LENGTH + payloadLength;
+        byte[] buffer = new byte[length + 64];
+
+        buffer[0] = (byte) 0x80;
+        buffer[1] = (byte) 96;
+        writeSSRC(buffer, 8);
+        return new RawPacket(buffer, 0, length);
+    }
+
+    /**
+     * Writes {@link #SSRC} into a specific buffer.
+     *
+     * @param buffer the buffer to write into
+     * @param off the offset in <tt>buffer</tt> at which to write
+     */
+    private static void writeSSRC(byte[] buffer, int off)
+    {
+        buffer[off] = (byte) (SSRC >> 24);
+        buffer[off + 1] = (byte) (SSRC >> 16);
+        buffer[off + 2] = (byte) (SSRC >> 8);
+        buffer[off + 3] = (byte) SSRC;
+    }
+
+    /**
+     * The duration in milliseconds of an iteration of a benchmark.
+     */
+    private final long iterationMillis;
+
+    /**
+     * The number of measured iterations of a benchmark.
+     */
+    private final int iterations;
+
+    /**
+     * The source of the master keys and of the payloads.
+     */
+    private final Random random = new Random();
+
+    /**
+     * The number of iterations of a benchmark which warm up the Java virtual
+     * machine and are not measured.
+     */
+    private final int warmupIterations;
+
+    /**
+     * Initializes a new <tt>SRTPBenchmark</tt> instance.
+     *
+     * @param warmupIterations the number of iterations of a benchmark which
+     * warm up the Java virtual machine and are not measured
+     * @param iterations the number of measured iterations of a benchmark
+     * @param iterationMillis the duration in milliseconds of an iteration of
+     * a benchmark
+     */
+    private SRTPBenchmark(
+            int warmupIterations,
+            int iterations,
+            long iterationMillis)
+    {
+        this.warmupIterations = warmupIterations;
+        this.iterations = iterations;
+        this.iterationMillis = iterationMillis;
+    }
+
+    /**
+     * Measures a specific <tt>Operation</tt> and reports the result.
+     *
+     * @param name the name of the benchmark
+     * @param payloadLength the length in bytes of the payloads of the packets
+     * processed by <tt>op</tt>
+     * @param op the <tt>Operation</tt> to measure
+     */
+    private void measure(String name, int payloadLength, Operation op)
+    {
+        long iterationNanos = iterationMillis * 1000000L;
+        long totalOps = 0;
+        long totalNanos = 0;
+        long totalBytes = 0;
+
+        for (int i = 0, count = warmupIterations + iterations;
+                i < count;
+                i++)
+        {
+            long ops = 0;
+            long nanos = 0;
+            long bytes = 0;
+
+            do
+            {
+                op.prepare();
+
+                long startBytes = getAllocatedBytes();
+                long startNanos = System.nanoTime();
+                int n = op.run();
+
+                nanos += System.nanoTime() - startNanos;
+                bytes += getAllocatedBytes() - startBytes;
+                ops += n;
+            }
+            while (nanos < iterationNanos);
+
+            if (i >= warmupIterations)
+            {
+                totalOps += ops;
+                totalNanos += nanos;
+                totalBytes += bytes;
+            }
+        }
+
+        double opsPerSecond = totalOps * 1e9 / totalNanos;
+
+        System.out.println(
+                String.format(
+                        "%-60s %14.0f %12.1f %12s",
+                        name,
+                        opsPerSecond,
+                        opsPerSecond * payloadLength / (1024 * 1024),
+                        (threadMXBean == null)
+                            ? "n/a"
+                            : String.format(
+                                    "%.1f",
+                                    (double) totalBytes / totalOps)));
+    }
+
+    /**
+     * Runs the benchmarks of a specific <tt>SRTPPolicy</tt> and payload length
+     * which are selected by the command-line arguments.
+     *
+     * @param policyName the name of <tt>policy</tt>
+     * @param policy the <tt>SRTPPolicy</tt> to benchmark
+     * @param payloadLength the length in bytes of the payloads of the packets
+     * @param args the substrings of the names of the benchmarks to run
+     */
+    private void run(
+            String policyName, SRTPPolicy policy,
+            int payloadLength,
+            String[] args)
+    {
+        String suffix = policyName + "/" + payloadLength;
+        String name;
+
+        name = "SRTP.transform/" + suffix;
+        if (matches(name, args))
+        {
+            SRTPContextFactory factory = createFactory(policy, random);
+
+            measure(
+                    name, payloadLength,
+                    new Transform(
+                            new SRTPTransformer(factory),
+                            newRTPPacket(payloadLength),
+                            false));
+            factory.close();
+        }
+        name = "SRTP.reverseTransform/" + suffix;
+        if (matches(name, args))
+        {
+            SRTPContextFactory factory = createFactory(policy, random);
+
+            measure(
+                    name, payloadLength,
+                    new ReverseTransform(
+                            new SRTPTransformer(factory),
+                            new SRTPTransformer(factory),
+                            newRTPPacket(payloadLength),
+                            false));
+            factory.close();
+        }
+        name = "SRTCP.transform/" + suffix;
+        if (matches(name, args))
+        {
+            SRTPContextFactory factory = createFactory(policy, random);
+
+            measure(
+                    name, payloadLength,
+                    new Transform(
+                            new SRTCPTransformer(factory),
+                            newRTCPPacket(payloadLength),
+                            true));
+            factory.close();
+        }
+        // SRTCPCryptoContext does not append the SRTCP index without
+        // authentication (which RFC 3711 makes mandatory for SRTCP) so such
+        // packets cannot be unprotected. AES-GCM authenticates on its own.
+        name = "SRTCP.reverseTransform/" + suffix;
+        if (((policy.getAuthType() != SRTPPolicy.NULL_AUTHENTICATION)
+                    || (policy.getEncType() == SRTPPolicy.AESGCM_ENCRYPTION))
+                && matches(name, args))
+        {
+            SRTPContextFactory factory = createFactory(policy, random);
+
+            measure(
+                    name, payloadLength,
+                    new ReverseTransform(
+                            new SRTCPTransformer(factory),
+                            new SRTCPTransformer(factory),
+                            newRTCPPacket(payloadLength),
+                            true));
+            factory.close();
+        }
+    }
+
+    /**
+     * Represents an operation to be measured by
+     * {@link SRTPBenchmark#measure(String, int, Operation)}.
+     */
+    private static abstract class Operation
+    {
+        /**
+         * The RTP or RTCP packet which is transformed.
+         */
+        protected final RawPacket pkt;
+
+        /**
+         * The plain RTP or RTCP packet which is copied into {@link #pkt}.
+         */
+        protected final byte[] plain;
+
+        /**
+         * <tt>true</tt> if {@link #pkt} is an RTCP packet; <tt>false</tt> if
+         * it is an RTP packet.
+         */
+        protected final boolean rtcp;
+
+        /**
+         * The RTP sequence number of the next packet.
+         */
+        private int seq;
+
+        /**
+         * Initializes a new <tt>Operation</tt> instance.
+         *
+         * @param pkt the plain RTP or RTCP packet to be transformed
+         * @param rtcp <tt>true</tt> if <tt>pkt</tt> is an RTCP packet;
+         * <tt>false</tt> if it is an RTP packet
+         */
+        protected Operation(RawPacket pkt, boolean rtcp)
+        {
+            this.pkt = pkt;
+            this.rtcp = rtcp;
+
+            byte[] buffer = pkt.getBuffer();
+            int headerLength = rtcp ? RTCP_HEADER_LENGTH : RTP_HEADER_LENGTH;
+
+            for (int i = headerLength; i < pkt.getLength(); i++)
+                buffer[i] = (byte) i;
+            plain = new byte[pkt.getLength()];
+            System.arraycopy(buffer, 0, plain, 0, plain.length);
+        }
+
+        /**
+         * Copies {@link #plain} into {@link #pkt} i.e. restores the plain
+         * packet with the next RTP sequence number.
+         */
+        protected void nextPacket()
+        {
+            System.arraycopy(plain, 0, pkt.getBuffer(), 0, plain.length);
+            pkt.setLength(plain.length);
+            if (!rtcp)
+                pkt.writeUnsignedShort(2, seq++ & 0xFFFF);
+        }
+
+        /**
+         * Prepares the next (unmeasured) invocation of {@link #run()}.
+         */
+        void prepare()
+        {
+        }
+
+        /**
+         * Performs the measured operation a number of times.
+         *
+         * @return the number of times the operation was performed
+         */
+        abstract int run();
+    }
+
+    /**
+     * Measures the unprotection of packets which have been protected in
+     * advance.
+     */
+    private static class ReverseTransform
+        extends Operation
+    {
+        /**
+         * The lengths of the packets in {@link #protectedPackets}.
+         */
+        private final int[] lengths = new int[BATCH];
+
+        /**
+         * The packets protected by {@link #prepare()} which are to be
+         * unprotected by {@link #run()}.
+         */
+        private final byte[][] protectedPackets = new byte[BATCH][];
+
+        /**
+         * The <tt>PacketTransformer</tt> which protects the packets.
+         */
+        private final PacketTransformer sender;
+
+        /**
+         * The <tt>PacketTransformer</tt> which unprotects the packets.
+         */
+        private final PacketTransformer receiver;
+
+        /**
+         * The packets into which {@link #protectedPackets} are copied.
+         */
+        private final RawPacket[] packets = new RawPacket[BATCH];
+
+        /**
+         * Initializes a new <tt>ReverseTransform</tt> instance.
+         *
+         * @param sender the <tt>PacketTransformer</tt> which protects the
+         * packets
+         * @param receiver the <tt>PacketTransformer</tt> which unprotects the
+         * packets
+         * @param pkt the plain RTP or RTCP packet
+         * @param rtcp <tt>true</tt> if <tt>pkt</tt> is an RTCP packet;
+         * <tt>false</tt> if it is an RTP packet
+         */
+        ReverseTransform(
+                PacketTransformer sender,
+                PacketTransformer receiver,
+                RawPacket pkt,
+                boolean rtcp)
+        {
+            super(pkt, rtcp);
+            this.sender = sender;
+            this.receiver = receiver;
+            for (int i = 0; i < BATCH; i++)
+            {
+                protectedPackets[i] = new byte[pkt.getBuffer().length];
+                packets[i] = new RawPacket(protectedPackets[i], 0, 0);
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         *
+         * Protects the next {@link #BATCH} packets.
+         */
+        @Override
+        void prepare()
+        {
+            for (int i = 0; i < BATCH; i++)
+            {
+                nextPacket();
+
+                RawPacket p = sender.transform(pkt);
+
+                lengths[i] = p.getLength();
+                System.arraycopy(
+                        p.getBuffer(), p.getOffset(),
+                        protectedPackets[i], 0,
+                        lengths[i]);
+                packets[i].setLength(lengths[i]);
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        int run()
+        {
+            for (int i = 0; i < BATCH; i++)
+            {
+                if (receiver.reverseTransform(packets[i]) == null)
+                    throw new IllegalStateException("reverseTransform");
+            }
+            return BATCH;
+        }
+    }
+
+    /**
+     * Measures the protection of packets.
+     */
+    private static class Transform
+        extends Operation
+    {
+        /**
+         * The <tt>PacketTransformer</tt> which protects the packets.
+         */
+        private final PacketTransformer sender;
+
+        /**
+         * Initializes a new <tt>Transform</tt> instance.
+         *
+         * @param sender the <tt>PacketTransformer</tt> which protects the
+         * packets
+         * @param pkt the plain RTP or RTCP packet
+         * @param rtcp <tt>true</tt> if <tt>pkt</tt> is an RTCP packet;
+         * <tt>false</tt> if it is an RTP packet
+         */
+        Transform(PacketTransformer sender, RawPacket pkt, boolean rtcp)
+        {
+            super(pkt, rtcp);
+            this.sender = sender;
+        }
+
+        /**
+         * {@inheritDoc}
+         *
+         * The measurement includes the restoration of the plain packet.
+         */
+        @Override
+        int run()
+        {
+            for (int i = 0; i < BATCH; i++)
+            {
+                nextPacket();
+                sender.transform(pkt);
+            }
+            return BATCH;
+        }
+    }
+}
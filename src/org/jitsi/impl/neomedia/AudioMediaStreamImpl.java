@@ -15,6 +15,7 @@ import javax.media.format.*;
 
 import org.jitsi.impl.neomedia.device.*;
 import org.jitsi.impl.neomedia.transform.dtmf.*;
+import org.jitsi.impl.neomedia.transform.red.*;
 import org.jitsi.service.configuration.*;
 import org.jitsi.service.libjitsi.*;
 import org.jitsi.service.neomedia.*;
@@ -306,6 +307,18 @@ public class AudioMediaStreamImpl
         return this.dtmfTransfrmEngine;
     }
 
+    /**
+     * Creates a <tt>RedTransformEngine</tt> which sends and receives the
+     * redundant audio data (RFC 2198) of this stream.
+     *
+     * @return a new <tt>RedTransformEngine</tt> for this stream
+     */
+    @Override
+    protected RedTransformEngine createRedTransformEngine()
+    {
+        return new RedTransformEngine(this);
+    }
+
     /**
      * {@inheritDoc}
      *
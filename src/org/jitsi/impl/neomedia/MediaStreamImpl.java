@@ -27,8 +27,13 @@ import org.jitsi.impl.neomedia.protocol.*;
 import org.jitsi.impl.neomedia.transform.*;
 import org.jitsi.impl.neomedia.transform.csrc.*;
 import org.jitsi.impl.neomedia.transform.dtmf.*;
+import org.jitsi.impl.neomedia.transform.fec.*;
+import org.jitsi.impl.neomedia.transform.nack.*;
 import org.jitsi.impl.neomedia.transform.pt.*;
 import org.jitsi.impl.neomedia.transform.rtcp.*;
+import org.jitsi.impl.neomedia.transform.red.*;
+import org.jitsi.impl.neomedia.transform.remb.*;
+import org.jitsi.impl.neomedia.transform.rtx.*;
 import org.jitsi.impl.neomedia.transform.srtp.*;
 import org.jitsi.impl.neomedia.transform.zrtp.*;
 import org.jitsi.service.libjitsi.*;
@@ -139,6 +144,12 @@ public class MediaStreamImpl
      */
     private AbstractRTPConnector rtpConnector;
 
+    /**
+     * The <tt>TransformEngineChain</tt> which has been most recently set on
+     * {@link #rtpConnector}.
+     */
+    private TransformEngineChain transformEngineChain;
+
     /**
      * The one and only <tt>MediaStreamTarget</tt> this instance has added as a
      * target in {@link #rtpConnector}.
@@ -259,6 +270,47 @@ public class MediaStreamImpl
      */
     private PayloadTypeTransformEngine ptTransformEngine;
 
+    /**
+     * The engine which retransmits the RTP packets requested by the remote
+     * peer and de-encapsulates the retransmissions sent by it (RFC 4588).
+     */
+    private RtxTransformEngine rtxTransformEngine;
+
+    /**
+     * The engine which requests the retransmission of the RTP packets lost on
+     * the way from the remote peer with generic NACKs (RFC 4585).
+     */
+    private NackTransformEngine nackTransformEngine;
+
+    /**
+     * The engine which adds redundant audio data to the sent RTP packets and
+     * recovers the lost received RTP packets from it (RFC 2198) or
+     * <tt>null</tt> if this stream does not support it.
+     */
+    private RedTransformEngine redTransformEngine;
+
+    /**
+     * The engine which protects the sent RTP packets with ULPFEC and recovers
+     * the lost received RTP packets from it (RFC 5109) or <tt>null</tt> if
+     * this stream does not support it.
+     */
+    private UlpfecTransformEngine ulpfecTransformEngine;
+
+    /**
+     * The <tt>BitrateController</tt> which adapts the bitrate of the local
+     * encoders to the packet loss reported by the remote peer in its RTCP
+     * receiver reports and, if {@link #rembTransformEngine} is enabled, to
+     * the REMB messages received from the remote peer.
+     */
+    private final BitrateController bitrateController
+        = new BitrateController(this);
+
+    /**
+     * The engine which estimates the bandwidth available on the way from the
+     * remote peer and reports it in REMB messages and which hands the REMB
+     * messages received from the remote peer to {@link #bitrateController}.
+     */
+    private RembTransformEngine rembTransformEngine;
 
     /**
      * Initializes a new <tt>MediaStreamImpl</tt> instance which will use the
@@ -343,6 +395,7 @@ public class MediaStreamImpl
             RTPConnectorOutputStream dataOutputStream)
     {
         dataOutputStream.setPriority(getPriority());
+        dataOutputStream.setPacingPriority(RTPPacer.Priority.AUDIO);
     }
 
     /**
@@ -377,6 +430,20 @@ public class MediaStreamImpl
     {
     }
 
+    /**
+     * Gets the <tt>TransformEngineChain</tt> which transforms the RTP and RTCP
+     * packets of this stream.
+     *
+     * @return the <tt>TransformEngineChain</tt> which transforms the RTP and
+     * RTCP packets of this stream or <tt>null</tt> if there is no such chain
+     * (e.g. the <tt>RTPConnector</tt> of this stream does not support
+     * transformations)
+     */
+    public TransformEngineChain getTransformEngineChain()
+    {
+        return transformEngineChain;
+    }
+
     /**
      * Creates a chain of transform engines for use with this stream. Note
      * that this is the only place where the <tt>TransformEngineChain</tt> is
@@ -391,6 +458,14 @@ public class MediaStreamImpl
         ArrayList<TransformEngine> engineChain
             = new ArrayList<TransformEngine>(3);
 
+        // RED
+        // Reverse-transforms the received packets last so that the packets
+        // it recovers need no further reverse transformation.
+        if (redTransformEngine == null)
+            redTransformEngine = createRedTransformEngine();
+        if (redTransformEngine != null)
+            engineChain.add(redTransformEngine);
+
         // CSRCs and audio levels
         if (csrcEngine == null)
             csrcEngine = new CsrcTransformEngine(this);
@@ -413,6 +488,57 @@ public class MediaStreamImpl
             ptTransformEngine = new PayloadTypeTransformEngine();
         engineChain.add(ptTransformEngine);
 
+        // NACK
+        // Sees the received packets after the retransmissions have been
+        // de-encapsulated by the RTX engine.
+        if (nackTransformEngine == null)
+            nackTransformEngine = new NackTransformEngine(this);
+        engineChain.add(nackTransformEngine);
+
+        // ULPFEC
+        // Protects the packets as they are sent (i.e. after the payload type
+        // overrides) and recovers the received packets after the
+        // retransmissions have been de-encapsulated.
+        if (ulpfecTransformEngine == null)
+            ulpfecTransformEngine = createUlpfecTransformEngine();
+        if (ulpfecTransformEngine != null)
+            engineChain.add(ulpfecTransformEngine);
+
+        // RTX
+        // The retransmissions have to be encrypted separately from the
+        // original packets so they are created before encryption.
+        if (rtxTransformEngine == null)
+        {
+            rtxTransformEngine = new RtxTransformEngine(this);
+            synchronized (dynamicRTPPayloadTypes)
+            {
+                for (Map.Entry<Byte, MediaFormat> e
+                        : dynamicRTPPayloadTypes.entrySet())
+                {
+                    addRtxPayloadType(e.getKey(), e.getValue());
+                }
+            }
+        }
+        engineChain.add(rtxTransformEngine);
+
+        // REMB
+        // Notes the arrival times of the received packets as early as
+        // possible i.e. right after decryption.
+        if (rembTransformEngine == null)
+        {
+            rembTransformEngine = createRembTransformEngine();
+            if (rembTransformEngine != null)
+            {
+                synchronized (dynamicRTPPayloadTypes)
+                {
+                    for (MediaFormat format : dynamicRTPPayloadTypes.values())
+                        enableRembIfNegotiated(format);
+                }
+            }
+        }
+        if (rembTransformEngine != null)
+            engineChain.add(rembTransformEngine);
+
         // SRTP
         TransformEngine srtpTransformEngine = srtpControl.getTransformEngine();
         if (srtpTransformEngine != null)
@@ -436,6 +562,42 @@ public class MediaStreamImpl
         return null;
     }
 
+    /**
+     * A stub that allows audio oriented streams to create a
+     * <tt>RedTransformEngine</tt>.
+     *
+     * @return a <tt>RedTransformEngine</tt> if this is an audio oriented
+     * stream and <tt>null</tt> otherwise.
+     */
+    protected RedTransformEngine createRedTransformEngine()
+    {
+        return null;
+    }
+
+    /**
+     * A stub that allows video oriented streams to create a
+     * <tt>RembTransformEngine</tt>.
+     *
+     * @return a <tt>RembTransformEngine</tt> if this is a video oriented
+     * stream and <tt>null</tt> otherwise.
+     */
+    protected RembTransformEngine createRembTransformEngine()
+    {
+        return null;
+    }
+
+    /**
+     * A stub that allows video oriented streams to create an
+     * <tt>UlpfecTransformEngine</tt>.
+     *
+     * @return an <tt>UlpfecTransformEngine</tt> if this is a video oriented
+     * stream and <tt>null</tt> otherwise.
+     */
+    protected UlpfecTransformEngine createUlpfecTransformEngine()
+    {
+        return null;
+    }
+
     /**
      * Adds a new association in this <tt>MediaStream</tt> of the specified RTP
      * payload type with the specified <tt>MediaFormat</tt> in order to allow it
@@ -461,6 +623,8 @@ public class MediaStreamImpl
         synchronized (dynamicRTPPayloadTypes)
         {
             dynamicRTPPayloadTypes.put(Byte.valueOf(rtpPayloadType), format);
+            addRtxPayloadType(rtpPayloadType, format);
+            enableRembIfNegotiated(format);
 
             if (rtpManager != null)
                 rtpManager.addFormat(
@@ -469,6 +633,72 @@ public class MediaStreamImpl
         }
     }
 
+    /**
+     * Enables {@link #rembTransformEngine} if the remote peer supports REMB
+     * for a specific <tt>MediaFormat</tt> i.e. if the <tt>goog-remb</tt> RTCP
+     * feedback has been negotiated for it (as signaled by its <tt>rtcp-fb</tt>
+     * advanced attribute).
+     *
+     * @param format the <tt>MediaFormat</tt> to check for REMB support
+     */
+    private void enableRembIfNegotiated(MediaFormat format)
+    {
+        if (rembTransformEngine == null)
+            return;
+
+        Map<String, String> attrs = format.getAdvancedAttributes();
+        String rtcpFb = (attrs == null) ? null : attrs.get("rtcp-fb");
+
+        if (rtcpFb == null)
+            return;
+
+        for (String param : rtcpFb.split("[\\s,;]+"))
+        {
+            if (RembTransformEngine.GOOG_REMB.equalsIgnoreCase(param))
+            {
+                rembTransformEngine.setEnabled(true);
+                break;
+            }
+        }
+    }
+
+    /**
+     * Adds a specific RTP payload type to {@link #rtxTransformEngine} if it is
+     * associated with an RTX <tt>MediaFormat</tt> (RFC 4588) i.e. one with
+     * the <tt>rtx</tt> encoding and an <tt>apt</tt> format parameter.
+     *
+     * @param rtpPayloadType the RTP payload type associated with
+     * <tt>format</tt>
+     * @param format the <tt>MediaFormat</tt> associated with
+     * <tt>rtpPayloadType</tt>
+     */
+    private void addRtxPayloadType(byte rtpPayloadType, MediaFormat format)
+    {
+        if ((rtxTransformEngine == null)
+                || !"rtx".equalsIgnoreCase(format.getEncoding()))
+            return;
+
+        String apt = format.getFormatParameters().get("apt");
+
+        if (apt != null)
+        {
+            try
+            {
+                rtxTransformEngine.addRtxPayloadType(
+                        rtpPayloadType,
+                        Byte.parseByte(apt.trim()));
+
+                // The remote peer is able to retransmit so request it to.
+                if (nackTransformEngine != null)
+                    nackTransformEngine.setEnabled(true);
+            }
+            catch (NumberFormatException nfe)
+            {
+                logger.warn("Invalid apt of RTX payload type " + rtpPayloadType);
+            }
+        }
+    }
+
     /**
      * Maps or updates the mapping between <tt>extensionID</tt> and
      * <tt>rtpExtension</tt>. If <tt>rtpExtension</tt>'s <tt>MediaDirection</tt>
@@ -574,6 +804,83 @@ public class MediaStreamImpl
         return csrcEngine;
     }
 
+    /**
+     * Returns the engine that is responsible for the retransmissions (RFC
+     * 4588) of the RTP packets of this stream.
+     *
+     * @return the engine that is responsible for the retransmissions of the
+     * RTP packets of this stream or <tt>null</tt> if it has not been created
+     * yet
+     */
+    public RtxTransformEngine getRtxTransformEngine()
+    {
+        return rtxTransformEngine;
+    }
+
+    /**
+     * Returns the engine that is responsible for requesting the
+     * retransmission of the RTP packets lost on the way from the remote peer.
+     *
+     * @return the engine that is responsible for requesting the retransmission
+     * of the RTP packets lost on the way from the remote peer or <tt>null</tt>
+     * if it has not been created yet
+     */
+    public NackTransformEngine getNackTransformEngine()
+    {
+        return nackTransformEngine;
+    }
+
+    /**
+     * Returns the engine that is responsible for the redundant audio data
+     * (RFC 2198) of this stream.
+     *
+     * @return the engine that is responsible for the redundant audio data of
+     * this stream or <tt>null</tt> if this stream does not support it or the
+     * engine has not been created yet
+     */
+    public RedTransformEngine getRedTransformEngine()
+    {
+        return redTransformEngine;
+    }
+
+    /**
+     * Returns the engine that is responsible for the forward error correction
+     * (RFC 5109) of this stream.
+     *
+     * @return the engine that is responsible for the forward error correction
+     * of this stream or <tt>null</tt> if this stream does not support it or
+     * the engine has not been created yet
+     */
+    public UlpfecTransformEngine getUlpfecTransformEngine()
+    {
+        return ulpfecTransformEngine;
+    }
+
+    /**
+     * Gets the <tt>BitrateController</tt> which adapts the bitrate of the
+     * local encoders of this stream to the packet loss and the REMB messages
+     * reported by the remote peer.
+     *
+     * @return the <tt>BitrateController</tt> of this stream
+     */
+    public BitrateController getBitrateController()
+    {
+        return bitrateController;
+    }
+
+    /**
+     * Returns the engine that is responsible for the bandwidth estimation and
+     * the REMB messages of this stream.
+     *
+     * @return the engine that is responsible for the bandwidth estimation and
+     * the REMB messages of this stream or <tt>null</tt> if it has not been
+     * created yet or this is not a video stream
+     */
+    public RembTransformEngine getRembTransformEngine()
+    {
+        return rembTransformEngine;
+    }
+
     /**
      * Releases the resources allocated by this instance in the course of its
      * execution and prepares it to be garbage collected.
@@ -600,6 +907,13 @@ public class MediaStreamImpl
             csrcEngine = null;
         }
 
+        if (rtxTransformEngine != null)
+            rtxTransformEngine.close();
+        if (nackTransformEngine != null)
+            nackTransformEngine.close();
+        if (rembTransformEngine != null)
+            rembTransformEngine.close();
+
         if (rtpManager != null)
         {
             if (logger.isInfoEnabled())
@@ -1496,12 +1810,53 @@ public class MediaStreamImpl
              */
             if(newValue instanceof RTPTransformUDPConnector)
             {
+                transformEngineChain = createTransformEngineChain();
                 ((RTPTransformUDPConnector)newValue)
-                    .setEngine(createTransformEngineChain());
+                    .setEngine(transformEngineChain);
             }
             else if(newValue instanceof RTPTransformTCPConnector)
+            {
+                transformEngineChain = createTransformEngineChain();
                 ((RTPTransformTCPConnector)newValue)
-                    .setEngine(createTransformEngineChain());
+                    .setEngine(transformEngineChain);
+            }
+            if (rtxTransformEngine != null)
+            {
+                rtxTransformEngine.setConnector(newValue);
+                // The retransmissions are to be encrypted but not to be
+                // transformed by the engines preceding RTX again.
+                rtxTransformEngine.setRetransmissionTransformer(
+                        (transformEngineChain == null)
+                            ? null
+                            : transformEngineChain.getRTPTransformerAfter(
+                                    rtxTransformEngine));
+            }
+            if (nackTransformEngine != null)
+                nackTransformEngine.setConnector(newValue);
+            if (redTransformEngine != null)
+                redTransformEngine.setConnector(newValue);
+            if (ulpfecTransformEngine != null)
+            {
+                ulpfecTransformEngine.setConnector(newValue);
+                // The ULPFEC packets are to be encrypted but not to be
+                // transformed by the engines preceding ULPFEC.
+                ulpfecTransformEngine.setFecPacketTransformer(
+                        (transformEngineChain == null)
+                            ? null
+                            : transformEngineChain.getRTPTransformerAfter(
+                                    ulpfecTransformEngine));
+                // The recovered packets are to be seen by the engines which
+
+                // reverse-transform the received packets after ULPFEC (e.g.
+                // NACK).
+                ulpfecTransformEngine.setRecoveredPacketTransformer(
+                        (transformEngineChain == null)
+                            ? null
+                            : transformEngineChain.getRTPTransformerBefore(
+                                    ulpfecTransformEngine));
+            }
+            if (rembTransformEngine != null)
+                rembTransformEngine.setConnector(newValue);
 
             if (rtpConnectorTarget != null)
             {
@@ -2733,6 +3088,11 @@ public class MediaStreamImpl
                             plae.setExpectedPacketLoss(expectedPacketLoss);
                     }
                 }
+
+                // The loss-based bitrate applies to every stream with
+                // BitrateAwareEncoders (e.g. Opus), with or without REMB.
+                bitrateController.lossReported(feedback.getFractionLost());
+
             }
 
             if(logger.isInfoEnabled())
@@ -21,6 +21,9 @@ import net.sf.fmj.media.rtp.*;
 
 import org.apache.commons.math3.stat.descriptive.*;
 import org.jitsi.impl.neomedia.device.*;
+import org.jitsi.impl.neomedia.transform.*;
+import org.jitsi.impl.neomedia.transform.fec.*;
+import org.jitsi.impl.neomedia.transform.rtx.*;
 import org.jitsi.service.neomedia.*;
 import org.jitsi.service.neomedia.control.*;
 import org.jitsi.service.neomedia.format.*;
@@ -1071,6 +1074,62 @@ public class MediaStreamStatsImpl
         return rttMsSummary.getMean();
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    public long getNbRetransmissions()
+    {
+        RtxTransformEngine rtxTransformEngine
+            = mediaStreamImpl.getRtxTransformEngine();
+
+        return
+            (rtxTransformEngine == null)
+                ? 0
+                : rtxTransformEngine.getRetransmissionHitCount();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getNbRetransmissionMisses()
+    {
+        RtxTransformEngine rtxTransformEngine
+            = mediaStreamImpl.getRtxTransformEngine();
+
+        return
+            (rtxTransformEngine == null)
+                ? 0
+                : rtxTransformEngine.getRetransmissionMissCount();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getRetransmissionHistoryBytes()
+    {
+        RtxTransformEngine rtxTransformEngine
+            = mediaStreamImpl.getRtxTransformEngine();
+
+        return
+            (rtxTransformEngine == null)
+                ? 0
+                : rtxTransformEngine.getHistoryMemoryUsed();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public List<TransformEngineStats> getTransformEngineStats()
+    {
+        TransformEngineChain transformEngineChain
+            = mediaStreamImpl.getTransformEngineChain();
+
+        return
+            (transformEngineChain == null)
+                ? Collections.<TransformEngineStats>emptyList()
+                : transformEngineChain.getEngineStats();
+    }
+
     /**
      * Returns the number of packets for which FEC data was decoded. Currently
      * this is cumulative over all <tt>ReceiveStream</tt>s.
@@ -1092,7 +1151,7 @@ public class MediaStreamStatsImpl
     private void updateNbFec()
     {
         MediaDeviceSession devSession = mediaStreamImpl.getDeviceSession();
-        int nbFec = 0;
+        long nbFec = 0;
 
         if(devSession != null)
         {
@@ -1107,6 +1166,13 @@ public class MediaStreamStatsImpl
                 }
             }
         }
+
+        UlpfecTransformEngine ulpfecTransformEngine
+            = mediaStreamImpl.getUlpfecTransformEngine();
+
+        if (ulpfecTransformEngine != null)
+            nbFec += ulpfecTransformEngine.getRecoveredPacketCount();
+
         this.nbFec = nbFec;
     }
 
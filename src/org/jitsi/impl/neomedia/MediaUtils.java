@@ -220,6 +220,14 @@ public class MediaUtils
             Constants.TELEPHONE_EVENT,
             8000);
 
+        /* Redundant audio data */
+        addMediaFormats(
+            MediaFormat.RTP_PAYLOAD_TYPE_UNKNOWN,
+            "red",
+            MediaType.AUDIO,
+            Constants.RED,
+            8000, 48000);
+
         /* SILK */
         ConfigurationService cfg = LibJitsi.getConfigurationService();
         boolean advertiseFEC
@@ -322,6 +330,14 @@ public class MediaUtils
                 Constants.VP8_RTP,
                 null, null);
 
+        /* Generic forward error correction */
+        addMediaFormats(
+                MediaFormat.RTP_PAYLOAD_TYPE_UNKNOWN,
+                "ulpfec",
+                MediaType.VIDEO,
+                Constants.ULPFEC,
+                null, null);
+
         /*
          * DONE ADDING MEDIA FORMATS
          */
@@ -0,0 +1,513 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package org.jitsi.impl.neomedia;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+import org.jitsi.util.*;
+
+/**
+ * Implements the transport of RTP and RTCP packets over a TCP
+ * <tt>SocketChannel</tt> framed as defined by RFC 4571 (i.e. each packet is
+ * preceded by its length as a 16-bit unsigned integer in network byte order).
+ * The <tt>SocketChannel</tt> is serviced by the selector threads of the
+ * <tt>RTPConnectorSelectorPool</tt> which it shares with the UDP
+ * <tt>RTPConnector</tt>s:
+ * <ul>
+ * <li>it is read in large chunks from which as many packets as available are
+ * extracted per read;</li>
+ * <li>a packet is written together with its framing header with a single
+ * gathering write and the packets which the socket could not accept
+ * immediately are queued and coalesced into the next write;</li>
+ * <li>Nagle's algorithm is disabled.</li>
+ * </ul>
+ * An instance is shared by the <tt>RTPConnectorTCPInputStream</tt> and the
+ * <tt>RTPConnectorTCPOutputStream</tt> of a TCP socket because a
+ * <tt>SelectableChannel</tt> may be registered with a <tt>Selector</tt> only
+ * once.
+ */
+class RFC4571Connection
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>RFC4571Connection</tt> class and its
+     * instances for logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(RFC4571Connection.class);
+
+    /**
+     * The <tt>RFC4571Connection</tt>s which have been acquired and not
+     * released yet by their <tt>SocketChannel</tt>s.
+     */
+    private static final Map<SocketChannel, RFC4571Connection> connections
+        = new HashMap<SocketChannel, RFC4571Connection>();
+
+    /**
+     * The maximum length in bytes of a packet framed as defined by RFC 4571.
+     */
+    private static final int MAX_PACKET_LENGTH = 0xFFFF;
+
+    /**
+     * The maximum number of bytes to be queued for writing when the socket
+     * cannot accept them immediately. When the maximum is reached, the
+     * written packets are dropped just like UDP packets would be.
+     */
+    private static final int MAX_PENDING_WRITE_LENGTH = 64 * 1024;
+
+    /**
+     * The maximum number of reads to be performed each time the channel is
+     * reported readable. Bounds the time a single busy channel occupies a
+     * selector thread shared with other channels.
+     */
+    private static final int MAX_READS_PER_SELECT = 4;
+
+    /**
+     * Gets the <tt>RFC4571Connection</tt> of a specific TCP <tt>Socket</tt>
+     * and creates it if it does not exist yet. Each invocation is to be
+     * balanced with an invocation of {@link #release()}.
+     *
+     * @param socket the TCP <tt>Socket</tt> to get the
+     * <tt>RFC4571Connection</tt> of
+     * @return the <tt>RFC4571Connection</tt> of <tt>socket</tt> or
+     * <tt>null</tt> if <tt>socket</tt> does not have a <tt>SocketChannel</tt>
+     * which may be serviced by the <tt>RTPConnectorSelectorPool</tt>
+     */
+    public static RFC4571Connection acquire(Socket socket)
+    {
+        SocketChannel channel = socket.getChannel();
+
+        /*
+         * The DelegatingSockets of ice4j (e.g. MultiplexingSocket) read from
+         * and write to their delegates themselves and perform their own
+         * framing.
+         */
+        if ((channel == null)
+                || (socket instanceof org.ice4j.socket.DelegatingSocket))
+            return null;
+
+        synchronized (connections)
+        {
+            RFC4571Connection connection = connections.get(channel);
+
+            if (connection == null)
+            {
+                connection = new RFC4571Connection(channel);
+                if (!connection.register())
+                    return null;
+                connections.put(channel, connection);
+            }
+            connection.referenceCount++;
+            return connection;
+        }
+    }
+
+    /**
+     * The <tt>SocketChannel</tt> over which the packets are transported.
+     */
+    private final SocketChannel channel;
+
+    /**
+     * The <tt>Exception</tt> which has caused this <tt>RFC4571Connection</tt>
+     * to fail or <tt>null</tt> if it has not failed.
+     */
+    private IOException failure;
+
+    /**
+     * The <tt>ByteBuffer</tt> into which the framing header of the packet
+     * being written is put. Accessed while synchronized on
+     * {@link #writeSyncRoot}.
+     */
+    private final ByteBuffer header = ByteBuffer.allocate(2);
+
+    /**
+     * The <tt>RTPConnectorTCPInputStream</tt> to which the packets read from
+     * {@link #channel} are delivered. Accessed on the selector thread only.
+     */
+    private RTPConnectorTCPInputStream inputStream;
+
+    /**
+     * The <tt>ByteBuffer</tt>s of the gathering writes to {@link #channel}.
+     * Accessed while synchronized on {@link #writeSyncRoot}.
+     */
+    private final ByteBuffer[] gather = new ByteBuffer[2];
+
+    /**
+     * The bytes queued to be written to {@link #channel} once it becomes
+     * writable. In write mode i.e. its position is the number of queued
+     * bytes. Is not empty only while {@link #writeInterest} is
+     * <tt>true</tt>. Accessed while synchronized on {@link #writeSyncRoot}.
+     */
+    private final ByteBuffer pendingWrite
+        = ByteBuffer.allocate(MAX_PENDING_WRITE_LENGTH);
+
+    /**
+     * The <tt>ByteBuffer</tt> into which {@link #channel} is read. In write
+     * mode between reads. Big enough to hold a packet of the maximum length
+     * and its framing header so that a packet never has to be assembled from
+     * multiple buffers. Accessed on the selector thread only.
+     */
+    private final ByteBuffer readBuffer
+        = ByteBuffer.allocate(2 * (MAX_PACKET_LENGTH + 2));
+
+    /**
+     * The number of {@link #acquire(Socket)} invocations which have not been
+     * balanced with {@link #release()} invocations yet. Accessed while
+     * synchronized on {@link #connections}.
+     */
+    private int referenceCount = 0;
+
+    /**
+     * The remote address of {@link #channel}.
+     */
+    private final SocketAddress remoteAddress;
+
+    /**
+     * The number of packets dropped because the socket could not accept them
+     * and {@link #pendingWrite} was full.
+     */
+    private long droppedPacketCount = 0;
+
+    /**
+     * Whether {@link #channel} is registered with the
+     * <tt>RTPConnectorSelectorPool</tt> for writability. Accessed while
+     * synchronized on {@link #writeSyncRoot}.
+     */
+    private boolean writeInterest = false;
+
+    /**
+     * The <tt>Object</tt> which synchronizes the writes to {@link #channel}.
+     */
+    private final Object writeSyncRoot = new Object();
+
+    /**
+     * Initializes a new <tt>RFC4571Connection</tt> instance which is to
+     * transport packets over a specific <tt>SocketChannel</tt>.
+     *
+     * @param channel the <tt>SocketChannel</tt> over which the new instance is
+     * to transport packets
+     */
+    private RFC4571Connection(SocketChannel channel)
+    {
+        this.channel = channel;
+
+        remoteAddress = channel.socket().getRemoteSocketAddress();
+    }
+
+    /**
+     * Reads the packets available on {@link #channel} and delivers them to
+     * {@link #inputStream}. Invoked on the selector thread.
+     *
+     * @param key the <tt>SelectionKey</tt> of {@link #channel}
+     */
+    private void channelReadable(SelectionKey key)
+    {
+        for (int i = 0; i < MAX_READS_PER_SELECT; i++)
+        {
+            int read;
+
+            try
+            {
+                read = channel.read(readBuffer);
+                if (read < 0)
+                    throw new EOFException();
+            }
+            catch (IOException ioe)
+            {
+                failed(key, ioe);
+                return;
+            }
+            if (read == 0)
+                break;
+
+            boolean full = !readBuffer.hasRemaining();
+
+            readBuffer.flip();
+            while (readBuffer.remaining() >= 2)
+            {
+                int position = readBuffer.position();
+                int length = readBuffer.getShort(position) & 0xFFFF;
+
+                if (readBuffer.remaining() < 2 + length)
+                    break;
+                if ((inputStream != null) && (length > 0))
+                {
+                    inputStream.frameReceived(
+                            readBuffer.array(),
+                            readBuffer.arrayOffset() + position + 2,
+                            length,
+                            remoteAddress);
+                }
+                readBuffer.position(position + 2 + length);
+            }
+            readBuffer.compact();
+
+            // If the buffer was not filled up, there is nothing more to read.
+            if (!full)
+                break;
+        }
+    }
+
+    /**
+     * Writes the packets queued in {@link #pendingWrite} to {@link #channel}.
+     * Invoked on the selector thread when <tt>channel</tt> is writable.
+     *
+     * @param key the <tt>SelectionKey</tt> of {@link #channel}
+     */
+    private void channelWritable(SelectionKey key)
+    {
+        synchronized (writeSyncRoot)
+        {
+            try
+            {
+                pendingWrite.flip();
+                channel.write(pendingWrite);
+                pendingWrite.compact();
+            }
+            catch (IOException ioe)
+            {
+                pendingWrite.clear();
+                failed(key, ioe);
+                return;
+            }
+            if (pendingWrite.position() == 0)
+            {
+                writeInterest = false;
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+    }
+
+    /**
+     * Marks this <tt>RFC4571Connection</tt> as failed because of a specific
+     * <tt>IOException</tt> i.e. stops reading from and writing to
+     * {@link #channel}. Invoked on the selector thread.
+     *
+     * @param key the <tt>SelectionKey</tt> of {@link #channel}
+     * @param ioe the <tt>IOException</tt> which caused the failure
+     */
+    private void failed(SelectionKey key, IOException ioe)
+    {
+        key.cancel();
+        synchronized (writeSyncRoot)
+        {
+            if (failure == null)
+                failure = ioe;
+        }
+        if (inputStream != null)
+            inputStream.connectionFailed();
+        if (logger.isDebugEnabled())
+        {
+            logger.debug(
+                    "RFC 4571 connection to " + remoteAddress + " failed",
+                    ioe);
+        }
+    }
+
+    /**
+     * Gets the number of packets which have been dropped because the socket
+     * could not accept them and the queue of pending writes was full.
+     *
+     * @return the number of packets which have been dropped because the
+     * socket could not accept them and the queue of pending writes was full
+     */
+    public long getDroppedPacketCount()
+    {
+        synchronized (writeSyncRoot)
+        {
+            return droppedPacketCount;
+        }
+    }
+
+    /**
+     * Registers {@link #channel} with the <tt>RTPConnectorSelectorPool</tt>.
+     *
+     * @return <tt>true</tt> if <tt>channel</tt> has been registered;
+     * otherwise, <tt>false</tt>
+     */
+    private boolean register()
+    {
+        try
+        {
+            channel.socket().setTcpNoDelay(true);
+        }
+        catch (SocketException se)
+        {
+            logger.info("Failed to disable Nagle's algorithm: " + se);
+        }
+
+        try
+        {
+            RTPConnectorSelectorPool.getInstance().register(
+                    channel,
+                    SelectionKey.OP_READ,
+                    new RTPConnectorSelectorPool.SelectionHandler()
+                    {
+                        @Override
+                        public void selected(SelectionKey key)
+                        {
+                            if (key.isValid() && key.isWritable())
+                                channelWritable(key);
+                            if (key.isValid() && key.isReadable())
+                                channelReadable(key);
+                        }
+                    });
+            return true;
+        }
+        catch (IOException ioe)
+        {
+            logger.warn(
+                    "Failed to register with RTPConnectorSelectorPool,"
+                        + " falling back to blocking I/O.",
+                    ioe);
+            return false;
+        }
+    }
+
+    /**
+     * Releases a reference to this <tt>RFC4571Connection</tt> acquired with
+     * {@link #acquire(Socket)}. When the last reference is released,
+     * {@link #channel} is unregistered from the
+     * <tt>RTPConnectorSelectorPool</tt>.
+     */
+    public void release()
+    {
+        synchronized (connections)
+        {
+            if (--referenceCount > 0)
+                return;
+            connections.remove(channel);
+        }
+        try
+        {
+            RTPConnectorSelectorPool.getInstance().unregister(channel);
+        }
+        catch (IOException ioe)
+        {
+            // The pool exists because channel has been registered with it.
+        }
+    }
+
+    /**
+     * Sets the <tt>RTPConnectorTCPInputStream</tt> to which the packets read
+     * from {@link #channel} are to be delivered and runs a specific
+     * <tt>Runnable</tt> once the change is in effect i.e. the previous
+     * <tt>RTPConnectorTCPInputStream</tt> is guaranteed to not be delivered
+     * packets anymore.
+     *
+     * @param inputStream the <tt>RTPConnectorTCPInputStream</tt> to which the
+     * packets read from <tt>channel</tt> are to be delivered or <tt>null</tt>
+     * @param completion the <tt>Runnable</tt> to be run once the change is in
+     * effect or <tt>null</tt>
+     */
+    public void setInputStream(
+            final RTPConnectorTCPInputStream inputStream,
+            final Runnable completion)
+    {
+        Runnable task
+            = new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    RFC4571Connection.this.inputStream = inputStream;
+                    if (completion != null)
+                        completion.run();
+                }
+            };
+
+        try
+        {
+            RTPConnectorSelectorPool.getInstance().execute(channel, task);
+        }
+        catch (IOException ioe)
+        {
+            // The pool exists because channel has been registered with it.
+            task.run();
+        }
+    }
+
+    /**
+     * Writes a specific packet to {@link #channel} framed as defined by RFC
+     * 4571. The packet and its framing header are written with a single
+     * gathering write. If the socket cannot accept (all of) the packet now or
+     * packets are already queued because it could not accept them earlier,
+     * the packet is queued and the queued packets are written together by the
+     * selector thread once the socket becomes writable.
+     *
+     * @param packet the packet to write
+     * @throws IOException if this <tt>RFC4571Connection</tt> has failed or
+     * an I/O error occurs while writing
+     */
+    public void write(RawPacket packet)
+        throws IOException
+    {
+        int length = packet.getLength();
+
+        if (length > MAX_PACKET_LENGTH)
+            throw new IOException("Packet too long: " + length);
+
+        ByteBuffer payload = packet.getByteBuffer();
+
+        synchronized (writeSyncRoot)
+        {
+            if (failure != null)
+                throw failure;
+
+            int pendingLength = pendingWrite.position();
+
+            /*
+             * Drop the whole packet now rather than after it has been
+             * partially written because a partial packet would break the
+             * framing.
+             */
+            if (pendingLength + 2 + length > pendingWrite.capacity())
+            {
+                droppedPacketCount++;
+                return;
+            }
+
+            header.clear();
+            header.putShort((short) length);
+            header.flip();
+
+            /*
+             * While packets are queued, the packet is to be written after
+             * them by the selector thread.
+             */
+            if (!writeInterest)
+            {
+                gather[0] = header;
+                gather[1] = payload;
+                try
+                {
+                    channel.write(gather);
+                }
+                finally
+                {
+                    gather[0] = gather[1] = null;
+                }
+            }
+
+            if (header.hasRemaining() || payload.hasRemaining())
+            {
+                pendingWrite.put(header);
+                pendingWrite.put(payload);
+                if (!writeInterest)
+                {
+                    writeInterest = true;
+                    RTPConnectorSelectorPool.getInstance().setInterestOps(
+                            channel,
+                            SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                }
+            }
+        }
+    }
+}
@@ -15,6 +15,12 @@ import javax.media.rtp.*;
  */
 public class RTCPFeedbackPacket
 {
+    /**
+     * Feedback control information (FCI) or <tt>null</tt> if the message does
+     * not carry any.
+     */
+    private final byte[] fci;
+
     /**
      * Feedback message type.
      */
@@ -45,10 +51,35 @@ public class RTCPFeedbackPacket
      */
     public RTCPFeedbackPacket(int type, int payloadType, long sender, long src)
     {
+        this(type, payloadType, sender, src, null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param type feedback message type
+     * @param payloadType payload type
+     * @param sender sender SSRC
+     * @param src source SSRC
+     * @param fci feedback control information (e.g. the PID and BLP pairs of
+     * a generic NACK). Its length must be a multiple of four.
+     */
+    public RTCPFeedbackPacket(
+            int type, int payloadType,
+            long sender, long src,
+            byte[] fci)
+    {
+        if ((fci != null) && ((fci.length & 3) != 0))
+        {
+            throw new IllegalArgumentException(
+                    "fci length must be a multiple of 4");
+        }
+
         this.fmt = type;
         this.payloadType = payloadType;
         this.senderSSRC = sender;
         this.sourceSSRC = src;
+        this.fci = fci;
     }
 
     /**
@@ -58,15 +89,19 @@ public class RTCPFeedbackPacket
      */
     public void writeTo(OutputDataStream out)
     {
-        byte data[] = new byte[12];
+        int fciLength = (fci == null) ? 0 : fci.length;
+        byte data[] = new byte[12 + fciLength];
         byte vpfmt = (byte) (0x80 /* RTP version */ | (fmt & 0x1F));
 
         data[0] = vpfmt;
         data[1] = (byte) payloadType;
 
         /* length (in 32-bit words minus one) */
-        data[2] = 0;
-        data[3] = 2; /* common packet is 12 bytes so (12/4) - 1 */
+        /* common packet is 12 bytes so (12/4) - 1 plus the FCI */
+        int length = 2 + fciLength / 4;
+
+        data[2] = (byte) (length >> 8);
+        data[3] = (byte) length;
 
         /* sender SSRC */
         data[4] = (byte) (senderSSRC >> 24);
@@ -80,8 +115,12 @@ public class RTCPFeedbackPacket
         data[10] = (byte) ((sourceSSRC >> 8) & 0xFF);
         data[11] = (byte) (sourceSSRC & 0xFF);
 
+        /* feedback control information */
+        if (fciLength != 0)
+            System.arraycopy(fci, 0, data, 12, fciLength);
+
         /* effective write */
-        out.write(data, 0, 12);
+        out.write(data, 0, data.length);
     }
 }
 
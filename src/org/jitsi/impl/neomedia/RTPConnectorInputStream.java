@@ -40,9 +40,18 @@ public abstract class RTPConnectorInputStream
     private static final int PACKET_RECEIVE_BUFFER_LENGTH = 4 * 1024;
 
     /**
-     * Packet receive buffer
+     * Packet receive buffer. Acquired from the <tt>RawPacketPool</tt> and
+     * released to it by {@link #releaseReceiveBuffer()}.
      */
-    private final byte[] buffer = new byte[PACKET_RECEIVE_BUFFER_LENGTH];
+    private byte[] buffer
+        = RawPacketPool.getBuffer(PACKET_RECEIVE_BUFFER_LENGTH);
+
+    /**
+     * Whether {@link #buffer} has been handed off to the caller of
+     * {@link #readPacket()} along with {@link #pkt} and is to be replaced
+     * before the next packet is received.
+     */
+    private boolean bufferHandedOff = false;
 
     /**
      * Whether this stream is closed. Used to control the termination of worker
@@ -66,6 +75,13 @@ public abstract class RTPConnectorInputStream
      */
     private SourceTransferHandler transferHandler;
 
+    /**
+     * The <tt>Object</tt> which serializes the transfers of {@link #pkt} to
+     * {@link #transferHandler} by the thread(s) receiving the packets of this
+     * instance and by {@link #transferPacket(RawPacket)}.
+     */
+    private final Object transferSyncRoot = new Object();
+
     /**
      * The Thread receiving packets.
      */
@@ -142,7 +158,7 @@ public abstract class RTPConnectorInputStream
         if (pkt == null)
         {
             return
-                new RawPacket(
+                RawPacketPool.getRawPacket(
                         datagramPacket.getData(),
                         datagramPacket.getOffset(),
                         datagramPacket.getLength());
@@ -255,6 +271,9 @@ public abstract class RTPConnectorInputStream
     {
         if (ioError)
             return -1;
+        // The packet may have been read with readPacket() already.
+        if (pkt == null)
+            return 0;
 
         int pktLength = pkt.getLength();
 
@@ -272,6 +291,41 @@ public abstract class RTPConnectorInputStream
         return pktLength;
     }
 
+    /**
+     * Hands the most recently received packet off to the caller without
+     * copying it. The caller becomes the owner of the returned
+     * <tt>RawPacket</tt> and its buffer (which is the buffer the packet has
+     * been received and reverse-transformed into) and is to release them with
+     * {@link RawPacketPool#returnRawPacket(RawPacket)} when it no longer needs
+     * them. This instance receives its next packet into a new buffer acquired
+     * from the <tt>RawPacketPool</tt>. Subsequent reads return nothing until
+     * the next packet is received.
+     * <p>
+     * Expected to be invoked by the <tt>SourceTransferHandler</tt> of this
+     * instance from within its <tt>transferData</tt> method instead of
+     * {@link #read(byte[], int, int)}.
+     * </p>
+     *
+     * @return the most recently received packet or <tt>null</tt> if it has
+     * been read with <tt>readPacket</tt> already or an I/O error has occurred
+     * while receiving
+     */
+    public RawPacket readPacket()
+    {
+        if (ioError)
+            return null;
+
+        RawPacket pkt = this.pkt;
+
+        if (pkt != null)
+        {
+            this.pkt = null;
+            if (pkt.getBuffer() == buffer)
+                bufferHandedOff = true;
+        }
+        return pkt;
+    }
+
     /**
      * Log the packet.
      *
@@ -316,39 +370,92 @@ public abstract class RTPConnectorInputStream
                 break;
             }
 
-            /*
-             * Do the DatagramPacketFilters accept the received DatagramPacket?
-             */
-            DatagramPacketFilter[] datagramPacketFilters
-                = getDatagramPacketFilters();
-            boolean accept;
+            packetReceived(p);
+        }
+        releaseReceiveBuffer();
+        Log.logMediaStackObjectStopped(this);
+    }
+
+    /**
+     * Gets the <tt>byte</tt> buffer into which the packets of this instance
+     * are to be received. Allows extenders which receive packets without the
+     * thread of this instance (e.g. through a <tt>Selector</tt>) to reuse the
+     * buffer of this instance.
+     *
+     * @return the <tt>byte</tt> buffer into which the packets of this instance
+     * are to be received
+     */
+    protected byte[] getReceiveBuffer()
+    {
+        return buffer;
+    }
+
+    /**
+     * Releases the <tt>byte</tt> buffer into which the packets of this
+     * instance are received to the <tt>RawPacketPool</tt>. Must be invoked
+     * once nothing is (to be) received into the buffer anymore i.e. after the
+     * thread of this instance or, respectively, the reading of the extender
+     * has stopped.
+     */
+    protected synchronized void releaseReceiveBuffer()
+    {
+        if (buffer != null)
+        {
+            if (!bufferHandedOff)
+                RawPacketPool.returnBuffer(buffer);
+            buffer = null;
+        }
+    }
 
-            if (datagramPacketFilters == null)
-                accept = true;
-            else
+    /**
+     * Notifies this instance that a specific <tt>DatagramPacket</tt> has been
+     * received. Applies the <tt>DatagramPacketFilter</tt>s, converts the
+     * accepted <tt>DatagramPacket</tt> into a <tt>RawPacket</tt> and notifies
+     * the local <tt>transferHandler</tt> that there's data to be read. Invoked
+     * either by the thread of this instance (i.e. {@link #run()}) or by
+     * whoever receives the packets of this instance on its behalf.
+     *
+     * @param p the <tt>DatagramPacket</tt> which has been received
+     */
+    protected void packetReceived(DatagramPacket p)
+    {
+        /*
+         * Do the DatagramPacketFilters accept the received DatagramPacket?
+         */
+        DatagramPacketFilter[] datagramPacketFilters
+            = getDatagramPacketFilters();
+        boolean accept;
+
+        if (datagramPacketFilters == null)
+            accept = true;
+        else
+        {
+            accept = true;
+            for (int i = 0; i < datagramPacketFilters.length; i++)
             {
-                accept = true;
-                for (int i = 0; i < datagramPacketFilters.length; i++)
+                try
                 {
-                    try
+                    if (!datagramPacketFilters[i].accept(p))
                     {
-                        if (!datagramPacketFilters[i].accept(p))
-                        {
-                            accept = false;
-                            break;
-                        }
-                    }
-                    catch (Throwable t)
-                    {
-                        if (t instanceof ThreadDeath)
-                            throw (ThreadDeath) t;
+                        accept = false;
+                        break;
                     }
                 }
+                catch (Throwable t)
+                {
+                    if (t instanceof ThreadDeath)
+                        throw (ThreadDeath) t;
+                }
             }
+        }
 
-            if (accept)
+        if (accept)
+        {
+            RawPacket pkt = createRawPacket(p);
+
+            synchronized (transferSyncRoot)
             {
-                pkt = createRawPacket(p);
+                this.pkt = pkt;
 
                 /*
                  * If we got extended, the delivery of the packet may have been
@@ -358,8 +465,55 @@ public abstract class RTPConnectorInputStream
                         && (transferHandler != null) && !closed)
                     transferHandler.transferData(this);
             }
+
+            /*
+             * If the packet has been handed off by readPacket(), receive the
+             * next one into a new buffer.
+             */
+            if (bufferHandedOff)
+            {
+                synchronized (this)
+                {
+                    if (buffer != null)
+                    {
+                        buffer
+                            = RawPacketPool.getBuffer(
+                                    PACKET_RECEIVE_BUFFER_LENGTH);
+                        p.setData(buffer, 0, PACKET_RECEIVE_BUFFER_LENGTH);
+                    }
+                    bufferHandedOff = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Makes a specific <tt>RawPacket</tt>, which has been created from a
+     * received packet outside {@link #createRawPacket(DatagramPacket)} (e.g.
+     * reverse-transformed on another thread or recovered by a
+     * <tt>TransformEngine</tt>), available for reading out of
+     * this instance and notifies the local <tt>transferHandler</tt> that
+     * there's data to be read. The transfer is serialized with the transfers
+     * of the packets received by this instance. If <tt>pkt</tt> is not taken
+     * over by the caller of {@link #readPacket()}, it is released to the
+     * <tt>RawPacketPool</tt> afterwards.
+     *
+     * @param pkt the <tt>RawPacket</tt> acquired from the
+     * <tt>RawPacketPool</tt> to be made available for reading
+     */
+    public void transferPacket(RawPacket pkt)
+    {
+        synchronized (transferSyncRoot)
+        {
+            this.pkt = pkt;
+            if (!pkt.isInvalid() && (transferHandler != null) && !closed)
+                transferHandler.transferData(this);
+            if (this.pkt == pkt)
+            {
+                this.pkt = null;
+                RawPacketPool.returnRawPacket(pkt);
+            }
         }
-        Log.logMediaStackObjectStopped(this);
     }
 
     /**
@@ -10,12 +10,12 @@ import java.io.*;
 import java.net.*;
 import java.util.*;
 import java.util.concurrent.*;
-import java.util.concurrent.locks.*;
 
 import javax.media.rtp.*;
 
 import net.sf.fmj.media.Log;
 
+import org.jitsi.service.configuration.*;
 import org.jitsi.service.libjitsi.*;
 import org.jitsi.service.packetlogging.*;
 import org.jitsi.util.*;
@@ -35,23 +35,89 @@ public abstract class RTPConnectorOutputStream
         = Logger.getLogger(RTPConnectorOutputStream.class);
 
     /**
-     * The maximum number of packets to be sent to be kept in the queue of
-     * <tt>MaxPacketsPerMillisPolicy</tt>. When the maximum is reached, the next
-     * attempt to write a new packet in the queue will block until at least one
-     * packet from the queue is sent. Defined in order to prevent
-     * <tt>OutOfMemoryError</tt>s which, technically, may arise if the capacity
-     * of the queue is unlimited.
+     * The maximum number of packets to be sent to be kept in the queue of the
+     * batched send mode and, by default, in a lane of a pacing
+     * <tt>RTPPacer.Flow</tt>. When the maximum is reached, the next attempt to
+     * write a new packet in the queue of the batched send mode will block
+     * until at least one packet from the queue is sent. Defined in order to
+     * prevent <tt>OutOfMemoryError</tt>s which, technically, may arise if the
+     * capacity of the queue is unlimited.
      */
     public static final int
         MAX_PACKETS_PER_MILLIS_POLICY_PACKET_QUEUE_CAPACITY
             = 256;
 
     /**
-     * The functionality which allows this <tt>OutputDataStream</tt> to control
-     * how many RTP packets it sends through its <tt>DatagramSocket</tt> per a
-     * specific number of milliseconds.
+     * The name of the integer <tt>ConfigurationService</tt> property which
+     * specifies the maximum number of packets to be sent by the
+     * <tt>RTPConnectorOutputStream</tt>s in a single batch. A value greater
+     * than <tt>1</tt> enables the batched send mode in which the written
+     * packets are queued and drained in batches by a sender thread. The
+     * default value is <tt>1</tt> i.e. the packets are sent by the threads
+     * which write them.
      */
-    private MaxPacketsPerMillisPolicy maxPacketsPerMillisPolicy;
+    public static final String BATCH_SIZE_PNAME
+        = "org.jitsi.impl.neomedia.RTPConnectorOutputStream.batchSize";
+
+    /**
+     * The name of the integer <tt>ConfigurationService</tt> property which
+     * specifies the maximum time in microseconds for which the sender thread
+     * of the batched send mode waits for a batch to fill up after its first
+     * packet has been queued. The default value is <tt>0</tt> i.e. the
+     * packets queued at the time the sender thread wakes up are sent without
+     * waiting for more.
+     */
+    public static final String BATCH_WINDOW_PNAME
+        = "org.jitsi.impl.neomedia.RTPConnectorOutputStream.batchWindowMicros";
+
+    /**
+     * The number of batches sent by the <tt>BatchedSender</tt> of this
+     * instance.
+     */
+    private volatile long batchCount;
+
+    /**
+     * The number of packets sent in batches by the <tt>BatchedSender</tt> of
+     * this instance.
+     */
+    private volatile long batchedPacketCount;
+
+    /**
+     * The functionality which allows this <tt>OutputDataStream</tt> to send
+     * the written RTP packets in batches or <tt>null</tt> if the batched send
+     * mode is disabled or no packet has been written yet.
+     */
+    private BatchedSender batchedSender;
+
+    /**
+     * The maximum number of packets to be sent in a single batch. The batched
+     * send mode is disabled if the value is less than <tt>2</tt>.
+     */
+    private final int batchSize;
+
+    /**
+     * The maximum time in nanoseconds for which the sender thread of the
+     * batched send mode waits for a batch to fill up.
+     */
+    private final long batchWindowNanos;
+
+    /**
+     * The <tt>RTPPacer.Flow</tt> which paces the packets written into this
+     * <tt>OutputDataStream</tt> or <tt>null</tt> if they are not paced.
+     */
+    private volatile RTPPacer.Flow pacingFlow;
+
+    /**
+     * Whether {@link #pacingFlow} has been created by this instance and is to
+     * be closed when this instance is closed.
+     */
+    private boolean pacingFlowOwned = false;
+
+    /**
+     * The <tt>RTPPacer.Priority</tt> with which the RTP packets written into
+     * this <tt>OutputDataStream</tt> are paced.
+     */
+    private RTPPacer.Priority pacingPriority = RTPPacer.Priority.VIDEO;
 
     /**
      * Stream targets' IP addresses and ports.
@@ -60,11 +126,10 @@ public abstract class RTPConnectorOutputStream
         = new LinkedList<InetSocketAddress>();
 
     /**
-     * The pool of <tt>RawPacket</tt> instances which reduces the number of
-     * allocations performed by {@link #createRawPacket(byte[], int, int)}.
+     * The maximum time in nanoseconds that a packet sent in a batch by the
+     * <tt>BatchedSender</tt> of this instance has spent in its queue.
      */
-    private final LinkedBlockingQueue<RawPacket> rawPacketPool
-        = new LinkedBlockingQueue<RawPacket>();
+    private volatile long maxQueueingDelayNanos;
 
     /**
      * Used for debugging. As we don't log every packet
@@ -72,12 +137,34 @@ public abstract class RTPConnectorOutputStream
      */
     private long numberOfPackets = 0;
 
+    /**
+     * The total time in nanoseconds that the packets sent in batches by the
+     * <tt>BatchedSender</tt> of this instance have spent in its queue.
+     */
+    private volatile long totalQueueingDelayNanos;
+
     /**
      * Initializes a new <tt>RTPConnectorOutputStream</tt> which is to send
      * packet data out through a specific socket.
      */
     public RTPConnectorOutputStream()
     {
+        ConfigurationService cfg = LibJitsi.getConfigurationService();
+        int batchSize = 1;
+        long batchWindowMicros = 0;
+
+        if (cfg != null)
+        {
+            batchSize = cfg.getInt(BATCH_SIZE_PNAME, batchSize);
+            batchWindowMicros
+                = cfg.getInt(BATCH_WINDOW_PNAME, (int) batchWindowMicros);
+        }
+        this.batchSize
+            = Math.min(
+                    batchSize,
+                    MAX_PACKETS_PER_MILLIS_POLICY_PACKET_QUEUE_CAPACITY);
+        this.batchWindowNanos = Math.max(batchWindowMicros, 0) * 1000;
+
         Log.logMediaStackObjectStarted(this);
     }
 
@@ -102,10 +189,20 @@ public abstract class RTPConnectorOutputStream
     public void close()
     {
         Log.logMediaStackObjectStopped(this);
-        if (maxPacketsPerMillisPolicy != null)
+        synchronized (this)
         {
-            maxPacketsPerMillisPolicy.close();
-            maxPacketsPerMillisPolicy = null;
+            if (pacingFlow != null)
+            {
+                if (pacingFlowOwned)
+                    pacingFlow.close();
+                pacingFlow = null;
+                pacingFlowOwned = false;
+            }
+            if (batchedSender != null)
+            {
+                batchedSender.close();
+                batchedSender = null;
+            }
         }
         removeTargets();
     }
@@ -127,17 +224,134 @@ public abstract class RTPConnectorOutputStream
      */
     protected RawPacket createRawPacket(byte[] buffer, int offset, int length)
     {
-        RawPacket pkt = rawPacketPool.poll();
-
-        if ((pkt == null) || (pkt.getBuffer().length < length))
-            pkt = new RawPacket(new byte[length], 0, 0);
+        RawPacket pkt = RawPacketPool.getRawPacket(length);
 
         System.arraycopy(buffer, offset, pkt.getBuffer(), 0, length);
         pkt.setLength(length);
-        pkt.setOffset(0);
         return pkt;
     }
 
+    /**
+     * Gets the average number of packets sent in a batch by this instance.
+     *
+     * @return the average number of packets sent in a batch by this instance
+     * or <tt>0</tt> if no batch has been sent yet
+     */
+    public double getAverageBatchSize()
+    {
+        long batchCount = this.batchCount;
+
+        return
+            (batchCount == 0)
+                ? 0
+                : (batchedPacketCount / (double) batchCount);
+    }
+
+    /**
+     * Gets the average time in microseconds that the packets sent in batches
+     * by this instance have spent queued before being sent.
+     *
+     * @return the average time in microseconds that the packets sent in
+     * batches by this instance have spent queued before being sent or
+     * <tt>0</tt> if no batch has been sent yet
+     */
+    public double getAverageQueueingDelayMicros()
+    {
+        long batchedPacketCount = this.batchedPacketCount;
+
+        return
+            (batchedPacketCount == 0)
+                ? 0
+                : (totalQueueingDelayNanos / (batchedPacketCount * 1000D));
+    }
+
+    /**
+     * Gets the number of batches sent by this instance.
+     *
+     * @return the number of batches sent by this instance
+     */
+    public long getBatchCount()
+    {
+        return batchCount;
+    }
+
+    /**
+     * Gets the number of packets sent in batches by this instance.
+     *
+     * @return the number of packets sent in batches by this instance
+     */
+    public long getBatchedPacketCount()
+    {
+        return batchedPacketCount;
+    }
+
+    /**
+     * Gets the maximum time in microseconds that a packet sent in a batch by
+     * this instance has spent queued before being sent.
+     *
+     * @return the maximum time in microseconds that a packet sent in a batch
+     * by this instance has spent queued before being sent
+     */
+    public long getMaxQueueingDelayMicros()
+    {
+        return maxQueueingDelayNanos / 1000;
+    }
+
+    /**
+     * Gets the <tt>RTPPacer.Flow</tt> which paces the packets written into
+     * this <tt>OutputDataStream</tt>.
+     *
+     * @return the <tt>RTPPacer.Flow</tt> which paces the packets written into
+     * this <tt>OutputDataStream</tt> or <tt>null</tt> if they are not paced
+     */
+    public RTPPacer.Flow getPacingFlow()
+    {
+        return pacingFlow;
+    }
+
+    /**
+     * Gets the <tt>RTPPacer.Priority</tt> with which a specific packet written
+     * into this <tt>OutputDataStream</tt> is to be paced. RTCP packets (e.g.
+     * multiplexed with RTP) are paced as {@link RTPPacer.Priority#RTCP} and
+     * RTP packets are paced with the priority set by
+     * {@link #setPacingPriority(RTPPacer.Priority)}. Allows extenders to
+     * override.
+     *
+     * @param packet the packet which is to be paced
+     * @return the <tt>RTPPacer.Priority</tt> with which <tt>packet</tt> is to
+     * be paced
+     */
+    protected RTPPacer.Priority getPacingPriority(RawPacket packet)
+    {
+        if (packet.getLength() >= 8)
+        {
+            int packetType = packet.getRTCPPacketType();
+
+            // RFC 5761: RTCP packet types are in the range 192-223.
+            if ((packetType >= 192) && (packetType <= 223))
+                return RTPPacer.Priority.RTCP;
+        }
+        return pacingPriority;
+    }
+
+    /**
+     * Gets the <tt>RTPPacer.Flow</tt> which has been created by this instance
+     * to pace the packets written into it and creates it if it does not exist
+     * yet.
+     *
+     * @return the <tt>RTPPacer.Flow</tt> which has been created by this
+     * instance to pace the packets written into it
+     */
+    private synchronized RTPPacer.Flow getOrCreateOwnedPacingFlow()
+    {
+        if (!pacingFlowOwned || (pacingFlow == null))
+        {
+            pacingFlow = RTPPacer.getInstance().createFlow();
+            pacingFlowOwned = true;
+        }
+        return pacingFlow;
+    }
+
     /**
      * Remove a target from stream targets list
      *
@@ -227,7 +441,8 @@ public abstract class RTPConnectorOutputStream
 
     /**
      * Sends a specific RTP packet through the <tt>DatagramSocket</tt> of this
-     * <tt>OutputDataSource</tt>.
+     * <tt>OutputDataSource</tt>. The packet is released to the
+     * <tt>RawPacketPool</tt> afterwards whether it has been sent or not.
      *
      * @param packet the RTP packet to be sent through the
      * <tt>DatagramSocket</tt> of this <tt>OutputDataSource</tt>
@@ -237,7 +452,10 @@ public abstract class RTPConnectorOutputStream
     private boolean send(RawPacket packet)
     {
         if(!isSocketValid())
+        {
+            RawPacketPool.returnRawPacket(packet);
             return false;
+        }
 
         numberOfPackets++;
         for (InetSocketAddress target : targets)
@@ -260,19 +478,32 @@ public abstract class RTPConnectorOutputStream
             }
             catch (IOException ioe)
             {
-                rawPacketPool.offer(packet);
+                RawPacketPool.returnRawPacket(packet);
                 // TODO error handling
                 return false;
             }
         }
-        rawPacketPool.offer(packet);
+        RawPacketPool.returnRawPacket(packet);
         return true;
     }
 
+    /**
+     * Sends a specific packet which has been paced by {@link #pacingFlow}.
+     * Invoked by the pacing thread of <tt>RTPPacer</tt>.
+     *
+     * @param packet the packet to be sent
+     */
+    void sendPaced(RawPacket packet)
+    {
+        send(packet);
+    }
+
     /**
      * Sets the maximum number of RTP packets to be sent by this
      * <tt>OutputDataStream</tt> through its <tt>DatagramSocket</tt> per
-     * a specific number of milliseconds.
+     * a specific number of milliseconds. The packets are paced by an
+     * <tt>RTPPacer.Flow</tt> created by this instance unless one has been set
+     * by {@link #setPacingFlow(RTPPacer.Flow)}.
      *
      * @param maxPackets the maximum number of RTP packets to be sent by this
      * <tt>OutputDataStream</tt> through its <tt>DatagramSocket</tt> per the
@@ -283,24 +514,79 @@ public abstract class RTPConnectorOutputStream
      */
     public void setMaxPacketsPerMillis(int maxPackets, long perMillis)
     {
-        if (maxPacketsPerMillisPolicy == null)
+        RTPPacer.Flow pacingFlow = this.pacingFlow;
+
+        if (pacingFlow != null)
+            pacingFlow.setMaxPacketsPerMillis(maxPackets, perMillis);
+        else if (maxPackets > 0)
         {
-            if (maxPackets > 0)
-            {
-                if (perMillis < 1)
-                    throw new IllegalArgumentException("perMillis");
+            if (perMillis < 1)
+                throw new IllegalArgumentException("perMillis");
 
-                maxPacketsPerMillisPolicy
-                    = new MaxPacketsPerMillisPolicy(maxPackets, perMillis);
-            }
+            getOrCreateOwnedPacingFlow()
+                .setMaxPacketsPerMillis(maxPackets, perMillis);
         }
-        else
+    }
+
+    /**
+     * Sets the maximum bitrate at which the packets written into this
+     * <tt>OutputDataStream</tt> are to be sent. The packets are paced by an
+     * <tt>RTPPacer.Flow</tt> created by this instance unless one has been set
+     * by {@link #setPacingFlow(RTPPacer.Flow)}.
+     *
+     * @param bitsPerSecond the maximum bitrate in bits per second at which the
+     * packets written into this <tt>OutputDataStream</tt> are to be sent or a
+     * non-positive value if the bitrate is not to be limited
+     */
+    public void setPacingBitrate(long bitsPerSecond)
+    {
+        RTPPacer.Flow pacingFlow = this.pacingFlow;
+
+        if (pacingFlow != null)
+            pacingFlow.setBitrate(bitsPerSecond);
+        else if (bitsPerSecond > 0)
+            getOrCreateOwnedPacingFlow().setBitrate(bitsPerSecond);
+    }
+
+    /**
+     * Sets the <tt>RTPPacer.Flow</tt> which is to pace the packets written
+     * into this <tt>OutputDataStream</tt>. Allows multiple
+     * <tt>OutputDataStream</tt>s (e.g. the data and the control ones of a
+     * <tt>MediaStream</tt>) to share the rate limits of a single
+     * <tt>RTPPacer.Flow</tt>. The <tt>RTPPacer.Flow</tt> which may have been
+     * created by this instance before is closed.
+     *
+     * @param pacingFlow the <tt>RTPPacer.Flow</tt> which is to pace the
+     * packets written into this <tt>OutputDataStream</tt> or <tt>null</tt> if
+     * they are not to be paced
+     */
+    public synchronized void setPacingFlow(RTPPacer.Flow pacingFlow)
+    {
+        if (this.pacingFlow != pacingFlow)
         {
-            maxPacketsPerMillisPolicy
-                .setMaxPacketsPerMillis(maxPackets, perMillis);
+            if (pacingFlowOwned && (this.pacingFlow != null))
+                this.pacingFlow.close();
+            this.pacingFlow = pacingFlow;
+            pacingFlowOwned = false;
         }
     }
 
+    /**
+     * Sets the <tt>RTPPacer.Priority</tt> with which the RTP packets written
+     * into this <tt>OutputDataStream</tt> are to be paced. The default is
+     * {@link RTPPacer.Priority#VIDEO}.
+     *
+     * @param pacingPriority the <tt>RTPPacer.Priority</tt> with which the RTP
+     * packets written into this <tt>OutputDataStream</tt> are to be paced
+     */
+    public void setPacingPriority(RTPPacer.Priority pacingPriority)
+    {
+        if (pacingPriority == null)
+            throw new NullPointerException("pacingPriority");
+
+        this.pacingPriority = pacingPriority;
+    }
+
     /**
      * Implements {@link OutputDataStream#write(byte[], int, int)}.
      *
@@ -331,19 +617,75 @@ public abstract class RTPConnectorOutputStream
          * If we got extended, the delivery of the packet may have been
          * canceled.
          */
-        if (packet != null)
+        if ((packet != null) && !write(packet, null))
+            return -1;
+        return length;
+    }
+
+    /**
+     * Sends a specific packet (now or later, depending on the pacing and
+     * batching of this instance).
+     *
+     * @param packet the <tt>RawPacket</tt> acquired from the
+     * <tt>RawPacketPool</tt> to be sent. It is released to the pool once sent.
+     * @param priority the <tt>RTPPacer.Priority</tt> with which
+     * <tt>packet</tt> is to be paced or <tt>null</tt> to pace it with the
+     * priority returned by {@link #getPacingPriority(RawPacket)}
+     * @return <tt>true</tt> if <tt>packet</tt> has been sent or queued to be
+     * sent; otherwise, <tt>false</tt>
+     */
+    private boolean write(RawPacket packet, RTPPacer.Priority priority)
+    {
+        RTPPacer.Flow pacingFlow = this.pacingFlow;
+
+        if (pacingFlow != null)
         {
-            if (maxPacketsPerMillisPolicy == null)
+            pacingFlow.write(
+                    packet,
+                    this,
+                    (priority == null) ? getPacingPriority(packet) : priority);
+        }
+        else if (batchSize > 1)
+        {
+            BatchedSender batchedSender;
+
+            synchronized (this)
             {
-                if (!send(packet))
-                    return -1;
+                if (this.batchedSender == null)
+                    this.batchedSender = new BatchedSender();
+                batchedSender = this.batchedSender;
             }
-            else
-                maxPacketsPerMillisPolicy.write(packet);
+            batchedSender.write(packet);
         }
-        return length;
+        else
+            return send(packet);
+        return true;
+    }
+
+    /**
+     * Sends a specific RTP packet which has been generated by a
+     * <tt>TransformEngine</tt> (e.g. an RTX or a ULPFEC packet) and which has
+     * been transformed already. Unlike {@link #write(byte[], int, int)}, does
+     * not invoke {@link #createRawPacket(byte[], int, int)} (i.e. does not
+     * apply the transformations of extenders to the packet) and paces the
+     * packet with a specific priority so that, for example, retransmissions
+     * do not delay the packets of the higher priorities.
+     *
+     * @param packet the <tt>RawPacket</tt> acquired from the
+     * <tt>RawPacketPool</tt> to be sent. It is released to the pool once sent.
+     * @param priority the <tt>RTPPacer.Priority</tt> with which
+     * <tt>packet</tt> is to be paced
+     * @return <tt>true</tt> if <tt>packet</tt> has been sent or queued to be
+     * sent; otherwise, <tt>false</tt>
+     */
+    public boolean writeTransformed(
+            RawPacket packet,
+            RTPPacer.Priority priority)
+    {
+        return write(packet, priority);
     }
 
+
     /**
      * Changes current thread priority.
      * @param priority the new priority.
@@ -351,228 +693,283 @@ public abstract class RTPConnectorOutputStream
     public void setPriority(int priority)
     {
         // currently no priority is set
-//        if ((maxPacketsPerMillisPolicy != null)
-//                && (maxPacketsPerMillisPolicy.sendThread != null))
-//            maxPacketsPerMillisPolicy.sendThread.setPriority(priority);
     }
 
     /**
      * Implements the functionality which allows this <tt>OutputDataStream</tt>
-     * to control how many RTP packets it sends through its
-     * <tt>DatagramSocket</tt> per a specific number of milliseconds.
+     * to send the written RTP packets in batches. The packets are queued by
+     * the writing threads and drained by a sender thread which is woken up
+     * once per batch and sends each packet of the batch to all targets.
      */
-    private class MaxPacketsPerMillisPolicy
+    private class BatchedSender
+        implements Runnable
     {
+        /**
+         * The times in nanoseconds at which the packets in {@link #queue}
+         * have been queued.
+         */
+        private final long[] queueTimes
+            = new long[
+                    MAX_PACKETS_PER_MILLIS_POLICY_PACKET_QUEUE_CAPACITY];
 
         /**
-         * The maximum number of RTP packets to be sent by this
-         * <tt>OutputDataStream</tt> through its <tt>DatagramSocket</tt> per
-         * {@link #perNanos} nanoseconds.
+         * The RTP packets which are being sent by {@link #sendThread}.
          */
-        private int maxPackets = -1;
+        private final RawPacket[] batch = new RawPacket[batchSize];
 
         /**
-         * The time stamp in nanoseconds of the start of the current
-         * <tt>perNanos</tt> interval.
+         * The times in nanoseconds at which the packets in {@link #batch} have
+         * been queued.
          */
-        private long millisStartTime = 0;
+        private final long[] batchQueueTimes = new long[batchSize];
 
         /**
-         * The list of RTP packets to be sent through the
-         * <tt>DatagramSocket</tt> of this <tt>OutputDataSource</tt>.
+         * Whether this <tt>BatchedSender</tt> has been closed.
          */
-        private final ArrayBlockingQueue<RawPacket> packetQueue
-            = new ArrayBlockingQueue<RawPacket>(
-                    MAX_PACKETS_PER_MILLIS_POLICY_PACKET_QUEUE_CAPACITY);
+        private boolean closed = false;
 
         /**
-         * The number of RTP packets already sent during the current
-         * <tt>perNanos</tt> interval.
+         * The ring of RTP packets queued to be sent by {@link #sendThread}.
          */
-        private long packetsSentInMillis = 0;
+        private final RawPacket[] queue
+            = new RawPacket[
+                    MAX_PACKETS_PER_MILLIS_POLICY_PACKET_QUEUE_CAPACITY];
 
         /**
-         * The time interval in nanoseconds during which {@link #maxPackets}
-         * number of RTP packets are to be sent through the
-         * <tt>DatagramSocket</tt> of this <tt>OutputDataSource</tt>.
+         * The index in {@link #queue} of the RTP packet to be sent next.
          */
-        private long perNanos = -1;
+        private int queueHead = 0;
 
         /**
-         * The <tt>Thread</tt> which is to send the RTP packets in
-         * {@link #packetQueue} through the <tt>DatagramSocket</tt> of this
-         * <tt>OutputDataSource</tt>.
+         * The number of RTP packets in {@link #queue}.
          */
-        private Thread sendThread;
+        private int queueLength = 0;
 
         /**
-         * To signal run or stop condition to send thread.
+         * The <tt>Thread</tt> which sends the RTP packets in {@link #queue}.
          */
-        private boolean sendRun = true;
+        private final Thread sendThread;
 
         /**
-         * Initializes a new <tt>MaxPacketsPerMillisPolicy</tt> instance which
-         * is to control how many RTP packets this <tt>OutputDataSource</tt> is
-         * to send through its <tt>DatagramSocket</tt> per a specific number of
-         * milliseconds.
-         *
-         * @param maxPackets the maximum number of RTP packets to be sent per
-         * <tt>perMillis</tt> milliseconds through the <tt>DatagramSocket</tt>
-         * of this <tt>OutputDataStream</tt>
-         * @param perMillis the number of milliseconds per which a maximum of
-         * <tt>maxPackets</tt> RTP packets are to be sent through the
-         * <tt>DatagramSocket</tt> of this <tt>OutputDataStream</tt>
+         * The number of packets in {@link #queue} at which {@link #sendThread}
+         * is to be woken up. Allows the writing threads to wake the sender
+         * thread up once per batch rather than once per packet.
+         */
+        private int wakeUpQueueLength = Integer.MAX_VALUE;
+
+        /**
+         * Initializes a new <tt>BatchedSender</tt> instance and starts its
+         * sender thread.
          */
-        public MaxPacketsPerMillisPolicy(int maxPackets, long perMillis)
+        public BatchedSender()
         {
-            setMaxPacketsPerMillis(maxPackets, perMillis);
-            synchronized (this) {
-                if (sendThread == null)
-                {
-                    sendThread
-                        = new Thread(getClass().getName())
-                        {
-                            @Override
-                            public void run()
-                            {
-                                runInSendThread();
-                            }
-                        };
-                    sendThread.setDaemon(true);
-                    sendThread.start();
-                }
-            }
+            sendThread = new Thread(this, getClass().getName());
+            sendThread.setDaemon(true);
+            sendThread.start();
         }
 
         /**
-         * Closes the connector.
+         * Closes this <tt>BatchedSender</tt>. The RTP packets which are still
+         * queued are not sent.
          */
-        synchronized void close()
+        public synchronized void close()
         {
-            if (!sendRun)
-                return;
-            sendRun = false;
-            // just offer a new packet to wakeup thread in case it waits for
-            // a packet.
-            packetQueue.offer(new RawPacket(null, 0, 0));
+            closed = true;
+            notifyAll();
         }
 
         /**
-         * Sends the RTP packets in {@link #packetQueue} in accord with
-         * {@link #maxPackets} and {@link #perNanos}.
+         * Sends the RTP packets in {@link #queue} in batches.
          */
-        private void runInSendThread()
+        @Override
+        public void run()
         {
             try
             {
-                while (sendRun)
+                while (true)
                 {
-                    RawPacket packet = null;
+                    int batchLength;
 
-                    while (true)
+                    synchronized (this)
                     {
-                        try
-                        {
-                            packet = packetQueue.take();
+                        if (!waitForBatch())
                             break;
-                        }
-                        catch (InterruptedException iex)
+
+                        boolean full = (queueLength >= queue.length);
+
+                        batchLength = Math.min(queueLength, batch.length);
+                        for (int i = 0; i < batchLength; i++)
                         {
-                            continue;
+                            batch[i] = queue[queueHead];
+                            batchQueueTimes[i] = queueTimes[queueHead];
+                            queue[queueHead] = null;
+                            queueHead++;
+                            if (queueHead >= queue.length)
+                                queueHead = 0;
                         }
+                        queueLength -= batchLength;
+
+                        // Wake up the writing threads blocked on a full queue.
+                        if (full)
+                            notifyAll();
                     }
-                    if (!sendRun)
-                        break;
 
-                    long time = System.nanoTime();
-                    long millisRemainingTime = time - millisStartTime;
+                    long now = System.nanoTime();
+                    long totalQueueingDelayNanos = 0;
+                    long maxQueueingDelayNanos
+                        = RTPConnectorOutputStream.this.maxQueueingDelayNanos;
 
-                    if ((perNanos < 1)
-                            || (millisRemainingTime >= perNanos))
+                    for (int i = 0; i < batchLength; i++)
                     {
-                        millisStartTime = time;
-                        packetsSentInMillis = 0;
-                    }
-                    else if ((maxPackets > 0)
-                            && (packetsSentInMillis >= maxPackets))
-                    {
-                        while (true)
-                        {
-                            millisRemainingTime = System.nanoTime()
-                                    - millisStartTime;
-                            if (millisRemainingTime >= perNanos)
-                                break;
-                            LockSupport.parkNanos(millisRemainingTime);
-                        }
-                        millisStartTime = System.nanoTime();
-                        packetsSentInMillis = 0;
+                        RawPacket packet = batch[i];
+                        long queueingDelayNanos = now - batchQueueTimes[i];
+
+                        batch[i] = null;
+                        totalQueueingDelayNanos += queueingDelayNanos;
+                        if (maxQueueingDelayNanos < queueingDelayNanos)
+                            maxQueueingDelayNanos = queueingDelayNanos;
+                        send(packet);
                     }
 
-                    send(packet);
-                    packetsSentInMillis++;
+                    /*
+                     * The sender thread is the only writer of the metrics so
+                     * there is no need to synchronize their updates.
+                     */
+                    RTPConnectorOutputStream.this.totalQueueingDelayNanos
+                        += totalQueueingDelayNanos;
+                    RTPConnectorOutputStream.this.maxQueueingDelayNanos
+                        = maxQueueingDelayNanos;
+                    batchedPacketCount += batchLength;
+                    batchCount++;
                 }
             }
             finally
             {
-                packetQueue.clear();
-                synchronized (packetQueue)
+                synchronized (this)
                 {
-                    if (Thread.currentThread().equals(sendThread))
-                        sendThread = null;
+                    closed = true;
+                    while (queueLength > 0)
+                    {
+                        RawPacketPool.returnRawPacket(queue[queueHead]);
+                        queue[queueHead] = null;
+                        queueHead++;
+                        if (queueHead >= queue.length)
+                            queueHead = 0;
+                        queueLength--;
+                    }
+                    for (int i = 0; i < batch.length; i++)
+                    {
+                        if (batch[i] != null)
+                        {
+                            RawPacketPool.returnRawPacket(batch[i]);
+                            batch[i] = null;
+                        }
+                    }
+                    notifyAll();
                 }
             }
         }
 
         /**
-         * Sets the maximum number of RTP packets to be sent by this
-         * <tt>OutputDataStream</tt> through its <tt>DatagramSocket</tt> per
-         * a specific number of milliseconds.
+         * Waits for a batch of RTP packets to be queued. Returns as soon as
+         * {@link #batchSize} packets have been queued or
+         * {@link #batchWindowNanos} nanoseconds have passed since the first
+         * packet has been queued. Invoked by {@link #sendThread} while
+         * synchronized on this instance.
          *
-         * @param maxPackets the maximum number of RTP packets to be sent by
-         * this <tt>OutputDataStream</tt> through its <tt>DatagramSocket</tt>
-         * per the specified number of milliseconds; <tt>-1</tt> if no maximum
-         * is to be set
-         * @param perMillis the number of milliseconds per which
-         * <tt>maxPackets</tt> are to be sent by this <tt>OutputDataStream</tt>
-         * through its <tt>DatagramSocket</tt>
+         * @return <tt>true</tt> if at least one RTP packet is queued;
+         * <tt>false</tt> if this <tt>BatchedSender</tt> has been closed
          */
-        public void setMaxPacketsPerMillis(int maxPackets, long perMillis)
+        private boolean waitForBatch()
         {
-            if (maxPackets < 1)
+            boolean interrupted = false;
+
+            try
             {
-                this.maxPackets = -1;
-                this.perNanos = -1;
+                while (!closed && (queueLength < 1))
+                {
+                    wakeUpQueueLength = 1;
+                    try
+                    {
+                        wait();
+                    }
+                    catch (InterruptedException ie)
+                    {
+                        interrupted = true;
+                    }
+                }
+                if ((batchWindowNanos > 0) && (queueLength < batchSize))
+                {
+                    long deadline = queueTimes[queueHead] + batchWindowNanos;
+
+                    while (!closed && (queueLength < batchSize))
+                    {
+                        long timeout = deadline - System.nanoTime();
+
+                        if (timeout <= 0)
+                            break;
+                        wakeUpQueueLength = batchSize;
+                        try
+                        {
+                            TimeUnit.NANOSECONDS.timedWait(this, timeout);
+                        }
+                        catch (InterruptedException ie)
+                        {
+                            interrupted = true;
+                        }
+                    }
+                }
             }
-            else
+            finally
             {
-                if (perMillis < 1)
-                    throw new IllegalArgumentException("perMillis");
-
-                this.maxPackets = maxPackets;
-                this.perNanos = perMillis * 1000000;
+                wakeUpQueueLength = Integer.MAX_VALUE;
+                if (interrupted)
+                    Thread.currentThread().interrupt();
             }
+            return !closed;
         }
 
         /**
-         * Queues a specific RTP packet to be sent through the
-         * <tt>DatagramSocket</tt> of this <tt>OutputDataStream</tt>.
+         * Queues a specific RTP packet to be sent in a batch. Blocks while the
+         * queue is full.
          *
-         * @param packet the RTP packet to be queued for sending through the
-         * <tt>DatagramSocket</tt> of this <tt>OutputDataStream</tt>
+         * @param packet the RTP packet to be queued
          */
-        public void write(RawPacket packet)
+        public synchronized void write(RawPacket packet)
         {
-            while (true)
+            boolean interrupted = false;
+
+            while (!closed && (queueLength >= queue.length))
             {
                 try
                 {
-                    packetQueue.put(packet);
-                    break;
+                    wait();
                 }
-                catch (InterruptedException iex)
+                catch (InterruptedException ie)
                 {
+                    interrupted = true;
                 }
             }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+
+            if (closed)
+            {
+                RawPacketPool.returnRawPacket(packet);
+                return;
+            }
+
+            int queueTail = (queueHead + queueLength) % queue.length;
+
+            queue[queueTail] = packet;
+            queueTimes[queueTail] = System.nanoTime();
+            queueLength++;
+
+            if (queueLength >= wakeUpQueueLength)
+            {
+                wakeUpQueueLength = Integer.MAX_VALUE;
+                notifyAll();
+            }
         }
     }
 }
@@ -0,0 +1,451 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package org.jitsi.impl.neomedia;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.jitsi.service.configuration.*;
+import org.jitsi.service.libjitsi.*;
+import org.jitsi.util.*;
+
+/**
+ * Implements a small, process-wide pool of threads each of which services a
+ * <tt>Selector</tt>. <tt>SelectableChannel</tt>s (e.g. the
+ * <tt>DatagramChannel</tt>s of the sockets of <tt>RTPConnector</tt>s) are
+ * registered with the pool and are then read by the selector threads instead
+ * of each having a dedicated thread blocked in a receive call.
+ */
+public class RTPConnectorSelectorPool
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>RTPConnectorSelectorPool</tt> class
+     * and its instances for logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(RTPConnectorSelectorPool.class);
+
+    /**
+     * The name of the integer <tt>ConfigurationService</tt> property which
+     * specifies the number of selector threads of the
+     * <tt>RTPConnectorSelectorPool</tt>. The default value is the number of
+     * processors available to the Java virtual machine.
+     */
+    public static final String SELECTOR_COUNT_PNAME
+        = "org.jitsi.impl.neomedia.RTPConnectorSelectorPool.selectorCount";
+
+    /**
+     * The one and only <tt>RTPConnectorSelectorPool</tt> instance.
+     */
+    private static RTPConnectorSelectorPool instance;
+
+    /**
+     * Gets the one and only <tt>RTPConnectorSelectorPool</tt> instance and
+     * creates it (and starts its selector threads) if it does not exist yet.
+     *
+     * @return the one and only <tt>RTPConnectorSelectorPool</tt> instance
+     * @throws IOException if a <tt>Selector</tt> cannot be opened
+     */
+    public static synchronized RTPConnectorSelectorPool getInstance()
+        throws IOException
+    {
+        if (instance == null)
+        {
+            ConfigurationService cfg = LibJitsi.getConfigurationService();
+            int selectorCount = Runtime.getRuntime().availableProcessors();
+
+            if (cfg != null)
+                selectorCount = cfg.getInt(SELECTOR_COUNT_PNAME, selectorCount);
+            if (selectorCount < 1)
+                selectorCount = 1;
+
+            instance = new RTPConnectorSelectorPool(selectorCount);
+        }
+        return instance;
+    }
+
+    /**
+     * The <tt>SelectorThread</tt>s with which the <tt>SelectableChannel</tt>s
+     * registered with this pool are registered.
+     */
+    private final Map<SelectableChannel, SelectorThread> channelToSelectorThread
+        = new ConcurrentHashMap<SelectableChannel, SelectorThread>();
+
+    /**
+     * The index of the <tt>SelectorThread</tt> which is to receive the next
+     * registration. Used to distribute the registered channels among the
+     * <tt>SelectorThread</tt>s in a round-robin fashion.
+     */
+    private final AtomicInteger nextSelectorThread = new AtomicInteger();
+
+    /**
+     * The <tt>SelectorThread</tt>s of this pool.
+     */
+    private final SelectorThread[] selectorThreads;
+
+    /**
+     * Initializes a new <tt>RTPConnectorSelectorPool</tt> instance with a
+     * specific number of selector threads and starts them.
+     *
+     * @param selectorCount the number of selector threads of the new instance
+     * @throws IOException if a <tt>Selector</tt> cannot be opened
+     */
+    private RTPConnectorSelectorPool(int selectorCount)
+        throws IOException
+    {
+        selectorThreads = new SelectorThread[selectorCount];
+        for (int i = 0; i < selectorCount; i++)
+        {
+            SelectorThread selectorThread
+                = new SelectorThread(Selector.open(), i);
+
+            selectorThread.setDaemon(true);
+            selectorThreads[i] = selectorThread;
+            selectorThread.start();
+        }
+    }
+
+    /**
+     * Runs a specific task on the selector thread a specific
+     * <tt>SelectableChannel</tt> is registered with. Guarantees that the task
+     * does not run concurrently with the <tt>SelectionHandler</tt> associated
+     * with the channel.
+     *
+     * @param channel the <tt>SelectableChannel</tt> on the selector thread of
+     * which <tt>task</tt> is to be run
+     * @param task the <tt>Runnable</tt> to be run. Is run either on the
+     * selector thread <tt>channel</tt> is registered with or, if
+     * <tt>channel</tt> is not registered with this pool, on the current
+     * thread.
+     */
+    public void execute(SelectableChannel channel, Runnable task)
+    {
+        SelectorThread selectorThread = channelToSelectorThread.get(channel);
+
+        if (selectorThread == null)
+            task.run();
+        else
+            selectorThread.execute(task);
+    }
+
+    /**
+     * Gets the number of selector threads of this pool.
+     *
+     * @return the number of selector threads of this pool
+     */
+    public int getSelectorCount()
+    {
+        return selectorThreads.length;
+    }
+
+    /**
+     * Registers a specific <tt>SelectableChannel</tt> with (a selector thread
+     * of) this pool. The channel is put in non-blocking mode and
+     * <tt>handler</tt> is notified on the selector thread whenever the channel
+     * is ready for any of the operations specified by <tt>ops</tt>.
+     *
+     * @param channel the <tt>SelectableChannel</tt> to register
+     * @param ops the interest set of the registration
+     * @param handler the <tt>SelectionHandler</tt> to be notified when
+     * <tt>channel</tt> is ready for any of the operations in <tt>ops</tt>
+     * @throws IOException if <tt>channel</tt> cannot be put in non-blocking
+     * mode
+     */
+    public void register(
+            SelectableChannel channel,
+            int ops,
+            SelectionHandler handler)
+        throws IOException
+    {
+        if (channel == null)
+            throw new NullPointerException("channel");
+        if (handler == null)
+            throw new NullPointerException("handler");
+
+        channel.configureBlocking(false);
+
+        int index
+            = (nextSelectorThread.getAndIncrement() & Integer.MAX_VALUE)
+                % selectorThreads.length;
+
+        SelectorThread selectorThread = selectorThreads[index];
+
+        channelToSelectorThread.put(channel, selectorThread);
+        selectorThread.register(channel, ops, handler);
+    }
+
+    /**
+     * Sets the interest set of the registration of a specific
+     * <tt>SelectableChannel</tt> with this pool. The change is performed on
+     * the selector thread the channel is registered with.
+     *
+     * @param channel the <tt>SelectableChannel</tt> the interest set of the
+     * registration of which is to be set
+     * @param ops the new interest set of the registration of <tt>channel</tt>
+     */
+    public void setInterestOps(final SelectableChannel channel, final int ops)
+    {
+        final SelectorThread selectorThread
+            = channelToSelectorThread.get(channel);
+
+        if (selectorThread != null)
+        {
+            selectorThread.execute(
+                    new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            SelectionKey key
+                                = channel.keyFor(selectorThread.selector);
+
+                            if ((key != null) && key.isValid())
+                                key.interestOps(ops);
+                        }
+                    });
+        }
+    }
+
+    /**
+     * Unregisters a specific <tt>SelectableChannel</tt> from this pool. The
+     * <tt>SelectionHandler</tt> associated with it will not be notified
+     * anymore.
+     *
+     * @param channel the <tt>SelectableChannel</tt> to unregister
+     */
+    public void unregister(SelectableChannel channel)
+    {
+        unregister(channel, null);
+    }
+
+    /**
+     * Unregisters a specific <tt>SelectableChannel</tt> from this pool and
+     * runs a specific <tt>Runnable</tt> once the <tt>SelectionHandler</tt>
+     * associated with the channel is guaranteed to not be executing and to not
+     * be notified anymore. Allows the resources used by the
+     * <tt>SelectionHandler</tt> to be released safely.
+     *
+     * @param channel the <tt>SelectableChannel</tt> to unregister
+     * @param completion the <tt>Runnable</tt> to be run after
+     * <tt>channel</tt> has been unregistered or <tt>null</tt>. Is run either
+     * on the selector thread <tt>channel</tt> was registered with or, if
+     * <tt>channel</tt> is not registered with this pool, on the current
+     * thread.
+     */
+    public void unregister(
+            final SelectableChannel channel,
+            final Runnable completion)
+    {
+        SelectorThread selectorThread = channelToSelectorThread.remove(channel);
+
+        if (selectorThread == null)
+        {
+            if (completion != null)
+                completion.run();
+        }
+        else
+        {
+            final Selector selector = selectorThread.selector;
+
+            selectorThread.execute(
+                    new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            SelectionKey key = channel.keyFor(selector);
+
+                            if (key != null)
+                                key.cancel();
+                            if (completion != null)
+                                completion.run();
+                        }
+                    });
+        }
+    }
+
+    /**
+     * Represents a listener which is notified by a selector thread of
+     * <tt>RTPConnectorSelectorPool</tt> that a registered channel is ready for
+     * I/O.
+     */
+    public interface SelectionHandler
+    {
+        /**
+         * Notifies this <tt>SelectionHandler</tt> that the channel of a
+         * specific <tt>SelectionKey</tt> is ready for I/O. Invoked on a
+         * selector thread so implementations are expected to not block.
+         *
+         * @param key the <tt>SelectionKey</tt> which is ready for I/O
+         */
+        public void selected(SelectionKey key);
+    }
+
+    /**
+     * Implements a <tt>Thread</tt> which services a <tt>Selector</tt> and
+     * dispatches the ready <tt>SelectionKey</tt>s to their
+     * <tt>SelectionHandler</tt>s.
+     */
+    private static class SelectorThread
+        extends Thread
+    {
+        /**
+         * The tasks (e.g. registrations with {@link #selector}) which have been
+         * requested but are yet to be performed on this thread. Performing
+         * them on this thread rather than on the requesting ones avoids
+         * blocking on <tt>selector</tt> and guarantees that they do not run
+         * concurrently with a <tt>SelectionHandler</tt>.
+         */
+        private final Queue<Runnable> tasks
+            = new ConcurrentLinkedQueue<Runnable>();
+
+        /**
+         * The <tt>Selector</tt> serviced by this thread.
+         */
+        public final Selector selector;
+
+        /**
+         * Initializes a new <tt>SelectorThread</tt> which is to service a
+         * specific <tt>Selector</tt>.
+         *
+         * @param selector the <tt>Selector</tt> to be serviced by the new
+         * instance
+         * @param index the index of the new instance in its
+         * <tt>RTPConnectorSelectorPool</tt>
+         */
+        public SelectorThread(Selector selector, int index)
+        {
+            super(RTPConnectorSelectorPool.class.getName() + "-" + index);
+
+            this.selector = selector;
+        }
+
+        /**
+         * Queues a specific task to be performed on this thread before it
+         * selects again.
+         *
+         * @param task the task to be performed on this thread
+         */
+        public void execute(Runnable task)
+        {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        /**
+         * Performs the queued tasks.
+         */
+        private void processTasks()
+        {
+            Runnable task;
+
+            while ((task = tasks.poll()) != null)
+            {
+                try
+                {
+                    task.run();
+                }
+                catch (Throwable t)
+                {
+                    if (t instanceof ThreadDeath)
+                        throw (ThreadDeath) t;
+                    else
+                        logger.error("Selector task failed", t);
+                }
+            }
+        }
+
+        /**
+         * Queues a registration of a specific <tt>SelectableChannel</tt> with
+         * the <tt>Selector</tt> of this thread.
+         *
+         * @param channel the <tt>SelectableChannel</tt> to register
+         * @param ops the interest set of the registration
+         * @param handler the <tt>SelectionHandler</tt> to be attached to the
+         * registration
+         */
+        public void register(
+                final SelectableChannel channel,
+                final int ops,
+                final SelectionHandler handler)
+        {
+            execute(
+                    new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            try
+                            {
+                                channel.register(selector, ops, handler);
+                            }
+                            catch (ClosedChannelException cce)
+                            {
+                                /*
+                                 * The channel got closed before it could be
+                                 * registered so there is nothing to read from
+                                 * it anyway.
+                                 */
+                            }
+                        }
+                    });
+        }
+
+        /**
+         * Services {@link #selector} and dispatches the ready
+         * <tt>SelectionKey</tt>s to their <tt>SelectionHandler</tt>s.
+         */
+        @Override
+        public void run()
+        {
+            while (true)
+            {
+                try
+                {
+                    processTasks();
+                    selector.select();
+                }
+                catch (IOException ioe)
+                {
+                    logger.error("Failed to select", ioe);
+                    break;
+                }
+                catch (ClosedSelectorException cse)
+                {
+                    break;
+                }
+
+                Iterator<SelectionKey> keyIter
+                    = selector.selectedKeys().iterator();
+
+                while (keyIter.hasNext())
+                {
+                    SelectionKey key = keyIter.next();
+
+                    keyIter.remove();
+                    if (!key.isValid())
+                        continue;
+
+                    try
+                    {
+                        ((SelectionHandler) key.attachment()).selected(key);
+                    }
+                    catch (Throwable t)
+                    {
+                        if (t instanceof ThreadDeath)
+                            throw (ThreadDeath) t;
+                        else
+                            logger.error("SelectionHandler failed", t);
+                    }
+                }
+            }
+        }
+    }
+}
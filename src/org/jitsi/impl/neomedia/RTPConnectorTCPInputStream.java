@@ -9,10 +9,12 @@ package org.jitsi.impl.neomedia;
 import java.io.*;
 import java.net.*;
 
+import net.sf.fmj.media.Log;
+
 import org.ice4j.socket.*;
 import org.jitsi.service.libjitsi.*;
 import org.jitsi.service.packetlogging.*;
-import org.jitsi.util.*;
+import org.jitsi.util.Logger;
 
 /**
  * RTPConnectorInputStream implementation for TCP protocol.
@@ -28,6 +30,20 @@ public class RTPConnectorTCPInputStream
     private static final Logger logger
         = Logger.getLogger(RTPConnectorTCPInputStream.class);
 
+    /**
+     * The <tt>DatagramPacket</tt> which describes the packets read by
+     * {@link #connection} to {@link #packetReceived(DatagramPacket)}.
+     */
+    private DatagramPacket channelPacket;
+
+    /**
+     * The <tt>RFC4571Connection</tt> which reads the packets of this instance
+     * from the <tt>SocketChannel</tt> of {@link #socket} if it is read through
+     * the <tt>RTPConnectorSelectorPool</tt> rather than by a dedicated
+     * receiver thread; otherwise, <tt>null</tt>.
+     */
+    private RFC4571Connection connection;
+
     /**
      * TCP socket used to receive data.
      */
@@ -54,8 +70,29 @@ public class RTPConnectorTCPInputStream
             }
 
             closed = false;
-            receiverThread = new Thread(this, "RTPConnectorTCPInputStreamThread");
-            receiverThread.start();
+
+            /*
+             * If the socket has an associated SocketChannel, have it read by
+             * the selector threads shared by all RTPConnectorInputStreams
+             * rather than by a thread of its own. The packets are then framed
+             * as defined by RFC 4571.
+             */
+            connection = RFC4571Connection.acquire(socket);
+            if (connection == null)
+            {
+                receiverThread
+                    = new Thread(this, "RTPConnectorTCPInputStreamThread");
+                receiverThread.start();
+            }
+            else
+            {
+                byte[] receiveBuffer = getReceiveBuffer();
+
+                channelPacket
+                    = new DatagramPacket(receiveBuffer, 0, receiveBuffer.length);
+                connection.setInputStream(this, null);
+                Log.logMediaStackObjectStarted(this);
+            }
         }
     }
 
@@ -66,6 +103,70 @@ public class RTPConnectorTCPInputStream
     public synchronized void close()
     {
         closed = true;
+
+        if (connection != null)
+        {
+            final RFC4571Connection connection = this.connection;
+
+            this.connection = null;
+            connection.setInputStream(
+                    null,
+                    new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            releaseReceiveBuffer();
+                        }
+                    });
+            connection.release();
+        }
+    }
+
+    /**
+     * Notifies this instance that the <tt>RFC4571Connection</tt> which reads
+     * its packets has failed. Invoked on a selector thread of
+     * <tt>RTPConnectorSelectorPool</tt>.
+     */
+    void connectionFailed()
+    {
+        ioError = true;
+        Log.logMediaStackObjectStopped(this);
+    }
+
+    /**
+     * Notifies this instance that a specific packet has been read by the
+     * <tt>RFC4571Connection</tt> which reads its packets. Invoked on a
+     * selector thread of <tt>RTPConnectorSelectorPool</tt>.
+     *
+     * @param buf the <tt>byte</tt> array which contains the packet
+     * @param off the offset in <tt>buf</tt> at which the packet starts
+     * @param len the length in bytes of the packet
+     * @param source the address the packet has been received from
+     */
+    void frameReceived(byte[] buf, int off, int len, SocketAddress source)
+    {
+        if (closed)
+            return;
+
+        /*
+         * The packet is copied into the receive buffer because the
+         * RTPConnectorInputStream may hand it off along with the buffer.
+         */
+        byte[] receiveBuffer = channelPacket.getData();
+
+        if (len > receiveBuffer.length)
+        {
+            if (logger.isDebugEnabled())
+                logger.debug("Dropping a packet of " + len + " bytes.");
+            return;
+        }
+
+        System.arraycopy(buf, off, receiveBuffer, 0, len);
+        channelPacket.setData(receiveBuffer, 0, len);
+        if (source != null)
+            channelPacket.setSocketAddress(source);
+        packetReceived(channelPacket);
     }
 
     /**
@@ -21,6 +21,14 @@ import org.jitsi.service.packetlogging.*;
 public class RTPConnectorTCPOutputStream
     extends RTPConnectorOutputStream
 {
+    /**
+     * The <tt>RFC4571Connection</tt> which writes the packets of this instance
+     * to the <tt>SocketChannel</tt> of {@link #socket} framed as defined by
+     * RFC 4571 or <tt>null</tt> if they are written to the
+     * <tt>OutputStream</tt> of <tt>socket</tt>.
+     */
+    private volatile RFC4571Connection connection;
+
     /**
      * UDP socket used to send packet data
      */
@@ -34,6 +42,30 @@ public class RTPConnectorTCPOutputStream
     public RTPConnectorTCPOutputStream(Socket socket)
     {
         this.socket = socket;
+
+        if (socket != null)
+            connection = RFC4571Connection.acquire(socket);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Releases the <tt>RFC4571Connection</tt> of this instance.
+     */
+    @Override
+    public void close()
+    {
+        super.close();
+
+        RFC4571Connection connection;
+
+        synchronized (this)
+        {
+            connection = this.connection;
+            this.connection = null;
+        }
+        if (connection != null)
+            connection.release();
     }
 
     /**
@@ -52,6 +84,14 @@ public class RTPConnectorTCPOutputStream
     protected void sendToTarget(RawPacket packet, InetSocketAddress target)
         throws IOException
     {
+        RFC4571Connection connection = this.connection;
+
+        if (connection != null)
+        {
+            connection.write(packet);
+            return;
+        }
+
         socket.getOutputStream().write(
                 packet.getBuffer(),
                 packet.getOffset(),
@@ -8,6 +8,9 @@ package org.jitsi.impl.neomedia;
 
 import java.io.*;
 import java.net.*;
+import java.util.*;
+
+import javax.media.rtp.*;
 
 import org.jitsi.service.neomedia.*;
 
@@ -29,6 +32,20 @@ public class RTPConnectorUDPImpl
      */
     private DatagramSocket controlSocket;
 
+    /**
+     * The SSRCs of the packets which are to be delivered to this instance by
+     * the <tt>ReusePortReceiver</tt>s of its sockets (if any).
+     */
+    private final List<Long> receiveSSRCs = new ArrayList<Long>();
+
+    /**
+     * The targets of this instance. The packets received from them are to be
+     * delivered to this instance by the <tt>ReusePortReceiver</tt>s of its
+     * sockets (if any).
+     */
+    private final List<SessionAddress> targets
+        = new ArrayList<SessionAddress>();
+
     /**
      * Initializes a new <tt>RTPConnectorUDPImpl</tt> which is to use a given
      * pair of datagram sockets for RTP and RTCP traffic specified in the form
@@ -42,6 +59,113 @@ public class RTPConnectorUDPImpl
         super(connector);
     }
 
+    /**
+     * Adds an SSRC of the packets which are to be received by this instance.
+     * Necessary only if the sockets of this instance share their local ports
+     * with the sockets of other <tt>RTPConnector</tt>s (i.e. they belong to
+     * <tt>ReusePortReceiver</tt>s) and the remote addresses the packets are
+     * received from are not known in advance (e.g. are behind a NAT).
+     *
+     * @param ssrc the SSRC of the packets which are to be received by this
+     * instance
+     * @throws IOException if the input streams of this instance cannot be
+     * created
+     */
+    public void addReceiveSSRC(long ssrc)
+        throws IOException
+    {
+        synchronized (targets)
+        {
+            receiveSSRCs.add(ssrc);
+        }
+        bindToReusePortReceivers(getDataInputStream(false));
+        bindToReusePortReceivers(getControlInputStream(false));
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Also binds the input streams of this instance to the remote addresses of
+     * <tt>target</tt> if their sockets belong to <tt>ReusePortReceiver</tt>s.
+     */
+    @Override
+    public void addTarget(SessionAddress target)
+        throws IOException
+    {
+        super.addTarget(target);
+
+        synchronized (targets)
+        {
+            targets.add(target);
+        }
+        bindToReusePortReceivers(getDataInputStream(false));
+        bindToReusePortReceivers(getControlInputStream(false));
+    }
+
+    /**
+     * Binds a specific input stream of this instance to the targets and the
+     * SSRCs of this instance if its socket belongs to a
+     * <tt>ReusePortReceiver</tt>.
+     *
+     * @param inputStream the input stream of this instance to bind
+     */
+    private void bindToReusePortReceivers(RTPConnectorInputStream inputStream)
+    {
+        if (!(inputStream instanceof RTPConnectorUDPInputStream))
+            return;
+
+        RTPConnectorUDPInputStream udpInputStream
+            = (RTPConnectorUDPInputStream) inputStream;
+        ReusePortReceiver receiver = udpInputStream.getReusePortReceiver();
+
+        if (receiver == null)
+            return;
+
+        boolean data = (inputStream == dataInputStreamOrNull());
+
+        synchronized (targets)
+        {
+            for (SessionAddress target : targets)
+            {
+                InetAddress address
+                    = data
+                        ? target.getDataAddress()
+                        : target.getControlAddress();
+
+                if (address != null)
+                {
+                    receiver.addRemoteAddress(
+                            new InetSocketAddress(
+                                    address,
+                                    data
+                                        ? target.getDataPort()
+                                        : target.getControlPort()),
+                            udpInputStream);
+                }
+            }
+            for (Long ssrc : receiveSSRCs)
+                receiver.addSSRC(ssrc, udpInputStream);
+        }
+    }
+
+    /**
+     * Gets the RTP packet input stream of this instance without creating it.
+     *
+     * @return the RTP packet input stream of this instance or <tt>null</tt>
+     * if it has not been created yet
+     */
+    private RTPConnectorInputStream dataInputStreamOrNull()
+    {
+        try
+        {
+            return getDataInputStream(false);
+        }
+        catch (IOException ioe)
+        {
+            return null;
+        }
+    }
+
     /**
      * Gets the UDP socket this instance uses to send and receive RTP packets.
      *
@@ -109,6 +233,135 @@ public class RTPConnectorUDPImpl
         return new RTPConnectorUDPInputStream(getDataSocket());
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * Also binds the newly-created RTCP packet input stream to the targets of
+     * this instance if its socket belongs to a <tt>ReusePortReceiver</tt>.
+     */
+    @Override
+    protected RTPConnectorInputStream getControlInputStream(boolean create)
+        throws IOException
+    {
+        RTPConnectorInputStream controlInputStream
+            = super.getControlInputStream(false);
+
+        if ((controlInputStream == null) && create)
+        {
+            controlInputStream = super.getControlInputStream(true);
+            bindToReusePortReceivers(controlInputStream);
+        }
+        return controlInputStream;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Also binds the newly-created RTP packet input stream to the targets of
+     * this instance if its socket belongs to a <tt>ReusePortReceiver</tt>.
+     */
+    @Override
+    protected RTPConnectorInputStream getDataInputStream(boolean create)
+        throws IOException
+    {
+        RTPConnectorInputStream dataInputStream
+            = super.getDataInputStream(false);
+
+        if ((dataInputStream == null) && create)
+        {
+            dataInputStream = super.getDataInputStream(true);
+            bindToReusePortReceivers(dataInputStream);
+        }
+        return dataInputStream;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Also unbinds the input streams of this instance from the remote
+     * addresses of <tt>target</tt> if their sockets belong to
+     * <tt>ReusePortReceiver</tt>s.
+     */
+    @Override
+    public void removeTarget(SessionAddress target)
+    {
+        super.removeTarget(target);
+
+        synchronized (targets)
+        {
+            targets.remove(target);
+        }
+        unbindFromReusePortReceivers(target, dataInputStreamOrNull(), true);
+        try
+        {
+            unbindFromReusePortReceivers(
+                    target,
+                    getControlInputStream(false),
+                    false);
+        }
+        catch (IOException ioe)
+        {
+            // The control input stream is not created by the invocation.
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Also unbinds the input streams of this instance from the remote
+     * addresses of the targets if their sockets belong to
+     * <tt>ReusePortReceiver</tt>s.
+     */
+    @Override
+    public void removeTargets()
+    {
+        super.removeTargets();
+
+        List<SessionAddress> targets;
+
+        synchronized (this.targets)
+        {
+            targets = new ArrayList<SessionAddress>(this.targets);
+        }
+        for (SessionAddress target : targets)
+            removeTarget(target);
+    }
+
+    /**
+     * Unbinds a specific input stream of this instance from the remote address
+     * of a specific target if its socket belongs to a
+     * <tt>ReusePortReceiver</tt>.
+     *
+     * @param target the target to unbind from
+     * @param inputStream the input stream of this instance to unbind
+     * @param data <tt>true</tt> if <tt>inputStream</tt> is the RTP packet
+     * input stream of this instance; <tt>false</tt> if it is the RTCP one
+     */
+    private void unbindFromReusePortReceivers(
+            SessionAddress target,
+            RTPConnectorInputStream inputStream,
+            boolean data)
+    {
+        if (!(inputStream instanceof RTPConnectorUDPInputStream))
+            return;
+
+        ReusePortReceiver receiver
+            = ((RTPConnectorUDPInputStream) inputStream)
+                .getReusePortReceiver();
+        InetAddress address
+            = data ? target.getDataAddress() : target.getControlAddress();
+
+        if ((receiver != null) && (address != null))
+        {
+            receiver.removeRemoteAddress(
+                    new InetSocketAddress(
+                            address,
+                            data
+                                ? target.getDataPort()
+                                : target.getControlPort()));
+        }
+    }
+
     /**
      * Creates the RTP packet output stream to be used by <tt>RTPManager</tt>.
      *
@@ -8,6 +8,10 @@ package org.jitsi.impl.neomedia;
 
 import java.io.*;
 import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+import net.sf.fmj.media.Log;
 
 import org.ice4j.socket.*;
 import org.jitsi.service.libjitsi.*;
@@ -23,7 +27,48 @@ public class RTPConnectorUDPInputStream
     extends RTPConnectorInputStream
 {
     private static final Logger logger = Logger.getLogger(RTPConnectorUDPInputStream.class);
-    
+
+    /**
+     * The maximum number of packets to be read from the
+     * <tt>DatagramChannel</tt> of {@link #socket} each time it is reported
+     * ready by the <tt>RTPConnectorSelectorPool</tt>. Bounds the time a single
+     * busy channel occupies a selector thread shared with other channels.
+     */
+    static final int MAX_PACKETS_PER_SELECT = 16;
+
+    /**
+     * The <tt>DatagramChannel</tt> of {@link #socket} if it is read through
+     * the <tt>RTPConnectorSelectorPool</tt> rather than by a dedicated
+     * receiver thread; otherwise, <tt>null</tt>.
+     */
+    private DatagramChannel channel;
+
+    /**
+     * The <tt>DatagramPacket</tt> which describes the packets read from
+     * {@link #channel} to {@link #packetReceived(DatagramPacket)}.
+     */
+    private DatagramPacket channelPacket;
+
+    /**
+     * The <tt>ByteBuffer</tt> into which the packets are read from
+     * {@link #channel}. Wraps the receive buffer of this instance.
+     */
+    private ByteBuffer channelBuffer;
+
+    /**
+     * The <tt>Object</tt> which serializes the deliveries of the packets
+     * demultiplexed to this instance by {@link #reusePortReceiver} which may
+     * happen on multiple selector threads.
+     */
+    private final Object demultiplexedSyncRoot = new Object();
+
+    /**
+     * The <tt>ReusePortReceiver</tt> which {@link #socket} belongs to and
+     * which receives the packets of this instance on its behalf or
+     * <tt>null</tt> if <tt>socket</tt> is read by this instance.
+     */
+    private ReusePortReceiver reusePortReceiver;
+
     /**
      * UDP socket used to receive data.
      */
@@ -48,8 +93,36 @@ public class RTPConnectorUDPInputStream
         if(socket != null)
         {
             closed = false;
-            receiverThread = new Thread(this, "RTPConnectorUDPInputStreamThread");
-            receiverThread.start();
+
+            /*
+             * If the socket shares its local port with other sockets, the
+             * packets are received by the ReusePortReceiver of the port and
+             * are demultiplexed to this instance (once it is bound to the
+             * remote address and/or the SSRCs of its packets).
+             */
+            reusePortReceiver = ReusePortReceiver.getReceiver(socket);
+            if (reusePortReceiver != null)
+            {
+                byte[] receiveBuffer = getReceiveBuffer();
+
+                channelPacket
+                    = new DatagramPacket(receiveBuffer, 0, receiveBuffer.length);
+                Log.logMediaStackObjectStarted(this);
+                return;
+            }
+
+            /*
+             * If the socket has an associated DatagramChannel, have it read by
+             * the selector threads shared by all RTPConnectorInputStreams
+             * rather than by a thread of its own.
+             */
+            if ((socket.getChannel() == null)
+                    || !registerWithSelectorPool(socket.getChannel()))
+            {
+                receiverThread
+                    = new Thread(this, "RTPConnectorUDPInputStreamThread");
+                receiverThread.start();
+            }
         }
     }
 
@@ -61,6 +134,203 @@ public class RTPConnectorUDPInputStream
     {
         logger.debug("Closing RTP UDP input stream " + hashCode());
         closed = true;
+
+        if (reusePortReceiver != null)
+        {
+            reusePortReceiver.removeInputStream(
+                    this,
+                    new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            releaseReceiveBuffer();
+                        }
+                    });
+            reusePortReceiver = null;
+        }
+
+        if (channel != null)
+        {
+            try
+            {
+                RTPConnectorSelectorPool.getInstance().unregister(
+                        channel,
+                        new Runnable()
+                        {
+                            @Override
+                            public void run()
+                            {
+                                releaseReceiveBuffer();
+                            }
+                        });
+            }
+            catch (IOException ioe)
+            {
+                // The pool exists because channel has been registered with it.
+            }
+        }
+    }
+
+    /**
+     * Reads the packets available on {@link #channel} and delivers them to
+     * {@link #packetReceived(DatagramPacket)}. Invoked on a selector thread of
+     * <tt>RTPConnectorSelectorPool</tt> when <tt>channel</tt> is readable.
+     *
+     * @param key the <tt>SelectionKey</tt> of the registration of
+     * <tt>channel</tt> with the <tt>RTPConnectorSelectorPool</tt>
+     */
+    private void channelSelected(SelectionKey key)
+    {
+        for (int i = 0; i < MAX_PACKETS_PER_SELECT; i++)
+        {
+            if (closed)
+            {
+                key.cancel();
+                break;
+            }
+
+            SocketAddress source;
+
+            channelBuffer.clear();
+            try
+            {
+                source = channel.receive(channelBuffer);
+            }
+            catch (IOException ioe)
+            {
+                ioError = true;
+                key.cancel();
+                releaseReceiveBuffer();
+                Log.logMediaStackObjectStopped(this);
+                break;
+            }
+            if (source == null)
+                break;
+
+            channelPacket.setData(
+                    channelBuffer.array(),
+                    0,
+                    channelBuffer.position());
+            channelPacket.setSocketAddress(source);
+            packetReceived(channelPacket);
+
+            /*
+             * The packet may have been handed off along with the receive
+             * buffer in which case the next one is to be received into the
+             * new receive buffer.
+             */
+            byte[] receiveBuffer = channelPacket.getData();
+
+            if (channelBuffer.array() != receiveBuffer)
+                channelBuffer = ByteBuffer.wrap(receiveBuffer);
+        }
+    }
+
+    /**
+     * Gets the <tt>ReusePortReceiver</tt> which receives the packets of this
+     * instance on its behalf.
+     *
+     * @return the <tt>ReusePortReceiver</tt> which receives the packets of
+     * this instance on its behalf or <tt>null</tt> if the socket of this
+     * instance is read by this instance
+     */
+    public synchronized ReusePortReceiver getReusePortReceiver()
+    {
+        return reusePortReceiver;
+    }
+
+    /**
+     * Notifies this instance that a specific packet has been received on its
+     * behalf and demultiplexed to it by its <tt>ReusePortReceiver</tt>.
+     * Invoked on a selector thread of <tt>RTPConnectorSelectorPool</tt>.
+     *
+     * @param buf the <tt>byte</tt> array which contains the packet
+     * @param off the offset in <tt>buf</tt> at which the packet starts
+     * @param len the length in bytes of the packet
+     * @param source the address the packet has been received from
+     */
+    void packetReceived(byte[] buf, int off, int len, SocketAddress source)
+    {
+        synchronized (demultiplexedSyncRoot)
+        {
+            if (closed)
+                return;
+
+            /*
+             * The packet is copied into the receive buffer because the
+             * RTPConnectorInputStream may hand it off along with the buffer.
+             */
+            byte[] receiveBuffer = channelPacket.getData();
+
+            if (len > receiveBuffer.length)
+                return;
+
+            System.arraycopy(buf, off, receiveBuffer, 0, len);
+            channelPacket.setData(receiveBuffer, 0, len);
+            channelPacket.setSocketAddress(source);
+            packetReceived(channelPacket);
+        }
+    }
+
+    /**
+     * Registers a specific <tt>DatagramChannel</tt> (which is associated with
+     * the socket of this instance) with the <tt>RTPConnectorSelectorPool</tt>
+     * so that the packets received by the socket are read by the shared
+     * selector threads.
+     *
+     * @param channel the <tt>DatagramChannel</tt> associated with the socket
+     * of this instance
+     * @return <tt>true</tt> if <tt>channel</tt> has been registered with the
+     * <tt>RTPConnectorSelectorPool</tt>; otherwise, <tt>false</tt> and a
+     * dedicated receiver thread is to be used
+     */
+    private boolean registerWithSelectorPool(DatagramChannel channel)
+    {
+        try
+        {
+            socket.setReceiveBufferSize(65535);
+        }
+        catch(Throwable t)
+        {
+        }
+
+        byte[] receiveBuffer = getReceiveBuffer();
+
+        this.channel = channel;
+        channelBuffer = ByteBuffer.wrap(receiveBuffer);
+        channelPacket
+            = new DatagramPacket(receiveBuffer, 0, receiveBuffer.length);
+
+        try
+        {
+            RTPConnectorSelectorPool.getInstance().register(
+                    channel,
+                    SelectionKey.OP_READ,
+                    new RTPConnectorSelectorPool.SelectionHandler()
+                    {
+                        @Override
+                        public void selected(SelectionKey key)
+                        {
+                            channelSelected(key);
+                        }
+                    });
+        }
+        catch (IOException ioe)
+        {
+            logger.warn(
+                    "Failed to register with RTPConnectorSelectorPool,"
+                        + " falling back to a receiver thread.",
+                    ioe);
+
+            this.channel = null;
+            channelBuffer = null;
+            channelPacket = null;
+            return false;
+        }
+
+        Log.logMediaStackObjectStarted(this);
+        return true;
     }
 
     /**
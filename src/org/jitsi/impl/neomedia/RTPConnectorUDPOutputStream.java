@@ -8,10 +8,14 @@ package org.jitsi.impl.neomedia;
 
 import java.io.*;
 import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.concurrent.atomic.*;
 
 import org.ice4j.socket.*;
 import org.jitsi.service.libjitsi.*;
 import org.jitsi.service.packetlogging.*;
+import org.jitsi.util.*;
 
 /**
  * RTPConnectorOutputStream implementation for UDP protocol.
@@ -21,6 +25,19 @@ import org.jitsi.service.packetlogging.*;
 public class RTPConnectorUDPOutputStream
     extends RTPConnectorOutputStream
 {
+    /**
+     * The <tt>Logger</tt> used by the <tt>RTPConnectorUDPOutputStream</tt>
+     * class and its instances for logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(RTPConnectorUDPOutputStream.class);
+
+    /**
+     * The number of packets which have been dropped because the send buffer
+     * of the (non-blocking) channel of {@link #socket} was full.
+     */
+    private final AtomicLong sendBufferDropCount = new AtomicLong();
+
     /**
      * UDP socket used to send packet data
      */
@@ -36,6 +53,18 @@ public class RTPConnectorUDPOutputStream
         this.socket = socket;
     }
 
+    /**
+     * Gets the number of packets which have been dropped because the send
+     * buffer of the socket of this instance was full.
+     *
+     * @return the number of packets which have been dropped because the send
+     * buffer of the socket of this instance was full
+     */
+    public long getSendBufferDropCount()
+    {
+        return sendBufferDropCount.get();
+    }
+
     /**
      * Sends a specific <tt>RawPacket</tt> through this
      * <tt>OutputDataStream</tt> to a specific <tt>InetSocketAddress</tt>.
@@ -52,13 +81,44 @@ public class RTPConnectorUDPOutputStream
     protected void sendToTarget(RawPacket packet, InetSocketAddress target)
         throws IOException
     {
-        socket.send(
-                new DatagramPacket(
-                        packet.getBuffer(),
-                        packet.getOffset(),
-                        packet.getLength(),
-                        target.getAddress(),
-                        target.getPort()));
+        DatagramChannel channel = socket.getChannel();
+
+        if (channel == null)
+        {
+            socket.send(
+                    new DatagramPacket(
+                            packet.getBuffer(),
+                            packet.getOffset(),
+                            packet.getLength(),
+                            target.getAddress(),
+                            target.getPort()));
+        }
+        else
+        {
+            /*
+             * The channel may have been put in non-blocking mode by the
+             * RTPConnectorSelectorPool in which case DatagramSocket#send would
+             * throw an IllegalBlockingModeException. If the send buffer of the
+             * socket is full, nothing is sent and the packet is dropped just
+             * like any other UDP packet may be.
+             */
+            if (channel.send(packet.getByteBuffer(), target) == 0)
+            {
+                long dropCount = sendBufferDropCount.incrementAndGet();
+
+                // Log with decreasing frequency (the 1st, 2nd, 4th, ... drop
+                // and then every 1024th) because the buffer remains full for
+                // a while once it has filled up.
+                if (((dropCount & (dropCount - 1)) == 0)
+                        || (dropCount % 1024 == 0))
+                {
+                    logger.warn(
+                            "Dropped a packet to " + target
+                                + " because the send buffer is full ("
+                                + dropCount + " packets dropped so far).");
+                }
+            }
+        }
     }
 
     /**
@@ -0,0 +1,795 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package org.jitsi.impl.neomedia;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+
+import org.jitsi.service.configuration.*;
+import org.jitsi.service.libjitsi.*;
+import org.jitsi.util.*;
+
+/**
+ * Implements a process-wide pacer of the RTP and RTCP packets sent by
+ * <tt>RTPConnectorOutputStream</tt>s. The packets of a paced
+ * <tt>RTPConnectorOutputStream</tt> are queued in a {@link Flow} which limits
+ * the bitrate (and, optionally, the packet rate) at which they are sent by
+ * means of token buckets. A single pacing thread services all
+ * <tt>Flow</tt>s in a round-robin fashion.
+ * <p>
+ * The packets of a <tt>Flow</tt> are queued in lanes according to their
+ * {@link Priority} and a packet is sent only after the packets of the higher
+ * priority lanes. RTCP and audio packets are charged to the token buckets of
+ * their <tt>Flow</tt> but are not delayed by them. Video and retransmission
+ * (and padding) packets wait for the token buckets which allows at most a
+ * burst of {@link #BURST_MILLIS_PNAME} milliseconds worth of the bitrate of
+ * their <tt>Flow</tt> to be sent back to back (e.g. a video keyframe is
+ * spread over the time its size takes at the bitrate of its <tt>Flow</tt>).
+ * </p>
+ */
+public class RTPPacer
+{
+    /**
+     * The name of the integer <tt>ConfigurationService</tt> property which
+     * specifies the number of milliseconds worth of the bitrate of a
+     * <tt>Flow</tt> which may be sent back to back i.e. the depth of the token
+     * bucket of the <tt>Flow</tt>. The default value is <tt>10</tt>.
+     */
+    public static final String BURST_MILLIS_PNAME
+        = "org.jitsi.impl.neomedia.RTPPacer.burstMillis";
+
+    /**
+     * The <tt>Logger</tt> used by the <tt>RTPPacer</tt> class and its
+     * instances for logging output.
+     */
+    private static final Logger logger = Logger.getLogger(RTPPacer.class);
+
+    /**
+     * The minimum depth in bytes of the bitrate token bucket of a
+     * <tt>Flow</tt>. Makes sure that a packet of the size of a typical MTU is
+     * not split across multiple refills even at low bitrates.
+     */
+    private static final int MIN_BURST_BYTES = 1500;
+
+    /**
+     * The name of the integer <tt>ConfigurationService</tt> property which
+     * specifies the maximum number of packets to be queued in a single lane
+     * of a <tt>Flow</tt>. When a lane is full, its oldest packet is dropped in
+     * order to make room for the newly-written one. The default value is
+     * {@link RTPConnectorOutputStream#MAX_PACKETS_PER_MILLIS_POLICY_PACKET_QUEUE_CAPACITY}.
+     */
+    public static final String QUEUE_CAPACITY_PNAME
+        = "org.jitsi.impl.neomedia.RTPPacer.queueCapacity";
+
+    /**
+     * The one and only <tt>RTPPacer</tt> instance.
+     */
+    private static RTPPacer instance;
+
+    /**
+     * Gets the one and only <tt>RTPPacer</tt> instance and creates it (and
+     * starts its pacing thread) if it does not exist yet.
+     *
+     * @return the one and only <tt>RTPPacer</tt> instance
+     */
+    public static synchronized RTPPacer getInstance()
+    {
+        if (instance == null)
+            instance = new RTPPacer();
+        return instance;
+    }
+
+    /**
+     * The number of milliseconds worth of the bitrate of a <tt>Flow</tt>
+     * which may be sent back to back.
+     */
+    private final int burstMillis;
+
+    /**
+     * The <tt>Flow</tt>s serviced by {@link #pacingThread}.
+     */
+    private final List<Flow> flows = new CopyOnWriteArrayList<Flow>();
+
+    /**
+     * The <tt>Thread</tt> which sends the packets queued in {@link #flows}.
+     */
+    private final Thread pacingThread;
+
+    /**
+     * Whether {@link #pacingThread} is (about to be) parked waiting for a
+     * packet to be queued or for a token bucket to refill. Allows the writing
+     * threads to not unpark <tt>pacingThread</tt> when it is busy anyway.
+     */
+    private volatile boolean pacingThreadParked = false;
+
+    /**
+     * The maximum number of packets to be queued in a single lane of a
+     * <tt>Flow</tt>.
+     */
+    private final int queueCapacity;
+
+    /**
+     * Initializes a new <tt>RTPPacer</tt> instance and starts its pacing
+     * thread.
+     */
+    private RTPPacer()
+    {
+        ConfigurationService cfg = LibJitsi.getConfigurationService();
+        int burstMillis = 10;
+        int queueCapacity
+            = RTPConnectorOutputStream
+                .MAX_PACKETS_PER_MILLIS_POLICY_PACKET_QUEUE_CAPACITY;
+
+        if (cfg != null)
+        {
+            burstMillis = cfg.getInt(BURST_MILLIS_PNAME, burstMillis);
+            queueCapacity = cfg.getInt(QUEUE_CAPACITY_PNAME, queueCapacity);
+        }
+        this.burstMillis = Math.max(burstMillis, 1);
+        this.queueCapacity = Math.max(queueCapacity, 1);
+
+        pacingThread
+            = new Thread(getClass().getName())
+            {
+                @Override
+                public void run()
+                {
+                    runInPacingThread();
+                }
+            };
+        pacingThread.setDaemon(true);
+        pacingThread.start();
+    }
+
+    /**
+     * Initializes a new <tt>Flow</tt> which is to be serviced by this
+     * <tt>RTPPacer</tt>. The new instance does not limit the rate at which its
+     * packets are sent until {@link Flow#setBitrate(long)} or
+     * {@link Flow#setMaxPacketsPerMillis(int, long)} is invoked on it.
+     *
+     * @return a new <tt>Flow</tt> which is to be serviced by this
+     * <tt>RTPPacer</tt>
+     */
+    public Flow createFlow()
+    {
+        Flow flow = new Flow();
+
+        flows.add(flow);
+        return flow;
+    }
+
+    /**
+     * Sends the packets queued in {@link #flows} in accord with their token
+     * buckets. Runs in {@link #pacingThread}.
+     */
+    private void runInPacingThread()
+    {
+        while (true)
+        {
+            try
+            {
+                /*
+                 * Send one packet of each Flow per pass so that the Flows
+                 * share the pacing thread fairly.
+                 */
+                boolean sent;
+
+                do
+                {
+                    sent = false;
+                    for (Flow flow : flows)
+                    {
+                        if (flow.sendNext(System.nanoTime()))
+                            sent = true;
+                    }
+                }
+                while (sent);
+
+                pacingThreadParked = true;
+
+                long now = System.nanoTime();
+                long waitNanos = Long.MAX_VALUE;
+
+                for (Flow flow : flows)
+                {
+                    long flowWaitNanos = flow.getWaitNanos(now);
+
+                    if (waitNanos > flowWaitNanos)
+                        waitNanos = flowWaitNanos;
+                }
+                if (waitNanos == Long.MAX_VALUE)
+                    LockSupport.park(this);
+                else if (waitNanos > 0)
+                    LockSupport.parkNanos(this, waitNanos);
+                pacingThreadParked = false;
+            }
+            catch (Throwable t)
+            {
+                if (t instanceof ThreadDeath)
+                    throw (ThreadDeath) t;
+                else
+                    logger.error("Pacing failed", t);
+            }
+        }
+    }
+
+    /**
+     * Wakes {@link #pacingThread} up if it is parked. Invoked after a packet
+     * has been queued.
+     */
+    private void wakeUpPacingThread()
+    {
+        if (pacingThreadParked)
+            LockSupport.unpark(pacingThread);
+    }
+
+    /**
+     * Represents a set of queues of packets which are to be sent at a limited
+     * rate. A <tt>Flow</tt> may be shared by multiple
+     * <tt>RTPConnectorOutputStream</tt>s (e.g. by the data and the control
+     * ones of a <tt>MediaStream</tt>) in order to limit their combined
+     * egress.
+     */
+    public class Flow
+    {
+        /**
+         * The token bucket which limits the bitrate of this <tt>Flow</tt> in
+         * bytes or <tt>null</tt> if the bitrate of this <tt>Flow</tt> is not
+         * limited.
+         */
+        private TokenBucket byteBucket;
+
+        /**
+         * Whether this <tt>Flow</tt> has been closed.
+         */
+        private boolean closed = false;
+
+        /**
+         * The number of packets which have been dropped because their lanes
+         * were full.
+         */
+        private long droppedPacketCount = 0;
+
+        /**
+         * The queues of the packets of this <tt>Flow</tt> indexed by the
+         * ordinals of their <tt>Priority</tt>s.
+         */
+        private final Lane[] lanes = new Lane[Priority.values().length];
+
+        /**
+         * The token bucket which limits the packet rate of this <tt>Flow</tt>
+         * or <tt>null</tt> if the packet rate of this <tt>Flow</tt> is not
+         * limited.
+         */
+        private TokenBucket packetBucket;
+
+        /**
+         * Initializes a new <tt>Flow</tt> instance.
+         */
+        private Flow()
+        {
+            for (int i = 0; i < lanes.length; i++)
+                lanes[i] = new Lane(queueCapacity);
+        }
+
+        /**
+         * Closes this <tt>Flow</tt>. The packets which are still queued are
+         * not sent and the packets written afterwards are dropped.
+         */
+        public void close()
+        {
+            synchronized (this)
+            {
+                if (closed)
+                    return;
+                closed = true;
+                for (Lane lane : lanes)
+                    lane.clear();
+            }
+            flows.remove(this);
+        }
+
+        /**
+         * Gets the number of packets which have been dropped by this
+         * <tt>Flow</tt> because their lanes were full.
+         *
+         * @return the number of packets which have been dropped by this
+         * <tt>Flow</tt> because their lanes were full
+         */
+        public synchronized long getDroppedPacketCount()
+        {
+            return droppedPacketCount;
+        }
+
+        /**
+         * Gets the number of packets which are currently queued in this
+         * <tt>Flow</tt>.
+         *
+         * @return the number of packets which are currently queued in this
+         * <tt>Flow</tt>
+         */
+        public synchronized int getQueuedPacketCount()
+        {
+            int queuedPacketCount = 0;
+
+            for (Lane lane : lanes)
+                queuedPacketCount += lane.size;
+            return queuedPacketCount;
+        }
+
+        /**
+         * Gets the number of nanoseconds after which this <tt>Flow</tt> will
+         * be able to send its next packet.
+         *
+         * @param now the current time in nanoseconds
+         * @return the number of nanoseconds after which this <tt>Flow</tt>
+         * will be able to send its next packet, <tt>0</tt> if it is able to
+         * send it now or <tt>Long.MAX_VALUE</tt> if there is no packet queued
+         * in this <tt>Flow</tt>
+         */
+        synchronized long getWaitNanos(long now)
+        {
+            for (Priority priority : Priority.VALUES)
+            {
+                if (lanes[priority.ordinal()].size != 0)
+                {
+                    if (!priority.isPaced())
+                        return 0;
+
+                    long waitNanos = 0;
+
+                    if (byteBucket != null)
+                    {
+                        waitNanos
+                            = Math.max(waitNanos, byteBucket.getWaitNanos(now));
+                    }
+                    if (packetBucket != null)
+                    {
+                        waitNanos
+                            = Math.max(
+                                    waitNanos,
+                                    packetBucket.getWaitNanos(now));
+                    }
+                    return waitNanos;
+                }
+            }
+            return Long.MAX_VALUE;
+        }
+
+        /**
+         * Sends the next packet queued in this <tt>Flow</tt> if the token
+         * buckets of this <tt>Flow</tt> allow it.
+         *
+         * @param now the current time in nanoseconds
+         * @return <tt>true</tt> if a packet has been sent; otherwise,
+         * <tt>false</tt>
+         */
+        boolean sendNext(long now)
+        {
+            RawPacket packet = null;
+            RTPConnectorOutputStream stream = null;
+
+            synchronized (this)
+            {
+                for (Priority priority : Priority.VALUES)
+                {
+                    Lane lane = lanes[priority.ordinal()];
+
+                    if (lane.size == 0)
+                        continue;
+
+                    if (byteBucket != null)
+                        byteBucket.refill(now);
+                    if (packetBucket != null)
+                        packetBucket.refill(now);
+                    if (priority.isPaced()
+                            && (((byteBucket != null)
+                                        && !byteBucket.hasTokens())
+                                    || ((packetBucket != null)
+                                        && !packetBucket.hasTokens())))
+                    {
+                        /*
+                         * The lower priority lanes wait for the same token
+                         * buckets.
+                         */
+                        break;
+                    }
+
+                    stream = lane.streams[lane.head];
+                    packet = lane.poll();
+                    if (byteBucket != null)
+                        byteBucket.consume(packet.getLength());
+                    if (packetBucket != null)
+                        packetBucket.consume(1);
+                    break;
+                }
+            }
+            if (packet == null)
+                return false;
+
+            stream.sendPaced(packet);
+            return true;
+        }
+
+        /**
+         * Sets the maximum bitrate at which the packets of this <tt>Flow</tt>
+         * are to be sent.
+         *
+         * @param bitsPerSecond the maximum bitrate in bits per second at
+         * which the packets of this <tt>Flow</tt> are to be sent or a
+         * non-positive value if the bitrate of this <tt>Flow</tt> is not to be
+         * limited
+         */
+        public void setBitrate(long bitsPerSecond)
+        {
+            synchronized (this)
+            {
+                if (bitsPerSecond < 1)
+                    byteBucket = null;
+                else
+                {
+                    double bytesPerNano = bitsPerSecond / 8e9;
+                    long depth
+                        = Math.max(
+                                (long) (bitsPerSecond / 8D * burstMillis / 1000),
+                                MIN_BURST_BYTES);
+
+                    if (byteBucket == null)
+                        byteBucket = new TokenBucket(bytesPerNano, depth);
+                    else
+                        byteBucket.setRate(bytesPerNano, depth);
+                }
+            }
+            wakeUpPacingThread();
+        }
+
+        /**
+         * Sets the maximum number of packets of this <tt>Flow</tt> to be sent
+         * per a specific number of milliseconds.
+         *
+         * @param maxPackets the maximum number of packets of this
+         * <tt>Flow</tt> to be sent per the specified number of milliseconds;
+         * <tt>-1</tt> if no maximum is to be set
+         * @param perMillis the number of milliseconds per which
+         * <tt>maxPackets</tt> are to be sent
+         */
+        public void setMaxPacketsPerMillis(int maxPackets, long perMillis)
+        {
+            synchronized (this)
+            {
+                if (maxPackets < 1)
+                    packetBucket = null;
+                else
+                {
+                    if (perMillis < 1)
+                        throw new IllegalArgumentException("perMillis");
+
+                    double packetsPerNano = maxPackets / (perMillis * 1e6);
+
+                    if (packetBucket == null)
+                    {
+                        packetBucket
+                            = new TokenBucket(packetsPerNano, maxPackets);
+                    }
+                    else
+                        packetBucket.setRate(packetsPerNano, maxPackets);
+                }
+            }
+            wakeUpPacingThread();
+        }
+
+        /**
+         * Queues a specific packet to be sent by a specific
+         * <tt>RTPConnectorOutputStream</tt> in accord with the rate limits of
+         * this <tt>Flow</tt>. If the lane of <tt>priority</tt> is full, its
+         * oldest packet is dropped.
+         *
+         * @param packet the packet to be queued
+         * @param stream the <tt>RTPConnectorOutputStream</tt> which is to send
+         * <tt>packet</tt>
+         * @param priority the <tt>Priority</tt> of <tt>packet</tt>
+         */
+        void write(
+                RawPacket packet,
+                RTPConnectorOutputStream stream,
+                Priority priority)
+        {
+            RawPacket dropped = null;
+
+            synchronized (this)
+            {
+                if (closed)
+                    dropped = packet;
+                else
+                {
+                    Lane lane = lanes[priority.ordinal()];
+
+                    if (lane.size >= lane.packets.length)
+                    {
+                        dropped = lane.poll();
+                        droppedPacketCount++;
+                    }
+                    lane.offer(packet, stream);
+                }
+            }
+            if (dropped != null)
+                RawPacketPool.returnRawPacket(dropped);
+            if (dropped != packet)
+                wakeUpPacingThread();
+        }
+    }
+
+    /**
+     * Implements a bounded FIFO queue of the packets of a single
+     * <tt>Priority</tt> of a <tt>Flow</tt>. Not thread-safe, accessed while
+     * synchronized on the <tt>Flow</tt>.
+     */
+    private static class Lane
+    {
+        /**
+         * The index in {@link #packets} of the packet to be sent next.
+         */
+        int head = 0;
+
+        /**
+         * The ring of packets queued in this <tt>Lane</tt>.
+         */
+        final RawPacket[] packets;
+
+        /**
+         * The number of packets queued in this <tt>Lane</tt>.
+         */
+        int size = 0;
+
+        /**
+         * The <tt>RTPConnectorOutputStream</tt>s which are to send the
+         * packets at the same indexes in {@link #packets}.
+         */
+        final RTPConnectorOutputStream[] streams;
+
+        /**
+         * Initializes a new <tt>Lane</tt> instance with a specific capacity.
+         *
+         * @param capacity the maximum number of packets to be queued in the
+         * new instance
+         */
+        Lane(int capacity)
+        {
+            packets = new RawPacket[capacity];
+            streams = new RTPConnectorOutputStream[capacity];
+        }
+
+        /**
+         * Removes the packets queued in this <tt>Lane</tt> and releases them
+         * to the <tt>RawPacketPool</tt>.
+         */
+        void clear()
+        {
+            while (size != 0)
+                RawPacketPool.returnRawPacket(poll());
+        }
+
+        /**
+         * Queues a specific packet to be sent by a specific
+         * <tt>RTPConnectorOutputStream</tt>. The caller makes sure that this
+         * <tt>Lane</tt> is not full.
+         *
+         * @param packet the packet to queue
+         * @param stream the <tt>RTPConnectorOutputStream</tt> which is to send
+         * <tt>packet</tt>
+         */
+        void offer(RawPacket packet, RTPConnectorOutputStream stream)
+        {
+            int tail = (head + size) % packets.length;
+
+            packets[tail] = packet;
+            streams[tail] = stream;
+            size++;
+        }
+
+        /**
+         * Removes the packet at the head of this <tt>Lane</tt>. The caller
+         * makes sure that this <tt>Lane</tt> is not empty.
+         *
+         * @return the packet which was at the head of this <tt>Lane</tt>
+         */
+        RawPacket poll()
+        {
+            RawPacket packet = packets[head];
+
+            packets[head] = null;
+            streams[head] = null;
+            head++;
+            if (head >= packets.length)
+                head = 0;
+            size--;
+            return packet;
+        }
+    }
+
+    /**
+     * Enumerates the priorities of the packets queued in a <tt>Flow</tt> in
+     * descending order.
+     */
+    public enum Priority
+    {
+        /**
+         * RTCP packets. Not delayed by the token buckets of their
+         * <tt>Flow</tt>.
+         */
+        RTCP(false),
+
+        /**
+         * Audio RTP packets. Not delayed by the token buckets of their
+         * <tt>Flow</tt>.
+         */
+        AUDIO(false),
+
+        /**
+         * Video RTP packets.
+         */
+        VIDEO(true),
+
+        /**
+         * Retransmitted RTP packets, redundancy (e.g. ULPFEC) packets and
+         * padding.
+         */
+
+        RETRANSMISSION(true);
+
+        /**
+         * The <tt>Priority</tt> values in descending order. Cached because
+         * {@link #values()} allocates.
+         */
+        static final Priority[] VALUES = values();
+
+        /**
+         * Whether the packets with this <tt>Priority</tt> wait for the token
+         * buckets of their <tt>Flow</tt>.
+         */
+        private final boolean paced;
+
+        /**
+         * Initializes a new <tt>Priority</tt> instance.
+         *
+         * @param paced <tt>true</tt> if the packets with the new
+         * <tt>Priority</tt> are to wait for the token buckets of their
+         * <tt>Flow</tt>
+         */
+        private Priority(boolean paced)
+        {
+            this.paced = paced;
+        }
+
+        /**
+         * Determines whether the packets with this <tt>Priority</tt> wait for
+         * the token buckets of their <tt>Flow</tt>.
+         *
+         * @return <tt>true</tt> if the packets with this <tt>Priority</tt>
+         * wait for the token buckets of their <tt>Flow</tt>; otherwise,
+         * <tt>false</tt>
+         */
+        public boolean isPaced()
+        {
+            return paced;
+        }
+    }
+
+    /**
+     * Implements a token bucket. The tokens are refilled lazily and may go
+     * negative when a packet larger than the available tokens is sent (or
+     * when a packet which is not paced is charged) in which case the
+     * following packets wait until the debt has been refilled.
+     */
+    private static class TokenBucket
+    {
+        /**
+         * The maximum number of tokens in this bucket.
+         */
+        private long depth;
+
+        /**
+         * The time in nanoseconds at which this bucket was last refilled.
+         */
+        private long lastRefillTime;
+
+        /**
+         * The number of tokens added to this bucket per nanosecond.
+         */
+        private double rate;
+
+        /**
+         * The number of tokens in this bucket.
+         */
+        private double tokens;
+
+        /**
+         * Initializes a new full <tt>TokenBucket</tt> instance.
+         *
+         * @param rate the number of tokens to be added to the new instance per
+         * nanosecond
+         * @param depth the maximum number of tokens in the new instance
+         */
+        TokenBucket(double rate, long depth)
+        {
+            this.rate = rate;
+            this.depth = depth;
+            tokens = depth;
+            lastRefillTime = System.nanoTime();
+        }
+
+        /**
+         * Removes a specific number of tokens from this bucket.
+         *
+         * @param count the number of tokens to remove
+         */
+        void consume(int count)
+        {
+            tokens -= count;
+            if (tokens < -depth)
+                tokens = -depth;
+        }
+
+        /**
+         * Gets the number of nanoseconds after which this bucket will have
+         * tokens.
+         *
+         * @param now the current time in nanoseconds
+         * @return the number of nanoseconds after which this bucket will have
+         * tokens or <tt>0</tt> if it has tokens now
+         */
+        long getWaitNanos(long now)
+        {
+            refill(now);
+            return (tokens > 0) ? 0 : (long) (-tokens / rate) + 1;
+        }
+
+        /**
+         * Determines whether this bucket has tokens.
+         *
+         * @return <tt>true</tt> if this bucket has tokens; otherwise,
+         * <tt>false</tt>
+         */
+        boolean hasTokens()
+        {
+            return (tokens > 0);
+        }
+
+        /**
+         * Adds the tokens accumulated since the last refill to this bucket.
+         *
+         * @param now the current time in nanoseconds
+         */
+        void refill(long now)
+        {
+            long elapsed = now - lastRefillTime;
+
+            if (elapsed > 0)
+            {
+                tokens = Math.min(tokens + elapsed * rate, depth);
+                lastRefillTime = now;
+            }
+        }
+
+        /**
+         * Sets the rate and the depth of this bucket.
+         *
+         * @param rate the number of tokens to be added to this bucket per
+         * nanosecond
+         * @param depth the maximum number of tokens in this bucket
+         */
+        void setRate(double rate, long depth)
+        {
+            refill(System.nanoTime());
+            this.rate = rate;
+            this.depth = depth;
+            if (tokens > depth)
+                tokens = depth;
+        }
+    }
+}
@@ -9,6 +9,9 @@ package org.jitsi.impl.neomedia;
 import java.io.*;
 import java.lang.reflect.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
 
 import javax.media.*;
 import javax.media.format.*;
@@ -18,6 +21,8 @@ import javax.media.rtp.event.*;
 import javax.media.rtp.rtcp.*;
 
 import org.jitsi.impl.neomedia.protocol.*;
+import org.jitsi.service.configuration.*;
+import org.jitsi.service.libjitsi.*;
 import org.jitsi.service.neomedia.*;
 import org.jitsi.util.*;
 
@@ -40,6 +45,56 @@ public class RTPTranslatorImpl
     private static final Logger logger
         = Logger.getLogger(RTPTranslatorImpl.class);
 
+    /**
+     * The name of the <tt>ConfigurationService</tt> property which specifies
+     * the <tt>DropPolicy</tt> (i.e. <tt>DROP_NEWEST</tt> or
+     * <tt>DROP_OLDEST</tt>) to be applied to audio packets when the write
+     * queue of an <tt>RTPTranslatorImpl</tt> is full. The default value is
+     * <tt>DROP_NEWEST</tt>.
+     */
+    public static final String AUDIO_DROP_POLICY_PNAME
+        = "org.jitsi.impl.neomedia.RTPTranslatorImpl.audioDropPolicy";
+
+    /**
+     * The name of the <tt>ConfigurationService</tt> property which specifies
+     * the <tt>DropPolicy</tt> (i.e. <tt>DROP_NEWEST</tt> or
+     * <tt>DROP_OLDEST</tt>) to be applied to video packets when the write
+     * queue of an <tt>RTPTranslatorImpl</tt> is full. The default value is
+     * <tt>DROP_OLDEST</tt> because newer video packets are more valuable to
+     * the decoders of the receivers.
+     */
+    public static final String VIDEO_DROP_POLICY_PNAME
+        = "org.jitsi.impl.neomedia.RTPTranslatorImpl.videoDropPolicy";
+
+    /**
+     * The name of the boolean <tt>ConfigurationService</tt> property which
+     * indicates whether the <tt>RTPTranslatorImpl</tt>s are to fan the RTP and
+     * RTCP packets out to their destinations in parallel. If <tt>true</tt>,
+     * each destination has a send queue of its own which is serviced by a
+     * worker pool shared by all <tt>RTPTranslatorImpl</tt>s so that a
+     * congested destination does not delay the packets to the others. The
+     * default value is <tt>false</tt> i.e. a single thread per
+     * <tt>RTPTranslatorImpl</tt> writes to the destinations one after another.
+     */
+    public static final String PARALLEL_FAN_OUT_PNAME
+        = "org.jitsi.impl.neomedia.RTPTranslatorImpl.parallelFanOut";
+
+    /**
+     * The name of the integer <tt>ConfigurationService</tt> property which
+     * specifies the number of threads of the worker pool which writes to the
+     * destinations of the <tt>RTPTranslatorImpl</tt>s if
+     * {@link #PARALLEL_FAN_OUT_PNAME} is <tt>true</tt>. The default value is
+     * the number of processors available to the Java virtual machine.
+     */
+    public static final String FAN_OUT_THREAD_COUNT_PNAME
+        = "org.jitsi.impl.neomedia.RTPTranslatorImpl.fanOutThreadCount";
+
+    /**
+     * The worker pool shared by all <tt>RTPTranslatorImpl</tt>s which fan the
+     * RTP and RTCP packets out to their destinations in parallel.
+     */
+    private static ExecutorService fanOutExecutor;
+
     /**
      * The indicator which determines whether the method
      * {@link #createFakeSendStreamIfNecessary()} is to be executed by
@@ -508,6 +563,22 @@ public class RTPTranslatorImpl
         return manager.getControl(controlType);
     }
 
+    /**
+     * Gets the number of RTP and RTCP packets which this instance has dropped
+     * because its write queues were full.
+     *
+     * @return the number of RTP and RTCP packets which this instance has
+     * dropped because its write queues were full
+     */
+    public long getDroppedPacketCount()
+    {
+        long droppedPacketCount = 0;
+
+        for (OutputDataStreamImpl outputStream : getOutputStreams())
+            droppedPacketCount += outputStream.getDroppedPacketCount();
+        return droppedPacketCount;
+    }
+
     /**
      * Exposes {@link RTPManager#getGlobalReceptionStats()} on the
      * internal/underlying <tt>RTPManager</tt>.
@@ -552,6 +623,98 @@ public class RTPTranslatorImpl
         return ((RTPSessionMgr) manager).getLocalSSRC();
     }
 
+    /**
+     * Gets the worker pool shared by all <tt>RTPTranslatorImpl</tt>s which fan
+     * the RTP and RTCP packets out to their destinations in parallel and
+     * creates it if it does not exist yet.
+     *
+     * @return the worker pool shared by all <tt>RTPTranslatorImpl</tt>s which
+     * fan the RTP and RTCP packets out to their destinations in parallel
+     */
+    private static synchronized ExecutorService getFanOutExecutor()
+    {
+        if (fanOutExecutor == null)
+        {
+            ConfigurationService cfg = LibJitsi.getConfigurationService();
+            int threadCount = Runtime.getRuntime().availableProcessors();
+
+            if (cfg != null)
+            {
+                threadCount
+                    = cfg.getInt(FAN_OUT_THREAD_COUNT_PNAME, threadCount);
+            }
+            if (threadCount < 1)
+                threadCount = 1;
+
+            final ThreadFactory threadFactory
+                = new NamedThreadFactory(
+                        RTPTranslatorImpl.class.getName() + ".fanOut");
+
+            fanOutExecutor
+                = Executors.newFixedThreadPool(
+                        threadCount,
+                        new ThreadFactory()
+                        {
+                            @Override
+                            public Thread newThread(Runnable r)
+                            {
+                                Thread t = threadFactory.newThread(r);
+
+                                t.setDaemon(true);
+                                return t;
+                            }
+                        });
+        }
+        return fanOutExecutor;
+    }
+
+    /**
+     * Gets the maximum number of RTP and RTCP packets which have been queued
+     * for writing by this instance at the same time (in any one of its write
+     * queues).
+     *
+     * @return the maximum number of RTP and RTCP packets which have been
+     * queued for writing by this instance at the same time
+     */
+    public int getMaxWriteQueueDepth()
+    {
+        int maxWriteQueueDepth = 0;
+
+        for (OutputDataStreamImpl outputStream : getOutputStreams())
+        {
+            maxWriteQueueDepth
+                = Math.max(
+                        maxWriteQueueDepth,
+                        outputStream.getMaxWriteQueueDepth());
+        }
+        return maxWriteQueueDepth;
+    }
+
+    /**
+     * Gets the <tt>OutputDataStreamImpl</tt>s (i.e. the write queues) which
+     * have been created by the <tt>RTPConnector</tt> of this instance.
+     *
+     * @return the <tt>OutputDataStreamImpl</tt>s which have been created by
+     * the <tt>RTPConnector</tt> of this instance
+     */
+    private synchronized List<OutputDataStreamImpl> getOutputStreams()
+    {
+        List<OutputDataStreamImpl> outputStreams
+            = new ArrayList<OutputDataStreamImpl>(2);
+
+        if (connector != null)
+        {
+            synchronized (connector)
+            {
+                if (connector.dataOutputStream != null)
+                    outputStreams.add(connector.dataOutputStream);
+                if (connector.controlOutputStream != null)
+                    outputStreams.add(connector.controlOutputStream);
+            }
+        }
+        return outputStreams;
+    }
+
     /**
      * Gets the <tt>ReceiveStream</tt>s associated with/related to a neomedia
      * <tt>MediaStream</tt> (specified in the form of a
@@ -624,6 +787,22 @@ public class RTPTranslatorImpl
         return sendStreams;
     }
 
+    /**
+     * Gets the number of RTP and RTCP packets which are currently queued for
+     * writing by this instance.
+     *
+     * @return the number of RTP and RTCP packets which are currently queued
+     * for writing by this instance
+     */
+    public int getWriteQueueDepth()
+    {
+        int writeQueueDepth = 0;
+
+        for (OutputDataStreamImpl outputStream : getOutputStreams())
+            writeQueueDepth += outputStream.getWriteQueueDepth();
+        return writeQueueDepth;
+    }
+
     private synchronized StreamRTPManagerDesc getStreamRTPManagerDesc(
             StreamRTPManager streamRTPManager,
             boolean create)
@@ -732,15 +911,61 @@ public class RTPTranslatorImpl
      * <tt>offset</tt> which are allowed to be accessed
      * @param read the number of bytes in <tt>buffer</tt> beginning at
      * <tt>offset</tt> which represent the received RTP or RTCP packet
+     * @param pkt the <tt>RawPacket</tt> which has been handed off by the
+     * <tt>RTPConnectorInputStream</tt> of the peer and which contains the same
+     * bytes as <tt>buffer</tt> or <tt>null</tt>. If non-<tt>null</tt>, this
+     * instance becomes its owner and either translates it without copying it
+     * or releases it to the <tt>RawPacketPool</tt>.
+     * @return the number of bytes in <tt>buffer</tt> beginning at
+     * <tt>offset</tt> which represent the received RTP or RTCP packet
+     * @throws IOException if an I/O error occurs while the method processes the
+     * specified RTP or RTCP packet
+     */
+    private int read(
+            PushSourceStreamDesc streamDesc,
+            byte[] buffer, int offset, int length,
+            int read,
+            RawPacket pkt)
+        throws IOException
+    {
+        try
+        {
+            return doRead(streamDesc, buffer, offset, length, read, pkt);
+        }
+        finally
+        {
+            if (pkt != null)
+                RawPacketPool.returnRawPacket(pkt);
+        }
+    }
+
+    /**
+     * Implements {@link #read(PushSourceStreamDesc, byte[], int, int, int,
+     * RawPacket)}. Sets the buffer of <tt>pkt</tt> to <tt>null</tt> if the
+     * buffer has been taken over by an <tt>OutputDataStreamImpl</tt>.
+     *
+     * @param streamDesc a <tt>PushSourceStreamDesc</tt> which identifies the
+     * peer from which an RTP or RTCP packet has been received
+     * @param buffer the buffer which contains the bytes of the received RTP or
+     * RTCP packet
+     * @param offset the zero-based index in <tt>buffer</tt> at which the bytes
+     * of the received RTP or RTCP packet begin
+     * @param length the number of bytes in <tt>buffer</tt> beginning at
+     * <tt>offset</tt> which are allowed to be accessed
+     * @param read the number of bytes in <tt>buffer</tt> beginning at
+     * <tt>offset</tt> which represent the received RTP or RTCP packet
+     * @param pkt the <tt>RawPacket</tt> which has been handed off by the
+     * <tt>RTPConnectorInputStream</tt> of the peer or <tt>null</tt>
      * @return the number of bytes in <tt>buffer</tt> beginning at
      * <tt>offset</tt> which represent the received RTP or RTCP packet
      * @throws IOException if an I/O error occurs while the method processes the
      * specified RTP or RTCP packet
      */
-    private synchronized int read(
+    private synchronized int doRead(
             PushSourceStreamDesc streamDesc,
             byte[] buffer, int offset, int length,
-            int read)
+            int read,
+            RawPacket pkt)
         throws IOException
     {
         boolean data = streamDesc.data;
@@ -802,10 +1027,17 @@ public class RTPTranslatorImpl
 
         if (outputStream != null)
         {
-            outputStream.write(
-                    buffer, offset, read,
-                    format,
-                    streamRTPManagerDesc);
+            if (pkt == null)
+            {
+                outputStream.write(
+                        buffer, offset, read,
+                        format,
+                        streamRTPManagerDesc);
+            }
+            else
+            {
+                outputStream.write(pkt, format, streamRTPManagerDesc);
+            }
         }
 
         return read;
@@ -939,22 +1171,110 @@ public class RTPTranslatorImpl
         }
     }
 
+    /**
+     * Enumerates the policies which may be applied by
+     * <tt>RTPTranslatorImpl</tt> when a packet is to be written and its write
+     * queue is full.
+     */
+    private enum DropPolicy
+    {
+        /**
+         * Drops the packet to be written.
+         */
+        DROP_NEWEST,
+
+        /**
+         * Drops the oldest queued packet in order to make room for the packet
+         * to be written.
+         */
+        DROP_OLDEST;
+
+        /**
+         * Parses a specific <tt>String</tt> into a <tt>DropPolicy</tt>.
+         *
+         * @param s the <tt>String</tt> to parse
+         * @param defaultValue the <tt>DropPolicy</tt> to return if <tt>s</tt>
+         * does not name a <tt>DropPolicy</tt>
+         * @return the <tt>DropPolicy</tt> named by <tt>s</tt> or
+         * <tt>defaultValue</tt>
+         */
+        public static DropPolicy parse(String s, DropPolicy defaultValue)
+        {
+            if ((s != null) && (s.length() != 0))
+            {
+                try
+                {
+                    return valueOf(s.trim().toUpperCase());
+                }
+                catch (IllegalArgumentException iae)
+                {
+                    logger.warn("Unknown drop policy: " + s);
+                }
+            }
+            return defaultValue;
+        }
+    }
+
     private static class OutputDataStreamDesc
     {
         public RTPConnectorDesc connectorDesc;
 
         public OutputDataStream stream;
 
+        /**
+         * The send queue of this destination if the packets are fanned out in
+         * parallel; otherwise, <tt>null</tt>.
+         */
+        public final WriteQueue writeQueue;
+
+        /**
+         * Whether {@link #writeTask} has been submitted to the fan-out worker
+         * pool and has not completed yet. Guarantees that the packets of
+         * {@link #writeQueue} are written by one worker at a time and, thus,
+         * in order.
+         */
+        public final AtomicBoolean writeScheduled = new AtomicBoolean();
+
+        /**
+         * The task which writes the packets of {@link #writeQueue} to
+         * {@link #stream} or <tt>null</tt>.
+         */
+        public Runnable writeTask;
+
         public OutputDataStreamDesc(
                 RTPConnectorDesc connectorDesc,
                 OutputDataStream stream)
+        {
+            this(connectorDesc, stream, 0);
+        }
+
+        /**
+         * Initializes a new <tt>OutputDataStreamDesc</tt> instance with a send
+         * queue of a specific capacity.
+         *
+         * @param connectorDesc the <tt>RTPConnectorDesc</tt> of the new
+         * instance
+         * @param stream the <tt>OutputDataStream</tt> of the new instance
+         * @param writeQueueCapacity the capacity of the send queue of the new
+         * instance or <tt>0</tt> if the new instance is not to have a send
+         * queue
+         */
+        public OutputDataStreamDesc(
+                RTPConnectorDesc connectorDesc,
+                OutputDataStream stream,
+                int writeQueueCapacity)
         {
             this.connectorDesc = connectorDesc;
             this.stream = stream;
+
+            writeQueue
+                = (writeQueueCapacity > 0)
+                    ? new WriteQueue(writeQueueCapacity)
+                    : null;
         }
     }
 
-    private static class OutputDataStreamImpl
+    static class OutputDataStreamImpl
         implements OutputDataStream,
                    Runnable
     {
@@ -962,25 +1282,109 @@ public class RTPTranslatorImpl
             = RTPConnectorOutputStream
                 .MAX_PACKETS_PER_MILLIS_POLICY_PACKET_QUEUE_CAPACITY;
 
-        private boolean closed;
+        /**
+         * The <tt>DropPolicy</tt> to be applied when the <tt>writeQueue</tt>
+         * is full and an audio (or any other non-video) packet is written.
+         */
+        private final DropPolicy audioDropPolicy;
+
+        private volatile boolean closed;
 
         private final boolean data;
 
+        /**
+         * Whether this instance fans the packets out to its destinations in
+         * parallel (through their own send queues) rather than writes them one
+         * after another on {@link #writeThread}.
+         */
+        private final boolean parallelFanOut;
+
+        /**
+         * The number of packets which have been dropped because
+         * {@link #writeQueue} (or the send queue of a destination) was full.
+         */
+        private final AtomicLong droppedPacketCount = new AtomicLong();
+
+        /**
+         * The maximum number of packets which have been queued in
+         * {@link #writeQueue} at the same time.
+         */
+        private final AtomicInteger maxWriteQueueDepth = new AtomicInteger();
+
+        /**
+         * The <tt>OutputDataStreamDesc</tt>s to write to. Copied on write so
+         * that {@link #doWrite(byte[], int, int, Format, StreamRTPManagerDesc)}
+         * does not have to hold a lock while writing.
+         */
         private final List<OutputDataStreamDesc> streams
-            = new ArrayList<OutputDataStreamDesc>();
+            = new CopyOnWriteArrayList<OutputDataStreamDesc>();
 
-        private final RTPTranslatorBuffer[] writeQueue
-            = new RTPTranslatorBuffer[WRITE_QUEUE_CAPACITY];
+        /**
+         * The <tt>DropPolicy</tt> to be applied when the <tt>writeQueue</tt>
+         * is full and a video packet is written.
+         */
+        private final DropPolicy videoDropPolicy;
 
-        private int writeQueueHead;
+        private final WriteQueue writeQueue
+            = new WriteQueue(WRITE_QUEUE_CAPACITY);
 
-        private int writeQueueLength;
+        private volatile Thread writeThread;
 
-        private Thread writeThread;
+        /**
+         * Whether {@link #writeThread} is (about to be) parked because
+         * {@link #writeQueue} is empty and is to be unparked by the next
+         * writer.
+         */
+        private volatile boolean writeThreadParked;
 
         public OutputDataStreamImpl(boolean data)
+        {
+            this(data, isParallelFanOutConfigured());
+        }
+
+        /**
+         * Initializes a new <tt>OutputDataStreamImpl</tt> instance which fans
+         * the packets out to its destinations either in parallel or one after
+         * another regardless of {@link #PARALLEL_FAN_OUT_PNAME}.
+         *
+         * @param data <tt>true</tt> if the new instance is to write RTP
+         * packets or <tt>false</tt> if it is to write RTCP packets
+         * @param parallelFanOut <tt>true</tt> if the new instance is to fan
+         * the packets out to its destinations in parallel
+         */
+        OutputDataStreamImpl(boolean data, boolean parallelFanOut)
         {
             this.data = data;
+            this.parallelFanOut = parallelFanOut;
+
+            ConfigurationService cfg = LibJitsi.getConfigurationService();
+
+            audioDropPolicy
+                = DropPolicy.parse(
+                        (cfg == null)
+                            ? null
+                            : cfg.getString(AUDIO_DROP_POLICY_PNAME),
+                        DropPolicy.DROP_NEWEST);
+            videoDropPolicy
+                = DropPolicy.parse(
+                        (cfg == null)
+                            ? null
+                            : cfg.getString(VIDEO_DROP_POLICY_PNAME),
+                        DropPolicy.DROP_OLDEST);
+        }
+
+        /**
+         * Determines whether {@link #PARALLEL_FAN_OUT_PNAME} is <tt>true</tt>.
+         *
+         * @return <tt>true</tt> if {@link #PARALLEL_FAN_OUT_PNAME} is
+         * <tt>true</tt>; otherwise, <tt>false</tt>
+         */
+        private static boolean isParallelFanOutConfigured()
+        {
+            ConfigurationService cfg = LibJitsi.getConfigurationService();
+
+            return
+                (cfg != null) && cfg.getBoolean(PARALLEL_FAN_OUT_PNAME, false);
         }
 
         public synchronized void addStream(
@@ -991,35 +1395,72 @@ public class RTPTranslatorImpl
                 if ((streamDesc.connectorDesc == connectorDesc)
                         && (streamDesc.stream == stream))
                     return;
-            streams.add(new OutputDataStreamDesc(connectorDesc, stream));
+
+            if (parallelFanOut)
+            {
+                final OutputDataStreamDesc streamDesc
+                    = new OutputDataStreamDesc(
+                            connectorDesc,
+                            stream,
+                            WRITE_QUEUE_CAPACITY);
+
+                streamDesc.writeTask
+                    = new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            runInFanOutExecutor(streamDesc);
+                        }
+                    };
+                streams.add(streamDesc);
+            }
+            else
+                streams.add(new OutputDataStreamDesc(connectorDesc, stream));
         }
 
         public synchronized void close()
         {
             closed = true;
-            writeThread = null;
-            notify();
+
+            Thread writeThread = this.writeThread;
+
+            this.writeThread = null;
+            if (writeThread != null)
+                LockSupport.unpark(writeThread);
+
+            /*
+             * The buffers of the writeQueue will not be written anymore. The
+             * buffer which is being written (if any) is released by the
+             * writeThread or the fan-out worker which has taken it.
+             */
+            writeQueue.close();
+            for (OutputDataStreamDesc streamDesc : streams)
+            {
+                if (streamDesc.writeQueue != null)
+                    streamDesc.writeQueue.close();
+            }
         }
 
         private synchronized void createWriteThread()
         {
+            if (closed || (writeThread != null))
+                return;
+
             writeThread = new Thread(this, getClass().getName());
             writeThread.setDaemon(true);
             writeThread.start();
         }
 
-        private synchronized int doWrite(
+        private int doWrite(
                 byte[] buffer, int offset, int length,
                 Format format,
                 StreamRTPManagerDesc exclusion)
         {
             int write = 0;
 
-            for (int streamIndex = 0, streamCount = streams.size();
-                    streamIndex < streamCount;
-                    streamIndex++)
+            for (OutputDataStreamDesc streamDesc : streams)
             {
-                OutputDataStreamDesc streamDesc = streams.get(streamIndex);
                 StreamRTPManagerDesc streamRTPManagerDesc
                     = streamDesc.connectorDesc.streamRTPManagerDesc;
 
@@ -1037,20 +1478,12 @@ public class RTPTranslatorImpl
 
                         if ((format != null) && (length > 0))
                         {
-                            Integer payloadType
-                                = streamRTPManagerDesc.getPayloadType(format);
-
-                            if ((payloadType == null) && (exclusion != null))
-                                payloadType = exclusion.getPayloadType(format);
-                            if (payloadType != null)
-                            {
-                                int payloadTypeByteIndex = offset + 1;
-
-                                buffer[payloadTypeByteIndex]
-                                    = (byte)
-                                        ((buffer[payloadTypeByteIndex] & 0x80)
-                                            | (payloadType & 0x7f));
-                            }
+                            setPayloadType(
+                                    buffer, offset,
+                                    getPayloadType(
+                                            streamRTPManagerDesc,
+                                            format,
+                                            exclusion));
                         }
                     }
                     else if (logger.isTraceEnabled())
@@ -1070,85 +1503,446 @@ public class RTPTranslatorImpl
             return write;
         }
 
-        public synchronized void removeStreams(RTPConnectorDesc connectorDesc)
+        /**
+         * Queues a copy of a specific packet to be written to each destination
+         * of this instance on the fan-out worker pool.
+         *
+         * @param buffer the buffer which contains the packet to be written
+         * @param offset the offset in <tt>buffer</tt> at which the packet
+         * begins
+         * @param length the length in bytes of the packet
+         * @param format the <tt>Format</tt> of the packet or <tt>null</tt>
+         * @param exclusion the <tt>StreamRTPManagerDesc</tt> which is not to
+         * be written to
+         */
+        private void fanOut(
+                byte[] buffer, int offset, int length,
+                Format format,
+                StreamRTPManagerDesc exclusion)
         {
-            Iterator<OutputDataStreamDesc> streamIter = streams.iterator();
+            if (closed)
+                return;
 
-            while (streamIter.hasNext())
+            for (OutputDataStreamDesc streamDesc : streams)
             {
-                OutputDataStreamDesc streamDesc = streamIter.next();
+                StreamRTPManagerDesc streamRTPManagerDesc
+                    = streamDesc.connectorDesc.streamRTPManagerDesc;
 
-                if (streamDesc.connectorDesc == connectorDesc)
-                    streamIter.remove();
+                if (streamRTPManagerDesc == exclusion)
+                    continue;
+
+                Integer payloadType = null;
+
+                if (data)
+                {
+                   /*
+                    * Only write data packets to OutputDataStream-s for which
+                    * the associated MediaStream allows sending.
+                    */
+                    if (!streamRTPManagerDesc.streamRTPManager.getMediaStream()
+                            .getDirection().allowsSending())
+                        continue;
+
+                    if ((format != null) && (length > 0))
+                    {
+                        payloadType
+                            = getPayloadType(
+                                    streamRTPManagerDesc,
+                                    format,
+                                    exclusion);
+                    }
+                }
+                else if (logger.isTraceEnabled())
+                {
+                    logRTCP(this, "fanOut", buffer, offset, length);
+                }
+
+                WriteQueue writeQueue = streamDesc.writeQueue;
+                long position = claimWrite(writeQueue, exclusion);
+
+                if (position < 0)
+                    continue;
+
+                RTPTranslatorBuffer write = writeQueue.get(position);
+                byte[] data = write.data;
+
+                if ((data == null) || (data.length < length))
+                {
+                    if (data != null)
+                        RawPacketPool.returnBuffer(data);
+                    write.data = data = RawPacketPool.getBuffer(length);
+                }
+                System.arraycopy(buffer, offset, data, 0, length);
+                setPayloadType(data, 0, payloadType);
+                write.length = length;
+                write.offset = 0;
+
+                if (commitWrite(writeQueue, position))
+                    scheduleWrite(streamDesc);
             }
         }
 
-        public void run()
+        /**
+         * Gets the payload type number with which a packet of a specific
+         * <tt>Format</tt> is to be written to a specific destination.
+         *
+         * @param streamRTPManagerDesc the destination to write to
+         * @param format the <tt>Format</tt> of the packet to be written
+         * @param exclusion the <tt>StreamRTPManagerDesc</tt> from which the
+         * packet has been received or <tt>null</tt>
+         * @return the payload type number with which the packet is to be
+         * written to <tt>streamRTPManagerDesc</tt> or <tt>null</tt> if the
+         * payload type number of the packet is to be left as it is
+         */
+        private static Integer getPayloadType(
+                StreamRTPManagerDesc streamRTPManagerDesc,
+                Format format,
+                StreamRTPManagerDesc exclusion)
+        {
+            Integer payloadType = streamRTPManagerDesc.getPayloadType(format);
+
+            if ((payloadType == null) && (exclusion != null))
+                payloadType = exclusion.getPayloadType(format);
+            return payloadType;
+        }
+
+        /**
+         * Writes the packets queued in the send queue of a specific
+         * destination to it. Invoked on the fan-out worker pool, by one
+         * worker at a time for a specific destination.
+         *
+         * @param streamDesc the destination to write the queued packets of
+         */
+        private void runInFanOutExecutor(OutputDataStreamDesc streamDesc)
         {
+            WriteQueue writeQueue = streamDesc.writeQueue;
+
             try
             {
-                while (true)
+                /*
+                 * Do not occupy a worker for too long so that the destinations
+                 * which share it get their turn.
+                 */
+                for (int i = 0; i < WRITE_QUEUE_CAPACITY; i++)
                 {
-                    int writeIndex;
-                    byte[] buffer;
-                    StreamRTPManagerDesc exclusion;
-                    Format format;
-                    int length;
-
-                    synchronized (this)
+                    if (closed || writeQueue.isClosed())
                     {
-                        if (closed
-                                || !Thread.currentThread().equals(writeThread))
-                            break;
-                        if (writeQueueLength < 1)
-                        {
-                            boolean interrupted = false;
+                        /*
+                         * The destination has been removed (or this instance
+                         * closed) while the task was scheduled. Release the
+                         * packets which have made it into the queue since.
+                         */
+                        writeQueue.clear();
+                        break;
+                    }
 
-                            try
-                            {
-                                wait();
-                            }
-                            catch (InterruptedException ie)
-                            {
-                                interrupted = true;
-                            }
-                            if (interrupted)
-                                Thread.currentThread().interrupt();
-                            continue;
-                        }
+                    long position = writeQueue.claimRead();
 
-                        writeIndex = writeQueueHead;
+                    if (position < 0)
+                        break;
 
-                        RTPTranslatorBuffer write = writeQueue[writeIndex];
+                    RTPTranslatorBuffer write = writeQueue.get(position);
+                    byte[] buffer = write.data;
+                    int length = write.length;
+                    int offset = write.offset;
 
-                        buffer = write.data;
-                        write.data = null;
-                        exclusion = write.exclusion;
-                        write.exclusion = null;
-                        format = write.format;
-                        write.format = null;
-                        length = write.length;
-                        write.length = 0;
-
-                        writeQueueHead++;
-                        if (writeQueueHead >= writeQueue.length)
-                            writeQueueHead = 0;
-                        writeQueueLength--;
-                    }
+                    write.data = null;
+                    write.length = 0;
+                    write.offset = 0;
+                    writeQueue.commitRead(position);
 
                     try
                     {
-                        doWrite(buffer, 0, length, format, exclusion);
+                        streamDesc.stream.write(buffer, offset, length);
+                    }
+                    catch (Throwable t)
+                    {
+                        if (t instanceof ThreadDeath)
+                            throw (ThreadDeath) t;
+                        else
+                            logger.error("Failed to translate RTP packet", t);
                     }
                     finally
                     {
-                        synchronized (this)
-                        {
-                            RTPTranslatorBuffer write = writeQueue[writeIndex];
+                        RawPacketPool.returnBuffer(buffer);
+                    }
+                }
+            }
+            finally
+            {
+                streamDesc.writeScheduled.set(false);
+                if (!closed && !writeQueue.isClosed() && !writeQueue.isEmpty())
+                    scheduleWrite(streamDesc);
+            }
+        }
 
-                            if ((write != null) && (write.data == null))
-                                write.data = buffer;
-                        }
+        /**
+         * Submits the task which writes the packets queued in the send queue
+         * of a specific destination to the fan-out worker pool unless it has
+         * been submitted already.
+         *
+         * @param streamDesc the destination to write the queued packets of
+         */
+        private void scheduleWrite(OutputDataStreamDesc streamDesc)
+        {
+            if (streamDesc.writeScheduled.compareAndSet(false, true))
+                getFanOutExecutor().execute(streamDesc.writeTask);
+        }
+
+        /**
+         * Sets the payload type number of a specific RTP packet.
+         *
+         * @param buffer the buffer which contains the RTP packet
+         * @param offset the offset in <tt>buffer</tt> at which the RTP packet
+         * begins
+         * @param payloadType the payload type number to set or <tt>null</tt>
+         * to leave the payload type number of the RTP packet as it is
+         */
+        private static void setPayloadType(
+                byte[] buffer, int offset,
+                Integer payloadType)
+        {
+            if (payloadType != null)
+            {
+                int payloadTypeByteIndex = offset + 1;
+
+                buffer[payloadTypeByteIndex]
+                    = (byte)
+                        ((buffer[payloadTypeByteIndex] & 0x80)
+                            | (payloadType & 0x7f));
+            }
+        }
+
+        /**
+         * Gets the number of packets which have been dropped because the
+         * write queue of this instance was full.
+         *
+         * @return the number of packets which have been dropped because the
+         * write queue of this instance was full
+         */
+        public long getDroppedPacketCount()
+        {
+            return droppedPacketCount.get();
+        }
+
+        /**
+         * Gets the maximum number of packets which have been queued for
+         * writing by this instance at the same time.
+         *
+         * @return the maximum number of packets which have been queued for
+         * writing by this instance at the same time
+         */
+        public int getMaxWriteQueueDepth()
+        {
+            return maxWriteQueueDepth.get();
+        }
+
+        /**
+         * Gets the number of packets which are currently queued for writing by
+         * this instance.
+         *
+         * @return the number of packets which are currently queued for writing
+         * by this instance
+         */
+        public int getWriteQueueDepth()
+        {
+            int writeQueueDepth = writeQueue.size();
+
+            for (OutputDataStreamDesc streamDesc : streams)
+            {
+                if (streamDesc.writeQueue != null)
+                    writeQueueDepth += streamDesc.writeQueue.size();
+            }
+            return writeQueueDepth;
+        }
+
+        /**
+         * Claims a slot of a specific <tt>WriteQueue</tt> for a packet to be
+         * written and applies the <tt>DropPolicy</tt> associated with the
+         * media type of the packet if the <tt>WriteQueue</tt> is full.
+         *
+         * @param writeQueue the <tt>WriteQueue</tt> to claim a slot of
+         * @param exclusion the <tt>StreamRTPManagerDesc</tt> from which the
+         * packet to be written has been received
+         * @return the position in <tt>writeQueue</tt> of the claimed slot or
+         * <tt>-1</tt> if the packet is to be dropped
+         */
+        private long claimWrite(
+                WriteQueue writeQueue,
+                StreamRTPManagerDesc exclusion)
+        {
+            if (closed || writeQueue.isClosed())
+                return -1;
+
+            long position = writeQueue.claimWrite();
+
+            if (position < 0)
+            {
+                DropPolicy dropPolicy
+                    = ((exclusion != null)
+                            && (exclusion.streamRTPManager.getMediaStream()
+                                    instanceof VideoMediaStream))
+                        ? videoDropPolicy
+                        : audioDropPolicy;
+
+                if (dropPolicy == DropPolicy.DROP_OLDEST)
+                {
+                    /*
+                     * Make room by dropping the oldest queued packet. Another
+                     * writer may take the freed slot so give up after a few
+                     * attempts rather than spin.
+                     */
+                    for (int i = 0; (position < 0) && (i < 4); i++)
+                    {
+                        if (writeQueue.drop())
+                            dropped();
+                        position = writeQueue.claimWrite();
+                    }
+                }
+                if (position < 0)
+                    dropped();
+            }
+            return position;
+        }
+
+        /**
+         * Notes that a packet has been dropped because {@link #writeQueue} was
+         * full.
+         */
+        private void dropped()
+        {
+            long droppedPacketCount = this.droppedPacketCount.incrementAndGet();
+
+            if ((droppedPacketCount % 100) == 1)
+            {
+                logger.warn(
+                        "Will not translate RTP packet. Dropped "
+                            + droppedPacketCount + " so far.");
+            }
+        }
+
+        /**
+         * Publishes a slot of a specific <tt>WriteQueue</tt> which has been
+         * claimed and filled by a writer. If <tt>writeQueue</tt> has been
+         * closed in the meantime (e.g. its destination has been removed), its
+         * reader may have stopped already so the queued packets are released
+         * by the writer instead.
+         *
+         * @param writeQueue the <tt>WriteQueue</tt> to publish a slot of
+         * @param position the position in <tt>writeQueue</tt> of the slot to
+         * publish
+         * @return <tt>true</tt> if the slot has been published and is to be
+         * read; <tt>false</tt> if <tt>writeQueue</tt> has been closed
+         */
+        private boolean commitWrite(WriteQueue writeQueue, long position)
+        {
+            writeQueue.commitWrite(position);
+            if (writeQueue.isClosed())
+            {
+                writeQueue.clear();
+                return false;
+            }
+
+            int depth = writeQueue.size();
+            int maxDepth;
+
+            while (depth > (maxDepth = maxWriteQueueDepth.get()))
+            {
+                if (maxWriteQueueDepth.compareAndSet(maxDepth, depth))
+                    break;
+            }
+            return true;
+        }
+
+        /**
+         * Publishes a slot of {@link #writeQueue} which has been claimed and
+         * filled by a writer and wakes {@link #writeThread} up if necessary.
+         *
+         * @param position the position in <tt>writeQueue</tt> of the slot to
+         * publish
+         */
+        private void commitWrite(long position)
+        {
+            if (!commitWrite(writeQueue, position))
+                return;
+
+            Thread writeThread = this.writeThread;
+
+            if (writeThread == null)
+                createWriteThread();
+            else if (writeThreadParked)
+                LockSupport.unpark(writeThread);
+        }
+
+        public synchronized void removeStreams(RTPConnectorDesc connectorDesc)
+        {
+            for (OutputDataStreamDesc streamDesc : streams)
+            {
+                if (streamDesc.connectorDesc == connectorDesc)
+                {
+                    streams.remove(streamDesc);
+                    /*
+                     * A writer which iterates over the old snapshot of streams
+                     * or the fan-out worker may be using a slot right now so
+                     * only the published packets are released here. Whatever
+                     * is published later is released by its writer or the
+                     * worker.
+                     */
+                    if (streamDesc.writeQueue != null)
+                        streamDesc.writeQueue.close();
+                }
+            }
+        }
+
+        public void run()
+        {
+            try
+            {
+                while (true)
+                {
+                    if (closed
+                            || !Thread.currentThread().equals(writeThread))
+                        break;
+
+                    long position = writeQueue.claimRead();
+
+                    if (position < 0)
+                    {
+                        writeThreadParked = true;
+                        if (writeQueue.isEmpty()
+                                && !closed
+                                && Thread.currentThread().equals(writeThread))
+                            LockSupport.park(this);
+                        writeThreadParked = false;
+                        continue;
+                    }
+
+                    /*
+                     * Take the buffer out of the slot and publish the slot
+                     * right away so that the writers are never blocked by a
+                     * slow destination.
+                     */
+                    RTPTranslatorBuffer write = writeQueue.get(position);
+                    byte[] buffer = write.data;
+                    StreamRTPManagerDesc exclusion = write.exclusion;
+                    Format format = write.format;
+                    int length = write.length;
+                    int offset = write.offset;
+
+                    write.data = null;
+                    write.exclusion = null;
+                    write.format = null;
+                    write.length = 0;
+                    write.offset = 0;
+                    writeQueue.commitRead(position);
+
+                    try
+                    {
+                        doWrite(buffer, offset, length, format, exclusion);
+                    }
+                    finally
+                    {
+                        RawPacketPool.returnBuffer(buffer);
                     }
                 }
             }
@@ -1166,7 +1960,7 @@ public class RTPTranslatorImpl
                         writeThread = null;
                     if (!closed
                             && (writeThread == null)
-                            && (writeQueueLength > 0))
+                            && !writeQueue.isEmpty())
                         createWriteThread();
                 }
             }
@@ -1177,53 +1971,84 @@ public class RTPTranslatorImpl
             return doWrite(buffer, offset, length, null, null);
         }
 
-        public synchronized void write(
+        public void write(
                 byte[] buffer, int offset, int length,
                 Format format,
                 StreamRTPManagerDesc exclusion)
         {
-            if (closed)
-                return;
-
-            int writeIndex;
-
-            if (writeQueueLength < writeQueue.length)
-            {
-                writeIndex
-                    = (writeQueueHead + writeQueueLength) % writeQueue.length;
-            }
-            else
+            if (parallelFanOut)
             {
-                writeIndex = writeQueueHead;
-                writeQueueHead++;
-                if (writeQueueHead >= writeQueue.length)
-                    writeQueueHead = 0;
-                writeQueueLength--;
-                logger.warn("Will not translate RTP packet.");
+                fanOut(buffer, offset, length, format, exclusion);
+                return;
             }
 
-            RTPTranslatorBuffer write
-                = writeQueue[writeIndex];
+            long position = claimWrite(writeQueue, exclusion);
 
-            if (write == null)
-                writeQueue[writeIndex] = write = new RTPTranslatorBuffer();
+            if (position < 0)
+                return;
 
+            RTPTranslatorBuffer write = writeQueue.get(position);
             byte[] data = write.data;
 
             if ((data == null) || (data.length < length))
-                write.data = data = new byte[length];
+            {
+                if (data != null)
+                    RawPacketPool.returnBuffer(data);
+                write.data = data = RawPacketPool.getBuffer(length);
+            }
             System.arraycopy(buffer, offset, data, 0, length);
 
             write.exclusion = exclusion;
             write.format = format;
             write.length = length;
+            write.offset = 0;
 
-            writeQueueLength++;
+            commitWrite(position);
+        }
 
-            if (writeThread == null)
-                createWriteThread();
-            else
-                notify();
+        /**
+         * Queues a specific <tt>RawPacket</tt> to be written without copying
+         * it. Takes over the buffer of <tt>pkt</tt> and sets the buffer of
+         * <tt>pkt</tt> to <tt>null</tt> unless the packet is dropped or is
+         * fanned out in parallel (which copies it for each destination).
+         *
+         * @param pkt the <tt>RawPacket</tt> to be written
+         * @param format the <tt>Format</tt> of <tt>pkt</tt> or <tt>null</tt>
+         * @param exclusion the <tt>StreamRTPManagerDesc</tt> which is not to
+         * be written to
+         */
+        public void write(
+                RawPacket pkt,
+                Format format,
+                StreamRTPManagerDesc exclusion)
+        {
+            if (parallelFanOut)
+            {
+                fanOut(
+                        pkt.getBuffer(), pkt.getOffset(), pkt.getLength(),
+                        format,
+                        exclusion);
+                return;
+            }
+
+            long position = claimWrite(writeQueue, exclusion);
+
+            if (position < 0)
+                return;
+
+            RTPTranslatorBuffer write = writeQueue.get(position);
+
+            if (write.data != null)
+                RawPacketPool.returnBuffer(write.data);
+            write.data = pkt.getBuffer();
+            pkt.setBuffer(null);
+
+            write.exclusion = exclusion;
+            write.format = format;
+            write.length = pkt.getLength();
+            write.offset = pkt.getOffset();
+
+            commitWrite(position);
         }
     }
 
@@ -1350,14 +2175,39 @@ public class RTPTranslatorImpl
         {
             PushSourceStreamDesc streamDesc;
             int read;
+            RawPacket pkt = null;
 
             synchronized (this)
             {
                 streamDesc = streamToReadFrom;
-                read
-                    = (streamDesc == null)
-                        ? 0
-                        : streamDesc.stream.read(buffer, offset, length);
+                if (streamDesc == null)
+                    read = 0;
+                else if (streamDesc.stream instanceof RTPConnectorInputStream)
+                {
+                    /*
+                     * Take the received packet over rather than copy it twice
+                     * (i.e. into buffer and into the OutputDataStreamImpl).
+                     */
+                    pkt
+                        = ((RTPConnectorInputStream) streamDesc.stream)
+                            .readPacket();
+                    read = (pkt == null) ? 0 : pkt.getLength();
+                }
+                else
+                    read = streamDesc.stream.read(buffer, offset, length);
+            }
+            if (pkt != null)
+            {
+                if (length < read)
+                {
+                    RawPacketPool.returnRawPacket(pkt);
+                    throw new IOException(
+                            "Input buffer not big enough for " + read);
+                }
+                System.arraycopy(
+                        pkt.getBuffer(), pkt.getOffset(),
+                        buffer, offset,
+                        read);
             }
             if (read > 0)
             {
@@ -1365,8 +2215,11 @@ public class RTPTranslatorImpl
                     = RTPTranslatorImpl.this.read(
                             streamDesc,
                             buffer, offset, length,
-                            read);
+                            read,
+                            pkt);
             }
+            else if (pkt != null)
+                RawPacketPool.returnRawPacket(pkt);
             return read;
         }
 
@@ -1436,7 +2289,7 @@ public class RTPTranslatorImpl
         }
     }
 
-    private static class RTPConnectorDesc
+    static class RTPConnectorDesc
     {
         public final RTPConnector connector;
 
@@ -1758,6 +2611,8 @@ public class RTPTranslatorImpl
         public Format format;
 
         public int length;
+
+        public int offset;
     }
 
     /**
@@ -1992,7 +2847,7 @@ public class RTPTranslatorImpl
         }
     }
 
-    private static class StreamRTPManagerDesc
+    static class StreamRTPManagerDesc
     {
         public RTPConnectorDesc connectorDesc;
 
@@ -2105,4 +2960,250 @@ public class RTPTranslatorImpl
             }
         }
     }
+
+    /**
+     * Implements a bounded, lock-free ring of pre-allocated
+     * <tt>RTPTranslatorBuffer</tt>s which may be written by multiple threads
+     * concurrently and is read by a single thread. Each slot carries a
+     * sequence number which tells the writers and the reader whether the slot
+     * is free or filled for a specific position so neither side needs a lock.
+     * Besides the reader, writers may claim a slot for reading as well in
+     * order to drop the oldest queued packet.
+     */
+    private static class WriteQueue
+    {
+        /**
+         * Whether this queue has been closed i.e. the packets published in it
+         * are to be released rather than read.
+         */
+        private volatile boolean closed;
+
+        /**
+         * The position of the next slot to be read.
+         */
+        private final AtomicLong head = new AtomicLong();
+
+        /**
+         * The mask which maps a position to an index in {@link #slots}.
+         */
+        private final int mask;
+
+        /**
+         * The sequence numbers of {@link #slots}. A slot at index <tt>i</tt>
+         * is free for the position <tt>p</tt> if its sequence number is
+         * <tt>p</tt> and is filled for the position <tt>p</tt> if its
+         * sequence number is <tt>p + 1</tt>.
+         */
+        private final AtomicLongArray sequences;
+
+        /**
+         * The pre-allocated slots of this ring.
+         */
+        private final RTPTranslatorBuffer[] slots;
+
+        /**
+         * The position of the next slot to be written.
+         */
+        private final AtomicLong tail = new AtomicLong();
+
+        /**
+         * Initializes a new <tt>WriteQueue</tt> with a specific capacity.
+         *
+         * @param capacity the capacity of the new instance which is rounded
+         * up to a power of two
+         */
+        public WriteQueue(int capacity)
+        {
+            int length = 1;
+
+            while (length < capacity)
+                length <<= 1;
+
+            mask = length - 1;
+            sequences = new AtomicLongArray(length);
+            slots = new RTPTranslatorBuffer[length];
+            for (int i = 0; i < length; i++)
+            {
+                sequences.set(i, i);
+                slots[i] = new RTPTranslatorBuffer();
+            }
+        }
+
+        /**
+         * Claims the oldest filled slot for reading.
+         *
+         * @return the position of the claimed slot or <tt>-1</tt> if this
+         * queue is empty. The slot is to be released with
+         * {@link #commitRead(long)}.
+         */
+        public long claimRead()
+        {
+            while (true)
+            {
+                long position = head.get();
+                long difference
+                    = sequences.get((int) (position & mask)) - (position + 1);
+
+                if (difference == 0)
+                {
+                    if (head.compareAndSet(position, position + 1))
+                        return position;
+                }
+                else if (difference < 0)
+                    return -1;
+            }
+        }
+
+        /**
+         * Claims a free slot for writing.
+         *
+         * @return the position of the claimed slot or <tt>-1</tt> if this
+         * queue is full. The slot is to be published with
+         * {@link #commitWrite(long)}.
+         */
+        public long claimWrite()
+        {
+            while (true)
+            {
+                long position = tail.get();
+                long difference
+                    = sequences.get((int) (position & mask)) - position;
+
+                if (difference == 0)
+                {
+                    if (tail.compareAndSet(position, position + 1))
+                        return position;
+                }
+                else if (difference < 0)
+                    return -1;
+            }
+        }
+
+        /**
+         * Removes the queued packets and releases their buffers to the
+         * <tt>RawPacketPool</tt>. Only the slots which have been published
+         * by their writers are touched (through {@link #drop()}) so it is
+         * safe to invoke concurrently with the writers and the reader of this
+         * queue.
+         */
+        public void clear()
+        {
+            while (drop())
+            {
+                // Drop all queued packets.
+            }
+        }
+
+        /**
+         * Closes this queue and releases the buffers of the queued packets to
+         * the <tt>RawPacketPool</tt>. A writer which publishes a slot after
+         * this queue has been closed is to {@link #clear()} it again.
+         */
+        public void close()
+        {
+            closed = true;
+            clear();
+        }
+
+        /**
+         * Releases a slot which has been claimed for reading so that it may be
+         * written again.
+         *
+         * @param position the position of the slot to release
+         */
+        public void commitRead(long position)
+        {
+            sequences.set((int) (position & mask), position + slots.length);
+        }
+
+        /**
+         * Publishes a slot which has been claimed for writing so that it may
+         * be read.
+         *
+         * @param position the position of the slot to publish
+         */
+        public void commitWrite(long position)
+        {
+            sequences.set((int) (position & mask), position + 1);
+        }
+
+        /**
+         * Drops the oldest queued packet and releases its buffer to the
+         * <tt>RawPacketPool</tt>. The free slots never hold a buffer so the
+         * buffer of a slot is only ever touched by the thread which has
+         * claimed the slot.
+         *
+         * @return <tt>true</tt> if a packet has been dropped; <tt>false</tt>
+         * if this queue is empty
+         */
+        public boolean drop()
+        {
+            long position = claimRead();
+
+            if (position < 0)
+                return false;
+
+            RTPTranslatorBuffer slot = get(position);
+            byte[] data = slot.data;
+
+            slot.data = null;
+            slot.exclusion = null;
+            slot.format = null;
+            slot.length = 0;
+            slot.offset = 0;
+            commitRead(position);
+            if (data != null)
+                RawPacketPool.returnBuffer(data);
+            return true;
+        }
+
+        /**
+         * Gets the slot at a specific claimed position.
+         *
+         * @param position the claimed position of the slot to get
+         * @return the slot at the specified <tt>position</tt>
+         */
+        public RTPTranslatorBuffer get(long position)
+        {
+            return slots[(int) (position & mask)];
+        }
+
+        /**
+         * Determines whether this queue has been closed.
+         *
+         * @return <tt>true</tt> if this queue has been closed; otherwise,
+         * <tt>false</tt>
+         */
+        public boolean isClosed()
+        {
+            return closed;
+        }
+
+        /**
+         * Determines whether no filled slot is ready to be read.
+         *
+         * @return <tt>true</tt> if no filled slot is ready to be read;
+         * otherwise, <tt>false</tt>
+         */
+        public boolean isEmpty()
+        {
+            long position = head.get();
+
+            return sequences.get((int) (position & mask)) != (position + 1);
+        }
+
+        /**
+         * Gets the (approximate) number of slots which are claimed for
+         * writing or filled.
+         *
+         * @return the (approximate) number of slots which are claimed for
+         * writing or filled
+         */
+        public int size()
+        {
+            long size = tail.get() - head.get();
+
+            return (int) Math.max(0, Math.min(size, slots.length));
+        }
+    }
 }
@@ -6,6 +6,8 @@
  */
 package org.jitsi.impl.neomedia;
 
+import java.nio.*;
+
 /**
  * When using TransformConnector, a RTP/RTCP packet is represented using
  * RawPacket. RawPacket stores the buffer holding the RTP/RTCP packet, as well
@@ -17,6 +19,11 @@ package org.jitsi.impl.neomedia;
  * Besides packet info storage, RawPacket also provides some other operations
  * such as readInt() to ease the development process.
  *
+ * The header accessors of RawPacket read and write the packet data through
+ * readByte(), writeByte(), readInt() and the like only so that extenders may
+ * store the packet data somewhere other than a <tt>byte</tt> array by
+ * overriding these.
+ *
  * @author Werner Dittmann (Werner.Dittmann@t-online.de)
  * @author Bing SU (nova.su@gmail.com)
  * @author Emil Ivov
@@ -35,6 +42,19 @@ public class RawPacket
      */
     public static final int EXT_HEADER_SIZE = 4;
 
+    /**
+     * The value of the &quot;defined by profile&quot; field of the extension
+     * header which indicates RFC 5285 one-byte header extensions.
+     */
+    public static final int ONE_BYTE_HEADER_EXTENSION_PROFILE = 0xBEDE;
+
+    /**
+     * The value of the &quot;defined by profile&quot; field of the extension
+     * header (with the four &quot;appbits&quot; cleared) which indicates
+     * RFC 5285 two-byte header extensions.
+     */
+    public static final int TWO_BYTE_HEADER_EXTENSION_PROFILE = 0x1000;
+
     /**
      * Byte array storing the content of this Packet
      */
@@ -94,6 +114,21 @@ public class RawPacket
         return this.length;
     }
 
+    /**
+     * Gets a <tt>ByteBuffer</tt> which represents the data of this packet i.e.
+     * its position is zero and its limit is the length of this packet. The
+     * returned <tt>ByteBuffer</tt> shares the storage of this packet so it
+     * allows handing the packet data to NIO channels and native code without
+     * copying it. It becomes stale if the storage of this packet changes
+     * (e.g. because of {@link #append(byte[], int)}).
+     *
+     * @return a <tt>ByteBuffer</tt> which represents the data of this packet
+     */
+    public ByteBuffer getByteBuffer()
+    {
+        return ByteBuffer.wrap(buffer, offset, length).slice();
+    }
+
     /**
      * Get the start offset of this packet's data inside storing buffer
      *
@@ -135,11 +170,11 @@ public class RawPacket
     {
         if(marker)
         {
-             buffer[offset + 1] |= (byte) 0x80;
+            writeByte(1, (byte) (readByte(1) | 0x80));
         }
         else
         {
-            buffer[offset + 1] &= (byte) 0x7F;
+            writeByte(1, (byte) (readByte(1) & 0x7F));
         }
     }
 
@@ -155,7 +190,7 @@ public class RawPacket
         //bit is 0 so that we don't accidentally overwrite the marker.
         payload &= (byte)0x7F;
 
-        buffer[offset + 1] = (byte)((buffer[offset + 1] & 0x80) | payload);
+        writeByte(1, (byte)((readByte(1) & 0x80) | payload));
     }
 
     /**
@@ -165,7 +200,7 @@ public class RawPacket
      */
     public long getTimestamp()
     {
-        return readInt(offset + 4);
+        return readInt(4);
     }
 
     /**
@@ -175,7 +210,7 @@ public class RawPacket
      */
     public void setTimestamp(long timestamp)
     {
-        writeInt(offset + 4, (int)timestamp);
+        writeInt(4, (int)timestamp);
     }
 
     /**
@@ -232,6 +267,19 @@ public class RawPacket
         return val;
     }
 
+    /**
+     * Write an unsigned short to this packet at specified offset in network
+     * order.
+     *
+     * @param off start offset of the unsigned short
+     * @param data the unsigned short to write (the upper 16 bits are ignored)
+     */
+    public void writeUnsignedShort(int off, int data)
+    {
+        writeByte(off, (byte) (data >> 8));
+        writeByte(off + 1, (byte) data);
+    }
+
     /**
      * Read a byte from this packet at specified offset
      *
@@ -355,11 +403,55 @@ public class RawPacket
             this.buffer = newBuffer;
         }
         // append data
-        System.arraycopy(data, 0, this.buffer, this.length, len);
+        System.arraycopy(
+                data, 0,
+                this.buffer, this.offset + this.length,
+                len);
         this.length = this.length + len;
 
     }
 
+    /**
+     * Copies a region of this packet to another (possibly overlapping) region
+     * of this packet. Used to restructure this packet (e.g. insert or remove
+     * CSRCs and header extensions) in place.
+     *
+     * @param srcOff the offset in this packet of the region to copy
+     * @param dstOff the offset in this packet to copy the region to
+     * @param len the length of the region to copy
+     */
+    protected void copyRegion(int srcOff, int dstOff, int len)
+    {
+        if ((len > 0) && (srcOff != dstOff))
+        {
+            System.arraycopy(
+                    buffer, offset + srcOff,
+                    buffer, offset + dstOff,
+                    len);
+        }
+    }
+
+    /**
+     * Makes sure that the storage of this packet can hold at least a specific
+     * number of bytes starting at {@link #getOffset()} without reallocating it
+     * by reallocating it now if necessary.
+     *
+     * @param capacity the minimum number of bytes to be available to this
+     * packet
+     */
+    protected void ensureCapacity(int capacity)
+    {
+        if ((buffer == null) || (buffer.length - offset < capacity))
+        {
+            byte[] newBuffer = new byte[capacity];
+
+            if (buffer != null)
+                System.arraycopy(buffer, offset, newBuffer, 0, length);
+            buffer = newBuffer;
+            offset = 0;
+        }
+    }
+
     /**
      * Shrink the buffer of this packet by specified length
      *
@@ -386,7 +478,7 @@ public class RawPacket
      */
     public int getCsrcCount()
     {
-        return (buffer[offset] & 0x0f);
+        return (readByte(0) & 0x0f);
     }
 
     /**
@@ -400,53 +492,30 @@ public class RawPacket
     public void setCsrcList(long[] newCsrcList)
     {
         int newCsrcCount = newCsrcList.length;
-        byte[] csrcBuff = new byte[newCsrcCount * 4];
-        int csrcOffset = 0;
+        int oldCsrcListEnd = FIXED_HEADER_SIZE + getCsrcCount() * 4;
+        int newCsrcListEnd = FIXED_HEADER_SIZE + newCsrcCount * 4;
+        int delta = newCsrcListEnd - oldCsrcListEnd;
+
+        //the storage may need to be bigger in order to accommodate the list of
+        //CSRC IDs (unless there were more of them previously than after
+        //setting the new list). Otherwise, the packet is modified in place.
+        if (delta > 0)
+            ensureCapacity(length + delta);
+
+        //move whatever follows the CSRC list (i.e. the header extension and
+        //the payload)
+        copyRegion(oldCsrcListEnd, newCsrcListEnd, length - oldCsrcListEnd);
+        length += delta;
+
+        //write the new CSRC list
+        int csrcOffset = FIXED_HEADER_SIZE;
 
         for(long csrc : newCsrcList)
         {
-            csrcBuff[csrcOffset] = (byte)(csrc >> 24);
-            csrcBuff[csrcOffset+1] = (byte)(csrc >> 16);
-            csrcBuff[csrcOffset+2] = (byte)(csrc >> 8);
-            csrcBuff[csrcOffset+3] = (byte)csrc;
-
+            writeInt(csrcOffset, (int) csrc);
             csrcOffset += 4;
         }
 
-        int oldCsrcCount = getCsrcCount();
-
-        byte[] oldBuffer = this.getBuffer();
-
-        //the new buffer needs to be bigger than the new one in order to
-        //accommodate the list of CSRC IDs (unless there were more of them
-        //previously than after setting the new list).
-        byte[] newBuffer
-            = new byte[length + offset + csrcBuff.length - oldCsrcCount*4];
-
-        //copy the part up to the CSRC list
-        System.arraycopy(
-                    oldBuffer, 0, newBuffer, 0, offset + FIXED_HEADER_SIZE);
-
-        //copy the new CSRC list
-        System.arraycopy( csrcBuff, 0, newBuffer,
-                        offset + FIXED_HEADER_SIZE, csrcBuff.length);
-
-        //now copy the payload from the old buff and make sure we don't copy
-        //the CSRC list if there was one in the old packet
-        int payloadOffsetForOldBuff
-            = offset + FIXED_HEADER_SIZE + oldCsrcCount*4;
-
-        int payloadOffsetForNewBuff
-            = offset + FIXED_HEADER_SIZE + newCsrcCount*4;
-
-        System.arraycopy( oldBuffer, payloadOffsetForOldBuff,
-                          newBuffer, payloadOffsetForNewBuff,
-                          length - payloadOffsetForOldBuff);
-
-        this.buffer = newBuffer;
-        this.length = payloadOffsetForNewBuff + length
-                - payloadOffsetForOldBuff - offset;
-
         //set the CSRC count in the new buffer
         setCsrcCount(newCsrcCount);
     }
@@ -459,7 +528,7 @@ public class RawPacket
     public void setCsrcCount(int csrcCount)
     {
         //set the new CSRC count
-        buffer[offset] = (byte)((buffer[offset] & 0xF0) | csrcCount);
+        writeByte(0, (byte)((readByte(0) & 0xF0) | csrcCount));
     }
 
     /**
@@ -469,19 +538,36 @@ public class RawPacket
      * in this packet.
      */
     public long[] extractCsrcList()
+    {
+        long[] csrcList = new long[getCsrcCount()];
+
+        extractCsrcList(csrcList);
+        return csrcList;
+    }
+
+    /**
+     * Reads the list of CSRC IDs, currently encapsulated in this packet, into
+     * a specific (reusable) array without allocating any memory.
+     *
+     * @param csrcList the array to read the list of CSRC IDs into. If it is
+     * shorter than the list, the CSRC IDs which do not fit are not read.
+     * @return the number of CSRC IDs currently encapsulated in this packet
+     */
+    public int extractCsrcList(long[] csrcList)
     {
         int csrcCount = getCsrcCount();
-        long[] csrcList = new long[csrcCount];
-        int csrcStartIndex = offset + FIXED_HEADER_SIZE;
+        int csrcStartIndex = FIXED_HEADER_SIZE;
 
-        for (int i = 0; i < csrcCount; i++)
+        for (int i = 0, end = Math.min(csrcCount, csrcList.length);
+                i < end;
+                i++)
         {
             csrcList[i] = readInt(csrcStartIndex);
 
             csrcStartIndex += 4;
         }
 
-        return csrcList;
+        return csrcCount;
     }
 
     /**
@@ -491,13 +577,13 @@ public class RawPacket
      */
     public int getPaddingSize()
     {
-        if ((buffer[offset] & 0x20) == 0)
+        if ((readByte(0) & 0x20) == 0)
         {
             return 0;
         }
         else
         {
-            return buffer[offset + length - 1];
+            return readByte(length - 1);
         }
     }
 
@@ -556,7 +642,7 @@ public class RawPacket
      */
     public int getRTCPPacketType()
     {
-        return 0xff & buffer[offset + 1];
+        return 0xff & readByte(1);
     }
 
     /**
@@ -587,7 +673,7 @@ public class RawPacket
      */
     public boolean isPacketMarked()
     {
-        return (buffer[offset + 1] & 0x80) != 0;
+        return (readByte(1) & 0x80) != 0;
     }
 
     /**
@@ -597,7 +683,7 @@ public class RawPacket
      */
     public byte getPayloadType()
     {
-        return (byte) (buffer[offset + 1] & (byte)0x7F);
+        return (byte) (readByte(1) & (byte)0x7F);
     }
 
     /**
@@ -630,7 +716,7 @@ public class RawPacket
      */
     public boolean getExtensionBit()
     {
-        return (buffer[offset] & 0x10) == 0x10;
+        return (readByte(0) & 0x10) == 0x10;
     }
 
     /**
@@ -645,11 +731,11 @@ public class RawPacket
     {
         if(extBit)
         {
-            buffer[offset] |= 0x10;
+            writeByte(0, (byte) (readByte(0) | 0x10));
         }
         else
         {
-            buffer[offset] &= 0xEF;
+            writeByte(0, (byte) (readByte(0) & 0xEF));
         }
     }
 
@@ -667,17 +753,31 @@ public class RawPacket
 
         // The extension length comes after the RTP header, the CSRC list, and
         // two bytes in the extension header called "defined by profile".
-        int extLenIndex = offset + FIXED_HEADER_SIZE + getCsrcCount() * 4 + 2;
+        int extLenIndex = getExtensionHeaderOffset() + 2;
 
-        return
-            ((buffer[extLenIndex] << 8) | (buffer[extLenIndex + 1] & 0xFF)) * 4;
+        return readUnsignedShortAsInt(extLenIndex) * 4;
+    }
+
+    /**
+     * Sets the length field of the extension header of this packet. Does not
+     * move any data i.e. the caller is to make sure that the header extension
+     * of this packet actually has the specified length.
+     *
+     * @param extensionLength the length in bytes of the header extension of
+     * this packet (excluding the extension header) which is to be a multiple
+     * of four
+     */
+    private void setExtensionLength(int extensionLength)
+    {
+        writeUnsignedShort(getExtensionHeaderOffset() + 2, extensionLength / 4);
     }
 
     /**
      * Adds the <tt>extBuff</tt> buffer to as an extension of this packet
      * according the rules specified in RFC 5285. Note that this method does
      * not replace extensions so if you add the same buffer twice it would be
-     * added as to separate extensions.
+     * added as to separate extensions. The packet is modified in place unless
+     * its storage is too small to accommodate the extension.
      *
      * @param extBuff the buffer that we'd like to add as an extension in this
      * packet.
@@ -685,309 +785,588 @@ public class RawPacket
      */
     public void addExtension(byte[] extBuff, int newExtensionLen)
     {
-        int newBuffLen = length + offset + newExtensionLen;
-        int bufferOffset = offset;
-        int newBufferOffset = offset;
-        int lengthToCopy = FIXED_HEADER_SIZE + getCsrcCount()*4;
         boolean extensionBit = getExtensionBit();
-        //if there was no extension previously, we also need to consider adding
-        //the extension header.
-        if (extensionBit)
+        int extHeaderOffset = getExtensionHeaderOffset();
+        int oldExtensionLen = getExtensionLength();
+        // the length field counts the number of 32-bit words in the extension
+        // so the new content is padded accordingly.
+        int paddedExtensionLen = ((newExtensionLen + 3) / 4) * 4;
+        int insertOffset
+            = extensionBit
+                ? (extHeaderOffset + EXT_HEADER_SIZE + oldExtensionLen)
+                : extHeaderOffset;
+        int growth
+            = paddedExtensionLen + (extensionBit ? 0 : EXT_HEADER_SIZE);
+
+        ensureCapacity(length + growth);
+        // make room for the new extension by moving the payload
+        copyRegion(insertOffset, insertOffset + growth, length - insertOffset);
+        length += growth;
+
+        //if there were no extensions previously, we need to add the hdr now
+        if (!extensionBit)
         {
-            // without copying the extension length value, will set it later
-            lengthToCopy += EXT_HEADER_SIZE - 2;
+           // we will now be adding the RFC 5285 ext header which looks like
+           // this:
+           //
+           //  0                   1                   2                   3
+           //  0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1
+           // +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+           // |       0xBE    |    0xDE       |           length=3            |
+           // +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+            writeByte(extHeaderOffset, (byte) 0xBE);
+            writeByte(extHeaderOffset + 1, (byte) 0xDE);
+            insertOffset += EXT_HEADER_SIZE;
+            //raise the extension bit.
+            setExtensionBit(true);
         }
-        else
+
+        //copy the extension content from the new extension.
+        for (int i = 0; i < paddedExtensionLen; i++)
         {
-            newBuffLen += EXT_HEADER_SIZE;
+            writeByte(
+                    insertOffset + i,
+                    (i < newExtensionLen) ? extBuff[i] : 0);
         }
 
-        byte[] newBuffer = new byte[ newBuffLen ];
+        setExtensionLength(oldExtensionLen + paddedExtensionLen);
+    }
 
-        /*
-         * Copy header, CSRC list and the leading two bytes of the extension
-         * header if any.
-         */
-        System.arraycopy(buffer, bufferOffset,
-            newBuffer, newBufferOffset, lengthToCopy);
-        //raise the extension bit.
-        newBuffer[newBufferOffset] |= 0x10;
-        bufferOffset += lengthToCopy;
-        newBufferOffset += lengthToCopy;
+    /**
+     * Adds an RFC 5285 header extension element with a specific ID and a
+     * specific length of data to this packet in place (unless the storage of
+     * this packet is too small to accommodate it) and returns the offset in
+     * this packet at which the data of the element is to be written (e.g.
+     * with {@link #writeByte(int, byte)}). The one-byte header form is used
+     * if the element fits it and the packet does not use the two-byte form
+     * already; a packet which uses the one-byte form is converted to the
+     * two-byte form if the element does not fit the former. The element is
+     * appended after the existing elements of this packet i.e. any existing
+     * elements with the same ID are not replaced.
+     *
+     * @param id the ID of the header extension element to add. The value
+     * <tt>15</tt> is only allowed in the two-byte form.
+     * @param len the length in bytes of the data of the header extension
+     * element to add
+     * @return the offset in this packet at which the data of the newly-added
+     * header extension element is to be written or <tt>-1</tt> if
+     * <tt>id</tt> or <tt>len</tt> is invalid or this packet carries a header
+     * extension which is not an RFC 5285 one
+     */
+    public int addExtensionElement(int id, int len)
+    {
+        if ((id < 1) || (id > 255) || (len < 0) || (len > 255))
+            return -1;
 
-        // Set the extension header or modify the existing one.
-        int totalExtensionLen = newExtensionLen + getExtensionLength();
+        boolean oneByte = (id < 15) && (len >= 1) && (len <= 16);
+        int extHeaderOffset = getExtensionHeaderOffset();
+        int elementHeaderLength;
 
-        //if there were no extensions previously, we need to add the hdr now
-        if(extensionBit)
+        if (getExtensionBit())
         {
-            bufferOffset += 4;
+            elementHeaderLength = getExtensionHeaderLength();
+            if (elementHeaderLength == -1)
+                return -1;
+            if ((elementHeaderLength == 1) && !oneByte)
+            {
+                convertToTwoByteHeaderExtension();
+                elementHeaderLength = 2;
+            }
         }
         else
         {
-           // we will now be adding the RFC 5285 ext header which looks like
-           // this:
-           //
-           //  0                   1                   2                   3
-           //  0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1
-           // +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
-           // |       0xBE    |    0xDE       |           length=3            |
-           // +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
-           newBuffer[newBufferOffset++] = (byte)0xBE;
-           newBuffer[newBufferOffset++] = (byte)0xDE;
+            elementHeaderLength = oneByte ? 1 : 2;
+
+            ensureCapacity(length + EXT_HEADER_SIZE);
+            copyRegion(
+                    extHeaderOffset,
+                    extHeaderOffset + EXT_HEADER_SIZE,
+                    length - extHeaderOffset);
+            length += EXT_HEADER_SIZE;
+            writeUnsignedShort(
+                    extHeaderOffset,
+                    oneByte
+                        ? ONE_BYTE_HEADER_EXTENSION_PROFILE
+                        : TWO_BYTE_HEADER_EXTENSION_PROFILE);
+            setExtensionLength(0);
+            setExtensionBit(true);
         }
-        // length field counts the number of 32-bit words in the extension
-        int lengthInWords = (totalExtensionLen + 3)/4;
-        newBuffer[newBufferOffset++] = (byte)(lengthInWords >> 8);
-        newBuffer[newBufferOffset++] = (byte)lengthInWords;
 
-        // Copy the existing extension content if any.
-        if (extensionBit)
+        // The new element goes right after the last existing element i.e. it
+        // reuses any padding at the end of the header extension.
+        int contentOffset = extHeaderOffset + EXT_HEADER_SIZE;
+        int oldExtensionLen = getExtensionLength();
+        int elementOffset = getExtensionElementsEnd();
+        int elementsEnd = elementOffset + elementHeaderLength + len;
+        int newExtensionLen
+            = Math.max(
+                    ((elementsEnd - contentOffset + 3) / 4) * 4,
+                    oldExtensionLen);
+        int growth = newExtensionLen - oldExtensionLen;
+
+        if (growth > 0)
         {
-            lengthToCopy = getExtensionLength();
-            System.arraycopy(buffer, bufferOffset,
-                newBuffer, newBufferOffset, lengthToCopy);
-            bufferOffset += lengthToCopy;
-            newBufferOffset += lengthToCopy;
+            int payloadOffset = contentOffset + oldExtensionLen;
+
+            ensureCapacity(length + growth);
+            copyRegion(
+                    payloadOffset,
+                    payloadOffset + growth,
+                    length - payloadOffset);
+            length += growth;
+            setExtensionLength(newExtensionLen);
         }
 
-        //copy the extension content from the new extension.
-        System.arraycopy(extBuff, 0,
-            newBuffer, newBufferOffset, newExtensionLen);
-        newBufferOffset += newExtensionLen;
+        if (elementHeaderLength == 1)
+        {
+            writeByte(elementOffset, (byte) ((id << 4) | (len - 1)));
+        }
+        else
+        {
+            writeByte(elementOffset, (byte) id);
+            writeByte(elementOffset + 1, (byte) len);
+        }
+        // pad
+        for (int i = elementsEnd, end = contentOffset + newExtensionLen;
+                i < end;
+                i++)
+        {
+            writeByte(i, (byte) 0);
+        }
 
-        //now copy the payload
-        System.arraycopy(buffer, bufferOffset,
-            newBuffer, newBufferOffset, getPayloadLength());
-        newBufferOffset += getPayloadLength();
+        return elementOffset + elementHeaderLength;
+    }
 
-        buffer = newBuffer;
-        this.length = newBufferOffset - offset;
+    /**
+     * Adds an RFC 5285 header extension element with a specific ID and
+     * specific data to this packet. See {@link #addExtensionElement(int, int)}
+     * for the details.
+     *
+     * @param id the ID of the header extension element to add
+     * @param data the array which contains the data of the header extension
+     * element to add
+     * @param off the offset in <tt>data</tt> at which the data of the header
+     * extension element to add starts
+     * @param len the length in bytes of the data of the header extension
+     * element to add
+     * @return the offset in this packet at which the data of the newly-added
+     * header extension element starts or <tt>-1</tt> if the header extension
+     * element could not be added
+     */
+    public int addExtensionElement(int id, byte[] data, int off, int len)
+    {
+        int dataOffset = addExtensionElement(id, len);
+
+        if (dataOffset != -1)
+        {
+            for (int i = 0; i < len; i++)
+                writeByte(dataOffset + i, data[off + i]);
+        }
+        return dataOffset;
     }
 
     /**
-     * Removes the extension from the packet and its header.
+     * Converts the RFC 5285 one-byte header extension of this packet to the
+     * two-byte form. Allocates a temporary copy of the header extension which
+     * is fine because such a conversion happens at most once per packet and
+     * only when an element which does not fit the one-byte form is added.
      */
-    public void removeExtension()
+    private void convertToTwoByteHeaderExtension()
     {
-        if(!getExtensionBit())
+        int contentOffset = getExtensionHeaderOffset() + EXT_HEADER_SIZE;
+        int oldExtensionLen = getExtensionLength();
+        int elementsLen = 0;
+
+        for (int e = nextExtensionElement(-1);
+                e != -1;
+                e = nextExtensionElement(e))
         {
-            return;
+            elementsLen += 2 + getExtensionElementDataLength(e);
         }
 
-        int payloadOffset = offset + getHeaderLength();
+        byte[] oldContent = readRegion(contentOffset, oldExtensionLen);
+        int newExtensionLen = ((elementsLen + 3) / 4) * 4;
+        int payloadOffset = contentOffset + oldExtensionLen;
+        int delta = newExtensionLen - oldExtensionLen;
+
+        if (delta > 0)
+            ensureCapacity(length + delta);
+        copyRegion(
+                payloadOffset,
+                payloadOffset + delta,
+                length - payloadOffset);
+        length += delta;
+        writeUnsignedShort(
+                contentOffset - EXT_HEADER_SIZE,
+                TWO_BYTE_HEADER_EXTENSION_PROFILE);
+        setExtensionLength(newExtensionLen);
+
+        int dst = contentOffset;
+
+        for (int src = 0; (oldContent != null) && (src < oldContent.length);)
+        {
+            int b = oldContent[src] & 0xFF;
 
-        int extHeaderLen = getExtensionLength() + EXT_HEADER_SIZE;
+            if (b == 0)
+            {
+                src++; // padding
+                continue;
+            }
 
-        System.arraycopy(buffer, payloadOffset,
-            buffer, payloadOffset - extHeaderLen, getPayloadLength());
+            int id = b >> 4;
 
-        this.length -= extHeaderLen;
+            if (id == 15)
+                break;
 
-        setExtensionBit(false);
+            int len = (b & 0x0F) + 1;
+
+            if (src + 1 + len > oldContent.length)
+                break;
+            writeByte(dst++, (byte) id);
+            writeByte(dst++, (byte) len);
+            for (int i = 0; i < len; i++)
+                writeByte(dst++, oldContent[src + 1 + i]);
+            src += 1 + len;
+        }
+        // pad
+        while (dst < contentOffset + newExtensionLen)
+            writeByte(dst++, (byte) 0);
     }
 
     /**
-     * Returns a map binding CSRC IDs to audio levels as reported by the remote
-     * party that sent this packet.
+     * Returns the offset in this packet of the RFC 5285 header extension
+     * element with a specific ID.
      *
-     * @param csrcExtID the ID of the extension that's transporting csrc audio
-     * levels in the session that this <tt>RawPacket</tt> belongs to.
-     *
-     * @return an array representing a map binding CSRC IDs to audio levels as
-     * reported by the remote party that sent this packet. The entries of the
-     * map are contained in consecutive elements of the returned array where
-     * elements at even indices stand for CSRC IDs and elements at odd indices
-     * stand for the associated audio levels
+     * @param id the ID of the header extension element to find
+     * @return the offset in this packet of the header extension element with
+     * the specified <tt>id</tt> (to be passed to e.g.
+     * {@link #getExtensionElementDataOffset(int)}) or <tt>-1</tt> if this
+     * packet does not carry such an element
      */
-    public long[] extractCsrcLevels(byte csrcExtID)
+    public int findExtensionElement(int id)
     {
-        if (!getExtensionBit()
-                || (getExtensionLength() == 0)
-                || (getCsrcCount() == 0))
+        for (int e = nextExtensionElement(-1);
+                e != -1;
+                e = nextExtensionElement(e))
         {
-            return null;
+            if (getExtensionElementID(e) == id)
+                return e;
         }
+        return -1;
+    }
 
-        int csrcCount = getCsrcCount();
-        /*
-         * XXX The guideline which is also supported by Google and recommended
-         * for Android is that single-dimensional arrays should be preferred to
-         * multi-dimensional arrays in Java because the former take less space
-         * than the latter and are thus more efficient in terms of memory and
-         * garbage collection.
-         */
-        long[] csrcLevels = new long[csrcCount * 2];
+    /**
+     * Gets the length in bytes of the data of the RFC 5285 header extension
+     * element at a specific offset in this packet.
+     *
+     * @param elementOffset the offset in this packet of the header extension
+     * element as returned by e.g. {@link #nextExtensionElement(int)}
+     * @return the length in bytes of the data of the header extension element
+     * at <tt>elementOffset</tt>
+     */
+    public int getExtensionElementDataLength(int elementOffset)
+    {
+        if (getExtensionHeaderLength() == 1)
+            return (readByte(elementOffset) & 0x0F) + 1; //add one as per 5285
+        else
+            return readByte(elementOffset + 1) & 0xFF;
+    }
 
-        //first extract the csrc IDs
-        int csrcStartIndex = offset + FIXED_HEADER_SIZE;
-        for (int i = 0; i < csrcCount; i++)
-        {
-            int csrcLevelsIndex = 2 * i;
+    /**
+     * Gets the offset in this packet of the data of the RFC 5285 header
+     * extension element at a specific offset in this packet.
+     *
+     * @param elementOffset the offset in this packet of the header extension
+     * element as returned by e.g. {@link #nextExtensionElement(int)}
+     * @return the offset in this packet of the data of the header extension
+     * element at <tt>elementOffset</tt>
+     */
+    public int getExtensionElementDataOffset(int elementOffset)
+    {
+        return elementOffset + getExtensionHeaderLength();
+    }
 
-            csrcLevels[csrcLevelsIndex] = readInt(csrcStartIndex);
-            csrcLevels[csrcLevelsIndex + 1] = getCsrcLevel(i, csrcExtID);
+    /**
+     * Gets the ID of the RFC 5285 header extension element at a specific
+     * offset in this packet.
+     *
+     * @param elementOffset the offset in this packet of the header extension
+     * element as returned by e.g. {@link #nextExtensionElement(int)}
+     * @return the ID of the header extension element at
+     * <tt>elementOffset</tt>
+     */
+    public int getExtensionElementID(int elementOffset)
+    {
+        if (getExtensionHeaderLength() == 1)
+            return (readByte(elementOffset) & 0xF0) >> 4;
+        else
+            return readByte(elementOffset) & 0xFF;
+    }
 
-            csrcStartIndex += 4;
-        }
+    /**
+     * Gets the offset in this packet right after the last RFC 5285 header
+     * extension element i.e. where the padding of the header extension (if
+     * any) starts.
+     *
+     * @return the offset in this packet right after the last header extension
+     * element
+     */
+    private int getExtensionElementsEnd()
+    {
+        int end = getExtensionHeaderOffset() + EXT_HEADER_SIZE;
 
-        return csrcLevels;
+        for (int e = nextExtensionElement(-1);
+                e != -1;
+                e = nextExtensionElement(e))
+        {
+            end
+                = getExtensionElementDataOffset(e)
+                    + getExtensionElementDataLength(e);
+        }
+        return end;
     }
 
     /**
-     * Returns the CSRC level at the specified index or <tt>0</tt> if there was
-     * no level at that index.
+     * Gets the offset in this packet of the extension header i.e. of the
+     * &quot;defined by profile&quot; field which follows the RTP header and
+     * the CSRC list.
      *
-     * @param index the sequence number of the CSRC audio level extension to
-     * return.
-     * @param csrcExtID the ID of the extension that's transporting csrc audio
-     * levels in the session that this <tt>RawPacket</tt> belongs to.
+     * @return the offset in this packet of the extension header
+     */
+    private int getExtensionHeaderOffset()
+    {
+        return FIXED_HEADER_SIZE + getCsrcCount() * 4;
+    }
+
+    /**
+     * Iterates over the RFC 5285 header extension elements of this packet
+     * without allocating any memory. Padding is skipped and the iteration
+     * stops at a malformed element or (in the one-byte form) at the reserved
+     * ID <tt>15</tt>. For example:
+     * <pre>
+     * for (int e = pkt.nextExtensionElement(-1);
+     *         e != -1;
+     *         e = pkt.nextExtensionElement(e))
+     * {
+     *     int id = pkt.getExtensionElementID(e);
+     *     int dataOffset = pkt.getExtensionElementDataOffset(e);
+     *     int dataLength = pkt.getExtensionElementDataLength(e);
+     * }
+     * </pre>
      *
-     * @return the CSRC audio level at the specified index of the csrc audio
-     * level option or <tt>0</tt> if there was no level at that index.
+     * @param elementOffset the offset in this packet of the current header
+     * extension element or <tt>-1</tt> to start the iteration
+     * @return the offset in this packet of the header extension element which
+     * follows the one at <tt>elementOffset</tt> (or of the first one if
+     * <tt>elementOffset</tt> is <tt>-1</tt>) or <tt>-1</tt> if there are no
+     * more elements
      */
-    private int getCsrcLevel(int index, byte csrcExtID)
+    public int nextExtensionElement(int elementOffset)
     {
-        if( !getExtensionBit() || getExtensionLength() == 0)
-        {
-            return 0;
-        }
+        int elementHeaderLength = getExtensionHeaderLength();
+
+        if (elementHeaderLength == -1)
+            return -1;
 
-        int levelsStart = findExtension(csrcExtID);
+        int contentOffset = getExtensionHeaderOffset() + EXT_HEADER_SIZE;
+        int contentEnd = contentOffset + getExtensionLength();
+
+        if (contentEnd > length)
+            return -1;
 
-        if(levelsStart == -1)
+        int e
+            = (elementOffset < 0)
+                ? contentOffset
+                : (elementOffset
+                    + elementHeaderLength
+                    + getExtensionElementDataLength(elementOffset));
+
+        // skip padding
+        while ((e < contentEnd) && (readByte(e) == 0))
+            e++;
+
+        if ((e + elementHeaderLength > contentEnd)
+                || ((elementHeaderLength == 1)
+                    && ((readByte(e) & 0xF0) == 0xF0))
+                || (e
+                        + elementHeaderLength
+                        + getExtensionElementDataLength(e)
+                    > contentEnd))
         {
-            return 0;
+            return -1;
         }
+        return e;
+    }
 
-        int levelsCount = getLengthForExtension(levelsStart);
-
-        if(levelsCount < index)
+    /**
+     * Removes the extension from the packet and its header.
+     */
+    public void removeExtension()
+    {
+        if(!getExtensionBit())
         {
-            //apparently the remote side sent more CSRCs than levels.
-            // ... yeah remote sides do that now and then ...
-            return 0;
+            return;
         }
 
-        return buffer[levelsStart + index];
+        int payloadOffset = getHeaderLength();
+
+        int extHeaderLen = getExtensionLength() + EXT_HEADER_SIZE;
+
+        copyRegion(
+                payloadOffset,
+                payloadOffset - extHeaderLen,
+                length - payloadOffset);
+
+        this.length -= extHeaderLen;
+
+        setExtensionBit(false);
     }
 
     /**
-     * Returns the index of the element in this packet's buffer where the
-     * content of the header with the specified <tt>extensionID</tt> starts.
-     *
-     * @param extensionID the ID of the extension whose content we are looking
-     * for.
+     * Removes the RFC 5285 header extension element with a specific ID from
+     * this packet in place. The header extension is removed altogether if the
+     * removed element was its only one.
      *
-     * @return the index of the first byte of the content of the extension
-     * with the specified <tt>extensionID</tt> or -1 if no such extension was
-     * found.
+     * @param id the ID of the header extension element to remove
+     * @return <tt>true</tt> if this packet carried a header extension element
+     * with the specified <tt>id</tt> and it was removed; otherwise,
+     * <tt>false</tt>
      */
-    private int findExtension(int extensionID)
+    public boolean removeExtensionElement(int id)
     {
-        if( !getExtensionBit() || getExtensionLength() == 0)
-        {
-            return 0;
-        }
+        int e = findExtensionElement(id);
+
+        if (e == -1)
+            return false;
+
+        int contentOffset = getExtensionHeaderOffset() + EXT_HEADER_SIZE;
+        int oldExtensionLen = getExtensionLength();
+        int contentEnd = contentOffset + oldExtensionLen;
+        int elementEnd
+            = getExtensionElementDataOffset(e)
+                + getExtensionElementDataLength(e);
 
-        int extOffset = offset + FIXED_HEADER_SIZE
-                + getCsrcCount()*4 + EXT_HEADER_SIZE;
+        // close the gap left by the element within the header extension
+        copyRegion(elementEnd, e, contentEnd - elementEnd);
+        for (int i = contentEnd - (elementEnd - e); i < contentEnd; i++)
+            writeByte(i, (byte) 0);
 
-        int extensionEnd = extOffset + getExtensionLength();
-        int extHdrLen = getExtensionHeaderLength();
+        int elementsEnd = getExtensionElementsEnd();
 
-        if (extHdrLen != 1 && extHdrLen != 2)
+        if (elementsEnd == contentOffset)
         {
-            return -1;
+            removeExtension();
         }
-
-        while (extOffset < extensionEnd)
+        else
         {
-            int currType = -1;
-            int currLen = -1;
+            int newExtensionLen = ((elementsEnd - contentOffset + 3) / 4) * 4;
 
-            if(extHdrLen == 1)
+            if (newExtensionLen < oldExtensionLen)
             {
-                //short header. type is in the lefter 4 bits and length is on
-                //the right; like this:
-                //      0
-                //      0 1 2 3 4 5 6 7
-                //      +-+-+-+-+-+-+-+-+
-                //      |  ID   |  len  |
-                //      +-+-+-+-+-+-+-+-+
-
-                currType = buffer[extOffset] >> 4;
-                currLen = (buffer[extOffset] & 0x0F) + 1; //add one as per 5285
-
-                //now skip the header
-                extOffset ++;
+                copyRegion(
+                        contentEnd,
+                        contentOffset + newExtensionLen,
+                        length - contentEnd);
+                length -= oldExtensionLen - newExtensionLen;
+                setExtensionLength(newExtensionLen);
             }
-            else
-            {
-                //long header. type is in the first byte and length is in the
-                //second
-                //       0                   1
-                //       0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5
-                //      +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
-                //      |       ID      |     length    |
-                //      +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
-
-                currType = buffer[extOffset];
-                currLen = buffer[extOffset + 1];
-
-                //now skip the header
-                extOffset += 2;
-            }
-
-            if(currType == extensionID)
-            {
-                return extOffset;
-            }
-
-            extOffset += currLen;
         }
-
-        return -1;
+        return true;
     }
 
     /**
-     * Returns the length of the header extension that is carrying the content
-     * starting at <tt>contentStart</tt>. In other words this method checks the
-     * size of extension headers in this packet and then either returns the
-     * value of the byte right before <tt>contentStart</tt> or its lower 4 bits.
-     * This is a very basic method so if you are using it - make sure u know
-     * what you are doing.
+     * Returns a map binding CSRC IDs to audio levels as reported by the remote
+     * party that sent this packet.
      *
-     * @param contentStart the index of the first element of the content of
-     * the extension whose size we are trying to obtain.
+     * @param csrcExtID the ID of the extension that's transporting csrc audio
+     * levels in the session that this <tt>RawPacket</tt> belongs to.
      *
-     * @return the length of the extension carrying the content starting at
-     * <tt>contentStart</tt>.
+     * @return an array representing a map binding CSRC IDs to audio levels as
+     * reported by the remote party that sent this packet. The entries of the
+     * map are contained in consecutive elements of the returned array where
+     * elements at even indices stand for CSRC IDs and elements at odd indices
+     * stand for the associated audio levels
      */
-    private int getLengthForExtension(int contentStart)
+    public long[] extractCsrcLevels(byte csrcExtID)
     {
-        int hdrLen = getExtensionHeaderLength();
-
-        if( hdrLen == 1 )
+        if (!getExtensionBit()
+                || (getExtensionLength() == 0)
+                || (getCsrcCount() == 0))
         {
-            return ( buffer[contentStart - 1] & 0x0F ) + 1;
+            return null;
         }
-        else
+
+        /*
+         * XXX The guideline which is also supported by Google and recommended
+         * for Android is that single-dimensional arrays should be preferred to
+         * multi-dimensional arrays in Java because the former take less space
+         * than the latter and are thus more efficient in terms of memory and
+         * garbage collection.
+         */
+        long[] csrcLevels = new long[getCsrcCount() * 2];
+
+        extractCsrcLevels(csrcExtID, csrcLevels);
+        return csrcLevels;
+    }
+
+    /**
+     * Reads the map binding CSRC IDs to audio levels as reported by the remote
+     * party that sent this packet into a specific (reusable) array without
+     * allocating any memory. See {@link #extractCsrcLevels(byte)} for the
+     * layout of the map.
+     *
+     * @param csrcExtID the ID of the extension that's transporting csrc audio
+     * levels in the session that this <tt>RawPacket</tt> belongs to.
+     * @param csrcLevels the array to read the map into. If it is shorter than
+     * the map, the entries which do not fit are not read.
+     * @return the number of entries in the map i.e. the number of CSRC IDs
+     * currently encapsulated in this packet
+     */
+    public int extractCsrcLevels(byte csrcExtID, long[] csrcLevels)
+    {
+        int csrcCount = getCsrcCount();
+        // Find the extension once rather than once per CSRC.
+        int levelsElement = findExtensionElement(csrcExtID);
+        int levelsStart
+            = (levelsElement == -1)
+                ? -1
+                : getExtensionElementDataOffset(levelsElement);
+        int levelsCount
+            = (levelsElement == -1)
+                ? 0
+                : getExtensionElementDataLength(levelsElement);
+
+        //first extract the csrc IDs
+        int csrcStartIndex = FIXED_HEADER_SIZE;
+        for (int i = 0, end = Math.min(csrcCount, csrcLevels.length / 2);
+                i < end;
+                i++)
         {
-            return buffer[contentStart - 1];
+            int csrcLevelsIndex = 2 * i;
+
+            csrcLevels[csrcLevelsIndex] = readInt(csrcStartIndex);
+            //apparently the remote side may send more CSRCs than levels.
+            // ... yeah remote sides do that now and then ...
+            csrcLevels[csrcLevelsIndex + 1]
+                = (i < levelsCount) ? readByte(levelsStart + i) : 0;
+
+            csrcStartIndex += 4;
         }
+
+        return csrcCount;
     }
 
     /**
      * Returns the length of the extension header being used in this packet or
      * <tt>-1</tt> in case there were no extension headers here or we didn't
-     * understand the kind of extension being used.
+     * understand the kind of extension being used. In other words, returns
+     * the length of the headers of the RFC 5285 header extension elements.
      *
      * @return  the length of the extension header being used in this packet or
      * <tt>-1</tt> in case there were no extension headers here or we didn't
      * understand the kind of extension being used.
      */
-    private int getExtensionHeaderLength()
+    public int getExtensionHeaderLength()
     {
         if (!getExtensionBit())
         {
@@ -996,18 +1375,16 @@ public class RawPacket
 
         //the type of the extension header comes right after the RTP header and
         //the CSRC list.
-        int extLenIndex =  offset + FIXED_HEADER_SIZE + getCsrcCount()*4;
+        int profile = readUnsignedShortAsInt(getExtensionHeaderOffset());
 
         //0xBEDE means short extension header.
-        if (buffer[extLenIndex] == (byte)0xBE
-            && buffer[extLenIndex + 1] == (byte)0xDE)
+        if (profile == ONE_BYTE_HEADER_EXTENSION_PROFILE)
         {
             return 1;
         }
 
-        //0x100 means a two-byte extension header.
-        if (buffer[extLenIndex]== (byte)0x10
-            && (buffer[extLenIndex + 1] >> 4)== 0)
+        //0x100X means a two-byte extension header.
+        if ((profile & 0xFFF0) == TWO_BYTE_HEADER_EXTENSION_PROFILE)
         {
             return 2;
         }
@@ -1026,8 +1403,7 @@ public class RawPacket
             return 0;
         }
 
-        return readUnsignedShortAsInt(
-                    offset + FIXED_HEADER_SIZE + getCsrcCount()*4);
+        return readUnsignedShortAsInt(FIXED_HEADER_SIZE + getCsrcCount()*4);
     }
 
     /**
@@ -0,0 +1,499 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package org.jitsi.impl.neomedia;
+
+import java.util.concurrent.atomic.*;
+
+import org.jitsi.service.configuration.*;
+import org.jitsi.service.libjitsi.*;
+
+/**
+ * Implements a process-wide, bounded pool of <tt>byte</tt> buffers and
+ * <tt>RawPacket</tt>s which is shared by the <tt>RTPConnector</tt> input and
+ * output streams and the <tt>RTPTranslator</tt> in order to reduce the number
+ * of allocations performed for every RTP and RTCP packet.
+ * <p>
+ * The buffers are pooled in size classes. Each thread has a small cache of its
+ * own per size class which is backed by a global tier with a fixed number of
+ * slots per size class. The global tier is lock-free and allocation-free: the
+ * slots are claimed and filled with compare-and-set operations. Buffers which
+ * do not fit into either tier are left to the garbage collector.
+ * </p>
+ */
+public class RawPacketPool
+{
+    /**
+     * The name of the integer <tt>ConfigurationService</tt> property which
+     * specifies the number of buffers of each size class which are kept in the
+     * global tier of the pool.
+     */
+    public static final String GLOBAL_CAPACITY_PNAME
+        = "org.jitsi.impl.neomedia.RawPacketPool.globalCapacity";
+
+    /**
+     * The name of the integer <tt>ConfigurationService</tt> property which
+     * specifies the number of buffers of each size class which are kept in the
+     * cache of each thread.
+     */
+    public static final String THREAD_CAPACITY_PNAME
+        = "org.jitsi.impl.neomedia.RawPacketPool.threadCapacity";
+
+    /**
+     * The default value of the {@link #GLOBAL_CAPACITY_PNAME} property.
+     */
+    private static final int DEFAULT_GLOBAL_CAPACITY = 256;
+
+    /**
+     * The default value of the {@link #THREAD_CAPACITY_PNAME} property.
+     */
+    private static final int DEFAULT_THREAD_CAPACITY = 16;
+
+    /**
+     * The maximum number of slots of the global tier to be probed by a single
+     * acquisition or release before giving up. Bounds the time spent in the
+     * pool when the global tier is (nearly) empty or full.
+     */
+    private static final int MAX_PROBES = 8;
+
+    /**
+     * The lengths of the buffers in the size classes of the pool in ascending
+     * order. Covers RTCP and audio packets, video packets up to the MTU and
+     * the receive buffers of the <tt>RTPConnectorInputStream</tt>s.
+     */
+    private static final int[] SIZE_CLASSES
+        = { 128, 256, 512, 1024, 2048, 4096 };
+
+    /**
+     * The number of <tt>RawPacket</tt>s which are kept in the global tier and
+     * in the cache of each thread (after they have been stripped of their
+     * buffers).
+     */
+    private static final int globalCapacity;
+
+    /**
+     * The number of buffers of each size class (and <tt>RawPacket</tt>s)
+     * which are kept in the cache of each thread.
+     */
+    private static final int threadCapacity;
+
+    /**
+     * The global tier of buffers. An element is a slot array for the size
+     * class with the same index in {@link #SIZE_CLASSES}.
+     */
+    private static final AtomicReferenceArray<byte[]>[] globalBuffers;
+
+    /**
+     * The global tier of <tt>RawPacket</tt>s without buffers.
+     */
+    private static final AtomicReferenceArray<RawPacket> globalPackets;
+
+    /**
+     * The rotating index at which the probing of the global tier starts.
+     * Spreads the threads which acquire and release concurrently over the
+     * slots.
+     */
+    private static final AtomicInteger probeStart = new AtomicInteger();
+
+    /**
+     * The number of buffer acquisitions which have been satisfied by the
+     * pool.
+     */
+    private static final AtomicLong hitCount = new AtomicLong();
+
+    /**
+     * The number of buffer acquisitions which have required an allocation.
+     */
+    private static final AtomicLong missCount = new AtomicLong();
+
+    /**
+     * The number of buffers which have been acquired from the pool and have
+     * not been released to it yet.
+     */
+    private static final AtomicLong outstandingCount = new AtomicLong();
+
+    /**
+     * The caches of the individual threads.
+     */
+    private static final ThreadLocal<ThreadCache> threadCaches
+        = new ThreadLocal<ThreadCache>()
+        {
+            @Override
+            protected ThreadCache initialValue()
+            {
+                return new ThreadCache();
+            }
+        };
+
+    static
+    {
+        ConfigurationService cfg = LibJitsi.getConfigurationService();
+        int globalCap = DEFAULT_GLOBAL_CAPACITY;
+        int threadCap = DEFAULT_THREAD_CAPACITY;
+
+        if (cfg != null)
+        {
+            globalCap = cfg.getInt(GLOBAL_CAPACITY_PNAME, globalCap);
+            threadCap = cfg.getInt(THREAD_CAPACITY_PNAME, threadCap);
+        }
+        globalCapacity = Math.max(globalCap, 0);
+        threadCapacity = Math.max(threadCap, 0);
+
+        @SuppressWarnings({ "rawtypes", "unchecked" })
+        AtomicReferenceArray<byte[]>[] buffers
+            = new AtomicReferenceArray[SIZE_CLASSES.length];
+
+        for (int i = 0; i < buffers.length; i++)
+            buffers[i] = new AtomicReferenceArray<byte[]>(globalCapacity);
+        globalBuffers = buffers;
+        globalPackets = new AtomicReferenceArray<RawPacket>(globalCapacity);
+    }
+
+    /**
+     * Prevents the initialization of <tt>RawPacketPool</tt> instances.
+     */
+    private RawPacketPool()
+    {
+    }
+
+    /**
+     * Claims a non-<tt>null</tt> element of a specific slot array.
+     *
+     * @param slots the slot array to claim an element of
+     * @return the claimed element or <tt>null</tt> if no non-<tt>null</tt>
+     * element was found within {@link #MAX_PROBES} probes
+     */
+    private static <T> T claim(AtomicReferenceArray<T> slots)
+    {
+        int length = slots.length();
+
+        if (length == 0)
+            return null;
+
+        int start = probeStart.getAndIncrement() & Integer.MAX_VALUE;
+
+        for (int i = 0, probes = Math.min(MAX_PROBES, length);
+                i < probes;
+                i++)
+        {
+            int index = (start + i) % length;
+            T t = slots.get(index);
+
+            if ((t != null) && slots.compareAndSet(index, t, null))
+                return t;
+        }
+        return null;
+    }
+
+    /**
+     * Fills a <tt>null</tt> element of a specific slot array.
+     *
+     * @param slots the slot array to fill an element of
+     * @param t the element to put into <tt>slots</tt>
+     * @return <tt>true</tt> if <tt>t</tt> was put into <tt>slots</tt>;
+     * otherwise, <tt>false</tt>
+     */
+    private static <T> boolean fill(AtomicReferenceArray<T> slots, T t)
+    {
+        int length = slots.length();
+
+        if (length == 0)
+            return false;
+
+        int start = probeStart.getAndIncrement() & Integer.MAX_VALUE;
+
+        for (int i = 0, probes = Math.min(MAX_PROBES, length);
+                i < probes;
+                i++)
+        {
+            int index = (start + i) % length;
+
+            if ((slots.get(index) == null)
+                    && slots.compareAndSet(index, null, t))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Gets a <tt>byte</tt> buffer with a length of at least
+     * <tt>minLength</tt>. The buffer is to be released with
+     * {@link #returnBuffer(byte[])} when it is no longer in use.
+     *
+     * @param minLength the minimum length of the buffer to get
+     * @return a <tt>byte</tt> buffer with a length of at least
+     * <tt>minLength</tt>
+     */
+    public static byte[] getBuffer(int minLength)
+    {
+        int sizeClass = getSizeClassToGet(minLength);
+
+        outstandingCount.incrementAndGet();
+        if (sizeClass < 0)
+        {
+            missCount.incrementAndGet();
+            return new byte[minLength];
+        }
+
+        byte[] buffer = threadCaches.get().pollBuffer(sizeClass);
+
+        if (buffer == null)
+            buffer = claim(globalBuffers[sizeClass]);
+        if (buffer == null)
+        {
+            missCount.incrementAndGet();
+            buffer = new byte[SIZE_CLASSES[sizeClass]];
+        }
+        else
+            hitCount.incrementAndGet();
+        return buffer;
+    }
+
+    /**
+     * Gets the number of buffer acquisitions which have been satisfied by the
+     * pool.
+     *
+     * @return the number of buffer acquisitions which have been satisfied by
+     * the pool
+     */
+    public static long getHitCount()
+    {
+        return hitCount.get();
+    }
+
+    /**
+     * Gets the number of buffer acquisitions which have required an
+     * allocation.
+     *
+     * @return the number of buffer acquisitions which have required an
+     * allocation
+     */
+    public static long getMissCount()
+    {
+        return missCount.get();
+    }
+
+    /**
+     * Gets the number of buffers which have been acquired from the pool and
+     * have not been released to it yet.
+     *
+     * @return the number of buffers which have been acquired from the pool
+     * and have not been released to it yet
+     */
+    public static long getOutstandingCount()
+    {
+        return outstandingCount.get();
+    }
+
+    /**
+     * Gets a <tt>RawPacket</tt> with a buffer of a length of at least
+     * <tt>minLength</tt>, an offset of zero and a length of zero. The
+     * <tt>RawPacket</tt> is to be released with
+     * {@link #returnRawPacket(RawPacket)} when it is no longer in use.
+     *
+     * @param minLength the minimum length of the buffer of the
+     * <tt>RawPacket</tt> to get
+     * @return a <tt>RawPacket</tt> with a buffer of a length of at least
+     * <tt>minLength</tt>
+     */
+    public static RawPacket getRawPacket(int minLength)
+    {
+        byte[] buffer = getBuffer(minLength);
+        RawPacket pkt = threadCaches.get().pollPacket();
+
+        if (pkt == null)
+            pkt = claim(globalPackets);
+        if (pkt == null)
+            pkt = new RawPacket(buffer, 0, 0);
+        else
+        {
+            pkt.setBuffer(buffer);
+            pkt.setOffset(0);
+            pkt.setLength(0);
+        }
+        return pkt;
+    }
+
+    /**
+     * Gets a <tt>RawPacket</tt> which wraps a specific buffer. Allows a
+     * <tt>RawPacket</tt> to be initialized from a buffer which has been
+     * acquired with {@link #getBuffer(int)} without allocating it. The
+     * <tt>RawPacket</tt> is to be released with
+     * {@link #returnRawPacket(RawPacket)} which releases its buffer as well.
+     *
+     * @param buffer the buffer to be wrapped by the <tt>RawPacket</tt> to get
+     * @param offset the offset in <tt>buffer</tt> at which the packet data
+     * begins
+     * @param length the length in bytes of the packet data in <tt>buffer</tt>
+     * @return a <tt>RawPacket</tt> which wraps the specified <tt>buffer</tt>
+     */
+    public static RawPacket getRawPacket(byte[] buffer, int offset, int length)
+    {
+        RawPacket pkt = threadCaches.get().pollPacket();
+
+        if (pkt == null)
+            pkt = claim(globalPackets);
+        if (pkt == null)
+            pkt = new RawPacket(buffer, offset, length);
+        else
+        {
+            pkt.setBuffer(buffer);
+            pkt.setOffset(offset);
+            pkt.setLength(length);
+        }
+        return pkt;
+    }
+
+    /**
+     * Gets the index in {@link #SIZE_CLASSES} of the size class to put a
+     * buffer with a specific length in.
+     *
+     * @param length the length of the buffer to be put in the pool
+     * @return the index of the largest size class which is not larger than
+     * <tt>length</tt> or <tt>-1</tt> if there is no such size class
+     */
+    private static int getSizeClassToReturn(int length)
+    {
+        for (int i = SIZE_CLASSES.length - 1; i >= 0; i--)
+            if (SIZE_CLASSES[i] <= length)
+                return i;
+        return -1;
+    }
+
+    /**
+     * Gets the index in {@link #SIZE_CLASSES} of the size class to get a
+     * buffer with a specific minimum length from.
+     *
+     * @param minLength the minimum length of the buffer to get
+     * @return the index of the smallest size class which is not smaller than
+     * <tt>minLength</tt> or <tt>-1</tt> if there is no such size class
+     */
+    private static int getSizeClassToGet(int minLength)
+    {
+        for (int i = 0; i < SIZE_CLASSES.length; i++)
+            if (SIZE_CLASSES[i] >= minLength)
+                return i;
+        return -1;
+    }
+
+    /**
+     * Releases a specific <tt>byte</tt> buffer, which has been acquired with
+     * {@link #getBuffer(int)}, to the pool. The buffer must not be used by the
+     * caller afterwards.
+     *
+     * @param buffer the <tt>byte</tt> buffer to release to the pool
+     */
+    public static void returnBuffer(byte[] buffer)
+    {
+        if (buffer == null)
+            return;
+
+        outstandingCount.decrementAndGet();
+
+        int sizeClass = getSizeClassToReturn(buffer.length);
+
+        if ((sizeClass >= 0)
+                && !threadCaches.get().offerBuffer(sizeClass, buffer))
+            fill(globalBuffers[sizeClass], buffer);
+    }
+
+    /**
+     * Releases a specific <tt>RawPacket</tt>, which has been acquired with
+     * {@link #getRawPacket(int)}, and its (current) buffer to the pool. Neither
+     * the <tt>RawPacket</tt> nor its buffer must be used by the caller
+     * afterwards. Instances of extenders of <tt>RawPacket</tt> are not pooled.
+     *
+     * @param pkt the <tt>RawPacket</tt> to release to the pool
+     */
+    public static void returnRawPacket(RawPacket pkt)
+    {
+        if ((pkt == null) || (pkt.getClass() != RawPacket.class))
+            return;
+
+        byte[] buffer = pkt.getBuffer();
+
+        pkt.setBuffer(null);
+        pkt.setOffset(0);
+        pkt.setLength(0);
+        returnBuffer(buffer);
+
+        if (!threadCaches.get().offerPacket(pkt))
+            fill(globalPackets, pkt);
+    }
+
+    /**
+     * Represents the cache of a thread which is the first tier of the pool.
+     * Accessed by its thread only and, consequently, not synchronized.
+     */
+    private static class ThreadCache
+    {
+        /**
+         * The buffers cached per size class.
+         */
+        private final byte[][][] buffers
+            = new byte[SIZE_CLASSES.length][threadCapacity][];
+
+        /**
+         * The numbers of buffers in the elements of {@link #buffers}.
+         */
+        private final int[] bufferCounts = new int[SIZE_CLASSES.length];
+
+        /**
+         * The number of <tt>RawPacket</tt>s in {@link #packets}.
+         */
+        private int packetCount;
+
+        /**
+         * The cached <tt>RawPacket</tt>s without buffers.
+         */
+        private final RawPacket[] packets = new RawPacket[threadCapacity];
+
+        public boolean offerBuffer(int sizeClass, byte[] buffer)
+        {
+            int count = bufferCounts[sizeClass];
+
+            if (count >= threadCapacity)
+                return false;
+            buffers[sizeClass][count] = buffer;
+            bufferCounts[sizeClass] = count + 1;
+            return true;
+        }
+
+        public boolean offerPacket(RawPacket pkt)
+        {
+            if (packetCount >= threadCapacity)
+                return false;
+            packets[packetCount++] = pkt;
+            return true;
+        }
+
+        public byte[] pollBuffer(int sizeClass)
+        {
+            int count = bufferCounts[sizeClass];
+
+            if (count == 0)
+                return null;
+
+            byte[][] sizeClassBuffers = buffers[sizeClass];
+            byte[] buffer = sizeClassBuffers[--count];
+
+            sizeClassBuffers[count] = null;
+            bufferCounts[sizeClass] = count;
+            return buffer;
+        }
+
+        public RawPacket pollPacket()
+        {
+            if (packetCount == 0)
+                return null;
+
+            RawPacket pkt = packets[--packetCount];
+
+            packets[packetCount] = null;
+            return pkt;
+        }
+    }
+}
@@ -0,0 +1,671 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package org.jitsi.impl.neomedia;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.jitsi.service.configuration.*;
+import org.jitsi.service.libjitsi.*;
+import org.jitsi.util.*;
+
+/**
+ * Receives the packets sent to a single local UDP port through multiple
+ * <tt>DatagramChannel</tt>s bound to that port with <tt>SO_REUSEPORT</tt> and
+ * demultiplexes them to the <tt>RTPConnectorUDPInputStream</tt>s of the
+ * <tt>MediaStream</tt>s which share the port. The kernel distributes the
+ * received datagrams among the channels by their source address so each
+ * channel is read by a different selector thread of the
+ * <tt>RTPConnectorSelectorPool</tt> and the packets of a single remote
+ * endpoint keep their order.
+ * <p>
+ * A packet is demultiplexed by its source address and, if no
+ * <tt>RTPConnectorUDPInputStream</tt> has been bound to the source address, by
+ * its SSRC (in which case the source address is learned). On Java virtual
+ * machines which do not support <tt>SO_REUSEPORT</tt> a single channel is
+ * used.
+ * </p>
+ */
+public class ReusePortReceiver
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>ReusePortReceiver</tt> class and its
+     * instances for logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(ReusePortReceiver.class);
+
+    /**
+     * The length in bytes of the buffers into which the packets are received.
+     */
+    private static final int RECEIVE_BUFFER_LENGTH = 4 * 1024;
+
+    /**
+     * The <tt>ReusePortReceiver</tt>s which have been acquired and not
+     * released yet by their local addresses.
+     */
+    private static final Map<InetSocketAddress, ReusePortReceiver> receivers
+        = new HashMap<InetSocketAddress, ReusePortReceiver>();
+
+    /**
+     * The <tt>ReusePortReceiver</tt>s by their <tt>DatagramSocket</tt>s.
+     */
+    private static final Map<DatagramSocket, ReusePortReceiver>
+        socketToReceiver
+            = new ConcurrentHashMap<DatagramSocket, ReusePortReceiver>();
+
+    /**
+     * The name of the integer <tt>ConfigurationService</tt> property which
+     * specifies the number of <tt>DatagramChannel</tt>s to be bound to the
+     * local port of a <tt>ReusePortReceiver</tt>. The default value is the
+     * number of selector threads of the <tt>RTPConnectorSelectorPool</tt>.
+     */
+    public static final String SOCKET_COUNT_PNAME
+        = "org.jitsi.impl.neomedia.ReusePortReceiver.socketCount";
+
+    /**
+     * The <tt>SO_REUSEPORT</tt> <tt>SocketOption</tt> if it is supported by
+     * the Java virtual machine; otherwise, <tt>null</tt>.
+     */
+    private static final SocketOption<Boolean> SO_REUSEPORT
+        = getReusePortOption();
+
+    /**
+     * Gets the <tt>ReusePortReceiver</tt> of a specific local address and
+     * creates it if it does not exist yet. Each invocation is to be balanced
+     * with an invocation of {@link #release()}.
+     *
+     * @param localAddress the local address to get the
+     * <tt>ReusePortReceiver</tt> of. If its port is zero, a new
+     * <tt>ReusePortReceiver</tt> is bound to an ephemeral port.
+     * @return the <tt>ReusePortReceiver</tt> of <tt>localAddress</tt>
+     * @throws IOException if the <tt>DatagramChannel</tt>s of a new
+     * <tt>ReusePortReceiver</tt> cannot be opened or bound
+     */
+    public static ReusePortReceiver acquire(InetSocketAddress localAddress)
+        throws IOException
+    {
+        return acquire(localAddress, -1);
+    }
+
+    /**
+     * Gets the <tt>ReusePortReceiver</tt> of a specific local address and
+     * creates it with a specific number of <tt>DatagramChannel</tt>s if it
+     * does not exist yet. Each invocation is to be balanced with an
+     * invocation of {@link #release()}.
+     *
+     * @param localAddress the local address to get the
+     * <tt>ReusePortReceiver</tt> of. If its port is zero, a new
+     * <tt>ReusePortReceiver</tt> is bound to an ephemeral port.
+     * @param socketCount the number of <tt>DatagramChannel</tt>s to bind if a
+     * new <tt>ReusePortReceiver</tt> is created or <tt>-1</tt> to bind the
+     * number specified by {@link #SOCKET_COUNT_PNAME}
+     * @return the <tt>ReusePortReceiver</tt> of <tt>localAddress</tt>
+     * @throws IOException if the <tt>DatagramChannel</tt>s of a new
+     * <tt>ReusePortReceiver</tt> cannot be opened or bound
+     */
+    static ReusePortReceiver acquire(
+            InetSocketAddress localAddress,
+            int socketCount)
+        throws IOException
+    {
+        synchronized (receivers)
+        {
+            ReusePortReceiver receiver
+                = (localAddress.getPort() == 0)
+                    ? null
+                    : receivers.get(localAddress);
+
+            if (receiver == null)
+            {
+                if (socketCount == -1)
+                {
+                    ConfigurationService cfg
+                        = LibJitsi.getConfigurationService();
+
+                    socketCount
+                        = RTPConnectorSelectorPool.getInstance()
+                            .getSelectorCount();
+                    if (cfg != null)
+                    {
+                        socketCount
+                            = cfg.getInt(SOCKET_COUNT_PNAME, socketCount);
+                    }
+                }
+
+                receiver = new ReusePortReceiver(localAddress, socketCount);
+                receivers.put(receiver.localAddress, receiver);
+            }
+            receiver.referenceCount++;
+            return receiver;
+        }
+    }
+
+    /**
+     * Gets the <tt>SO_REUSEPORT</tt> <tt>SocketOption</tt> if it is supported
+     * by the Java virtual machine. It is defined by
+     * <tt>StandardSocketOptions</tt> since Java 9.
+     *
+     * @return the <tt>SO_REUSEPORT</tt> <tt>SocketOption</tt> if it is
+     * supported by the Java virtual machine; otherwise, <tt>null</tt>
+     */
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> getReusePortOption()
+    {
+        try
+        {
+            Field field
+                = StandardSocketOptions.class.getField("SO_REUSEPORT");
+
+            return (SocketOption<Boolean>) field.get(null);
+        }
+        catch (Exception e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Gets the <tt>ReusePortReceiver</tt> which a specific
+     * <tt>DatagramSocket</tt> belongs to.
+     *
+     * @param socket the <tt>DatagramSocket</tt> to get the
+     * <tt>ReusePortReceiver</tt> of
+     * @return the <tt>ReusePortReceiver</tt> which <tt>socket</tt> belongs to
+     * or <tt>null</tt> if <tt>socket</tt> does not belong to a
+     * <tt>ReusePortReceiver</tt>
+     */
+    public static ReusePortReceiver getReceiver(DatagramSocket socket)
+    {
+        return (socket == null) ? null : socketToReceiver.get(socket);
+    }
+
+    /**
+     * Determines whether the Java virtual machine and the operating system
+     * support binding multiple <tt>DatagramChannel</tt>s to the same local
+     * port with <tt>SO_REUSEPORT</tt>.
+     *
+     * @return <tt>true</tt> if multiple <tt>DatagramChannel</tt>s may be bound
+     * to the same local port; otherwise, <tt>false</tt>
+     */
+    public static boolean isReusePortSupported()
+    {
+        if (SO_REUSEPORT == null)
+            return false;
+
+        try
+        {
+            DatagramChannel channel = DatagramChannel.open();
+
+            try
+            {
+                return channel.supportedOptions().contains(SO_REUSEPORT);
+            }
+            finally
+            {
+                channel.close();
+            }
+        }
+        catch (IOException ioe)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * The <tt>DatagramChannel</tt>s bound to {@link #localAddress}.
+     */
+    private final DatagramChannel[] channels;
+
+    /**
+     * The local address of this <tt>ReusePortReceiver</tt>.
+     */
+    private final InetSocketAddress localAddress;
+
+    /**
+     * The number of packets received by this <tt>ReusePortReceiver</tt>.
+     */
+    private final AtomicLong receivedPacketCount = new AtomicLong();
+
+    /**
+     * The number of {@link #acquire(InetSocketAddress)} invocations which have
+     * not been balanced with {@link #release()} invocations yet. Accessed
+     * while synchronized on {@link #receivers}.
+     */
+    private int referenceCount = 0;
+
+    /**
+     * The <tt>RTPConnectorUDPInputStream</tt>s by the remote addresses of the
+     * packets to be delivered to them.
+     */
+    private final Map<SocketAddress, RTPConnectorUDPInputStream>
+        remoteAddressToInputStream
+            = new ConcurrentHashMap<SocketAddress, RTPConnectorUDPInputStream>();
+
+    /**
+     * The <tt>RTPConnectorUDPInputStream</tt>s by the SSRCs of the packets to
+     * be delivered to them.
+     */
+    private final Map<Long, RTPConnectorUDPInputStream> ssrcToInputStream
+        = new ConcurrentHashMap<Long, RTPConnectorUDPInputStream>();
+
+    /**
+     * The number of packets received by this <tt>ReusePortReceiver</tt> which
+     * could not be demultiplexed and have been dropped.
+     */
+    private final AtomicLong unmatchedPacketCount = new AtomicLong();
+
+    /**
+     * Initializes a new <tt>ReusePortReceiver</tt> which binds a specific
+     * number of <tt>DatagramChannel</tt>s to a specific local address.
+     *
+     * @param localAddress the local address to bind to
+     * @param socketCount the number of <tt>DatagramChannel</tt>s to bind
+     * @throws IOException if the <tt>DatagramChannel</tt>s cannot be opened or
+     * bound
+     */
+    private ReusePortReceiver(InetSocketAddress localAddress, int socketCount)
+        throws IOException
+    {
+        if ((socketCount > 1) && !isReusePortSupported())
+        {
+            logger.warn(
+                    "SO_REUSEPORT is not supported, receiving on " + localAddress
+                        + " through a single socket.");
+            socketCount = 1;
+        }
+        else if (socketCount < 1)
+            socketCount = 1;
+
+        channels = new DatagramChannel[socketCount];
+
+        boolean bound = false;
+
+        try
+        {
+            for (int i = 0; i < socketCount; i++)
+            {
+                DatagramChannel channel = DatagramChannel.open();
+
+                channels[i] = channel;
+                if (socketCount > 1)
+                    channel.setOption(SO_REUSEPORT, Boolean.TRUE);
+                channel.socket().bind(localAddress);
+                /*
+                 * If an ephemeral port has been requested, bind the other
+                 * channels to the port chosen for the first one.
+                 */
+                if (localAddress.getPort() == 0)
+                {
+                    localAddress
+                        = new InetSocketAddress(
+                                localAddress.getAddress(),
+                                channel.socket().getLocalPort());
+                }
+            }
+            this.localAddress = localAddress;
+
+            RTPConnectorSelectorPool selectorPool
+                = RTPConnectorSelectorPool.getInstance();
+
+            for (DatagramChannel channel : channels)
+            {
+                socketToReceiver.put(channel.socket(), this);
+                selectorPool.register(
+                        channel,
+                        SelectionKey.OP_READ,
+                        new ChannelReader(channel));
+            }
+            bound = true;
+        }
+        finally
+        {
+            if (!bound)
+                close();
+        }
+    }
+
+    /**
+     * Binds a specific remote address to a specific
+     * <tt>RTPConnectorUDPInputStream</tt> i.e. the packets received from the
+     * remote address are to be delivered to the
+     * <tt>RTPConnectorUDPInputStream</tt>.
+     *
+     * @param remoteAddress the remote address to bind
+     * @param inputStream the <tt>RTPConnectorUDPInputStream</tt> to which the
+     * packets received from <tt>remoteAddress</tt> are to be delivered
+     */
+    public void addRemoteAddress(
+            SocketAddress remoteAddress,
+            RTPConnectorUDPInputStream inputStream)
+    {
+        remoteAddressToInputStream.put(remoteAddress, inputStream);
+    }
+
+    /**
+     * Binds a specific SSRC to a specific <tt>RTPConnectorUDPInputStream</tt>
+     * i.e. the packets with the SSRC which are received from a remote address
+     * which is not bound are to be delivered to the
+     * <tt>RTPConnectorUDPInputStream</tt> (and the remote address is bound to
+     * it).
+     *
+     * @param ssrc the SSRC to bind
+     * @param inputStream the <tt>RTPConnectorUDPInputStream</tt> to which the
+     * packets with <tt>ssrc</tt> are to be delivered
+     */
+    public void addSSRC(long ssrc, RTPConnectorUDPInputStream inputStream)
+    {
+        ssrcToInputStream.put(ssrc & 0xFFFFFFFFL, inputStream);
+    }
+
+    /**
+     * Closes the <tt>DatagramChannel</tt>s of this instance.
+     */
+    private void close()
+    {
+        RTPConnectorSelectorPool selectorPool;
+
+        try
+        {
+            selectorPool = RTPConnectorSelectorPool.getInstance();
+        }
+        catch (IOException ioe)
+        {
+            selectorPool = null;
+        }
+
+        for (final DatagramChannel channel : channels)
+        {
+            if (channel == null)
+                continue;
+
+            socketToReceiver.remove(channel.socket());
+
+            Runnable closeChannel
+                = new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        try
+                        {
+                            channel.close();
+                        }
+                        catch (IOException ioe)
+                        {
+                            logger.debug("Failed to close " + channel, ioe);
+                        }
+                    }
+                };
+
+            if (selectorPool == null)
+                closeChannel.run();
+            else
+                selectorPool.unregister(channel, closeChannel);
+        }
+    }
+
+    /**
+     * Demultiplexes a specific received packet.
+     *
+     * @param buf the <tt>byte</tt> array which contains the packet
+     * @param len the length in bytes of the packet which starts at index zero
+     * of <tt>buf</tt>
+     * @param source the address the packet has been received from
+     * @return the <tt>RTPConnectorUDPInputStream</tt> to which the packet is
+     * to be delivered or <tt>null</tt> if it is to be dropped
+     */
+    private RTPConnectorUDPInputStream demultiplex(
+            byte[] buf, int len,
+            SocketAddress source)
+    {
+        RTPConnectorUDPInputStream inputStream
+            = remoteAddressToInputStream.get(source);
+
+        if ((inputStream == null) && (len >= 12))
+        {
+            int packetType = buf[1] & 0xFF;
+            // RFC 5761: the SSRC of an RTCP packet follows its length.
+            int ssrcOffset
+                = ((packetType >= 200) && (packetType <= 204)) ? 4 : 8;
+            long ssrc
+                = (((buf[ssrcOffset] & 0xFFL) << 24)
+                        | ((buf[ssrcOffset + 1] & 0xFFL) << 16)
+                        | ((buf[ssrcOffset + 2] & 0xFFL) << 8)
+                        | (buf[ssrcOffset + 3] & 0xFFL));
+
+            inputStream = ssrcToInputStream.get(ssrc);
+            if (inputStream != null)
+                remoteAddressToInputStream.put(source, inputStream);
+        }
+        return inputStream;
+    }
+
+    /**
+     * Gets the local address of this <tt>ReusePortReceiver</tt>.
+     *
+     * @return the local address of this <tt>ReusePortReceiver</tt>
+     */
+    public InetSocketAddress getLocalAddress()
+    {
+        return localAddress;
+    }
+
+    /**
+     * Gets the number of packets received by this <tt>ReusePortReceiver</tt>.
+     *
+     * @return the number of packets received by this
+     * <tt>ReusePortReceiver</tt>
+     */
+    public long getReceivedPacketCount()
+    {
+        return receivedPacketCount.get();
+    }
+
+    /**
+     * Gets the <tt>DatagramSocket</tt> through which the packets from the
+     * local address of this <tt>ReusePortReceiver</tt> are to be sent.
+     *
+     * @return the <tt>DatagramSocket</tt> through which the packets from the
+     * local address of this <tt>ReusePortReceiver</tt> are to be sent
+     */
+    public DatagramSocket getSocket()
+    {
+        return channels[0].socket();
+    }
+
+    /**
+     * Gets the number of <tt>DatagramChannel</tt>s bound to the local address
+     * of this <tt>ReusePortReceiver</tt>.
+     *
+     * @return the number of <tt>DatagramChannel</tt>s bound to the local
+     * address of this <tt>ReusePortReceiver</tt>
+     */
+    public int getSocketCount()
+    {
+        return channels.length;
+    }
+
+    /**
+     * Gets the number of packets received by this <tt>ReusePortReceiver</tt>
+     * which could not be demultiplexed and have been dropped.
+     *
+     * @return the number of packets received by this
+     * <tt>ReusePortReceiver</tt> which could not be demultiplexed and have
+     * been dropped
+     */
+    public long getUnmatchedPacketCount()
+    {
+        return unmatchedPacketCount.get();
+    }
+
+    /**
+     * Releases a reference to this <tt>ReusePortReceiver</tt> acquired with
+     * {@link #acquire(InetSocketAddress)}. When the last reference is
+     * released, the <tt>DatagramChannel</tt>s of this instance are closed.
+     */
+    public void release()
+    {
+        synchronized (receivers)
+        {
+            if (--referenceCount > 0)
+                return;
+            receivers.remove(localAddress);
+        }
+        close();
+    }
+
+    /**
+     * Unbinds a specific remote address.
+     *
+     * @param remoteAddress the remote address to unbind
+     */
+    public void removeRemoteAddress(SocketAddress remoteAddress)
+    {
+        remoteAddressToInputStream.remove(remoteAddress);
+    }
+
+    /**
+     * Unbinds the remote addresses and the SSRCs bound to a specific
+     * <tt>RTPConnectorUDPInputStream</tt> and runs a specific
+     * <tt>Runnable</tt> once no packet is being or is to be delivered to it
+     * anymore.
+     *
+     * @param inputStream the <tt>RTPConnectorUDPInputStream</tt> to unbind
+     * @param completion the <tt>Runnable</tt> to be run once no packet is
+     * being or is to be delivered to <tt>inputStream</tt> anymore or
+     * <tt>null</tt>
+     */
+    public void removeInputStream(
+            RTPConnectorUDPInputStream inputStream,
+            final Runnable completion)
+    {
+        remoteAddressToInputStream.values().removeAll(
+                Collections.singleton(inputStream));
+        ssrcToInputStream.values().removeAll(
+                Collections.singleton(inputStream));
+
+        if (completion == null)
+            return;
+
+        RTPConnectorSelectorPool selectorPool;
+
+        try
+        {
+            selectorPool = RTPConnectorSelectorPool.getInstance();
+        }
+        catch (IOException ioe)
+        {
+            completion.run();
+            return;
+        }
+
+        /*
+         * A packet may be in the process of being delivered on the selector
+         * thread of any of the channels.
+         */
+        final AtomicInteger pending = new AtomicInteger(channels.length);
+        Runnable countDown
+            = new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    if (pending.decrementAndGet() == 0)
+                        completion.run();
+                }
+            };
+
+        for (DatagramChannel channel : channels)
+            selectorPool.execute(channel, countDown);
+    }
+
+    /**
+     * Implements the <tt>SelectionHandler</tt> which reads the packets from a
+     * <tt>DatagramChannel</tt> of this <tt>ReusePortReceiver</tt> and
+     * delivers them to the <tt>RTPConnectorUDPInputStream</tt>s they are
+     * demultiplexed to.
+     */
+    private class ChannelReader
+        implements RTPConnectorSelectorPool.SelectionHandler
+    {
+        /**
+         * The <tt>ByteBuffer</tt> into which the packets are read.
+         */
+        private final ByteBuffer buffer
+            = ByteBuffer.allocate(RECEIVE_BUFFER_LENGTH);
+
+        /**
+         * The <tt>DatagramChannel</tt> read by this <tt>ChannelReader</tt>.
+         */
+        private final DatagramChannel channel;
+
+        /**
+         * Initializes a new <tt>ChannelReader</tt> which is to read the
+         * packets from a specific <tt>DatagramChannel</tt>.
+         *
+         * @param channel the <tt>DatagramChannel</tt> to be read by the new
+         * instance
+         */
+        ChannelReader(DatagramChannel channel)
+        {
+            this.channel = channel;
+        }
+
+        /**
+         * Reads the packets available on {@link #channel} and delivers them to
+         * the <tt>RTPConnectorUDPInputStream</tt>s they are demultiplexed to.
+         *
+         * @param key the <tt>SelectionKey</tt> of <tt>channel</tt>
+         */
+        @Override
+        public void selected(SelectionKey key)
+        {
+            byte[] buf = buffer.array();
+
+            for (int i = 0;
+                    i < RTPConnectorUDPInputStream.MAX_PACKETS_PER_SELECT;
+                    i++)
+            {
+                SocketAddress source;
+
+                buffer.clear();
+                try
+                {
+                    source = channel.receive(buffer);
+                }
+                catch (IOException ioe)
+                {
+                    logger.error(
+                            "Failed to receive on " + localAddress,
+                            ioe);
+                    key.cancel();
+                    break;
+                }
+                if (source == null)
+                    break;
+
+                receivedPacketCount.incrementAndGet();
+
+                int len = buffer.position();
+                RTPConnectorUDPInputStream inputStream
+                    = demultiplex(buf, len, source);
+
+                if (inputStream == null)
+                    unmatchedPacketCount.incrementAndGet();
+                else
+                    inputStream.packetReceived(buf, 0, len, source);
+            }
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package org.jitsi.impl.neomedia;
+
+import java.io.*;
+import java.net.*;
+
+import org.jitsi.service.neomedia.*;
+
+/**
+ * Implements a UDP <tt>StreamConnector</tt> the sockets of which belong to
+ * <tt>ReusePortReceiver</tt>s i.e. the RTP and RTCP traffic of multiple
+ * <tt>MediaStream</tt>s may be received on a single pair of local ports by
+ * multiple sockets bound with <tt>SO_REUSEPORT</tt>. The
+ * <tt>MediaStream</tt>s are told apart by the remote addresses of their
+ * targets and, optionally, by the SSRCs registered with
+ * {@link RTPConnectorUDPImpl#addReceiveSSRC(long)}.
+ */
+public class ReusePortStreamConnector
+    implements StreamConnector
+{
+    /**
+     * The <tt>ReusePortReceiver</tt> which receives the RTCP packets of this
+     * instance.
+     */
+    private ReusePortReceiver controlReceiver;
+
+    /**
+     * The <tt>ReusePortReceiver</tt> which receives the RTP packets of this
+     * instance.
+     */
+    private ReusePortReceiver dataReceiver;
+
+    /**
+     * Initializes a new <tt>ReusePortStreamConnector</tt> instance which is to
+     * receive RTP and RTCP packets on specific local ports.
+     *
+     * @param bindAddr the local <tt>InetAddress</tt> to bind to
+     * @param dataPort the local port to receive RTP packets on
+     * @param controlPort the local port to receive RTCP packets on
+     * @throws IOException if the sockets of the new instance cannot be opened
+     * or bound
+     */
+    public ReusePortStreamConnector(
+            InetAddress bindAddr,
+            int dataPort,
+            int controlPort)
+        throws IOException
+    {
+        dataReceiver
+            = ReusePortReceiver.acquire(
+                    new InetSocketAddress(bindAddr, dataPort));
+        try
+        {
+            controlReceiver
+                = ReusePortReceiver.acquire(
+                        new InetSocketAddress(bindAddr, controlPort));
+        }
+        catch (IOException ioe)
+        {
+            dataReceiver.release();
+            dataReceiver = null;
+            throw ioe;
+        }
+    }
+
+    /**
+     * Releases the <tt>ReusePortReceiver</tt>s of this instance. The sockets
+     * are closed once no other <tt>ReusePortStreamConnector</tt> uses them.
+     */
+    public synchronized void close()
+    {
+        if (dataReceiver != null)
+        {
+            dataReceiver.release();
+            dataReceiver = null;
+        }
+        if (controlReceiver != null)
+        {
+            controlReceiver.release();
+            controlReceiver = null;
+        }
+    }
+
+    /**
+     * Gets the <tt>ReusePortReceiver</tt> which receives the RTCP packets of
+     * this instance.
+     *
+     * @return the <tt>ReusePortReceiver</tt> which receives the RTCP packets
+     * of this instance or <tt>null</tt> if this instance has been closed
+     */
+    public synchronized ReusePortReceiver getControlReceiver()
+    {
+        return controlReceiver;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public synchronized DatagramSocket getControlSocket()
+    {
+        return (controlReceiver == null) ? null : controlReceiver.getSocket();
+    }
+
+    /**
+     * Returns <tt>null</tt> because this instance is UDP-based.
+     *
+     * @return <tt>null</tt>
+     */
+    public Socket getControlTCPSocket()
+    {
+        return null;
+    }
+
+    /**
+     * Gets the <tt>ReusePortReceiver</tt> which receives the RTP packets of
+     * this instance.
+     *
+     * @return the <tt>ReusePortReceiver</tt> which receives the RTP packets of
+     * this instance or <tt>null</tt> if this instance has been closed
+     */
+    public synchronized ReusePortReceiver getDataReceiver()
+    {
+        return dataReceiver;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public synchronized DatagramSocket getDataSocket()
+    {
+        return (dataReceiver == null) ? null : dataReceiver.getSocket();
+    }
+
+    /**
+     * Returns <tt>null</tt> because this instance is UDP-based.
+     *
+     * @return <tt>null</tt>
+     */
+    public Socket getDataTCPSocket()
+    {
+        return null;
+    }
+
+    /**
+     * Returns {@link StreamConnector.Protocol#UDP}.
+     *
+     * @return {@link StreamConnector.Protocol#UDP}
+     */
+    public Protocol getProtocol()
+    {
+        return Protocol.UDP;
+    }
+
+    /**
+     * Does nothing because the sockets of this instance are managed by their
+     * <tt>ReusePortReceiver</tt>s.
+     */
+    public void started()
+    {
+    }
+
+    /**
+     * Does nothing because the sockets of this instance are managed by their
+     * <tt>ReusePortReceiver</tt>s.
+     */
+    public void stopped()
+    {
+    }
+}
@@ -18,6 +18,8 @@ import javax.media.protocol.*;
 
 import org.jitsi.impl.neomedia.control.*;
 import org.jitsi.impl.neomedia.device.*;
+import org.jitsi.impl.neomedia.transform.fec.*;
+import org.jitsi.impl.neomedia.transform.remb.*;
 import org.jitsi.service.neomedia.*;
 import org.jitsi.service.neomedia.QualityControl;
 import org.jitsi.service.neomedia.control.*;
@@ -485,6 +487,7 @@ public class VideoMediaStreamImpl
             RTPConnectorOutputStream dataOutputStream)
     {
         super.configureDataOutputStream(dataOutputStream);
+        dataOutputStream.setPacingPriority(RTPPacer.Priority.VIDEO);
 
         /*
          * XXX Android's current video CaptureDevice is based on MediaRecorder
@@ -500,19 +503,10 @@ public class VideoMediaStreamImpl
                         .getDeviceConfiguration()
                             .getVideoRTPPacingThreshold();
 
-            // Ignore the case of maxBandwidth > 1000, because in this case
-            // setMaxPacketsPerMillis fails. Effectively, this means that no
-            // pacing is performed when the user deliberately set the setting to
-            // over 1000 (1MByte/s according to the GUI). This is probably close
-            // to what the user expects, and makes more sense than failing with
-            // an exception.
-            // TODO: proper handling of maxBandwidth values >1000
-            if (maxBandwidth <= 1000)
-            {
-                // maximum one packet for X milliseconds(the settings are for
-                // one second)
-                dataOutputStream.setMaxPacketsPerMillis(1, 1000 / maxBandwidth);
-            }
+            // The setting is in kilobytes per second (1000 is 1MByte/s
+            // according to the GUI).
+            if (maxBandwidth > 0)
+                dataOutputStream.setPacingBitrate(maxBandwidth * 8000L);
         }
     }
 
@@ -536,6 +530,33 @@ public class VideoMediaStreamImpl
         bufferControl.setBufferLength(BufferControl.MAX_VALUE);
     }
 
+    /**
+     * Creates a <tt>RembTransformEngine</tt> which estimates the bandwidth
+     * available on the way from the remote peer and adapts the bitrate of the
+     * local encoders to the REMB messages received from the remote peer. The
+     * engine is enabled once the remote peer has signaled support for REMB.
+     *
+     * @return a new <tt>RembTransformEngine</tt> for this stream
+     */
+    @Override
+    protected RembTransformEngine createRembTransformEngine()
+    {
+        return new RembTransformEngine(this);
+    }
+
+    /**
+     * Creates an <tt>UlpfecTransformEngine</tt> which protects the sent
+     * packets of this stream with ULPFEC (RFC 5109) and recovers its lost
+     * received packets.
+     *
+     * @return a new <tt>UlpfecTransformEngine</tt> for this stream
+     */
+    @Override
+    protected UlpfecTransformEngine createUlpfecTransformEngine()
+    {
+        return new UlpfecTransformEngine(this);
+    }
+
     /**
      * Notifies this <tt>MediaStream</tt> that the <tt>MediaDevice</tt> (and
      * respectively the <tt>MediaDeviceSession</tt> with it) which this instance
@@ -75,6 +75,12 @@ public class EncodingConfigurationImpl extends EncodingConfiguration
             "H261",
             VideoMediaFormatImpl.DEFAULT_CLOCK_RATE,
             800);
+        // generic forward error correction (rfc5109) is disabled by default
+        // because it increases the sent bitrate
+        setEncodingPreference(
+            Constants.ULPFEC,
+            VideoMediaFormatImpl.DEFAULT_CLOCK_RATE,
+            0);
 
         // audio
         setEncodingPreference("opus", 48000, 750);
@@ -97,6 +103,11 @@ public class EncodingConfigurationImpl extends EncodingConfiguration
         // enables by default telephone event(DTMF rfc4733), with lowest
         // priority as it is not needed to order it with audio codecs
         setEncodingPreference(Constants.TELEPHONE_EVENT, 8000, 1);
+
+        // redundant audio data (rfc2198) is disabled by default because it
+        // increases the sent bitrate
+        setEncodingPreference(Constants.RED, 8000, 0);
+        setEncodingPreference(Constants.RED, 48000, 0);
     }
 
     /**
@@ -29,7 +29,8 @@ import java.util.*;
  */
 public class JNIEncoder
     extends AbstractCodec2
-    implements FormatParametersAwareCodec,
+    implements BitrateAwareEncoder,
+               FormatParametersAwareCodec,
                PacketLossAwareEncoder
 {
     /**
@@ -38,6 +39,12 @@ public class JNIEncoder
      */
     private static final Logger logger = Logger.getLogger(JNIEncoder.class);
 
+    /**
+     * The minimum bitrate in bits per second which may be set with
+     * {@link #setTargetBitrate(int)}.
+     */
+    private static final int MIN_BITRATE = 6000;
+
     /**
      * The list of <tt>Format</tt>s of audio data supported as input by
      * <tt>JNIEncoder</tt> instances.
@@ -138,6 +145,13 @@ public class JNIEncoder
      */
     private int bitrate;
 
+    /**
+     * The bitrate in bits per second which has most recently been set on
+     * {@link #encoder} or <tt>-1</tt> if {@link #encoder} has not been opened
+     * yet.
+     */
+    private volatile int encoderBitrate = -1;
+
     /**
      * Number of channels to use, default to 1.
      */
@@ -174,11 +188,27 @@ public class JNIEncoder
      */
     private int frameSizeInSamplesPerChannel;
 
+    /**
+     * The maximum bitrate in bits per second which may be set with
+     * {@link #setTargetBitrate(int)} i.e. the bitrate obtained from the
+     * configuration limited by the <tt>maxaveragebitrate</tt> format
+     * parameter.
+     */
+    private int maxBitrate;
+
     /**
      * The minimum expected packet loss percentage to set to the encoder.
      */
     private int minPacketLoss = 0;
 
+    /**
+     * The bitrate in bits per second requested with
+     * {@link #setTargetBitrate(int)} which is to be set on {@link #encoder}
+     * before the next frame is encoded or <tt>-1</tt> if no bitrate has been
+     * requested.
+     */
+    private volatile int requestedBitrate = -1;
+
     /**
      * The bytes from an input <tt>Buffer</tt> from a previous call to
      * {@link #process(Buffer, Buffer)} that this <tt>Codec</tt> didn't process
@@ -230,6 +260,8 @@ public class JNIEncoder
            Opus.encoder_destroy(encoder);
            encoder = 0;
         }
+        encoderBitrate = -1;
+
     }
 
     /**
@@ -281,7 +313,9 @@ public class JNIEncoder
             bitrate = 500;
         if(bitrate > 512000)
             bitrate = 512000;
+        maxBitrate = bitrate;
         Opus.encoder_set_bitrate(encoder, bitrate);
+        encoderBitrate = bitrate;
 
         complexityConfig = cfg.getInt(Constants.PROP_OPUS_COMPLEXITY, 10);
         Opus.encoder_set_complexity(encoder, complexityConfig);
@@ -407,6 +441,14 @@ public class JNIEncoder
             inBuffer.setOffset(inOffset + frameSizeInBytes);
         }
 
+        // The bitrate is requested by the thread which receives the RTCP
+        // feedback and is set here so that the native encoder is not
+        // reconfigured while it is encoding.
+        int requestedBitrate = this.requestedBitrate;
+
+        if ((requestedBitrate != -1) && (requestedBitrate != encoderBitrate))
+            updateBitrate(requestedBitrate);
+
         // At long last, do the actual encoding.
         byte[] out = validateByteArraySize(outBuffer, Opus.MAX_PACKET, false);
         int outLength
@@ -488,6 +530,25 @@ public class JNIEncoder
         return f;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getTargetBitrate()
+    {
+        int requestedBitrate = this.requestedBitrate;
+        int encoderBitrate = this.encoderBitrate;
+
+        if (encoderBitrate == -1)
+            return -1;
+        return
+            (requestedBitrate == -1)
+                ? encoderBitrate
+                : Math.max(
+                        MIN_BITRATE,
+                        Math.min(requestedBitrate, maxBitrate));
+    }
+
     /**
      * Updates the encoder's expected packet loss percentage to the bigger of
      * <tt>percentage</tt> and <tt>this.minPacketLoss</tt>.
@@ -511,6 +572,38 @@ public class JNIEncoder
         }
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * The bitrate is set before the next frame is encoded.
+     */
+    @Override
+    public void setTargetBitrate(int bitrate)
+    {
+        requestedBitrate = bitrate;
+    }
+
+    /**
+     * Sets the bitrate of the encoder.
+     *
+     * @param bitrate the bitrate in bits per second to set (limited to
+     * {@link #MIN_BITRATE} and {@link #maxBitrate})
+     */
+    private void updateBitrate(int bitrate)
+    {
+        if (bitrate > maxBitrate)
+            bitrate = maxBitrate;
+        if (bitrate < MIN_BITRATE)
+            bitrate = MIN_BITRATE;
+        if ((bitrate == encoderBitrate) || (encoder == 0))
+            return;
+
+        Opus.encoder_set_bitrate(encoder, bitrate);
+        encoderBitrate = bitrate;
+        if (logger.isTraceEnabled())
+            logger.trace("Updating bitrate: " + bitrate);
+    }
+
     /**
      * Sets the format parameters.
      *
@@ -539,9 +632,11 @@ public class JNIEncoder
         {
             // Ignore and fall back to the default value.
         }
-        Opus.encoder_set_bitrate(
-                encoder,
-                (maxaveragebitrate < bitrate) ? maxaveragebitrate : bitrate);
+        maxBitrate
+            = (maxaveragebitrate < bitrate) ? maxaveragebitrate : bitrate;
+        Opus.encoder_set_bitrate(encoder, maxBitrate);
+        encoderBitrate = maxBitrate;
+
 
         // DTX is off unless specified.
         boolean useDtx = "1".equals(fmtps.get("usedtx"));
@@ -15,6 +15,7 @@ import org.jitsi.impl.neomedia.*;
 import org.jitsi.impl.neomedia.codec.*;
 import org.jitsi.impl.neomedia.codec.video.*;
 import org.jitsi.service.neomedia.codec.*;
+import org.jitsi.service.neomedia.control.*;
 import org.jitsi.util.*;
 
 /**
@@ -24,6 +25,7 @@ import org.jitsi.util.*;
  */
 public class VPXEncoder
     extends AbstractCodec2
+    implements BitrateAwareEncoder
 {
     /**
      * VPX interface to use
@@ -46,12 +48,24 @@ public class VPXEncoder
      */
     private static final Logger logger = Logger.getLogger(VPXEncoder.class);
 
+    /**
+     * The minimum bitrate in kilobits per second which may be set with
+     * {@link #setTargetBitrate(int)}.
+     */
+    private static final int MIN_BITRATE = 30;
+
     /**
      * Default output formats
      */
     private static final VideoFormat[] SUPPORTED_OUTPUT_FORMATS
             = new VideoFormat[] { new VideoFormat(Constants.VP8) };
 
+    /**
+     * The bitrate in kilobits per second set on {@link #cfg} or <tt>-1</tt>
+     * if the encoder has not been opened yet.
+     */
+    private volatile int bitrate = -1;
+
     /**
      * Pointer to a native vpx_codec_dec_cfg structure containing
      * encoder configuration
@@ -96,6 +110,20 @@ public class VPXEncoder
      */
     private long pkt = 0;
 
+    /**
+     * The bitrate in kilobits per second obtained from the configuration i.e.
+     * the maximum bitrate which may be set with {@link #setTargetBitrate(int)}.
+     */
+    private int maxBitrate;
+
+    /**
+     * The bitrate in kilobits per second requested with
+     * {@link #setTargetBitrate(int)} which is to be set on {@link #cfg} before
+     * the next frame is encoded or <tt>-1</tt> if no bitrate has been
+     * requested.
+     */
+    private volatile int requestedBitrate = -1;
+
     /**
      * Current width of the input and output frames
      */
@@ -129,6 +157,8 @@ public class VPXEncoder
             };
         inputFormat = null;
         outputFormat = null;
+
+        addControl(this);
     }
 
     /**
@@ -155,6 +185,7 @@ public class VPXEncoder
             VPX.free(cfg);
             cfg = 0;
         }
+        bitrate = -1;
     }
 
     /**
@@ -190,6 +221,11 @@ public class VPXEncoder
                     .getDeviceConfiguration()
                         .getVideoBitrate();
 
+        maxBitrate = bitRate;
+        if ((requestedBitrate != -1) && (requestedBitrate < bitRate))
+            bitRate = requestedBitrate;
+        bitrate = bitRate;
+
         //set some settings
         VPX.codec_enc_cfg_set_rc_target_bitrate(cfg, bitRate);
         VPX.codec_enc_cfg_set_rc_resize_allowed(cfg, 1);
@@ -217,6 +253,49 @@ public class VPXEncoder
             logger.debug("VP8 encoder opened succesfully");
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * The bitrate is set before the next frame is encoded.
+     */
+    @Override
+    public void setTargetBitrate(int bitrate)
+    {
+        requestedBitrate = Math.max(MIN_BITRATE, bitrate / 1000);
+    }
+
+    /**
+     * Sets the target bitrate of the encoder.
+     *
+     * @param bitrate the bitrate in kilobits per second to set (limited to
+     * {@link #maxBitrate})
+     */
+    private void updateBitrate(int bitrate)
+    {
+        if (bitrate > maxBitrate)
+            bitrate = maxBitrate;
+        if ((bitrate == this.bitrate) || (cfg == 0) || (context == 0))
+            return;
+
+        VPX.codec_enc_cfg_set_rc_target_bitrate(cfg, bitrate);
+
+        int ret = VPX.codec_enc_config_set(context, cfg);
+
+        if (ret == VPX.CODEC_OK)
+        {
+            if (logger.isDebugEnabled())
+                logger.debug("Setting new bitrate: " + bitrate + " kbps");
+            this.bitrate = bitrate;
+        }
+        else
+        {
+            logger.warn(
+                    "Failed to set the bitrate of the encoder, libvpx error: "
+                        + VPX.codec_err_to_string(ret));
+            VPX.codec_enc_cfg_set_rc_target_bitrate(cfg, this.bitrate);
+        }
+    }
+
     /**
      * Updates the input width and height the encoder should expect.
      *
@@ -291,6 +370,14 @@ public class VPXEncoder
         {
             frameCount++;
 
+            // The bitrate is requested by the thread which receives the RTCP
+            // feedback and is set here so that the native encoder is not
+            // reconfigured while it is encoding.
+            int requestedBitrate = this.requestedBitrate;
+
+            if ((requestedBitrate != -1) && (requestedBitrate != bitrate))
+                updateBitrate(requestedBitrate);
+
             YUVFormat format = (YUVFormat) inputBuffer.getFormat();
             Dimension formatSize = format.getSize();
             int width = formatSize.width;
@@ -371,6 +458,19 @@ public class VPXEncoder
 
     }
 
+    /**
+     * Implements {@link Control#getControlComponent()}. <tt>VPXEncoder</tt>
+     * does not provide user interface of its own.
+     *
+     * @return <tt>null</tt> to signify that <tt>VPXEncoder</tt> does not
+     * provide user interface of its own
+     */
+    @Override
+    public Component getControlComponent()
+    {
+        return null;
+    }
+
     /**
      * Gets the matching output formats for a specific format.
      *
@@ -394,6 +494,24 @@ public class VPXEncoder
                     };
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getTargetBitrate()
+    {
+        int requestedBitrate = this.requestedBitrate;
+        int bitrate = this.bitrate;
+
+        if (bitrate == -1)
+            return -1;
+        return
+            1000
+                * ((requestedBitrate == -1)
+                        ? bitrate
+                        : Math.min(requestedBitrate, maxBitrate));
+    }
+
     /**
      * Reinitializes the encoder context. Needed when the input size changes.
      */
@@ -0,0 +1,47 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package org.jitsi.impl.neomedia.transform;
+
+import org.jitsi.impl.neomedia.*;
+
+/**
+ * Extends <tt>PacketTransformer</tt> with the transformation of a batch of
+ * packets at a time. <tt>TransformEngineChain</tt> hands whole batches to the
+ * <tt>PacketTransformer</tt>s which implement this interface and transforms
+ * the packets one by one through the other <tt>PacketTransformer</tt>s.
+ * <tt>PacketTransformer</tt>s which do not benefit from batching may extend
+ * {@link SinglePacketTransformer} or simply implement
+ * <tt>PacketTransformer</tt> only.
+ */
+public interface BatchPacketTransformer
+    extends PacketTransformer
+{
+    /**
+     * Transforms a batch of packets. Each element of <tt>pkts</tt> in the
+     * range <tt>[0, count)</tt> is replaced with the respective transformed
+     * packet or <tt>null</tt> if the packet is to be dropped. <tt>null</tt>
+     * elements are skipped.
+     *
+     * @param pkts the packets to be transformed
+     * @param count the number of elements of <tt>pkts</tt> (starting at index
+     * <tt>0</tt>) to be transformed
+     */
+    public void transform(RawPacket[] pkts, int count);
+
+    /**
+     * Reverse-transforms a batch of packets (i.e. transforms transformed
+     * packets back). Each element of <tt>pkts</tt> in the range
+     * <tt>[0, count)</tt> is replaced with the respective restored packet or
+     * <tt>null</tt> if the packet is to be dropped. <tt>null</tt> elements are
+     * skipped.
+     *
+     * @param pkts the transformed packets to be restored
+     * @param count the number of elements of <tt>pkts</tt> (starting at index
+     * <tt>0</tt>) to be restored
+     */
+    public void reverseTransform(RawPacket[] pkts, int count);
+}
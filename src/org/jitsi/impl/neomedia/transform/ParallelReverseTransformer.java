@@ -0,0 +1,548 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package org.jitsi.impl.neomedia.transform;
+
+import java.net.*;
+import java.util.concurrent.atomic.*;
+
+import org.jitsi.impl.neomedia.*;
+import org.jitsi.service.configuration.*;
+import org.jitsi.service.libjitsi.*;
+import org.jitsi.util.*;
+
+/**
+ * Reverse-transforms the RTP packets received by an input stream on a small,
+ * process-wide pool of worker threads rather than on the thread receiving
+ * them so that the SRTP decryption of the packets of a busy socket (e.g. one
+ * carrying a bundle of SSRCs to an <tt>RTPTranslatorImpl</tt>) may use more
+ * than one processor. The packets are sharded among the worker threads by
+ * SSRC: all packets of an SSRC are reverse-transformed by the same worker
+ * thread in the order of their reception. The reverse-transformation is split
+ * in two stages:
+ * <ol>
+ * <li>a parallel stage (i.e. SRTP) which is executed by the worker threads
+ * concurrently for different SSRCs;</li>
+ * <li>a serial stage (i.e. the remaining <tt>TransformEngine</tt>s of the
+ * chain which are not prepared to be invoked concurrently) which is executed
+ * for one packet of the input stream at a time, followed by the delivery of
+ * the packet to the input stream.</li>
+ * </ol>
+ * Each worker thread queues a bounded number of packets; packets which do not
+ * fit into the queue of their worker thread are dropped.
+ */
+public class ParallelReverseTransformer
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>ParallelReverseTransformer</tt>
+     * class and its instances for logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(ParallelReverseTransformer.class);
+
+    /**
+     * The default value of the property {@link #QUEUE_CAPACITY_PNAME}.
+     */
+    private static final int DEFAULT_QUEUE_CAPACITY = 256;
+
+    /**
+     * The maximum number of queued packets which a worker thread takes off its
+     * queue at once in order to reverse-transform them as a batch.
+     */
+    private static final int MAX_BATCH_SIZE = 32;
+
+    /**
+     * The name of the boolean <tt>ConfigurationService</tt> property which
+     * indicates whether the RTP packets received by
+     * <tt>RTPTransformUDPConnector</tt>s and <tt>RTPTransformTCPConnector</tt>s
+     * are to be SRTP-decrypted by the worker threads of
+     * <tt>ParallelReverseTransformer</tt> rather than by the threads receiving
+     * them. The default value is <tt>false</tt>.
+     */
+    public static final String ENABLED_PNAME
+        = "org.jitsi.impl.neomedia.transform.ParallelReverseTransformer"
+            + ".enabled";
+
+    /**
+     * The name of the integer <tt>ConfigurationService</tt> property which
+     * specifies the maximum number of packets queued for each worker thread
+     * of <tt>ParallelReverseTransformer</tt>. The default value is
+     * {@link #DEFAULT_QUEUE_CAPACITY}.
+     */
+    public static final String QUEUE_CAPACITY_PNAME
+        = "org.jitsi.impl.neomedia.transform.ParallelReverseTransformer"
+            + ".queueCapacity";
+
+    /**
+     * The name of the integer <tt>ConfigurationService</tt> property which
+     * specifies the number of worker threads of
+     * <tt>ParallelReverseTransformer</tt>. The default value is the number of
+     * processors available to the Java virtual machine.
+     */
+    public static final String THREAD_COUNT_PNAME
+        = "org.jitsi.impl.neomedia.transform.ParallelReverseTransformer"
+            + ".threadCount";
+
+    /**
+     * The number of packets dropped by all
+     * <tt>ParallelReverseTransformer</tt>s because the queues of their worker
+     * threads were full.
+     */
+    private static final AtomicLong totalDroppedPacketCount = new AtomicLong();
+
+    /**
+     * The worker threads shared by all <tt>ParallelReverseTransformer</tt>s.
+     */
+    private static Worker[] workers;
+
+    /**
+     * Gets the number of packets dropped by all
+     * <tt>ParallelReverseTransformer</tt>s because the queues of their worker
+     * threads were full.
+     *
+     * @return the number of packets dropped by all
+     * <tt>ParallelReverseTransformer</tt>s
+     */
+    public static long getTotalDroppedPacketCount()
+    {
+        return totalDroppedPacketCount.get();
+    }
+
+    /**
+     * Gets the worker threads shared by all
+     * <tt>ParallelReverseTransformer</tt>s and creates (and starts) them if
+     * they do not exist yet.
+     *
+     * @return the worker threads shared by all
+     * <tt>ParallelReverseTransformer</tt>s
+     */
+    private static synchronized Worker[] getWorkers()
+    {
+        if (workers == null)
+        {
+            ConfigurationService cfg = LibJitsi.getConfigurationService();
+            int threadCount = Runtime.getRuntime().availableProcessors();
+            int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+
+            if (cfg != null)
+            {
+                threadCount = cfg.getInt(THREAD_COUNT_PNAME, threadCount);
+                queueCapacity
+                    = cfg.getInt(QUEUE_CAPACITY_PNAME, queueCapacity);
+            }
+            if (threadCount < 1)
+                threadCount = 1;
+            if (queueCapacity < 1)
+                queueCapacity = 1;
+
+            Worker[] workers = new Worker[threadCount];
+
+            for (int i = 0; i < threadCount; i++)
+            {
+                Worker worker = new Worker(queueCapacity, i);
+
+                worker.setDaemon(true);
+                workers[i] = worker;
+                worker.start();
+            }
+            ParallelReverseTransformer.workers = workers;
+        }
+        return workers;
+    }
+
+    /**
+     * Determines whether the RTP packets received by the
+     * <tt>RTPTransformUDPConnector</tt>s and
+     * <tt>RTPTransformTCPConnector</tt>s are to be SRTP-decrypted by the
+     * worker threads of <tt>ParallelReverseTransformer</tt> as specified by
+     * {@link #ENABLED_PNAME}.
+     *
+     * @return <tt>true</tt> if the RTP packets are to be SRTP-decrypted by the
+     * worker threads of <tt>ParallelReverseTransformer</tt>; otherwise,
+     * <tt>false</tt>
+     */
+    public static boolean isEnabled()
+    {
+        ConfigurationService cfg = LibJitsi.getConfigurationService();
+
+        return (cfg != null) && cfg.getBoolean(ENABLED_PNAME, false);
+    }
+
+    /**
+     * Whether this instance has been closed.
+     */
+    private volatile boolean closed = false;
+
+    /**
+     * The number of packets dropped by this instance because the queues of
+     * the worker threads were full.
+     */
+    private final AtomicLong droppedPacketCount = new AtomicLong();
+
+    /**
+     * The <tt>Handler</tt> which is notified about the packets
+     * reverse-transformed by this instance.
+     */
+    private final Handler handler;
+
+    /**
+     * The <tt>PacketTransformer</tt> which is applied by the worker threads
+     * concurrently for the different SSRCs.
+     */
+    private volatile PacketTransformer parallelTransformer;
+
+    /**
+     * The <tt>PacketTransformer</tt> which is applied after
+     * {@link #parallelTransformer} to one packet of this instance at a time.
+     */
+    private volatile PacketTransformer serialTransformer;
+
+    /**
+     * The <tt>Object</tt> which serializes the applications of
+     * {@link #serialTransformer} and the notifications of {@link #handler}.
+     */
+    private final Object serialSyncRoot = new Object();
+
+    /**
+     * The value which is mixed into the SSRCs of the packets of this instance
+     * in order to shard the SSRCs of the different instances independently.
+     */
+    private final int shardSeed = System.identityHashCode(this);
+
+    /**
+     * Initializes a new <tt>ParallelReverseTransformer</tt> instance.
+     *
+     * @param handler the <tt>Handler</tt> to be notified about the packets
+     * reverse-transformed by the new instance
+     */
+    public ParallelReverseTransformer(Handler handler)
+    {
+        if (handler == null)
+            throw new NullPointerException("handler");
+
+        this.handler = handler;
+    }
+
+    /**
+     * Closes this <tt>ParallelReverseTransformer</tt>. The packets of this
+     * instance which are still queued are dropped.
+     */
+    public void close()
+    {
+        closed = true;
+    }
+
+    /**
+     * Gets the number of packets dropped by this instance because the queues
+     * of the worker threads were full.
+     *
+     * @return the number of packets dropped by this instance
+     */
+    public long getDroppedPacketCount()
+    {
+        return droppedPacketCount.get();
+    }
+
+    /**
+     * Reverse-transforms a batch of packets of this instance on a worker
+     * thread and then delivers them to the <tt>Handler</tt> of this instance.
+     * Invoked on the worker thread. The packets which are not delivered (e.g.
+     * because they are dropped by the <tt>PacketTransformer</tt>s) are
+     * returned to the <tt>RawPacketPool</tt>.
+     *
+     * @param pkts the <tt>RawPacket</tt>s to reverse-transform. The elements
+     * are replaced with <tt>null</tt> upon return.
+     * @param originals the <tt>RawPacket</tt>s acquired from the
+     * <tt>RawPacketPool</tt> for the respective elements of <tt>pkts</tt>
+     * (initially, the same <tt>RawPacket</tt>s). The elements are replaced
+     * with <tt>null</tt> upon return.
+     * @param count the number of elements of <tt>pkts</tt> and
+     * <tt>originals</tt> to process
+     */
+    private void process(RawPacket[] pkts, RawPacket[] originals, int count)
+    {
+        if (!closed)
+        {
+            try
+            {
+                PacketTransformer parallelTransformer
+                    = this.parallelTransformer;
+
+                if (parallelTransformer != null)
+                {
+                    TransformEngineChain.reverseTransformBatch(
+                            parallelTransformer,
+                            pkts, count);
+                }
+
+                synchronized (serialSyncRoot)
+                {
+                    PacketTransformer serialTransformer
+                        = this.serialTransformer;
+
+                    if (serialTransformer != null)
+                    {
+                        TransformEngineChain.reverseTransformBatch(
+                                serialTransformer,
+                                pkts, count);
+                    }
+
+                    for (int i = 0; (i < count) && !closed; i++)
+                    {
+                        RawPacket pkt = pkts[i];
+
+                        if (pkt != null)
+                        {
+                            pkts[i] = null;
+                            originals[i] = null;
+                            handler.reverseTransformed(pkt);
+                        }
+                    }
+                }
+            }
+            catch (Throwable t)
+            {
+                if (t instanceof ThreadDeath)
+                    throw (ThreadDeath) t;
+                logger.error("Failed to reverse-transform packets.", t);
+            }
+        }
+
+        for (int i = 0; i < count; i++)
+        {
+            RawPacket original = originals[i];
+
+            if (original != null)
+            {
+                originals[i] = null;
+                RawPacketPool.returnRawPacket(original);
+            }
+            pkts[i] = null;
+        }
+    }
+
+    /**
+     * Reverse-transforms the packet described by a specific
+     * <tt>DatagramPacket</tt> asynchronously. The packet data is copied into a
+     * <tt>RawPacket</tt> acquired from the <tt>RawPacketPool</tt> so
+     * <tt>datagramPacket</tt> may be reused as soon as the method returns.
+     *
+     * @param datagramPacket the <tt>DatagramPacket</tt> which describes the
+     * received packet to be reverse-transformed
+     * @return <tt>true</tt> if the packet has been queued for
+     * reverse-transformation; <tt>false</tt> if it has been dropped because
+     * it is invalid or the queue of its worker thread is full
+     */
+    public boolean reverseTransform(DatagramPacket datagramPacket)
+    {
+        int length = datagramPacket.getLength();
+        RawPacket pkt = RawPacketPool.getRawPacket(length);
+
+        System.arraycopy(
+                datagramPacket.getData(), datagramPacket.getOffset(),
+                pkt.getBuffer(), 0,
+                length);
+        pkt.setLength(length);
+
+        /* Don't try to transform invalid packets */
+        if (closed || pkt.isInvalid())
+        {
+            RawPacketPool.returnRawPacket(pkt);
+            return false;
+        }
+
+        Worker[] workers = getWorkers();
+        int shard = (pkt.getSSRC() ^ shardSeed) * 0x9E3779B9;
+
+        shard ^= shard >>> 16;
+
+        Worker worker = workers[(shard & Integer.MAX_VALUE) % workers.length];
+
+        if (worker.offer(this, pkt))
+            return true;
+
+        droppedPacketCount.incrementAndGet();
+        totalDroppedPacketCount.incrementAndGet();
+        RawPacketPool.returnRawPacket(pkt);
+        return false;
+    }
+
+    /**
+     * Sets the <tt>PacketTransformer</tt>s to be applied by this instance.
+     *
+     * @param parallelTransformer the <tt>PacketTransformer</tt> which is to be
+     * applied by the worker threads concurrently for the different SSRCs
+     * @param serialTransformer the <tt>PacketTransformer</tt> which is to be
+     * applied after <tt>parallelTransformer</tt> to one packet of this
+     * instance at a time
+     */
+    public void setTransformers(
+            PacketTransformer parallelTransformer,
+            PacketTransformer serialTransformer)
+    {
+        this.parallelTransformer = parallelTransformer;
+        this.serialTransformer = serialTransformer;
+    }
+
+    /**
+     * Represents the receiver of the packets reverse-transformed by a
+     * <tt>ParallelReverseTransformer</tt>.
+     */
+    public interface Handler
+    {
+        /**
+         * Notifies this <tt>Handler</tt> that a specific packet has been
+         * reverse-transformed. Invoked on a worker thread of
+         * <tt>ParallelReverseTransformer</tt> for one packet of a
+         * <tt>ParallelReverseTransformer</tt> at a time. The <tt>Handler</tt>
+         * becomes the owner of <tt>pkt</tt> and is to release it to the
+         * <tt>RawPacketPool</tt> when it no longer needs it.
+         *
+         * @param pkt the reverse-transformed packet
+         */
+        void reverseTransformed(RawPacket pkt);
+    }
+
+    /**
+     * Represents a worker thread of <tt>ParallelReverseTransformer</tt> with a
+     * bounded queue of the packets to be reverse-transformed by it.
+     */
+    private static class Worker
+        extends Thread
+    {
+        /**
+         * The number of packets in the queue of this <tt>Worker</tt>.
+         */
+        private int count = 0;
+
+        /**
+         * The index in {@link #packets} of the head of the queue of this
+         * <tt>Worker</tt>.
+         */
+        private int head = 0;
+
+        /**
+         * The <tt>ParallelReverseTransformer</tt>s which have queued the
+         * respective elements of {@link #packets}.
+         */
+        private final ParallelReverseTransformer[] owners;
+
+        /**
+         * The circular queue of the packets to be reverse-transformed by this
+         * <tt>Worker</tt>.
+         */
+        private final RawPacket[] packets;
+
+        /**
+         * Initializes a new <tt>Worker</tt> instance.
+         *
+         * @param capacity the maximum number of packets queued for the new
+         * instance
+         * @param index the index of the new instance in the worker pool
+         */
+        public Worker(int capacity, int index)
+        {
+            super(ParallelReverseTransformer.class.getName() + "-" + index);
+
+            owners = new ParallelReverseTransformer[capacity];
+            packets = new RawPacket[capacity];
+        }
+
+        /**
+         * Queues a specific packet of a specific
+         * <tt>ParallelReverseTransformer</tt> for reverse-transformation by
+         * this <tt>Worker</tt>.
+         *
+         * @param owner the <tt>ParallelReverseTransformer</tt> which queues
+         * <tt>pkt</tt>
+         * @param pkt the packet to queue
+         * @return <tt>true</tt> if <tt>pkt</tt> has been queued;
+         * <tt>false</tt> if the queue of this <tt>Worker</tt> is full
+         */
+        synchronized boolean offer(
+                ParallelReverseTransformer owner,
+                RawPacket pkt)
+        {
+            if (count == packets.length)
+                return false;
+
+            int tail = (head + count) % packets.length;
+
+            owners[tail] = owner;
+            packets[tail] = pkt;
+            if (count++ == 0)
+                notify();
+            return true;
+        }
+
+        /**
+         * Reverse-transforms the queued packets in the order of their queuing.
+         * Up to {@link #MAX_BATCH_SIZE} queued packets are taken off the queue
+         * at once and each run of consecutive packets of the same
+         * <tt>ParallelReverseTransformer</tt> is reverse-transformed as a
+         * batch.
+         */
+        @Override
+        public void run()
+        {
+            ParallelReverseTransformer[] batchOwners
+                = new ParallelReverseTransformer[MAX_BATCH_SIZE];
+            RawPacket[] batch = new RawPacket[MAX_BATCH_SIZE];
+            RawPacket[] run = new RawPacket[MAX_BATCH_SIZE];
+            RawPacket[] originals = new RawPacket[MAX_BATCH_SIZE];
+
+            while (true)
+            {
+                int batchSize;
+
+                synchronized (this)
+                {
+                    while (count == 0)
+                    {
+                        try
+                        {
+                            wait();
+                        }
+                        catch (InterruptedException ie)
+                        {
+                        }
+                    }
+
+                    batchSize = Math.min(count, MAX_BATCH_SIZE);
+                    for (int i = 0; i < batchSize; i++)
+                    {
+                        batchOwners[i] = owners[head];
+                        batch[i] = packets[head];
+                        owners[head] = null;
+                        packets[head] = null;
+                        head = (head + 1) % packets.length;
+                    }
+                    count -= batchSize;
+                }
+
+                for (int start = 0, end; start < batchSize; start = end)
+                {
+                    ParallelReverseTransformer owner = batchOwners[start];
+
+                    end = start + 1;
+                    while ((end < batchSize) && (batchOwners[end] == owner))
+                        end++;
+
+                    int runSize = end - start;
+
+                    System.arraycopy(batch, start, run, 0, runSize);
+                    System.arraycopy(batch, start, originals, 0, runSize);
+                    owner.process(run, originals, runSize);
+                }
+                for (int i = 0; i < batchSize; i++)
+                {
+                    batchOwners[i] = null;
+                    batch[i] = null;
+                }
+            }
+        }
+    }
+}
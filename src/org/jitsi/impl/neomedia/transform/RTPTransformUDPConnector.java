@@ -107,7 +107,7 @@ public class RTPTransformUDPConnector
         TransformUDPInputStream dataInputStream
             = new TransformUDPInputStream(getDataSocket());
 
-        dataInputStream.setTransformer(getRTPTransformer());
+        setRTPTransformer(dataInputStream);
         return dataInputStream;
     }
 
@@ -174,6 +174,40 @@ public class RTPTransformUDPConnector
         return (engine == null) ? null : engine.getRTPTransformer();
     }
 
+    /**
+     * Sets the <tt>PacketTransformer</tt>s specified by the current
+     * <tt>TransformEngine</tt> which are used to reverse-transform RTP packets
+     * on a specific input stream. If {@link ParallelReverseTransformer} is
+     * enabled and the current <tt>TransformEngine</tt> is a
+     * <tt>TransformEngineChain</tt> which decrypts SRTP first, the decryption
+     * is carried out by the worker threads of
+     * <tt>ParallelReverseTransformer</tt> concurrently for different SSRCs.
+     *
+     * @param dataInputStream the input stream to set the
+     * <tt>PacketTransformer</tt>s of
+     */
+    private void setRTPTransformer(TransformUDPInputStream dataInputStream)
+    {
+        TransformEngine engine = getEngine();
+
+        if ((engine instanceof TransformEngineChain)
+                && ParallelReverseTransformer.isEnabled())
+        {
+            TransformEngineChain engineChain = (TransformEngineChain) engine;
+            PacketTransformer parallelTransformer
+                = engineChain.getRTPParallelReverseTransformer();
+
+            if (parallelTransformer != null)
+            {
+                dataInputStream.setTransformer(
+                        engineChain.getRTPSerialReverseTransformer(),
+                        parallelTransformer);
+                return;
+            }
+        }
+        dataInputStream.setTransformer(getRTPTransformer());
+    }
+
     /**
      * Sets the customized <tt>TransformEngine</tt> which contains the concrete
      * transform logic.
@@ -229,7 +263,7 @@ public class RTPTransformUDPConnector
                 dataInputStream = null;
             }
             if (dataInputStream != null)
-                dataInputStream.setTransformer(getRTPTransformer());
+                setRTPTransformer(dataInputStream);
             TransformUDPOutputStream dataOutputStream;
             try
             {
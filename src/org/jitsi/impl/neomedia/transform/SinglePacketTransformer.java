@@ -0,0 +1,54 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package org.jitsi.impl.neomedia.transform;
+
+import org.jitsi.impl.neomedia.*;
+
+/**
+ * Implements the batch methods of <tt>BatchPacketTransformer</tt> by
+ * transforming the packets of a batch one by one through
+ * {@link PacketTransformer#transform(RawPacket)} and
+ * {@link PacketTransformer#reverseTransform(RawPacket)} for the
+ * <tt>PacketTransformer</tt>s which do not benefit from batching.
+ */
+public abstract class SinglePacketTransformer
+    implements BatchPacketTransformer
+{
+    /**
+     * {@inheritDoc}
+     *
+     * Reverse-transforms the packets one by one.
+     */
+    @Override
+    public void reverseTransform(RawPacket[] pkts, int count)
+    {
+        for (int i = 0; i < count; i++)
+        {
+            RawPacket pkt = pkts[i];
+
+            if (pkt != null)
+                pkts[i] = reverseTransform(pkt);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Transforms the packets one by one.
+     */
+    @Override
+    public void transform(RawPacket[] pkts, int count)
+    {
+        for (int i = 0; i < count; i++)
+        {
+            RawPacket pkt = pkts[i];
+
+            if (pkt != null)
+                pkts[i] = transform(pkt);
+        }
+    }
+}
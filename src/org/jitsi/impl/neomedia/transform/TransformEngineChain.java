@@ -6,7 +6,13 @@
  */
 package org.jitsi.impl.neomedia.transform;
 
+import java.util.*;
+
 import org.jitsi.impl.neomedia.*;
+import org.jitsi.impl.neomedia.transform.srtp.*;
+import org.jitsi.service.configuration.*;
+import org.jitsi.service.libjitsi.*;
+import org.jitsi.service.neomedia.*;
 
 /**
  * The engine chain allows using numerous <tt>TransformEngine</tt>s on a single
@@ -18,6 +24,105 @@ import org.jitsi.impl.neomedia.*;
 public class TransformEngineChain
     implements TransformEngine
 {
+    /**
+     * The name of the boolean <tt>ConfigurationService</tt> property which
+     * indicates whether <tt>TransformEngineChain</tt>s are to collect
+     * statistics (i.e. the numbers of processed and dropped packets and the
+     * times spent) about each of their engines. The property is read when a
+     * <tt>TransformEngineChain</tt> is initialized. The default value is
+     * <tt>false</tt>.
+     */
+    public static final String INSTRUMENTATION_ENABLED_PNAME
+        = "org.jitsi.impl.neomedia.transform.TransformEngineChain"
+            + ".instrumentation.enabled";
+
+    /**
+     * Counts the non-<tt>null</tt> elements of a specific batch of packets.
+     *
+     * @param pkts the batch of packets
+     * @param count the number of elements of <tt>pkts</tt> to consider
+     * @return the number of non-<tt>null</tt> elements among the first
+     * <tt>count</tt> elements of <tt>pkts</tt>
+     */
+    private static int countPackets(RawPacket[] pkts, int count)
+    {
+        int packetCount = 0;
+
+        for (int i = 0; i < count; i++)
+        {
+            if (pkts[i] != null)
+                packetCount++;
+        }
+        return packetCount;
+    }
+
+    /**
+     * Reverse-transforms a batch of packets through a specific
+     * <tt>PacketTransformer</tt>. The batch is handed to <tt>transformer</tt>
+     * as a whole if it is a <tt>BatchPacketTransformer</tt>; otherwise, the
+     * packets are reverse-transformed one by one.
+     *
+     * @param transformer the <tt>PacketTransformer</tt> to reverse-transform
+     * the packets with
+     * @param pkts the transformed packets to be restored. Each element is
+     * replaced with the respective restored packet or <tt>null</tt> if the
+     * packet is to be dropped.
+     * @param count the number of elements of <tt>pkts</tt> to be restored
+     */
+    static void reverseTransformBatch(
+            PacketTransformer transformer,
+            RawPacket[] pkts, int count)
+    {
+        if (transformer instanceof BatchPacketTransformer)
+        {
+            ((BatchPacketTransformer) transformer).reverseTransform(
+                    pkts,
+                    count);
+        }
+        else
+        {
+            for (int i = 0; i < count; i++)
+            {
+                RawPacket pkt = pkts[i];
+
+                if (pkt != null)
+                    pkts[i] = transformer.reverseTransform(pkt);
+            }
+        }
+    }
+
+    /**
+     * Transforms a batch of packets through a specific
+     * <tt>PacketTransformer</tt>. The batch is handed to <tt>transformer</tt>
+     * as a whole if it is a <tt>BatchPacketTransformer</tt>; otherwise, the
+     * packets are transformed one by one.
+     *
+     * @param transformer the <tt>PacketTransformer</tt> to transform the
+     * packets with
+     * @param pkts the packets to be transformed. Each element is replaced with
+     * the respective transformed packet or <tt>null</tt> if the packet is to
+     * be dropped.
+     * @param count the number of elements of <tt>pkts</tt> to be transformed
+     */
+    static void transformBatch(
+            PacketTransformer transformer,
+            RawPacket[] pkts, int count)
+    {
+        if (transformer instanceof BatchPacketTransformer)
+        {
+            ((BatchPacketTransformer) transformer).transform(pkts, count);
+        }
+        else
+        {
+            for (int i = 0; i < count; i++)
+            {
+                RawPacket pkt = pkts[i];
+
+                if (pkt != null)
+                    pkts[i] = transformer.transform(pkt);
+            }
+        }
+    }
 
     /**
      * The sequence of <tt>TransformEngine</tt>s whose
@@ -38,11 +143,21 @@ public class TransformEngineChain
      */
     private final PacketTransformerChain rtcpTransformChain;
 
+    /**
+     * The statistics collected about the engines of this chain indexed by the
+     * index of the engine in {@link #engineChain} and then by the index
+     * returned by {@link #getStatsIndex(boolean, boolean)} or <tt>null</tt>
+     * if the collection of statistics is disabled.
+     */
+    private final TransformEngineStatsImpl[][] stats;
+
     /**
      * Creates a new <tt>TransformEngineChain</tt> using the
      * <tt>engineChain</tt> array. Engines will be applied in the order
      * specified by the <tt>engineChain</tt> array for outgoing packets
-     * and in the reverse order for incoming packets.
+     * and in the reverse order for incoming packets. Engines which have no
+     * <tt>PacketTransformer</tt> for RTP (or RTCP) at this time are never
+     * consulted for RTP (or RTCP) packets.
      *
      * @param engineChain an array containing <tt>TransformEngine</tt>s in the
      * order that they are to be applied on outgoing packets.
@@ -51,6 +166,39 @@ public class TransformEngineChain
     {
         this.engineChain = engineChain.clone();
 
+        ConfigurationService cfg = LibJitsi.getConfigurationService();
+
+        if ((cfg != null) && cfg.getBoolean(INSTRUMENTATION_ENABLED_PNAME, false))
+        {
+            stats = new TransformEngineStatsImpl[this.engineChain.length][];
+            for (int i = 0; i < stats.length; i++)
+            {
+                TransformEngine engine = this.engineChain[i];
+
+                stats[i] = new TransformEngineStatsImpl[4];
+                for (int j = 0; j < 2; j++)
+                {
+                    boolean rtcp = (j == 1);
+                    PacketTransformer pTransformer
+                        = rtcp
+                            ? engine.getRTCPTransformer()
+                            : engine.getRTPTransformer();
+
+                    if (pTransformer != null)
+                    {
+                        stats[i][getStatsIndex(rtcp, false)]
+                            = new TransformEngineStatsImpl(engine, rtcp, false);
+                        stats[i][getStatsIndex(rtcp, true)]
+                            = new TransformEngineStatsImpl(engine, rtcp, true);
+                    }
+                }
+            }
+        }
+        else
+        {
+            stats = null;
+        }
+
         rtpTransformChain = new PacketTransformerChain(true);
         rtcpTransformChain = new PacketTransformerChain(false);
     }
@@ -81,6 +229,167 @@ public class TransformEngineChain
         return rtcpTransformChain;
     }
 
+    /**
+     * Gets the <tt>PacketTransformer</tt> which applies the RTP transformation
+     * of the engine this chain reverse-transforms received RTP packets with
+     * first if that engine may reverse-transform the packets of different
+     * SSRCs concurrently. That is the case for SRTP (i.e. an
+     * <tt>SRTPTransformer</tt>) which keeps a separate crypto context per
+     * SSRC. Applying the returned <tt>PacketTransformer</tt> and then the one
+     * returned by {@link #getRTPSerialReverseTransformer()} is equivalent to
+     * applying the one returned by {@link #getRTPTransformer()}.
+     *
+     * @return the <tt>PacketTransformer</tt> which applies the first RTP
+     * reverse-transformation of this chain if it may be applied to the
+     * packets of different SSRCs concurrently; otherwise, <tt>null</tt>
+     */
+    public PacketTransformer getRTPParallelReverseTransformer()
+    {
+        return
+            (getParallelReverseEngineCount() == 0)
+                ? null
+                : new PacketTransformerChain(
+                        true,
+                        engineChain.length - 1, engineChain.length);
+    }
+
+    /**
+     * Gets the <tt>PacketTransformer</tt> which applies the RTP
+     * transformations of the engines of this chain which precede a specific
+     * engine. Reverse-transforming with it applies the engines which
+     * reverse-transform the received packets after the specified engine.
+     * Allows an engine to hand packets it has received by other means (e.g.
+     * recovered) to the rest of the reverse transformation.
+     *
+     * @param engine the <tt>TransformEngine</tt> the engines preceding which
+     * are to be applied
+     * @return the <tt>PacketTransformer</tt> which applies the RTP
+     * transformations of the engines of this chain preceding <tt>engine</tt>
+     * or <tt>null</tt> if <tt>engine</tt> is not in this chain
+     */
+    public PacketTransformer getRTPTransformerBefore(TransformEngine engine)
+    {
+        for (int i = 0; i < engineChain.length; i++)
+        {
+            if (engineChain[i] == engine)
+                return new PacketTransformerChain(true, 0, i);
+        }
+        return null;
+    }
+
+    /**
+     * Gets the <tt>PacketTransformer</tt> which applies the RTP
+     * transformations of the engines of this chain which follow a specific
+     * engine (e.g. the encryption). Allows an engine to send packets it has
+     * created itself (e.g. retransmissions) through the engines which would
+     * have seen the packets had they been sent through the whole chain.
+     *
+     * @param engine the <tt>TransformEngine</tt> the engines following which
+     * are to be applied
+     * @return the <tt>PacketTransformer</tt> which applies the RTP
+     * transformations of the engines of this chain following <tt>engine</tt>
+     * or <tt>null</tt> if <tt>engine</tt> is not in this chain
+     */
+    public PacketTransformer getRTPTransformerAfter(TransformEngine engine)
+    {
+        for (int i = 0; i < engineChain.length; i++)
+        {
+            if (engineChain[i] == engine)
+            {
+                return
+                    new PacketTransformerChain(
+                            true,
+                            i + 1, engineChain.length);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets the <tt>PacketTransformer</tt> which applies the RTP
+     * transformations of the engines of this chain other than the one applied
+     * by the <tt>PacketTransformer</tt> returned by
+     * {@link #getRTPParallelReverseTransformer()}.
+     *
+     * @return the <tt>PacketTransformer</tt> which applies the RTP
+     * transformations of this chain which are to be applied serially
+     */
+    public PacketTransformer getRTPSerialReverseTransformer()
+    {
+        int parallelEngineCount = getParallelReverseEngineCount();
+
+        return
+            (parallelEngineCount == 0)
+                ? rtpTransformChain
+                : new PacketTransformerChain(
+                        true,
+                        0, engineChain.length - parallelEngineCount);
+    }
+
+    /**
+     * Gets the statistics collected about the engines of this chain.
+     *
+     * @return a list of the statistics collected about the engines of this
+     * chain in the order of the engines (and, for each engine, RTP send, RTP
+     * receive, RTCP send and RTCP receive); an empty list if the collection of
+     * statistics is disabled (as specified by
+     * {@link #INSTRUMENTATION_ENABLED_PNAME})
+     */
+    public List<TransformEngineStats> getEngineStats()
+    {
+        if (stats == null)
+            return Collections.emptyList();
+
+        List<TransformEngineStats> engineStats
+            = new ArrayList<TransformEngineStats>();
+
+        for (TransformEngineStatsImpl[] s : stats)
+        {
+            for (TransformEngineStatsImpl es : s)
+            {
+                if (es != null)
+                    engineStats.add(es);
+            }
+        }
+        return engineStats;
+    }
+
+    /**
+     * Gets the index in the elements of {@link #stats} of the statistics about
+     * a specific type of packets in a specific direction.
+     *
+     * @param rtcp <tt>true</tt> for RTCP packets or <tt>false</tt> for RTP
+     * packets
+     * @param receive <tt>true</tt> for received packets or <tt>false</tt> for
+     * sent packets
+     * @return the index in the elements of {@link #stats} of the statistics
+     * about the specified type of packets in the specified direction
+     */
+    private static int getStatsIndex(boolean rtcp, boolean receive)
+    {
+        return (rtcp ? 2 : 0) + (receive ? 1 : 0);
+    }
+
+    /**
+     * Gets the number of engines at the end of this chain (i.e. the first to
+     * reverse-transform received RTP packets) which may reverse-transform the
+     * RTP packets of different SSRCs concurrently.
+     *
+     * @return the number of engines at the end of this chain which may
+     * reverse-transform the RTP packets of different SSRCs concurrently
+     */
+    private int getParallelReverseEngineCount()
+    {
+        if (engineChain.length != 0)
+        {
+            TransformEngine engine = engineChain[engineChain.length - 1];
+
+            if (engine.getRTPTransformer() instanceof SRTPTransformer)
+                return 1;
+        }
+        return 0;
+    }
+
     /**
      * A <tt>PacketTransformerChain</tt> is a meta <tt>PacketTransformer</tt>
      * that applies all transformers present in this engine chain. The class
@@ -88,8 +397,17 @@ public class TransformEngineChain
      * it for incoming packets.
      */
     private class PacketTransformerChain
-        implements PacketTransformer
+        implements BatchPacketTransformer
     {
+        /**
+         * The engines applied by this transformer i.e. the engines of this
+         * chain in the range specified at initialization time. The
+         * <tt>PacketTransformer</tt> of each of them is looked up for every
+         * packet (batch) because engines may create or drop it after this
+         * transformer has been initialized.
+         */
+        private final TransformEngine[] engines;
+
         /**
          * Indicates whether this transformer will be dealing with RTP or,
          * in other words, whether it will transform packets via the RTP
@@ -97,6 +415,20 @@ public class TransformEngineChain
          */
         private final boolean isRtp;
 
+        /**
+         * The statistics about the received packets of the respective elements
+         * of {@link #engines} or <tt>null</tt> if the collection of statistics
+         * is disabled.
+         */
+        private final TransformEngineStatsImpl[] receiveStats;
+
+        /**
+         * The statistics about the sent packets of the respective elements of
+         * {@link #engines} or <tt>null</tt> if the collection of statistics is
+         * disabled.
+         */
+        private final TransformEngineStatsImpl[] sendStats;
+
         /**
          * Creates an instance of this packet transformer and prepares it to
          * deal with RTP or RTCP according to the <tt>isRtp</tt> arg.
@@ -106,8 +438,47 @@ public class TransformEngineChain
          * chain rather than the RTCP ones) and <tt>false</tt> otherwise.
          */
         public PacketTransformerChain(boolean isRtp)
+        {
+            this(isRtp, 0, engineChain.length);
+        }
+
+        /**
+         * Creates an instance of this packet transformer which applies a
+         * specific range of the engines of this chain only.
+         *
+         * @param isRtp <tt>true</tt> if this transformer will be dealing with
+         * RTP and <tt>false</tt> otherwise
+         * @param fromIndex the index in {@link #engineChain} of the first
+         * engine to be applied by the new instance
+         * @param toIndex the index in {@link #engineChain} after the last
+         * engine to be applied by the new instance
+         */
+        public PacketTransformerChain(
+                boolean isRtp,
+                int fromIndex, int toIndex)
         {
             this.isRtp = isRtp;
+
+            engines = Arrays.copyOfRange(engineChain, fromIndex, toIndex);
+            if (stats == null)
+            {
+                receiveStats = null;
+                sendStats = null;
+            }
+            else
+            {
+                int count = toIndex - fromIndex;
+
+                receiveStats = new TransformEngineStatsImpl[count];
+                sendStats = new TransformEngineStatsImpl[count];
+                for (int i = 0; i < count; i++)
+                {
+                    receiveStats[i]
+                        = stats[fromIndex + i][getStatsIndex(!isRtp, true)];
+                    sendStats[i]
+                        = stats[fromIndex + i][getStatsIndex(!isRtp, false)];
+                }
+            }
         }
 
         /**
@@ -117,20 +488,33 @@ public class TransformEngineChain
          */
         public void close()
         {
-            for (TransformEngine engine : engineChain)
+            for (TransformEngine engine : engines)
             {
-                PacketTransformer pTransformer
-                    = isRtp
-                        ? engine.getRTPTransformer()
-                        : engine.getRTCPTransformer();
+                PacketTransformer pTransformer = getPacketTransformer(engine);
 
                 //the packet transformer may be null if for example the engine
-                //only does RTP transformations and this is an RTCP transformer.
+                //has been closed already.
                 if( pTransformer != null)
                     pTransformer.close();
             }
         }
 
+        /**
+         * Gets the <tt>PacketTransformer</tt> of a specific engine for the
+         * type of packets (i.e. RTP or RTCP) of this transformer.
+         *
+         * @param engine the <tt>TransformEngine</tt> to get the
+         * <tt>PacketTransformer</tt> of
+         * @return the <tt>PacketTransformer</tt> of <tt>engine</tt> for the
+         * type of packets of this transformer or <tt>null</tt> if the engine
+         * does not transform such packets
+         */
+        private PacketTransformer getPacketTransformer(TransformEngine engine)
+        {
+            return
+                isRtp ? engine.getRTPTransformer() : engine.getRTCPTransformer();
+        }
+
         /**
          * Transforms a specific packet.
          *
@@ -139,22 +523,81 @@ public class TransformEngineChain
          */
         public RawPacket transform(RawPacket pkt)
         {
-            for (TransformEngine engine : engineChain)
+            for (int i = 0; i < engines.length; i++)
             {
                 PacketTransformer pTransformer
-                    = isRtp
-                        ? engine.getRTPTransformer()
-                        : engine.getRTCPTransformer();
+                    = getPacketTransformer(engines[i]);
 
                 //the packet transformer may be null if for example the engine
-                //only does RTP transformations and this is an RTCP transformer.
+                //has been closed already.
                 if( pTransformer != null)
-                    pkt = pTransformer.transform(pkt);
+                {
+                    TransformEngineStatsImpl es
+                        = (sendStats == null) ? null : sendStats[i];
+
+                    if (es == null)
+                    {
+                        pkt = pTransformer.transform(pkt);
+                    }
+                    else
+                    {
+                        int packetCount = (pkt == null) ? 0 : 1;
+                        long startTime = System.nanoTime();
+
+                        pkt = pTransformer.transform(pkt);
+                        es.record(
+                                packetCount,
+                                (pkt == null) ? packetCount : 0,
+                                System.nanoTime() - startTime);
+                    }
+                }
             }
 
             return pkt;
         }
 
+        /**
+         * {@inheritDoc}
+         *
+         * Applies the engines to the whole batch one after another rather than
+         * applying all engines to one packet after another so that each engine
+         * is looked up once per batch and processes the packets while its state
+         * is hot in the caches.
+         */
+        public void transform(RawPacket[] pkts, int count)
+        {
+            for (int i = 0; i < engines.length; i++)
+            {
+                PacketTransformer pTransformer
+                    = getPacketTransformer(engines[i]);
+
+                if (pTransformer != null)
+                {
+                    TransformEngineStatsImpl es
+                        = (sendStats == null) ? null : sendStats[i];
+
+                    if (es == null)
+                    {
+                        transformBatch(pTransformer, pkts, count);
+                    }
+                    else
+                    {
+                        int packetCount = countPackets(pkts, count);
+                        long startTime = System.nanoTime();
+
+                        transformBatch(pTransformer, pkts, count);
+
+                        long time = System.nanoTime() - startTime;
+
+                        es.record(
+                                packetCount,
+                                packetCount - countPackets(pkts, count),
+                                time);
+                    }
+                }
+            }
+        }
+
         /**
          * Reverse-transforms a specific packet (i.e. transforms a transformed
          * packet back).
@@ -164,19 +607,32 @@ public class TransformEngineChain
          */
         public RawPacket reverseTransform(RawPacket pkt)
         {
-            for (int i = engineChain.length - 1 ; i >= 0; i--)
+            for (int i = engines.length - 1 ; i >= 0; i--)
             {
-                TransformEngine engine = engineChain[i];
                 PacketTransformer pTransformer
-                    = isRtp
-                        ? engine.getRTPTransformer()
-                        : engine.getRTCPTransformer();
+                    = getPacketTransformer(engines[i]);
 
                 //the packet transformer may be null if for example the engine
-                //only does RTP transformations and this is an RTCP transformer.
+                //has been closed already.
                 if( pTransformer != null)
                 {
-                    pkt = pTransformer.reverseTransform(pkt);
+                    TransformEngineStatsImpl es
+                        = (receiveStats == null) ? null : receiveStats[i];
+
+                    if (es == null)
+                    {
+                        pkt = pTransformer.reverseTransform(pkt);
+                    }
+                    else
+                    {
+                        long startTime = System.nanoTime();
+
+                        pkt = pTransformer.reverseTransform(pkt);
+                        es.record(
+                                1,
+                                (pkt == null) ? 1 : 0,
+                                System.nanoTime() - startTime);
+                    }
                     if (pkt == null)
                         return null;
                 }
@@ -184,5 +640,50 @@ public class TransformEngineChain
 
             return pkt;
         }
+
+        /**
+         * {@inheritDoc}
+         *
+         * Applies the engines to the whole batch one after another (in the
+         * reverse order) and stops as soon as all packets of the batch have
+         * been dropped.
+         */
+        public void reverseTransform(RawPacket[] pkts, int count)
+        {
+            int packetCount = countPackets(pkts, count);
+
+            for (int i = engines.length - 1 ; (i >= 0) && (packetCount > 0); i--)
+            {
+                PacketTransformer pTransformer
+                    = getPacketTransformer(engines[i]);
+
+                if (pTransformer != null)
+                {
+                    TransformEngineStatsImpl es
+                        = (receiveStats == null) ? null : receiveStats[i];
+
+                    if (es == null)
+                    {
+                        reverseTransformBatch(pTransformer, pkts, count);
+                        packetCount = countPackets(pkts, count);
+                    }
+                    else
+                    {
+                        long startTime = System.nanoTime();
+
+                        reverseTransformBatch(pTransformer, pkts, count);
+
+                        long time = System.nanoTime() - startTime;
+                        int newPacketCount = countPackets(pkts, count);
+
+                        es.record(
+                                packetCount,
+                                packetCount - newPacketCount,
+                                time);
+                        packetCount = newPacketCount;
+                    }
+                }
+            }
+        }
     }
 }
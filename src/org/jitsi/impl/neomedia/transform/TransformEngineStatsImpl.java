@@ -0,0 +1,192 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package org.jitsi.impl.neomedia.transform;
+
+import java.util.concurrent.atomic.*;
+
+import org.jitsi.service.neomedia.*;
+
+/**
+ * Implements <tt>TransformEngineStats</tt> for one <tt>TransformEngine</tt> of
+ * a <tt>TransformEngineChain</tt>. The statistics may be recorded by multiple
+ * threads concurrently (e.g. by the worker threads of
+ * <tt>ParallelReverseTransformer</tt>) without locking.
+ */
+public class TransformEngineStatsImpl
+    implements TransformEngineStats
+{
+    /**
+     * The number of packets dropped by the engine.
+     */
+    private final AtomicLong droppedPacketCount = new AtomicLong();
+
+    /**
+     * The name of the engine.
+     */
+    private final String engineName;
+
+    /**
+     * The number of packets given to the engine.
+     */
+    private final AtomicLong packetCount = new AtomicLong();
+
+    /**
+     * Whether the statistics are about received packets.
+     */
+    private final boolean receive;
+
+    /**
+     * Whether the statistics are about RTCP packets.
+     */
+    private final boolean rtcp;
+
+    /**
+     * The histogram of the times spent by the engine per packet.
+     */
+    private final AtomicLongArray timeHistogram
+        = new AtomicLongArray(HISTOGRAM_BUCKET_COUNT);
+
+    /**
+     * The total time in nanoseconds spent by the engine.
+     */
+    private final AtomicLong totalTimeNanos = new AtomicLong();
+
+    /**
+     * Initializes a new <tt>TransformEngineStatsImpl</tt> instance.
+     *
+     * @param engine the <tt>TransformEngine</tt> to collect statistics about
+     * @param rtcp <tt>true</tt> if the new instance is to collect statistics
+     * about RTCP packets or <tt>false</tt> for RTP packets
+     * @param receive <tt>true</tt> if the new instance is to collect
+     * statistics about received packets or <tt>false</tt> for sent packets
+     */
+    public TransformEngineStatsImpl(
+            TransformEngine engine,
+            boolean rtcp,
+            boolean receive)
+    {
+        Class<?> engineClass = engine.getClass();
+        String engineName = engineClass.getSimpleName();
+
+        // Anonymous classes have no simple name.
+        this.engineName
+            = (engineName.length() == 0) ? engineClass.getName() : engineName;
+        this.rtcp = rtcp;
+        this.receive = receive;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getDroppedPacketCount()
+    {
+        return droppedPacketCount.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String getEngineName()
+    {
+        return engineName;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getPacketCount()
+    {
+        return packetCount.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long[] getTimeHistogram()
+    {
+        long[] timeHistogram = new long[HISTOGRAM_BUCKET_COUNT];
+
+        for (int i = 0; i < timeHistogram.length; i++)
+            timeHistogram[i] = this.timeHistogram.get(i);
+        return timeHistogram;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getTotalTimeNanos()
+    {
+        return totalTimeNanos.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean isReceive()
+    {
+        return receive;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean isRTCP()
+    {
+        return rtcp;
+    }
+
+    /**
+     * Records an invocation of the engine.
+     *
+     * @param packetCount the number of packets given to the engine in the
+     * invocation
+     * @param droppedPacketCount the number of packets dropped by the engine in
+     * the invocation
+     * @param timeNanos the time in nanoseconds spent by the engine in the
+     * invocation
+     */
+    void record(int packetCount, int droppedPacketCount, long timeNanos)
+    {
+        if (packetCount <= 0)
+            return;
+
+        this.packetCount.addAndGet(packetCount);
+        if (droppedPacketCount > 0)
+            this.droppedPacketCount.addAndGet(droppedPacketCount);
+        totalTimeNanos.addAndGet(timeNanos);
+
+        // The packets of a batch are accounted with the average time.
+        long packetTimeNanos = timeNanos / packetCount;
+        int bucket
+            = (packetTimeNanos <= 0)
+                ? 0
+                : Math.min(
+                        64 - Long.numberOfLeadingZeros(packetTimeNanos),
+                        HISTOGRAM_BUCKET_COUNT - 1);
+
+        timeHistogram.addAndGet(bucket, packetCount);
+    }
+
+    /**
+     * Returns a <tt>String</tt> representation of this instance.
+     *
+     * @return a <tt>String</tt> representation of this instance
+     */
+    @Override
+    public String toString()
+    {
+        long packetCount = getPacketCount();
+
+        return
+            engineName + (rtcp ? " RTCP " : " RTP ")
+                + (receive ? "receive" : "send")
+                + ": packets=" + packetCount
+                + ", dropped=" + getDroppedPacketCount()
+                + ", avgNanos="
+                + ((packetCount == 0) ? 0 : (getTotalTimeNanos() / packetCount));
+    }
+}
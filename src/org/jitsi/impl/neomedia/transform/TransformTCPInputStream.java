@@ -30,6 +30,13 @@ public class TransformTCPInputStream
      */
     private PacketTransformer transformer;
 
+    /**
+     * The <tt>ParallelReverseTransformer</tt> which reverse-transforms the
+     * packets of this instance on its worker threads or <tt>null</tt> if the
+     * packets are reverse-transformed by the thread receiving them.
+     */
+    private volatile ParallelReverseTransformer parallelReverseTransformer;
+
     /**
      * Initializes a new <tt>TransformInputStream</tt> which is to receive
      * packet data from a specific TCP socket.
@@ -59,6 +66,19 @@ public class TransformTCPInputStream
     @Override
     protected RawPacket createRawPacket(DatagramPacket datagramPacket)
     {
+        ParallelReverseTransformer parallelReverseTransformer
+            = this.parallelReverseTransformer;
+
+        /*
+         * The packet will be made available through transferPacket(RawPacket)
+         * once it has been reverse-transformed on a worker thread.
+         */
+        if (parallelReverseTransformer != null)
+        {
+            parallelReverseTransformer.reverseTransform(datagramPacket);
+            return null;
+        }
+
         PacketTransformer transformer = getTransformer();
         RawPacket pkt = super.createRawPacket(datagramPacket);
 
@@ -85,7 +105,75 @@ public class TransformTCPInputStream
      * reverse-transform packets
      */
     public void setTransformer(PacketTransformer transformer)
+    {
+        setTransformer(transformer, null);
+    }
+
+    /**
+     * Sets the <tt>PacketTransformer</tt>s which are to be used to
+     * reverse-transform packets. If <tt>parallelTransformer</tt> is not
+     * <tt>null</tt>, the packets are reverse-transformed by the worker threads
+     * of <tt>ParallelReverseTransformer</tt>: first by
+     * <tt>parallelTransformer</tt> concurrently for different SSRCs and then
+     * by <tt>transformer</tt> one at a time.
+     *
+     * @param transformer the <tt>PacketTransformer</tt> which is to be used to
+     * reverse-transform packets (after <tt>parallelTransformer</tt>)
+     * @param parallelTransformer the <tt>PacketTransformer</tt> which is to be
+     * used to reverse-transform the packets of different SSRCs concurrently or
+     * <tt>null</tt> to reverse-transform the packets on the thread receiving
+     * them
+     */
+    public synchronized void setTransformer(
+            PacketTransformer transformer,
+            PacketTransformer parallelTransformer)
     {
         this.transformer = transformer;
+
+        if (parallelTransformer == null)
+        {
+            if (parallelReverseTransformer != null)
+            {
+                parallelReverseTransformer.close();
+                parallelReverseTransformer = null;
+            }
+        }
+        else
+        {
+            if (parallelReverseTransformer == null)
+            {
+                parallelReverseTransformer
+                    = new ParallelReverseTransformer(
+                            new ParallelReverseTransformer.Handler()
+                            {
+                                @Override
+                                public void reverseTransformed(RawPacket pkt)
+                                {
+                                    transferPacket(pkt);
+                                }
+                            });
+            }
+            parallelReverseTransformer.setTransformers(
+                    parallelTransformer,
+                    transformer);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Closes the <tt>ParallelReverseTransformer</tt> of this instance (if
+     * any) as well.
+     */
+    @Override
+    public synchronized void close()
+    {
+        super.close();
+
+        if (parallelReverseTransformer != null)
+        {
+            parallelReverseTransformer.close();
+            parallelReverseTransformer = null;
+        }
     }
 }
@@ -64,7 +64,16 @@ public class TransformUDPOutputStream
 
         if (transformer != null)
         {
-            pkt = transformer.transform(pkt);
+            RawPacket rawPkt = pkt;
+
+            pkt = transformer.transform(rawPkt);
+
+            /*
+             * The packet will not be sent so it will not be released to the
+             * RawPacketPool by RTPConnectorOutputStream.
+             */
+            if (pkt == null)
+                RawPacketPool.returnRawPacket(rawPkt);
 
             /*
              * This is for the case when the ZRTP engine stops the media stream
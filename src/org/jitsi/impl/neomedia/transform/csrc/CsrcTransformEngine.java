@@ -17,8 +17,8 @@ import org.jitsi.service.neomedia.*;
  * @author Emil Ivov
  */
 public class CsrcTransformEngine
-    implements TransformEngine,
-               PacketTransformer
+    extends SinglePacketTransformer
+    implements TransformEngine
 {
     /**
      * The <tt>MediaStreamImpl</tt> that this transform engine was created to
@@ -33,17 +33,6 @@ public class CsrcTransformEngine
      */
     private byte csrcAudioLevelExtID = -1;
 
-    /**
-     * The buffer that we use to encode the csrc audio level extensions.
-     */
-    private byte[] extensionBuff = null;
-
-    /**
-     * Indicates the length that we are currently using in the
-     * <tt>extensionBuff</tt> buffer.
-     */
-    private int extensionBuffLen = 0;
-
     /**
      * The dispatcher that is delivering audio levels to the media steam.
      */
@@ -168,9 +157,7 @@ public class CsrcTransformEngine
                 && audioLevelDirection.allowsSending()
                 && (mediaStream instanceof AudioMediaStreamImpl))
         {
-            byte[] levelsExt = createLevelExtensionBuffer(csrcList);
-
-            pkt.addExtension(levelsExt, extensionBuffLen);
+            writeLevelExtension(pkt, csrcList);
         }
 
         return pkt;
@@ -194,66 +181,32 @@ public class CsrcTransformEngine
     }
 
     /**
-     * Creates a audio level extension buffer containing the level extension
-     * header and the audio levels corresponding to (and in the same order as)
-     * the <tt>CSRC</tt> IDs in the <tt>csrcList</tt>
+     * Adds to a specific RTP packet a audio level extension containing the
+     * audio levels corresponding to (and in the same order as) the
+     * <tt>CSRC</tt> IDs in the <tt>csrcList</tt>. The extension is written
+     * into the packet in place i.e. no intermediate buffer is used.
      *
+     * @param pkt the RTP packet to add the audio level extension to
      * @param csrcList the list of CSRC IDs whose level we'd like the extension
      * to contain.
-     * @return the extension buffer in the form that it should be added to the
-     * RTP packet.
      */
-    private byte[] createLevelExtensionBuffer(long[] csrcList)
+    private void writeLevelExtension(RawPacket pkt, long[] csrcList)
     {
-        int buffLen = 1 + //CSRC one byte extension hdr
-                      csrcList.length;
-
-        // calculate extension padding
-        int padLen = 4 - buffLen%4;
-
-        if(padLen == 4)
-            padLen = 0;
-
-        buffLen += padLen;
+        int levelsOffset
+            = pkt.addExtensionElement(csrcAudioLevelExtID, csrcList.length);
 
-        byte[] extensionBuff = getExtensionBuff(buffLen);
+        if (levelsOffset == -1)
+            return;
 
-        extensionBuff[0]
-            = (byte)((csrcAudioLevelExtID << 4) | (csrcList.length - 1));
+        AudioMediaStreamImpl audioStream = (AudioMediaStreamImpl) mediaStream;
 
-        int csrcOffset = 1; // initial offset is equal to ext hdr size
-
-        for(long csrc : csrcList)
+        for (long csrc : csrcList)
         {
-            byte level
-                = (byte)
-                    ((AudioMediaStreamImpl) mediaStream)
-                        .getLastMeasuredAudioLevel(csrc);
+            byte level = (byte) audioStream.getLastMeasuredAudioLevel(csrc);
 
-            extensionBuff[csrcOffset] = level;
-            csrcOffset ++;
+            pkt.writeByte(levelsOffset, level);
+            levelsOffset ++;
         }
-
-        return extensionBuff;
-    }
-
-    /**
-     * Returns a reusable byte array which is guaranteed to have the requested
-     * <tt>ensureCapacity</tt> length and sets our internal length keeping
-     * var.
-     *
-     * @param ensureCapacity the minimum length that we need the returned buffer
-     * to have.
-     * @return a reusable <tt>byte[]</tt> array guaranteed to have a length
-     * equal to or greater than <tt>ensureCapacity</tt>.
-     */
-    private byte[] getExtensionBuff(int ensureCapacity)
-    {
-        if ((extensionBuff == null) || (extensionBuff.length < ensureCapacity))
-            extensionBuff = new byte[ensureCapacity];
-
-        extensionBuffLen = ensureCapacity;
-        return extensionBuff;
     }
 
     /**
@@ -0,0 +1,496 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package org.jitsi.impl.neomedia.transform.fec;
+
+import org.jitsi.impl.neomedia.*;
+
+/**
+ * Recovers the lost media packets of one SSRC from the received ULPFEC
+ * packets (RFC 5109). Keeps copies of the most recently received media
+ * packets and of the ULPFEC packets which protect more than one missing media
+ * packet. A media packet is recovered as soon as it is the only missing one
+ * among the packets protected by a ULPFEC packet and a newer media packet has
+ * been received (i.e. it is lost rather than still on its way). The buffers of the copies
+ * are reused so the decoder allocates nothing after it has warmed up except
+ * for the recovered packets (which are acquired from the
+ * <tt>RawPacketPool</tt>).
+ */
+class UlpfecDecoder
+{
+    /**
+     * The maximum number of ULPFEC packets kept waiting for more of the media
+     * packets they protect.
+     */
+    private static final int MAX_PENDING = 8;
+
+    /**
+     * The number of most recent sequence numbers for which the received media
+     * packets are kept. Must be a power of two.
+     */
+    static final int WINDOW_SIZE = 64;
+
+    /**
+     * The buffers of the pending ULPFEC packets (without their RTP headers).
+     */
+    private final byte[][] fecBuffers = new byte[MAX_PENDING][];
+
+    /**
+     * The lengths of the pending ULPFEC packets (without their RTP headers) or
+     * <tt>0</tt> if the respective slot is empty.
+     */
+    private final int[] fecLengths = new int[MAX_PENDING];
+
+    /**
+     * The <tt>Handler</tt> which is notified about the recovered packets.
+     */
+    private final Handler handler;
+
+    /**
+     * The highest sequence number of a received media packet or <tt>-1</tt>
+     * if no media packet has been received yet.
+     */
+    private int highestSequenceNumber = -1;
+
+    /**
+     * The buffers of the received media packets indexed by the low bits of
+     * their sequence numbers.
+     */
+    private final byte[][] mediaBuffers = new byte[WINDOW_SIZE][];
+
+    /**
+     * The lengths of the received media packets or <tt>0</tt> if the
+     * respective slot is empty.
+     */
+    private final int[] mediaLengths = new int[WINDOW_SIZE];
+
+    /**
+     * The sequence numbers of the received media packets.
+     */
+    private final int[] mediaSequenceNumbers = new int[WINDOW_SIZE];
+
+    /**
+     * The number of media packets recovered by this decoder.
+     */
+    private long recoveredPacketCount;
+
+    /**
+     * The buffer in which a media packet is recovered.
+     */
+    private final byte[] recoveryBuffer
+        = new byte[UlpfecUtils.MAX_PACKET_LENGTH];
+
+    /**
+     * The SSRC of the protected media packets.
+     */
+    private final int ssrc;
+
+    /**
+     * Initializes a new <tt>UlpfecDecoder</tt> instance.
+     *
+     * @param ssrc the SSRC of the media packets to be recovered by the new
+     * instance
+     * @param handler the <tt>Handler</tt> to be notified about the recovered
+     * packets
+     */
+    UlpfecDecoder(int ssrc, Handler handler)
+    {
+        this.ssrc = ssrc;
+        this.handler = handler;
+    }
+
+    /**
+     * Determines whether a specific received ULPFEC packet may protect the
+     * media packets of this decoder i.e. whether its SN base is close to the
+     * sequence numbers received by this decoder.
+     *
+     * @param fec the received ULPFEC packet
+     * @return <tt>true</tt> if <tt>fec</tt> may protect the media packets of
+     * this decoder; otherwise, <tt>false</tt>
+     */
+    synchronized boolean accepts(RawPacket fec)
+    {
+        if ((highestSequenceNumber == -1)
+                || (fec.getLength()
+                        < fec.getHeaderLength() + UlpfecUtils.PAYLOAD_OFFSET))
+            return false;
+
+        int snBase = fec.readUnsignedShortAsInt(fec.getHeaderLength() + 2);
+        int delta = (highestSequenceNumber - snBase) & 0xFFFF;
+
+        return
+            (delta < WINDOW_SIZE)
+                || (0x10000 - delta <= UlpfecUtils.MAX_GROUP_SIZE);
+    }
+
+    /**
+     * Adds a copy of a specific media packet to the received ones.
+     *
+     * @param buf the buffer of the media packet
+     * @param off the offset of the media packet in <tt>buf</tt>
+     * @param len the length of the media packet
+     * @param sequenceNumber the sequence number of the media packet
+     */
+    private void addMedia(byte[] buf, int off, int len, int sequenceNumber)
+    {
+        int index = sequenceNumber & (WINDOW_SIZE - 1);
+        byte[] buffer = mediaBuffers[index];
+
+        if ((buffer == null) || (buffer.length < len))
+        {
+            mediaBuffers[index]
+                = buffer
+                = new byte[Math.max(len, UlpfecUtils.MAX_PACKET_LENGTH)];
+        }
+        System.arraycopy(buf, off, buffer, 0, len);
+        mediaLengths[index] = len;
+        mediaSequenceNumbers[index] = sequenceNumber;
+
+        if (highestSequenceNumber == -1)
+        {
+            highestSequenceNumber = sequenceNumber;
+        }
+        else
+        {
+            int delta = (sequenceNumber - highestSequenceNumber) & 0xFFFF;
+
+            if ((delta != 0) && (delta < 0x8000))
+                highestSequenceNumber = sequenceNumber;
+        }
+    }
+
+    /**
+     * Notifies this decoder that a specific ULPFEC packet has been received.
+     * Recovers the media packet protected by it if it is the only missing
+     * one.
+     *
+     * @param fec the received ULPFEC packet
+     * @return <tt>true</tt> if <tt>fec</tt> is a valid ULPFEC packet;
+     * otherwise, <tt>false</tt>
+     */
+    synchronized boolean fecPacketReceived(RawPacket fec)
+    {
+        int headerLength = fec.getHeaderLength();
+        int length = fec.getLength() - fec.getPaddingSize() - headerLength;
+
+        if (length < UlpfecUtils.PAYLOAD_OFFSET)
+            return false;
+
+        byte[] buf = fec.getBuffer();
+        int off = fec.getOffset() + headerLength;
+
+        // Only ULP level 0 with a 16-bit mask is supported.
+        if ((buf[off] & 0xC0) != 0)
+            return false;
+
+        int protectionLength
+            = UlpfecUtils.readUnsignedShort(
+                    buf,
+                    off + UlpfecUtils.FEC_HEADER_LENGTH);
+
+        if ((protectionLength > UlpfecUtils.MAX_PACKET_LENGTH)
+                || (UlpfecUtils.PAYLOAD_OFFSET + protectionLength > length))
+            return false;
+
+        // Take the slot of the oldest pending ULPFEC packet if need be.
+        int slot = -1;
+
+        for (int i = 0; i < MAX_PENDING; i++)
+        {
+            if (fecLengths[i] == 0)
+            {
+                slot = i;
+                break;
+            }
+        }
+        if (slot == -1)
+        {
+            slot = 0;
+            for (int i = 1; i < MAX_PENDING; i++)
+            {
+                if (isOlder(fecBuffers[i], fecBuffers[slot]))
+                    slot = i;
+            }
+        }
+
+        byte[] buffer = fecBuffers[slot];
+
+        if ((buffer == null) || (buffer.length < length))
+        {
+            fecBuffers[slot]
+                = buffer
+                = new byte[
+                        Math.max(
+                                length,
+                                UlpfecUtils.PAYLOAD_OFFSET
+                                    + UlpfecUtils.MAX_PACKET_LENGTH)];
+        }
+        System.arraycopy(buf, off, buffer, 0, length);
+        fecLengths[slot] = length;
+
+        recover();
+        return true;
+    }
+
+    /**
+     * Gets the number of media packets recovered by this decoder.
+     *
+     * @return the number of media packets recovered by this decoder
+     */
+    synchronized long getRecoveredPacketCount()
+    {
+        return recoveredPacketCount;
+    }
+
+    /**
+     * Determines whether a specific media packet is missing i.e. whether it
+     * has not been received (yet).
+     *
+     * @param sequenceNumber the sequence number of the media packet
+     * @return <tt>true</tt> if the media packet with
+     * <tt>sequenceNumber</tt> is missing; otherwise, <tt>false</tt>
+     */
+    private boolean isMissing(int sequenceNumber)
+    {
+        int index = sequenceNumber & (WINDOW_SIZE - 1);
+
+        return
+            (mediaLengths[index] == 0)
+                || (mediaSequenceNumbers[index] != sequenceNumber);
+    }
+
+    /**
+     * Determines whether the SN base of a specific pending ULPFEC packet is
+     * older than the SN base of another.
+     *
+     * @param fec the buffer of the pending ULPFEC packet
+     * @param other the buffer of the other pending ULPFEC packet
+     * @return <tt>true</tt> if the SN base of <tt>fec</tt> is older than the
+     * SN base of <tt>other</tt>; otherwise, <tt>false</tt>
+     */
+    private static boolean isOlder(byte[] fec, byte[] other)
+    {
+        int delta
+            = (UlpfecUtils.readUnsignedShort(other, 2)
+                    - UlpfecUtils.readUnsignedShort(fec, 2))
+                & 0xFFFF;
+
+        return (delta != 0) && (delta < 0x8000);
+    }
+
+    /**
+     * Notifies this decoder that a specific media packet has been received.
+     * Recovers the media packets which have become recoverable thanks to it.
+     *
+     * @param pkt the received media packet
+     */
+    synchronized void mediaPacketReceived(RawPacket pkt)
+    {
+        int length = pkt.getLength();
+
+        if (length > UlpfecUtils.MAX_PACKET_LENGTH)
+            return;
+
+        int sequenceNumber = pkt.getSequenceNumber();
+
+        // A retransmission or a reordered packet which is already known.
+        if (!isMissing(sequenceNumber))
+            return;
+
+        addMedia(pkt.getBuffer(), pkt.getOffset(), length, sequenceNumber);
+        if (hasPendingFec())
+            recover();
+    }
+
+    /**
+     * Determines whether there are pending ULPFEC packets.
+     *
+     * @return <tt>true</tt> if there are pending ULPFEC packets; otherwise,
+     * <tt>false</tt>
+     */
+    private boolean hasPendingFec()
+    {
+        for (int i = 0; i < MAX_PENDING; i++)
+        {
+            if (fecLengths[i] != 0)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Recovers the media packets which are the only missing ones among the
+     * packets protected by a pending ULPFEC packet. Discards the pending ULPFEC
+     * packets which have no missing media packets or which protect media
+     * packets which are no longer kept.
+     */
+    private void recover()
+    {
+        boolean recovered;
+
+        do
+        {
+            recovered = false;
+            for (int i = 0; i < MAX_PENDING; i++)
+            {
+                if (fecLengths[i] == 0)
+                    continue;
+
+                byte[] fec = fecBuffers[i];
+                int snBase = UlpfecUtils.readUnsignedShort(fec, 2);
+                int mask
+                    = UlpfecUtils.readUnsignedShort(
+                            fec,
+                            UlpfecUtils.FEC_HEADER_LENGTH + 2);
+                int missingCount = 0;
+                int missingSequenceNumber = -1;
+                boolean expected = false;
+                boolean stale = false;
+
+                for (int j = 0; j < UlpfecUtils.MAX_GROUP_SIZE; j++)
+                {
+                    if ((mask & (0x8000 >>> j)) == 0)
+                        continue;
+
+                    int sequenceNumber = (snBase + j) & 0xFFFF;
+
+                    if (isMissing(sequenceNumber))
+                    {
+                        int age
+                            = (highestSequenceNumber - sequenceNumber) & 0xFFFF;
+
+                        if (age >= 0x8000)
+                        {
+                            // The media packet is newer than the newest
+                            // received one so it is still expected (e.g. the
+                            // ULPFEC packet has been sent before the last
+                            // media packet of its group).
+                            expected = true;
+                        }
+                        else if (age >= WINDOW_SIZE)
+                        {
+                            stale = true;
+                            break;
+                        }
+                        missingCount++;
+                        missingSequenceNumber = sequenceNumber;
+                    }
+                }
+                if (stale || (missingCount == 0))
+                {
+                    fecLengths[i] = 0;
+                }
+                else if ((missingCount == 1) && !expected)
+                {
+                    fecLengths[i] = 0;
+                    if (recover(fec, snBase, mask, missingSequenceNumber))
+                        recovered = true;
+                }
+            }
+        }
+        while (recovered);
+    }
+
+    /**
+     * Recovers a specific missing media packet from a specific ULPFEC packet
+     * and the other media packets protected by it.
+     *
+     * @param fec the buffer of the ULPFEC packet (without its RTP header)
+     * @param snBase the SN base of <tt>fec</tt>
+     * @param mask the mask of <tt>fec</tt>
+     * @param sequenceNumber the sequence number of the missing media packet
+     * @return <tt>true</tt> if the media packet has been recovered;
+     * otherwise, <tt>false</tt>
+     */
+    private boolean recover(
+            byte[] fec,
+            int snBase,
+            int mask,
+            int sequenceNumber)
+    {
+        int protectionLength
+            = UlpfecUtils.readUnsignedShort(fec, UlpfecUtils.FEC_HEADER_LENGTH);
+        int xor0 = fec[0] & 0xFF;
+        int xor1 = fec[1] & 0xFF;
+        int xorTimestamp = UlpfecUtils.readInt(fec, 4);
+        int xorLength = UlpfecUtils.readUnsignedShort(fec, 8);
+        byte[] parity = recoveryBuffer;
+
+        System.arraycopy(
+                fec, UlpfecUtils.PAYLOAD_OFFSET,
+                parity, 0,
+                protectionLength);
+
+        for (int j = 0; j < UlpfecUtils.MAX_GROUP_SIZE; j++)
+        {
+            if ((mask & (0x8000 >>> j)) == 0)
+                continue;
+
+            int protectedSequenceNumber = (snBase + j) & 0xFFFF;
+
+            if (protectedSequenceNumber == sequenceNumber)
+                continue;
+
+            int index = protectedSequenceNumber & (WINDOW_SIZE - 1);
+            byte[] media = mediaBuffers[index];
+            int payloadLength
+                = mediaLengths[index] - UlpfecUtils.RTP_HEADER_LENGTH;
+
+            if (payloadLength > protectionLength)
+                return false;
+
+            xor0 ^= media[0] & 0xFF;
+            xor1 ^= media[1] & 0xFF;
+            xorTimestamp ^= UlpfecUtils.readInt(media, 4);
+            xorLength ^= payloadLength;
+            UlpfecUtils.xor(
+                    media, UlpfecUtils.RTP_HEADER_LENGTH,
+                    parity, 0,
+                    payloadLength);
+        }
+        if (xorLength > protectionLength)
+            return false;
+
+        int length = UlpfecUtils.RTP_HEADER_LENGTH + xorLength;
+        RawPacket pkt
+            = RawPacketPool.getRawPacket(
+                    RawPacketPool.getBuffer(length),
+                    0,
+                    length);
+        byte[] buf = pkt.getBuffer();
+
+        buf[0] = (byte) (0x80 | (xor0 & 0x3F));
+        buf[1] = (byte) xor1;
+        UlpfecUtils.writeShort(buf, 2, sequenceNumber);
+        UlpfecUtils.writeInt(buf, 4, xorTimestamp);
+        UlpfecUtils.writeInt(buf, 8, ssrc);
+        System.arraycopy(
+                parity, 0,
+                buf, UlpfecUtils.RTP_HEADER_LENGTH,
+                xorLength);
+
+        addMedia(buf, 0, length, sequenceNumber);
+        recoveredPacketCount++;
+        handler.packetRecovered(pkt);
+        return true;
+    }
+
+    /**
+     * Represents a handler of the media packets recovered by an
+     * <tt>UlpfecDecoder</tt>.
+     */
+    interface Handler
+    {
+        /**
+         * Notifies this handler that a specific media packet has been
+         * recovered. The handler becomes the owner of the packet which has
+         * been acquired from the <tt>RawPacketPool</tt>.
+         *
+         * @param pkt the recovered media packet
+         */
+        void packetRecovered(RawPacket pkt);
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package org.jitsi.impl.neomedia.transform.fec;
+
+import org.jitsi.impl.neomedia.*;
+
+/**
+ * Generates ULPFEC packets (RFC 5109) for the media packets of one SSRC. The
+ * media packets are protected in groups of consecutive sequence numbers and
+ * the parity of a group is accumulated as its packets are sent so that the
+ * packets themselves do not have to be kept. A completed ULPFEC packet is
+ * written into a buffer owned by the encoder which is reused for the next
+ * one i.e. the encoder allocates nothing after its initialization.
+ * <p>
+ * The ULPFEC packets are sent with an SSRC and a sequence number space of
+ * their own so that they do not disturb the sequence numbers of the media
+ * packets.
+ * </p>
+ */
+class UlpfecEncoder
+{
+    /**
+     * The number of media packets in the current group.
+     */
+    private int count;
+
+    /**
+     * The buffer into which the ULPFEC packets are written.
+     */
+    private final byte[] fecPacket
+        = new byte[
+                UlpfecUtils.RTP_HEADER_LENGTH
+                    + UlpfecUtils.PAYLOAD_OFFSET
+                    + UlpfecUtils.MAX_PACKET_LENGTH];
+
+    /**
+     * The sequence number of the next ULPFEC packet.
+     */
+    private int fecSequenceNumber;
+
+    /**
+     * The SSRC of the ULPFEC packets.
+     */
+    private final int fecSSRC;
+
+    /**
+     * The number of media packets to be protected by the current group.
+     */
+    private int groupSize;
+
+    /**
+     * The mask of the media packets in the current group. The most
+     * significant of the 16 bits stands for the SN base.
+     */
+    private int mask;
+
+    /**
+     * The XOR of the payloads (i.e. everything after the fixed RTP header) of
+     * the media packets in the current group.
+     */
+    private final byte[] parity = new byte[UlpfecUtils.MAX_PACKET_LENGTH];
+
+    /**
+     * The maximum length of the payloads of the media packets in the current
+     * group.
+     */
+    private int protectionLength;
+
+    /**
+     * The sequence number of the first media packet in the current group.
+     */
+    private int snBase;
+
+    /**
+     * The XOR of the first bytes of the media packets in the current group.
+     */
+    private int xor0;
+
+    /**
+     * The XOR of the second bytes (i.e. the marker bits and the payload
+     * types) of the media packets in the current group.
+     */
+    private int xor1;
+
+    /**
+     * The XOR of the payload lengths of the media packets in the current
+     * group.
+     */
+    private int xorLength;
+
+    /**
+     * The XOR of the timestamps of the media packets in the current group.
+     */
+    private int xorTimestamp;
+
+    /**
+     * Initializes a new <tt>UlpfecEncoder</tt> instance.
+     *
+     * @param fecSSRC the SSRC of the ULPFEC packets to be generated by the
+     * new instance
+     * @param fecSequenceNumber the sequence number of the first ULPFEC packet
+     * to be generated by the new instance
+     */
+    UlpfecEncoder(int fecSSRC, int fecSequenceNumber)
+    {
+        this.fecSSRC = fecSSRC;
+        this.fecSequenceNumber = fecSequenceNumber & 0xFFFF;
+    }
+
+    /**
+     * Adds a specific sent media packet to the current group and generates
+     * the ULPFEC packet of the group if it is complete.
+     *
+     * @param pkt the sent media packet
+     * @param groupSize the number of media packets to be protected by the
+     * group which is to be started with <tt>pkt</tt> (if any)
+     * @param fecPayloadType the RTP payload type of the ULPFEC packets
+     * @return the length of the ULPFEC packet written into the buffer returned
+     * by {@link #getFecPacket()} or <tt>0</tt> if the group of <tt>pkt</tt> is
+     * not complete yet
+     */
+    synchronized int add(RawPacket pkt, int groupSize, byte fecPayloadType)
+    {
+        int length = pkt.getLength();
+        int payloadLength = length - UlpfecUtils.RTP_HEADER_LENGTH;
+
+        if ((payloadLength < 0) || (length > UlpfecUtils.MAX_PACKET_LENGTH))
+        {
+            // The packet cannot be protected so neither can its group.
+            reset();
+            return 0;
+        }
+
+        int sequenceNumber = pkt.getSequenceNumber();
+
+        if (count != 0)
+        {
+            int offset = (sequenceNumber - snBase) & 0xFFFF;
+
+            // The sequence numbers of a group are consecutive. A gap (e.g. a
+            // packet which has been dropped before it has been sent) would
+            // leave the group unrecoverable at the receiver anyway.
+            if (offset != count)
+                reset();
+        }
+        if (count == 0)
+        {
+            snBase = sequenceNumber;
+            this.groupSize
+                = Math.max(1, Math.min(groupSize, UlpfecUtils.MAX_GROUP_SIZE));
+        }
+
+        byte[] buf = pkt.getBuffer();
+        int off = pkt.getOffset();
+
+        xor0 ^= buf[off] & 0xFF;
+        xor1 ^= buf[off + 1] & 0xFF;
+        xorTimestamp ^= UlpfecUtils.readInt(buf, off + 4);
+        xorLength ^= payloadLength;
+        UlpfecUtils.xor(
+                buf, off + UlpfecUtils.RTP_HEADER_LENGTH,
+                parity, 0,
+                payloadLength);
+        if (protectionLength < payloadLength)
+            protectionLength = payloadLength;
+        mask |= 0x8000 >>> count;
+        count++;
+
+        if (count < this.groupSize)
+            return 0;
+
+        int fecPacketLength
+            = writeFecPacket(pkt.getTimestamp(), fecPayloadType);
+
+        reset();
+        return fecPacketLength;
+    }
+
+    /**
+     * Gets the buffer into which the ULPFEC packets are written. The contents
+     * are valid only until the next invocation of
+     * {@link #add(RawPacket, int, byte)}.
+     *
+     * @return the buffer into which the ULPFEC packets are written
+     */
+    byte[] getFecPacket()
+    {
+        return fecPacket;
+    }
+
+    /**
+     * Gets the SSRC of the ULPFEC packets generated by this encoder.
+     *
+     * @return the SSRC of the ULPFEC packets generated by this encoder
+     */
+    int getFecSSRC()
+    {
+        return fecSSRC;
+    }
+
+    /**
+     * Starts a new (empty) group.
+     */
+    private void reset()
+    {
+        for (int i = 0; i < protectionLength; i++)
+            parity[i] = 0;
+        count = 0;
+        mask = 0;
+        protectionLength = 0;
+        xor0 = 0;
+        xor1 = 0;
+        xorLength = 0;
+        xorTimestamp = 0;
+    }
+
+    /**
+     * Writes the ULPFEC packet of the current group into {@link #fecPacket}.
+     *
+     * @param timestamp the RTP timestamp of the ULPFEC packet (i.e. the
+     * timestamp of the last media packet of the group)
+     * @param fecPayloadType the RTP payload type of the ULPFEC packet
+     * @return the length of the ULPFEC packet
+     */
+    private int writeFecPacket(long timestamp, byte fecPayloadType)
+    {
+        byte[] buf = fecPacket;
+
+        // RTP header: version 2 without padding, extension, CSRCs and marker.
+        buf[0] = (byte) 0x80;
+        buf[1] = (byte) (fecPayloadType & 0x7F);
+        UlpfecUtils.writeShort(buf, 2, fecSequenceNumber);
+        fecSequenceNumber = (fecSequenceNumber + 1) & 0xFFFF;
+        UlpfecUtils.writeInt(buf, 4, (int) timestamp);
+        UlpfecUtils.writeInt(buf, 8, fecSSRC);
+
+        // FEC header: E and L are not set, P, X and CC are recovered.
+        int off = UlpfecUtils.RTP_HEADER_LENGTH;
+
+        buf[off] = (byte) (xor0 & 0x3F);
+        buf[off + 1] = (byte) xor1;
+        UlpfecUtils.writeShort(buf, off + 2, snBase);
+        UlpfecUtils.writeInt(buf, off + 4, xorTimestamp);
+        UlpfecUtils.writeShort(buf, off + 8, xorLength);
+
+        // ULP level 0 header.
+        off += UlpfecUtils.FEC_HEADER_LENGTH;
+        UlpfecUtils.writeShort(buf, off, protectionLength);
+        UlpfecUtils.writeShort(buf, off + 2, mask);
+
+        off += UlpfecUtils.LEVEL_HEADER_LENGTH;
+        System.arraycopy(parity, 0, buf, off, protectionLength);
+        return off + protectionLength;
+    }
+}
@@ -0,0 +1,589 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package org.jitsi.impl.neomedia.transform.fec;
+
+import java.io.*;
+import java.util.*;
+
+import org.jitsi.impl.neomedia.*;
+import org.jitsi.impl.neomedia.transform.*;
+import org.jitsi.service.configuration.*;
+import org.jitsi.service.libjitsi.*;
+import org.jitsi.service.neomedia.*;
+import org.jitsi.service.neomedia.codec.*;
+import org.jitsi.util.*;
+
+/**
+ * Implements generic forward error correction with ULPFEC (RFC 5109) for
+ * video streams. When a <tt>ulpfec</tt> payload type has been negotiated, the
+ * sent media packets are protected in groups of up to 16 consecutive packets
+ * by a ULPFEC packet (i.e. the XOR parity of the group) which is sent with an
+ * SSRC of its own. The size of the groups adapts to the loss rate of the sent
+ * packets reported by the remote peer (as measured by the
+ * <tt>StatisticsEngine</tt> into the <tt>MediaStreamStats</tt> of the
+ * stream): about twice as many ULPFEC packets as lost packets are sent.
+ * <p>
+ * The received ULPFEC packets are consumed by the engine. A media packet
+ * which is the only missing one among the packets protected by a received
+ * ULPFEC packet is recovered and handed to the
+ * <tt>RTPConnectorInputStream</tt> of the stream (i.e. before the jitter
+ * buffer and the depacketizer).
+ * </p>
+ */
+public class UlpfecTransformEngine
+    extends SinglePacketTransformer
+    implements TransformEngine
+{
+    /**
+     * The name of the boolean <tt>ConfigurationService</tt> property which
+     * specifies whether the size of the protected groups adapts to the loss
+     * rate. If <tt>false</tt>, the groups are of {@link #MAX_GROUP_SIZE_PNAME}
+     * packets. The default value is <tt>true</tt>.
+     */
+    public static final String ADAPTIVE_PNAME
+        = "org.jitsi.impl.neomedia.transform.fec.UlpfecTransformEngine"
+            + ".adaptive";
+
+    /**
+     * The default value of the property {@link #MAX_GROUP_SIZE_PNAME}.
+     */
+    private static final int DEFAULT_MAX_GROUP_SIZE = 16;
+
+    /**
+     * The default value of the property {@link #MIN_GROUP_SIZE_PNAME}.
+     */
+    private static final int DEFAULT_MIN_GROUP_SIZE = 4;
+
+    /**
+     * The <tt>Logger</tt> used by the <tt>UlpfecTransformEngine</tt> class
+     * and its instances for logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(UlpfecTransformEngine.class);
+
+    /**
+     * The name of the integer <tt>ConfigurationService</tt> property which
+     * specifies the maximum number of media packets protected by a ULPFEC
+     * packet (i.e. the group size when no loss is reported). The default value
+     * is {@link #DEFAULT_MAX_GROUP_SIZE}.
+     */
+    public static final String MAX_GROUP_SIZE_PNAME
+        = "org.jitsi.impl.neomedia.transform.fec.UlpfecTransformEngine"
+            + ".maxGroupSize";
+
+    /**
+     * The name of the integer <tt>ConfigurationService</tt> property which
+     * specifies the minimum number of media packets protected by a ULPFEC
+     * packet (i.e. the group size when a high loss rate is reported). The
+     * default value is {@link #DEFAULT_MIN_GROUP_SIZE}.
+     */
+    public static final String MIN_GROUP_SIZE_PNAME
+        = "org.jitsi.impl.neomedia.transform.fec.UlpfecTransformEngine"
+            + ".minGroupSize";
+
+    /**
+     * Whether the size of the protected groups adapts to the loss rate.
+     */
+    private final boolean adaptive;
+
+    /**
+     * The <tt>AbstractRTPConnector</tt> through which the ULPFEC packets are
+     * sent and to the input stream of which the recovered packets are handed.
+     */
+    private volatile AbstractRTPConnector connector;
+
+    /**
+     * The <tt>UlpfecDecoder</tt>s of the SSRCs received by this instance.
+     */
+    private final CopyOnWriteLongHashMap<UlpfecDecoder> decoders
+        = new CopyOnWriteLongHashMap<UlpfecDecoder>();
+
+    /**
+     * The <tt>UlpfecEncoder</tt>s of the SSRCs sent by this instance.
+     */
+    private final CopyOnWriteLongHashMap<UlpfecEncoder> encoders
+        = new CopyOnWriteLongHashMap<UlpfecEncoder>();
+
+    /**
+     * The number of ULPFEC packets sent by this instance.
+     */
+    private long fecPacketCount;
+
+    /**
+     * The <tt>PacketTransformer</tt> which applies the transformations which
+     * the ULPFEC packets are to undergo before they are sent (e.g. the
+     * encryption) or <tt>null</tt> if they are to be sent as they are.
+     */
+    private volatile PacketTransformer fecPacketTransformer;
+
+    /**
+     * The <tt>UlpfecDecoder</tt>s of the received ULPFEC SSRCs i.e. the
+
+     * decoders of the media SSRCs protected by the received ULPFEC SSRCs.
+     */
+    private final CopyOnWriteLongHashMap<UlpfecDecoder> fecDecoders
+        = new CopyOnWriteLongHashMap<UlpfecDecoder>();
+
+    /**
+     * The <tt>Handler</tt> which hands the recovered packets to the input
+     * stream of {@link #connector}.
+     */
+    private final UlpfecDecoder.Handler handler
+        = new UlpfecDecoder.Handler()
+        {
+            @Override
+            public void packetRecovered(RawPacket pkt)
+            {
+                recovered(pkt);
+            }
+        };
+
+    /**
+     * The maximum number of media packets protected by a ULPFEC packet.
+     */
+    private final int maxGroupSize;
+
+    /**
+     * The <tt>MediaStreamImpl</tt> whose packets are protected by this
+     * instance.
+     */
+    private final MediaStreamImpl mediaStream;
+
+    /**
+     * The minimum number of media packets protected by a ULPFEC packet.
+     */
+    private final int minGroupSize;
+
+    /**
+     * The <tt>Random</tt> used to generate the SSRCs and the initial sequence
+     * numbers of the ULPFEC packets.
+     */
+    private final Random random = new Random();
+
+    /**
+     * The <tt>PacketTransformer</tt> which applies the reverse
+     * transformations which the recovered packets are to undergo before they
+     * are handed to the input stream of {@link #connector} (e.g. the engines
+     * which follow this instance in the reverse transformation of the
+     * received packets such as the NACK engine) or <tt>null</tt> if they are
+     * to be handed as they are.
+     */
+    private volatile PacketTransformer recoveredPacketTransformer;
+
+    /**
+     * Initializes a new <tt>UlpfecTransformEngine</tt> instance.
+     *
+     * @param mediaStream the <tt>MediaStreamImpl</tt> whose packets are to be
+     * protected by the new instance
+     */
+    public UlpfecTransformEngine(MediaStreamImpl mediaStream)
+    {
+        this.mediaStream = mediaStream;
+
+        ConfigurationService cfg = LibJitsi.getConfigurationService();
+        boolean adaptive = true;
+        int maxGroupSize = DEFAULT_MAX_GROUP_SIZE;
+        int minGroupSize = DEFAULT_MIN_GROUP_SIZE;
+
+        if (cfg != null)
+        {
+            adaptive = cfg.getBoolean(ADAPTIVE_PNAME, adaptive);
+            maxGroupSize = cfg.getInt(MAX_GROUP_SIZE_PNAME, maxGroupSize);
+            minGroupSize = cfg.getInt(MIN_GROUP_SIZE_PNAME, minGroupSize);
+        }
+        this.adaptive = adaptive;
+        this.maxGroupSize
+            = Math.max(1, Math.min(maxGroupSize, UlpfecUtils.MAX_GROUP_SIZE));
+        this.minGroupSize
+            = Math.max(1, Math.min(minGroupSize, this.maxGroupSize));
+    }
+
+    /**
+     * Closes this <tt>PacketTransformer</tt>.
+     */
+    public void close()
+    {
+    }
+
+    /**
+     * Gets the number of ULPFEC packets sent by this instance.
+     *
+     * @return the number of ULPFEC packets sent by this instance
+     */
+    public synchronized long getFecPacketCount()
+    {
+        return fecPacketCount;
+    }
+
+    /**
+     * Gets the number of media packets to be protected by a ULPFEC packet
+     * given the loss rate currently reported by the remote peer.
+     *
+     * @return the number of media packets to be protected by a ULPFEC packet
+     */
+    private int getGroupSize()
+    {
+        if (!adaptive)
+            return maxGroupSize;
+
+        MediaStreamStats stats = mediaStream.getMediaStreamStats();
+        double percentLoss = (stats == null) ? 0 : stats.getUploadPercentLoss();
+
+        return getGroupSize(percentLoss, minGroupSize, maxGroupSize);
+    }
+
+    /**
+     * Gets the number of media packets to be protected by a ULPFEC packet
+     * given a specific loss rate so that about twice as many ULPFEC packets as
+     * lost packets are sent.
+     *
+     * @param percentLoss the loss rate in percent
+     * @param minGroupSize the minimum number of media packets to be protected
+     * by a ULPFEC packet
+     * @param maxGroupSize the maximum number of media packets to be protected
+     * by a ULPFEC packet
+     * @return the number of media packets to be protected by a ULPFEC packet
+     */
+    static int getGroupSize(
+            double percentLoss,
+            int minGroupSize,
+            int maxGroupSize)
+    {
+        if (percentLoss <= 0)
+            return maxGroupSize;
+
+        int groupSize = (int) (50 / percentLoss);
+
+        return Math.max(minGroupSize, Math.min(groupSize, maxGroupSize));
+    }
+
+    /**
+     * Gets the number of lost media packets which have been recovered from
+     * the received ULPFEC packets.
+     *
+     * @return the number of lost media packets which have been recovered
+     */
+    public long getRecoveredPacketCount()
+    {
+        long recoveredPacketCount = 0;
+
+        for (long ssrc : decoders.keys())
+        {
+            UlpfecDecoder decoder = decoders.get(ssrc);
+
+            if (decoder != null)
+                recoveredPacketCount += decoder.getRecoveredPacketCount();
+        }
+        return recoveredPacketCount;
+    }
+
+    /**
+     * Always returns <tt>null</tt> since this engine does not require any
+     * RTCP transformations.
+     *
+     * @return <tt>null</tt> since this engine does not require any RTCP
+     * transformations
+     */
+    public PacketTransformer getRTCPTransformer()
+    {
+        return null;
+    }
+
+    /**
+     * Returns a reference to this class since it is performing RTP
+     * transformations in here.
+     *
+     * @return a reference to <tt>this</tt> instance of the
+     * <tt>UlpfecTransformEngine</tt>
+     */
+    public PacketTransformer getRTPTransformer()
+    {
+        return this;
+    }
+
+    /**
+     * Reverse-transforms a specific recovered packet by
+     * {@link #recoveredPacketTransformer} (so that, for example, the NACK
+     * engine knows it no longer misses it) and hands it to the input stream
+     * of {@link #connector}.
+     *
+     * @param pkt the recovered packet acquired from the
+     * <tt>RawPacketPool</tt>
+     */
+    private void recovered(RawPacket pkt)
+    {
+        AbstractRTPConnector connector = this.connector;
+        PacketTransformer recoveredPacketTransformer
+            = this.recoveredPacketTransformer;
+
+        if ((connector != null) && (recoveredPacketTransformer != null))
+        {
+            RawPacket reverseTransformed
+                = recoveredPacketTransformer.reverseTransform(pkt);
+
+            if (reverseTransformed == null)
+            {
+                RawPacketPool.returnRawPacket(pkt);
+                return;
+            }
+            pkt = reverseTransformed;
+        }
+        if (connector != null)
+        {
+            try
+            {
+                connector.getDataInputStream().transferPacket(pkt);
+                return;
+            }
+            catch (IOException ioe)
+            {
+                logger.warn("Failed to deliver a recovered RTP packet.", ioe);
+            }
+        }
+        RawPacketPool.returnRawPacket(pkt);
+    }
+
+    /**
+     * Consumes a specific received packet if it is a ULPFEC packet and
+     * recovers the media packets which have become recoverable thanks to it.
+     * Media packets are remembered and passed through without modification.
+     *
+     * @param pkt the received packet
+     * @return <tt>null</tt> if <tt>pkt</tt> is a ULPFEC packet; otherwise,
+     * <tt>pkt</tt>
+     */
+    public RawPacket reverseTransform(RawPacket pkt)
+    {
+        if (pkt == null)
+            return pkt;
+
+        byte fecPayloadType
+            = mediaStream.getDynamicRTPPayloadType(Constants.ULPFEC);
+
+        if (fecPayloadType == -1)
+            return pkt;
+
+        long ssrc = pkt.getSSRC() & 0xFFFFFFFFL;
+
+        if (pkt.getPayloadType() != fecPayloadType)
+        {
+            UlpfecDecoder decoder = decoders.get(ssrc);
+
+            if (decoder == null)
+            {
+                decoder = new UlpfecDecoder((int) ssrc, handler);
+
+                UlpfecDecoder existingDecoder
+                    = decoders.putIfAbsent(ssrc, decoder);
+
+                if (existingDecoder != null)
+                    decoder = existingDecoder;
+            }
+            decoder.mediaPacketReceived(pkt);
+            return pkt;
+        }
+
+        // The ULPFEC packets do not carry the SSRC they protect so find the
+        // media SSRC the sequence numbers of which they protect.
+        UlpfecDecoder decoder = fecDecoders.get(ssrc);
+
+        if ((decoder == null) || !decoder.accepts(pkt))
+        {
+            decoder = null;
+            for (long mediaSSRC : decoders.keys())
+            {
+                UlpfecDecoder mediaDecoder = decoders.get(mediaSSRC);
+
+                if ((mediaDecoder != null) && mediaDecoder.accepts(pkt))
+                {
+                    decoder = mediaDecoder;
+                    fecDecoders.put(ssrc, decoder);
+                    break;
+                }
+            }
+        }
+        if ((decoder != null)
+                && !decoder.fecPacketReceived(pkt)
+                && logger.isTraceEnabled())
+        {
+            logger.trace("Dropping a malformed ULPFEC packet.");
+        }
+        return null;
+    }
+
+    /**
+     * Sets the <tt>AbstractRTPConnector</tt> through which the ULPFEC packets
+     * are to be sent and to the input stream of which the recovered packets
+     * are to be handed.
+     *
+     * @param connector the <tt>AbstractRTPConnector</tt> through which the
+     * ULPFEC packets are to be sent and to the input stream of which the
+     * recovered packets are to be handed
+     */
+    public void setConnector(AbstractRTPConnector connector)
+    {
+        this.connector = connector;
+    }
+
+    /**
+     * Sets the <tt>PacketTransformer</tt> which is to apply the
+     * transformations which the ULPFEC packets are to undergo before they are
+     * sent (e.g. the engines which follow this instance in the
+     * <tt>TransformEngineChain</tt> of the <tt>MediaStream</tt> such as the
+     * encryption).
+     *
+     * @param fecPacketTransformer the <tt>PacketTransformer</tt> which is to
+     * transform the ULPFEC packets or <tt>null</tt> if they are to be sent as
+     * they are
+     */
+    public void setFecPacketTransformer(
+            PacketTransformer fecPacketTransformer)
+    {
+        this.fecPacketTransformer = fecPacketTransformer;
+    }
+
+    /**
+     * Sets the <tt>PacketTransformer</tt> which is to apply the reverse
+     * transformations which the recovered packets are to undergo before they
+     * are handed to the input stream of the <tt>AbstractRTPConnector</tt>
+     * (e.g. the engines which precede this instance in the
+     * <tt>TransformEngineChain</tt> of the <tt>MediaStream</tt> and,
+     * consequently, follow it in the reverse transformation of the received
+     * packets).
+     *
+     * @param recoveredPacketTransformer the <tt>PacketTransformer</tt> which
+     * is to reverse-transform the recovered packets or <tt>null</tt> if they
+     * are to be handed as they are
+     */
+    public void setRecoveredPacketTransformer(
+            PacketTransformer recoveredPacketTransformer)
+    {
+        this.recoveredPacketTransformer = recoveredPacketTransformer;
+    }
+
+    /**
+     * Adds a specific media packet to be sent to its protected group and
+     * sends the ULPFEC packet of the group if it is complete. The ULPFEC
+     * packet is written to the output stream before <tt>pkt</tt> itself but
+     * is paced as a retransmission i.e. may be sent after <tt>pkt</tt>.
+     *
+     * @param pkt the packet to be sent
+     * @return <tt>pkt</tt>
+     */
+    public RawPacket transform(RawPacket pkt)
+    {
+        AbstractRTPConnector connector = this.connector;
+
+        if ((pkt == null) || (connector == null))
+            return pkt;
+
+        byte fecPayloadType
+            = mediaStream.getDynamicRTPPayloadType(Constants.ULPFEC);
+
+        // Only the media packets of the local SSRC are protected (and not
+        // e.g. the ULPFEC packets themselves or the retransmissions).
+        if ((fecPayloadType == -1)
+                || (pkt.getPayloadType() == fecPayloadType)
+                || ((pkt.getSSRC() & 0xFFFFFFFFL)
+                        != mediaStream.getLocalSourceID()))
+            return pkt;
+
+        long ssrc = pkt.getSSRC() & 0xFFFFFFFFL;
+        UlpfecEncoder encoder = encoders.get(ssrc);
+
+        if (encoder == null)
+        {
+            int fecSSRC;
+
+            do
+            {
+                fecSSRC = random.nextInt();
+            }
+            while (fecSSRC == (int) ssrc);
+
+            encoder = new UlpfecEncoder(fecSSRC, random.nextInt());
+
+            UlpfecEncoder existingEncoder
+                = encoders.putIfAbsent(ssrc, encoder);
+
+            if (existingEncoder != null)
+                encoder = existingEncoder;
+        }
+
+        RawPacket fec = null;
+
+        synchronized (encoder)
+        {
+            int fecPacketLength
+                = encoder.add(pkt, getGroupSize(), fecPayloadType);
+
+            // The buffer of the encoder is reused for the next ULPFEC packet.
+            if (fecPacketLength > 0)
+            {
+                fec = RawPacketPool.getRawPacket(fecPacketLength);
+                System.arraycopy(
+                        encoder.getFecPacket(), 0,
+                        fec.getBuffer(), 0,
+                        fecPacketLength);
+                fec.setLength(fecPacketLength);
+            }
+        }
+        if (fec != null)
+            sendFecPacket(connector, fec);
+        return pkt;
+    }
+
+    /**
+     * Sends a specific ULPFEC packet. The packet is transformed by
+     * {@link #fecPacketTransformer} only (rather than by the whole
+     * <tt>TransformEngineChain</tt> of the <tt>MediaStream</tt> again, which
+     * would, for example, count it as a sent media packet and protect it
+     * with ULPFEC) and is paced as a retransmission.
+     *
+     * @param connector the <tt>AbstractRTPConnector</tt> through which
+     * <tt>fec</tt> is to be sent
+     * @param fec the ULPFEC packet acquired from the <tt>RawPacketPool</tt>
+     * to be sent
+     */
+    private void sendFecPacket(AbstractRTPConnector connector, RawPacket fec)
+    {
+        PacketTransformer fecPacketTransformer = this.fecPacketTransformer;
+
+        if (fecPacketTransformer != null)
+        {
+            RawPacket transformed = fecPacketTransformer.transform(fec);
+
+            if (transformed == null)
+            {
+                RawPacketPool.returnRawPacket(fec);
+                return;
+            }
+            fec = transformed;
+        }
+
+        try
+        {
+            boolean written
+                = connector.getDataOutputStream().writeTransformed(
+                        fec,
+                        RTPPacer.Priority.RETRANSMISSION);
+
+            if (written)
+            {
+                synchronized (this)
+                {
+                    fecPacketCount++;
+                }
+            }
+        }
+        catch (IOException ioe)
+        {
+            RawPacketPool.returnRawPacket(fec);
+            logger.warn("Failed to send a ULPFEC packet.", ioe);
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package org.jitsi.impl.neomedia.transform.fec;
+
+/**
+ * Defines the layout of the ULPFEC packets (RFC 5109) sent and received by
+ * <tt>UlpfecEncoder</tt> and <tt>UlpfecDecoder</tt> and implements the XOR
+ * kernel which computes and applies their parity. A ULPFEC packet carries a
+ * single protection level (level 0) with a 16-bit mask i.e. it protects up to
+ * {@link #MAX_GROUP_SIZE} media packets with consecutive sequence numbers
+ * starting at its SN base.
+ */
+final class UlpfecUtils
+{
+    /**
+     * The length in bytes of the FEC header of a ULPFEC packet.
+     */
+    static final int FEC_HEADER_LENGTH = 10;
+
+    /**
+     * The length in bytes of the ULP level header with a 16-bit mask (i.e.
+     * the L bit of the FEC header is not set).
+     */
+    static final int LEVEL_HEADER_LENGTH = 4;
+
+    /**
+     * The maximum number of media packets protected by a ULPFEC packet (i.e.
+     * the number of bits of the mask of its ULP level header).
+     */
+    static final int MAX_GROUP_SIZE = 16;
+
+    /**
+     * The maximum length in bytes of a protected media packet.
+     */
+    static final int MAX_PACKET_LENGTH = 1500;
+
+    /**
+     * The offset of the payload of a ULPFEC packet relative to the end of its
+     * RTP header.
+     */
+    static final int PAYLOAD_OFFSET = FEC_HEADER_LENGTH + LEVEL_HEADER_LENGTH;
+
+    /**
+     * The length in bytes of the fixed RTP header which is not protected
+     * byte for byte but through the recovery fields of the FEC header.
+     */
+    static final int RTP_HEADER_LENGTH = 12;
+
+    /**
+     * Reads a 32-bit big-endian integer from a specific buffer.
+     *
+     * @param buf the buffer to read from
+     * @param off the offset in <tt>buf</tt> at which to read
+     * @return the 32-bit integer read from <tt>buf</tt> at <tt>off</tt>
+     */
+    static int readInt(byte[] buf, int off)
+    {
+        return
+            ((buf[off] & 0xFF) << 24)
+                | ((buf[off + 1] & 0xFF) << 16)
+                | ((buf[off + 2] & 0xFF) << 8)
+                | (buf[off + 3] & 0xFF);
+    }
+
+    /**
+     * Reads a 16-bit big-endian unsigned integer from a specific buffer.
+     *
+     * @param buf the buffer to read from
+     * @param off the offset in <tt>buf</tt> at which to read
+     * @return the 16-bit unsigned integer read from <tt>buf</tt> at
+     * <tt>off</tt>
+     */
+    static int readUnsignedShort(byte[] buf, int off)
+    {
+        return ((buf[off] & 0xFF) << 8) | (buf[off + 1] & 0xFF);
+    }
+
+    /**
+     * Writes a 32-bit big-endian integer into a specific buffer.
+     *
+     * @param buf the buffer to write into
+     * @param off the offset in <tt>buf</tt> at which to write
+     * @param value the value to write
+     */
+    static void writeInt(byte[] buf, int off, int value)
+    {
+        buf[off] = (byte) (value >>> 24);
+        buf[off + 1] = (byte) (value >>> 16);
+        buf[off + 2] = (byte) (value >>> 8);
+        buf[off + 3] = (byte) value;
+    }
+
+    /**
+     * Writes a 16-bit big-endian integer into a specific buffer.
+     *
+     * @param buf the buffer to write into
+     * @param off the offset in <tt>buf</tt> at which to write
+     * @param value the value to write
+     */
+    static void writeShort(byte[] buf, int off, int value)
+    {
+        buf[off] = (byte) (value >>> 8);
+        buf[off + 1] = (byte) value;
+    }
+
+    /**
+     * XORs a range of a specific source buffer into a range of a specific
+     * destination buffer. Allocates nothing. The loop is simple enough to be
+     * unrolled and vectorized by the just-in-time compiler.
+     *
+     * @param src the buffer to XOR into <tt>dst</tt>
+     * @param srcOff the offset in <tt>src</tt> of the range to XOR
+     * @param dst the buffer to XOR <tt>src</tt> into
+     * @param dstOff the offset in <tt>dst</tt> of the range to XOR into
+     * @param len the number of bytes to XOR
+     */
+    static void xor(byte[] src, int srcOff, byte[] dst, int dstOff, int len)
+    {
+        for (int i = 0; i < len; i++)
+            dst[dstOff + i] ^= src[srcOff + i];
+    }
+
+    /**
+     * Prevents the initialization of <tt>UlpfecUtils</tt> instances.
+     */
+    private UlpfecUtils()
+    {
+    }
+}
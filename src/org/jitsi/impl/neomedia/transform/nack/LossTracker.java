@@ -0,0 +1,334 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package org.jitsi.impl.neomedia.transform.nack;
+
+/**
+ * Tracks the RTP sequence numbers of the packets received from one SSRC and
+ * the packets which are missing among them. The missing packets are kept in a
+ * bitmap over a window of the {@link #WINDOW_SIZE} most recent sequence
+ * numbers along with the time at which each of them is to be NACKed next and
+ * the number of times it has been NACKed already. Packets which fall out of
+ * the window are no longer tracked (i.e. they are given up).
+ */
+class LossTracker
+{
+    /**
+     * The number of most recent sequence numbers tracked by a
+     * <tt>LossTracker</tt>. Must be a power of two.
+     */
+    static final int WINDOW_SIZE = 1024;
+
+    /**
+     * The number of packets (ever) given up by this tracker because they have
+     * been NACKed the maximum number of times.
+     */
+    private long givenUpPacketCount;
+
+    /**
+     * The highest sequence number received by this tracker or <tt>-1</tt> if
+     * no packet has been received yet.
+     */
+    private int highestSequenceNumber = -1;
+
+    /**
+     * The time in milliseconds at which a PLI has been requested by this
+     * tracker most recently.
+     */
+    long lastPliTime;
+
+    /**
+     * The time in milliseconds at which a packet has been received by this
+     * tracker most recently.
+     */
+    volatile long lastReceivedTime;
+
+    /**
+     * The bitmap of the missing packets indexed by the low bits of their
+     * sequence numbers.
+     */
+    private final long[] missing = new long[WINDOW_SIZE / 64];
+
+    /**
+     * The number of bits set in {@link #missing}.
+     */
+    private int missingCount;
+
+    /**
+     * The number of times that the missing packets have been NACKed indexed
+     * by the low bits of their sequence numbers.
+     */
+    private final byte[] nackCounts = new byte[WINDOW_SIZE];
+
+    /**
+     * The times in milliseconds at which the missing packets are to be NACKed
+     * next indexed by the low bits of their sequence numbers.
+     */
+    private final long[] nackTimes = new long[WINDOW_SIZE];
+
+    /**
+     * The number of missing packets which have been received later on (e.g.
+     * retransmitted or reordered).
+     */
+    private long recoveredPacketCount;
+
+    /**
+     * The SSRC tracked by this instance.
+     */
+    final long ssrc;
+
+    /**
+     * Initializes a new <tt>LossTracker</tt> instance.
+     *
+     * @param ssrc the SSRC to be tracked by the new instance
+     */
+    LossTracker(long ssrc)
+    {
+        this.ssrc = ssrc;
+    }
+
+    /**
+     * Clears the bit of a specific sequence number in the bitmap of the
+     * missing packets.
+     *
+     * @param sequenceNumber the sequence number to clear the bit of
+     * @return <tt>true</tt> if the bit was set; otherwise, <tt>false</tt>
+     */
+    private boolean clearMissing(int sequenceNumber)
+    {
+        int index = sequenceNumber & (WINDOW_SIZE - 1);
+        long bit = 1L << (index & 63);
+        int word = index >>> 6;
+
+        if ((missing[word] & bit) == 0)
+            return false;
+
+        missing[word] &= ~bit;
+        missingCount--;
+        return true;
+    }
+
+    /**
+     * Collects the missing packets which are due to be NACKed and encodes
+     * them as generic NACK feedback control information (i.e. PID and BLP
+     * pairs as defined by RFC 4585). The packets which have been NACKed the
+     * maximum number of times are given up instead.
+     *
+     * @param now the current time in milliseconds
+     * @param retryInterval the time in milliseconds after which a NACKed
+     * packet is to be NACKed again if it is still missing
+     * @param maxRetries the maximum number of times a missing packet is to be
+     * NACKed
+     * @return the generic NACK feedback control information for the missing
+     * packets which are due to be NACKed or <tt>null</tt> if there are none
+     */
+    synchronized byte[] createNackFCI(
+            long now,
+            long retryInterval,
+            int maxRetries)
+    {
+        if (missingCount == 0)
+            return null;
+
+        // There may be as many PID and BLP pairs as there are missing packets.
+        int maxFciLength = 4 * missingCount;
+        byte[] fci = null;
+        int fciLength = 0;
+        int pid = -1;
+        int blp = 0;
+
+        // Go from the oldest to the newest sequence number in the window so
+        // that the PIDs are in ascending order.
+        for (int i = WINDOW_SIZE - 1; i >= 0; i--)
+        {
+            int sequenceNumber = (highestSequenceNumber - i) & 0xFFFF;
+            int index = sequenceNumber & (WINDOW_SIZE - 1);
+
+            if ((missing[index >>> 6] & (1L << (index & 63))) == 0
+                    || (nackTimes[index] > now))
+            {
+                continue;
+            }
+            if (nackCounts[index] >= maxRetries)
+            {
+                clearMissing(sequenceNumber);
+                givenUpPacketCount++;
+                continue;
+            }
+
+            nackCounts[index]++;
+            nackTimes[index] = now + retryInterval;
+
+            if (pid != -1)
+            {
+                int distance = (sequenceNumber - pid) & 0xFFFF;
+
+                if (distance <= 16)
+                {
+                    blp |= 1 << (distance - 1);
+                    continue;
+                }
+
+                if (fci == null)
+                    fci = new byte[maxFciLength];
+                fciLength = writeFCI(fci, fciLength, pid, blp);
+            }
+            pid = sequenceNumber;
+            blp = 0;
+        }
+        if (pid == -1)
+            return null;
+
+        if (fci == null)
+            fci = new byte[4];
+        fciLength = writeFCI(fci, fciLength, pid, blp);
+        if (fciLength != fci.length)
+        {
+            byte[] newFci = new byte[fciLength];
+
+            System.arraycopy(fci, 0, newFci, 0, fciLength);
+            fci = newFci;
+        }
+        return fci;
+    }
+
+    /**
+     * Gets the number of packets given up by this tracker because they have
+     * been NACKed the maximum number of times.
+     *
+     * @return the number of packets given up by this tracker
+     */
+    synchronized long getGivenUpPacketCount()
+    {
+        return givenUpPacketCount;
+    }
+
+    /**
+     * Gets the number of packets currently missing.
+     *
+     * @return the number of packets currently missing
+     */
+    synchronized int getMissingCount()
+    {
+        return missingCount;
+    }
+
+    /**
+     * Gets the number of missing packets which have been received later on.
+     *
+     * @return the number of missing packets which have been received later on
+     */
+    synchronized long getRecoveredPacketCount()
+    {
+        return recoveredPacketCount;
+    }
+
+    /**
+     * Notifies this tracker that a packet with a specific sequence number has
+     * been received. Marks the sequence numbers skipped since the highest
+     * received one as missing.
+     *
+     * @param sequenceNumber the sequence number of the received packet
+     * @param firstNackTime the time in milliseconds at which the packets
+     * found to be missing are to be NACKed for the first time
+     * @param maxMissingCount the maximum number of missing packets which are
+     * to be tracked
+     * @return <tt>false</tt> if the number of missing packets exceeded
+     * <tt>maxMissingCount</tt> (in which case this tracker has stopped
+     * tracking them); otherwise, <tt>true</tt>
+     */
+    synchronized boolean packetReceived(
+            int sequenceNumber,
+            long firstNackTime,
+            int maxMissingCount)
+    {
+        if (highestSequenceNumber == -1)
+        {
+            highestSequenceNumber = sequenceNumber;
+            return true;
+        }
+
+        int delta = (sequenceNumber - highestSequenceNumber) & 0xFFFF;
+
+        if (delta == 0)
+            return true;
+
+        if (delta >= 0x8000)
+        {
+            // A late packet (e.g. a retransmission).
+            if ((0x10000 - delta) < WINDOW_SIZE
+                    && clearMissing(sequenceNumber))
+            {
+                recoveredPacketCount++;
+            }
+            return true;
+        }
+
+        if (delta - 1 > maxMissingCount)
+        {
+            reset();
+            highestSequenceNumber = sequenceNumber;
+            return false;
+        }
+
+        for (int i = 1; i < delta; i++)
+        {
+            int missingSequenceNumber
+                = (highestSequenceNumber + i) & 0xFFFF;
+            int index = missingSequenceNumber & (WINDOW_SIZE - 1);
+            long bit = 1L << (index & 63);
+            int word = index >>> 6;
+
+            // The slot may still hold a missing packet which has just fallen
+            // out of the window.
+            if ((missing[word] & bit) == 0)
+            {
+                missing[word] |= bit;
+                missingCount++;
+            }
+            nackCounts[index] = 0;
+            nackTimes[index] = firstNackTime;
+        }
+        clearMissing(sequenceNumber);
+        highestSequenceNumber = sequenceNumber;
+
+        if (missingCount > maxMissingCount)
+        {
+            reset();
+            highestSequenceNumber = sequenceNumber;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Forgets about all missing packets.
+     */
+    synchronized void reset()
+    {
+        for (int i = 0; i < missing.length; i++)
+            missing[i] = 0;
+        missingCount = 0;
+    }
+
+    /**
+     * Writes a PID and BLP pair into a specific buffer.
+     *
+     * @param fci the buffer to write into
+     * @param off the offset in <tt>fci</tt> at which to write
+     * @param pid the PID to write
+     * @param blp the BLP to write
+     * @return the offset in <tt>fci</tt> after the written pair
+     */
+    private static int writeFCI(byte[] fci, int off, int pid, int blp)
+    {
+        fci[off++] = (byte) (pid >> 8);
+        fci[off++] = (byte) pid;
+        fci[off++] = (byte) (blp >> 8);
+        fci[off++] = (byte) blp;
+        return off;
+    }
+}
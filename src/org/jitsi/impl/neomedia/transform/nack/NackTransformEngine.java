@@ -0,0 +1,591 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package org.jitsi.impl.neomedia.transform.nack;
+
+import java.io.*;
+import java.util.*;
+
+import org.jitsi.impl.neomedia.*;
+import org.jitsi.impl.neomedia.transform.*;
+import org.jitsi.service.configuration.*;
+import org.jitsi.service.libjitsi.*;
+import org.jitsi.service.neomedia.*;
+import org.jitsi.service.neomedia.event.*;
+import org.jitsi.util.*;
+
+/**
+ * Requests the retransmission of the RTP packets lost on the way from the
+ * remote peer with generic NACKs (RFC 4585). Tracks the sequence numbers
+ * received from each remote SSRC, NACKs the missing packets after a short
+ * reordering delay, NACKs them again once per round-trip time while they are
+ * still missing (up to a maximum number of times) and requests a key frame
+ * with a PLI instead when too many packets are missing for retransmissions to
+ * be worth it.
+ *
+ * The engine is disabled by default. It is enabled by the
+ * <tt>MediaStreamImpl</tt> when the remote peer is able to retransmit (i.e.
+ * when an RTX payload type has been negotiated) or with
+ * {@link #setEnabled(boolean)}.
+ */
+public class NackTransformEngine
+    extends SinglePacketTransformer
+    implements TransformEngine
+{
+    /**
+     * The default value of the property {@link #MAX_MISSING_PNAME}.
+     */
+    private static final int DEFAULT_MAX_MISSING = 100;
+
+    /**
+     * The default value of the property {@link #MAX_RETRIES_PNAME}.
+     */
+    private static final int DEFAULT_MAX_RETRIES = 3;
+
+    /**
+     * The interval in milliseconds at which a NACKed packet is NACKed again
+     * if it is still missing and the round-trip time is not known.
+     */
+    private static final long DEFAULT_RETRY_INTERVAL = 100;
+
+    /**
+     * The <tt>Logger</tt> used by the <tt>NackTransformEngine</tt> class and
+     * its instances for logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(NackTransformEngine.class);
+
+    /**
+     * The name of the integer <tt>ConfigurationService</tt> property which
+     * specifies the maximum number of packets of an SSRC which may be missing
+     * at the same time. When more packets are missing, they are not NACKed
+     * and a key frame is requested with a PLI instead. The default value is
+     * {@link #DEFAULT_MAX_MISSING}.
+     */
+    public static final String MAX_MISSING_PNAME
+        = "org.jitsi.impl.neomedia.transform.nack.NackTransformEngine"
+            + ".maxMissing";
+
+    /**
+     * The name of the integer <tt>ConfigurationService</tt> property which
+     * specifies the maximum number of times a missing packet is NACKed. The
+     * default value is {@link #DEFAULT_MAX_RETRIES}.
+     */
+    public static final String MAX_RETRIES_PNAME
+        = "org.jitsi.impl.neomedia.transform.nack.NackTransformEngine"
+            + ".maxRetries";
+
+    /**
+     * The minimum interval in milliseconds between two PLIs requested for the
+     * same SSRC.
+     */
+    private static final long MIN_PLI_INTERVAL = 500;
+
+    /**
+     * The interval in milliseconds at which the missing packets are checked
+     * for being due to be NACKed.
+     */
+    private static final long PROCESS_INTERVAL = 10;
+
+    /**
+     * The time in milliseconds after which the <tt>LossTracker</tt> of an SSRC
+     * which has not been received is discarded.
+     */
+    private static final long TRACKER_EXPIRATION = 30000;
+
+    /**
+     * The time in milliseconds to wait for a missing packet to arrive out of
+     * order before it is NACKed for the first time.
+     */
+    private static final long REORDERING_DELAY = 10;
+
+    /**
+     * The time in milliseconds added to the round-trip time in order to get
+     * the interval at which a NACKed packet is NACKed again.
+     */
+    private static final long RETRY_MARGIN = 10;
+
+    /**
+     * The <tt>Timer</tt> which checks the missing packets of all
+     * <tt>NackTransformEngine</tt>s for being due to be NACKed.
+     */
+    private static Timer timer;
+
+    /**
+     * Gets the <tt>Timer</tt> which checks the missing packets of all
+     * <tt>NackTransformEngine</tt>s for being due to be NACKed and creates it
+     * if it does not exist yet.
+     *
+     * @return the <tt>Timer</tt> which checks the missing packets of all
+     * <tt>NackTransformEngine</tt>s
+     */
+    private static synchronized Timer getTimer()
+    {
+        if (timer == null)
+            timer = new Timer(NackTransformEngine.class.getName(), true);
+        return timer;
+    }
+
+    /**
+     * Whether this engine has been closed. The missing packets of a closed
+     * engine are no longer checked.
+     */
+    private boolean closed = false;
+
+    /**
+     * The <tt>AbstractRTPConnector</tt> through which the NACKs and PLIs are
+     * to be sent.
+     */
+    private volatile AbstractRTPConnector connector;
+
+    /**
+     * Whether this engine is enabled.
+     */
+    private volatile boolean enabled = false;
+
+    /**
+     * The maximum number of packets of an SSRC which may be missing at the
+     * same time.
+     */
+    private final int maxMissing;
+
+    /**
+     * The maximum number of times a missing packet is NACKed.
+     */
+    private final int maxRetries;
+
+    /**
+     * The <tt>MediaStreamImpl</tt> whose received RTP packets are tracked by
+     * this instance.
+     */
+    private final MediaStreamImpl mediaStream;
+
+    /**
+     * The number of packets NACKed (including the repeated NACKs of the same
+     * packets) by this instance.
+     */
+    private long nackedPacketCount;
+
+    /**
+     * The number of PLIs requested by this instance.
+     */
+    private long pliCount;
+
+    /**
+     * The <tt>TimerTask</tt> which checks the missing packets of this
+     * instance for being due to be NACKed or <tt>null</tt> if no packets are
+     * missing.
+     */
+    private TimerTask timerTask;
+
+    /**
+     * The <tt>LossTracker</tt>s of the SSRCs received by this instance.
+     */
+    private final CopyOnWriteLongHashMap<LossTracker> trackers
+        = new CopyOnWriteLongHashMap<LossTracker>();
+
+    /**
+     * Initializes a new <tt>NackTransformEngine</tt> instance.
+     *
+     * @param mediaStream the <tt>MediaStreamImpl</tt> whose received RTP
+     * packets are to be tracked by the new instance
+     */
+    public NackTransformEngine(MediaStreamImpl mediaStream)
+    {
+        this.mediaStream = mediaStream;
+
+        ConfigurationService cfg = LibJitsi.getConfigurationService();
+        int maxMissing = DEFAULT_MAX_MISSING;
+        int maxRetries = DEFAULT_MAX_RETRIES;
+
+        if (cfg != null)
+        {
+            maxMissing = cfg.getInt(MAX_MISSING_PNAME, maxMissing);
+            maxRetries = cfg.getInt(MAX_RETRIES_PNAME, maxRetries);
+        }
+        this.maxMissing
+            = Math.max(0, Math.min(maxMissing, LossTracker.WINDOW_SIZE - 1));
+        this.maxRetries = Math.max(0, Math.min(maxRetries, Byte.MAX_VALUE));
+    }
+
+    /**
+     * Stops this engine.
+     */
+    public synchronized void close()
+    {
+        closed = true;
+        if (timerTask != null)
+        {
+            timerTask.cancel();
+            timerTask = null;
+        }
+        trackers.clear();
+    }
+
+    /**
+     * Discards the <tt>LossTracker</tt>s of the SSRCs which have not been
+     * received for {@link #TRACKER_EXPIRATION} milliseconds.
+     *
+     * @param now the current time in milliseconds
+     */
+    private void expireTrackers(long now)
+    {
+        for (long ssrc : trackers.keys())
+        {
+            LossTracker tracker = trackers.get(ssrc);
+
+            if ((tracker != null)
+                    && (now - tracker.lastReceivedTime > TRACKER_EXPIRATION))
+            {
+                trackers.remove(ssrc);
+            }
+        }
+    }
+
+    /**
+     * Gets the number of packets NACKed by this instance (including the
+     * repeated NACKs of the same packets).
+     *
+     * @return the number of packets NACKed by this instance
+     */
+    public synchronized long getNackedPacketCount()
+    {
+        return nackedPacketCount;
+    }
+
+    /**
+     * Gets the number of PLIs requested by this instance because too many
+     * packets were missing.
+     *
+     * @return the number of PLIs requested by this instance
+     */
+    public synchronized long getPliCount()
+    {
+        return pliCount;
+    }
+
+    /**
+     * Gets the number of missing packets which have been received later on
+     * (e.g. retransmitted or reordered).
+     *
+     * @return the number of missing packets which have been received later on
+     */
+    public long getRecoveredPacketCount()
+    {
+        long recoveredPacketCount = 0;
+
+        for (long ssrc : trackers.keys())
+        {
+            LossTracker tracker = trackers.get(ssrc);
+
+            if (tracker != null)
+                recoveredPacketCount += tracker.getRecoveredPacketCount();
+        }
+        return recoveredPacketCount;
+    }
+
+    /**
+     * Always returns <tt>null</tt> since this engine does not require any
+     * RTCP transformations.
+     *
+     * @return <tt>null</tt> since this engine does not require any RTCP
+     * transformations
+     */
+    public PacketTransformer getRTCPTransformer()
+    {
+        return null;
+    }
+
+    /**
+     * Returns a reference to this class since it is performing RTP
+     * transformations in here.
+     *
+     * @return a reference to <tt>this</tt> instance of the
+     * <tt>NackTransformEngine</tt>
+     */
+    public PacketTransformer getRTPTransformer()
+    {
+        return this;
+    }
+
+    /**
+     * Determines whether this engine is enabled.
+     *
+     * @return <tt>true</tt> if this engine is enabled; otherwise,
+     * <tt>false</tt>
+     */
+    public boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    /**
+     * Determines whether any of the <tt>LossTracker</tt>s of this instance
+     * has missing packets.
+     *
+     * @return <tt>true</tt> if any of the <tt>LossTracker</tt>s of this
+     * instance has missing packets; otherwise, <tt>false</tt>
+     */
+    private boolean hasMissingPackets()
+    {
+        for (long ssrc : trackers.keys())
+        {
+            LossTracker tracker = trackers.get(ssrc);
+
+            if ((tracker != null) && (tracker.getMissingCount() != 0))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Sends the NACKs of the missing packets which are due to be NACKed.
+     * Invoked periodically by {@link #timer}.
+     */
+    private void process()
+    {
+        long now = System.currentTimeMillis();
+        long retryInterval = DEFAULT_RETRY_INTERVAL;
+        MediaStreamStats stats = mediaStream.getMediaStreamStats();
+
+        if (stats != null)
+        {
+            long rtt = stats.getRttMs();
+
+            if (rtt > 0)
+                retryInterval = rtt + RETRY_MARGIN;
+        }
+
+        expireTrackers(now);
+        for (long ssrc : trackers.keys())
+        {
+            LossTracker tracker = trackers.get(ssrc);
+
+            if (tracker == null)
+                continue;
+
+            byte[] fci = tracker.createNackFCI(now, retryInterval, maxRetries);
+
+            if (fci != null)
+            {
+                synchronized (this)
+                {
+                    nackedPacketCount += countNackedPackets(fci);
+                }
+                sendFeedback(
+                        new RTCPFeedbackPacket(
+                                RTCPFeedbackEvent.FMT_NACK,
+                                RTCPFeedbackEvent.PT_TL,
+                                mediaStream.getLocalSourceID(),
+                                ssrc,
+                                fci));
+            }
+        }
+    }
+
+    /**
+     * Counts the packets NACKed by specific generic NACK feedback control
+     * information.
+     *
+     * @param fci the generic NACK feedback control information
+     * @return the number of packets NACKed by <tt>fci</tt>
+     */
+    private static int countNackedPackets(byte[] fci)
+    {
+        int count = 0;
+
+        for (int i = 0; i < fci.length; i += 4)
+        {
+            int blp = ((fci[i + 2] & 0xFF) << 8) | (fci[i + 3] & 0xFF);
+
+            count += 1 + Integer.bitCount(blp);
+        }
+        return count;
+    }
+
+    /**
+     * Tracks the sequence number of a specific received RTP packet.
+     *
+     * @param pkt the received RTP packet
+     * @return <tt>pkt</tt>
+     */
+    public RawPacket reverseTransform(RawPacket pkt)
+    {
+        if (!enabled || (pkt == null))
+            return pkt;
+
+        long ssrc = pkt.getSSRC() & 0xFFFFFFFFL;
+        LossTracker tracker = trackers.get(ssrc);
+
+        long now = System.currentTimeMillis();
+
+        if (tracker == null)
+        {
+            // A new SSRC is a good time to forget about the ones which are
+            // no longer received.
+            expireTrackers(now);
+
+            tracker = new LossTracker(ssrc);
+
+            LossTracker existingTracker = trackers.putIfAbsent(ssrc, tracker);
+
+            if (existingTracker != null)
+                tracker = existingTracker;
+        }
+        tracker.lastReceivedTime = now;
+
+        if (!tracker.packetReceived(
+                pkt.getSequenceNumber(),
+                now + REORDERING_DELAY,
+                maxMissing))
+        {
+            // Too many packets are missing, retransmissions will not help.
+            boolean requestPli;
+
+            synchronized (tracker)
+            {
+                requestPli = (now - tracker.lastPliTime >= MIN_PLI_INTERVAL);
+                if (requestPli)
+                    tracker.lastPliTime = now;
+            }
+            if (requestPli)
+            {
+                synchronized (this)
+                {
+                    pliCount++;
+                }
+                sendFeedback(
+                        new RTCPFeedbackPacket(
+                                RTCPFeedbackEvent.FMT_PLI,
+                                RTCPFeedbackEvent.PT_PS,
+                                mediaStream.getLocalSourceID(),
+                                ssrc));
+            }
+        }
+        else if (tracker.getMissingCount() != 0)
+        {
+            startTimer();
+        }
+        return pkt;
+    }
+
+    /**
+     * Sends a specific RTCP feedback packet to the remote peer.
+     *
+     * @param feedback the RTCP feedback packet to send
+     */
+    private void sendFeedback(RTCPFeedbackPacket feedback)
+    {
+        AbstractRTPConnector connector = this.connector;
+
+        if (connector == null)
+            return;
+
+        try
+        {
+            feedback.writeTo(connector.getControlOutputStream());
+        }
+        catch (IOException ioe)
+        {
+            logger.warn("Failed to send RTCP feedback.", ioe);
+        }
+    }
+
+    /**
+     * Sets the <tt>AbstractRTPConnector</tt> through which the NACKs and PLIs
+     * are to be sent.
+     *
+     * @param connector the <tt>AbstractRTPConnector</tt> through which the
+     * NACKs and PLIs are to be sent
+     */
+    public void setConnector(AbstractRTPConnector connector)
+    {
+        this.connector = connector;
+    }
+
+    /**
+     * Enables or disables this engine.
+     *
+     * @param enabled <tt>true</tt> to enable this engine or <tt>false</tt> to
+     * disable it
+     */
+    public void setEnabled(boolean enabled)
+    {
+        this.enabled = enabled;
+        if (!enabled)
+        {
+            for (long ssrc : trackers.keys())
+            {
+                LossTracker tracker = trackers.get(ssrc);
+
+                if (tracker != null)
+                    tracker.reset();
+            }
+        }
+    }
+
+    /**
+     * Starts checking the missing packets of this instance for being due to
+     * be NACKed if it has not been started yet and this instance has not been
+     * closed.
+     */
+    private synchronized void startTimer()
+    {
+        if ((timerTask != null) || closed)
+            return;
+
+        timerTask
+            = new TimerTask()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        if (enabled)
+                            process();
+                        stopTimerIfIdle(this);
+                    }
+                    catch (Throwable t)
+                    {
+                        if (t instanceof ThreadDeath)
+                            throw (ThreadDeath) t;
+                        logger.error("Failed to send NACKs.", t);
+                    }
+                }
+            };
+        getTimer().schedule(timerTask, PROCESS_INTERVAL, PROCESS_INTERVAL);
+    }
+
+    /**
+     * Stops checking the missing packets of this instance if none are
+     * missing. The next missing packet starts the checking again.
+     *
+     * @param timerTask the <tt>TimerTask</tt> which is checking the missing
+     * packets of this instance
+     */
+    private synchronized void stopTimerIfIdle(TimerTask timerTask)
+    {
+        // A packet found to be missing after the check restarts the timer
+        // because the tracker is updated before startTimer is invoked.
+        if ((this.timerTask == timerTask) && !hasMissingPackets())
+        {
+            timerTask.cancel();
+            this.timerTask = null;
+        }
+    }
+
+    /**
+     * Passes a specific packet through without modification.
+     *
+     * @param pkt the packet to be sent
+     * @return <tt>pkt</tt>
+     */
+    public RawPacket transform(RawPacket pkt)
+    {
+        return pkt;
+    }
+}
@@ -25,7 +25,7 @@ import org.jitsi.impl.neomedia.transform.*;
  */
 public class PayloadTypeTransformEngine
     implements TransformEngine,
-               PacketTransformer
+               BatchPacketTransformer
 {
     /**
      * The mapping we use to override payloads. By default it is empty
@@ -59,6 +59,27 @@ public class PayloadTypeTransformEngine
         return pkt;
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * Passes the whole batch through without modification if there are no
+     * override mappings.
+     */
+    @Override
+    public void transform(RawPacket[] pkts, int count)
+    {
+        if (mappingOverrides.isEmpty())
+            return;
+
+        for (int i = 0; i < count; i++)
+        {
+            RawPacket pkt = pkts[i];
+
+            if (pkt != null)
+                pkts[i] = transform(pkt);
+        }
+    }
+
     /**
      * Do nothing just passes the incoming packet.
      *
@@ -72,6 +93,17 @@ public class PayloadTypeTransformEngine
         return pkt;
     }
 
+    /**
+     * Do nothing just passes the incoming packets.
+     *
+     * @param pkts the RTP <tt>RawPacket</tt>s that we will pass through
+     * @param count the number of elements of <tt>pkts</tt> to pass through
+     */
+    @Override
+    public void reverseTransform(RawPacket[] pkts, int count)
+    {
+    }
+
     /**
      * Closes this <tt>PacketTransformer</tt> i.e. releases the resources
      * allocated by it and prepares it for garbage collection.
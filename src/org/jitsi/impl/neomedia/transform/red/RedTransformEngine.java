@@ -0,0 +1,834 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package org.jitsi.impl.neomedia.transform.red;
+
+import java.io.*;
+
+import org.jitsi.impl.neomedia.*;
+import org.jitsi.impl.neomedia.transform.*;
+import org.jitsi.service.configuration.*;
+import org.jitsi.service.libjitsi.*;
+import org.jitsi.service.neomedia.codec.*;
+import org.jitsi.util.*;
+
+/**
+ * Implements redundant audio data (RED) as defined by RFC 2198. When a RED
+ * payload type has been negotiated, each sent audio packet carries the
+ * payloads of up to {@link #DEPTH_PNAME} previously sent packets as redundant
+ * blocks in front of its own (primary) payload. The redundant packets are the
+ * ones {@link #DISTANCE_PNAME} packets apart from each other and from the
+ * primary. The redundancy is limited to {@link #MAX_BITRATE_PNAME} bits per
+ * second.
+ * <p>
+ * The received RED packets are unwrapped into their primary payloads. If the
+ * packets preceding a received RED packet are missing and it carries their
+ * payloads as redundant blocks, they are recovered and handed to the
+ * <tt>RTPConnectorInputStream</tt> of the stream (i.e. before the jitter
+ * buffer) ahead of the primary. The sequence number of a recovered packet is
+ * derived from the timestamp offset of its block and the timestamp increment
+ * observed between consecutive packets.
+ * </p>
+ * <p>
+ * The engine has to be the first in the <tt>TransformEngineChain</tt> so that
+ * it reverse-transforms the received packets last and the recovered packets
+ * need no further reverse transformation.
+ * </p>
+ */
+public class RedTransformEngine
+    extends SinglePacketTransformer
+    implements TransformEngine
+{
+    /**
+     * The default value of the property {@link #DEPTH_PNAME}.
+     */
+    private static final int DEFAULT_DEPTH = 1;
+
+    /**
+     * The default value of the property {@link #DISTANCE_PNAME}.
+     */
+    private static final int DEFAULT_DISTANCE = 1;
+
+    /**
+     * The default value of the property {@link #MAX_BITRATE_PNAME}.
+     */
+    private static final int DEFAULT_MAX_BITRATE = 96000;
+
+    /**
+     * The name of the integer <tt>ConfigurationService</tt> property which
+     * specifies the maximum number of redundant blocks in a sent packet.
+     * <tt>0</tt> disables the sending of redundancy. The default value is
+     * {@link #DEFAULT_DEPTH}.
+     */
+    public static final String DEPTH_PNAME
+        = "org.jitsi.impl.neomedia.transform.red.RedTransformEngine.depth";
+
+    /**
+     * The name of the integer <tt>ConfigurationService</tt> property which
+     * specifies the distance in packets between the primary and the first
+     * redundant block of a sent packet and between its subsequent redundant
+     * blocks. The default value is {@link #DEFAULT_DISTANCE}.
+     */
+    public static final String DISTANCE_PNAME
+        = "org.jitsi.impl.neomedia.transform.red.RedTransformEngine.distance";
+
+    /**
+     * The <tt>Logger</tt> used by the <tt>RedTransformEngine</tt> class and
+     * its instances for logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(RedTransformEngine.class);
+
+    /**
+     * The name of the integer <tt>ConfigurationService</tt> property which
+     * specifies the maximum bitrate in bits per second of the redundant blocks
+     * (including their headers) sent per SSRC. A value of <tt>0</tt> or less
+     * does not limit the bitrate. The default value is
+     * {@link #DEFAULT_MAX_BITRATE}.
+     */
+    public static final String MAX_BITRATE_PNAME
+        = "org.jitsi.impl.neomedia.transform.red.RedTransformEngine"
+            + ".maxBitrate";
+
+    /**
+     * The maximum number of redundant blocks in a packet.
+     */
+    private static final int MAX_DEPTH = 8;
+
+    /**
+     * The maximum length in bytes of a redundant block (limited by the 10-bit
+     * block length field).
+     */
+    private static final int MAX_BLOCK_LENGTH = 0x3FF;
+
+    /**
+     * The maximum length in bytes of a sent RED payload (with its headers).
+     * Redundant blocks which do not fit are not sent.
+     */
+    private static final int MAX_PAYLOAD_LENGTH = 1200;
+
+    /**
+     * The maximum timestamp offset of a redundant block (limited by the
+     * 14-bit timestamp offset field).
+     */
+    private static final int MAX_TIMESTAMP_OFFSET = 0x3FFF;
+
+    /**
+     * The maximum time in milliseconds for which the unused bitrate of the
+     * redundancy is accumulated.
+     */
+    private static final long MAX_BUDGET_INTERVAL = 200;
+
+    /**
+     * The <tt>AbstractRTPConnector</tt> to the input stream of which the
+     * recovered packets are handed.
+     */
+    private volatile AbstractRTPConnector connector;
+
+    /**
+     * The maximum number of redundant blocks in a sent packet.
+     */
+    private final int depth;
+
+    /**
+     * The distance in packets between the redundant blocks of a sent packet.
+     */
+    private final int distance;
+
+    /**
+     * The maximum bitrate in bits per second of the sent redundancy.
+     */
+    private final int maxBitrate;
+
+    /**
+     * The <tt>MediaStreamImpl</tt> whose packets are transformed by this
+     * instance.
+     */
+    private final MediaStreamImpl mediaStream;
+
+    /**
+     * The <tt>Receiver</tt>s of the SSRCs received by this instance.
+     */
+    private final CopyOnWriteLongHashMap<Receiver> receivers
+        = new CopyOnWriteLongHashMap<Receiver>();
+
+    /**
+     * The number of lost packets recovered from redundant blocks.
+     */
+    private long recoveredPacketCount;
+
+    /**
+     * The number of redundant blocks sent by this instance.
+     */
+    private long redundantBlockCount;
+
+    /**
+     * The <tt>Sender</tt>s of the SSRCs sent by this instance.
+     */
+    private final CopyOnWriteLongHashMap<Sender> senders
+        = new CopyOnWriteLongHashMap<Sender>();
+
+    /**
+     * Initializes a new <tt>RedTransformEngine</tt> instance.
+     *
+     * @param mediaStream the <tt>MediaStreamImpl</tt> whose packets are to be
+     * transformed by the new instance
+     */
+    public RedTransformEngine(MediaStreamImpl mediaStream)
+    {
+        this.mediaStream = mediaStream;
+
+        ConfigurationService cfg = LibJitsi.getConfigurationService();
+        int depth = DEFAULT_DEPTH;
+        int distance = DEFAULT_DISTANCE;
+        int maxBitrate = DEFAULT_MAX_BITRATE;
+
+        if (cfg != null)
+        {
+            depth = cfg.getInt(DEPTH_PNAME, depth);
+            distance = cfg.getInt(DISTANCE_PNAME, distance);
+            maxBitrate = cfg.getInt(MAX_BITRATE_PNAME, maxBitrate);
+        }
+        this.depth = Math.max(0, Math.min(depth, MAX_DEPTH));
+        this.distance = Math.max(1, Math.min(distance, 16));
+        this.maxBitrate = maxBitrate;
+    }
+
+    /**
+     * Closes this <tt>PacketTransformer</tt>.
+     */
+    public void close()
+    {
+    }
+
+    /**
+     * Gets the number of lost packets which have been recovered from the
+     * redundant blocks of the received packets.
+     *
+     * @return the number of lost packets which have been recovered from
+     * redundant blocks
+     */
+    public synchronized long getRecoveredPacketCount()
+    {
+        return recoveredPacketCount;
+    }
+
+    /**
+     * Gets the number of redundant blocks sent by this instance.
+     *
+     * @return the number of redundant blocks sent by this instance
+     */
+    public synchronized long getRedundantBlockCount()
+    {
+        return redundantBlockCount;
+    }
+
+    /**
+     * Always returns <tt>null</tt> since this engine does not require any
+     * RTCP transformations.
+     *
+     * @return <tt>null</tt> since this engine does not require any RTCP
+     * transformations
+     */
+    public PacketTransformer getRTCPTransformer()
+    {
+        return null;
+    }
+
+    /**
+     * Returns a reference to this class since it is performing RTP
+     * transformations in here.
+     *
+     * @return a reference to <tt>this</tt> instance of the
+     * <tt>RedTransformEngine</tt>
+     */
+    public PacketTransformer getRTPTransformer()
+    {
+        return this;
+    }
+
+    /**
+     * Hands a specific recovered packet to the input stream of
+     * {@link #connector}.
+     *
+     * @param pkt the recovered packet acquired from the
+     * <tt>RawPacketPool</tt>
+     * @return <tt>true</tt> if <tt>pkt</tt> has been handed to the input
+     * stream; otherwise, <tt>false</tt>
+     */
+    private boolean recovered(RawPacket pkt)
+    {
+        AbstractRTPConnector connector = this.connector;
+
+        if (connector != null)
+        {
+            try
+            {
+                connector.getDataInputStream().transferPacket(pkt);
+                synchronized (this)
+                {
+                    recoveredPacketCount++;
+                }
+                return true;
+            }
+            catch (IOException ioe)
+            {
+                logger.warn("Failed to deliver a recovered RTP packet.", ioe);
+            }
+        }
+        RawPacketPool.returnRawPacket(pkt);
+        return false;
+    }
+
+    /**
+     * Unwraps a specific received packet if it is a RED packet and recovers
+     * the preceding lost packets from its redundant blocks.
+     *
+     * @param pkt the received packet
+     * @return <tt>pkt</tt> with its primary payload only or <tt>null</tt> if
+     * it is a malformed RED packet
+     */
+    public RawPacket reverseTransform(RawPacket pkt)
+    {
+        if (pkt == null)
+            return pkt;
+
+        long ssrc = pkt.getSSRC() & 0xFFFFFFFFL;
+        Receiver receiver = receivers.get(ssrc);
+
+        if (receiver == null)
+        {
+            receiver = new Receiver();
+
+            Receiver existingReceiver = receivers.putIfAbsent(ssrc, receiver);
+
+            if (existingReceiver != null)
+                receiver = existingReceiver;
+        }
+
+        byte redPayloadType
+            = mediaStream.getDynamicRTPPayloadType(Constants.RED);
+
+        return
+            receiver.reverseTransform(
+                    pkt,
+                    (redPayloadType == pkt.getPayloadType()));
+    }
+
+    /**
+     * Sets the <tt>AbstractRTPConnector</tt> to the input stream of which the
+     * recovered packets are to be handed.
+     *
+     * @param connector the <tt>AbstractRTPConnector</tt> to the input stream
+     * of which the recovered packets are to be handed
+     */
+    public void setConnector(AbstractRTPConnector connector)
+    {
+        this.connector = connector;
+    }
+
+    /**
+     * Wraps a specific packet to be sent into a RED packet with the payloads
+     * of the previously sent packets as redundant blocks if a RED payload type
+     * has been negotiated.
+     *
+     * @param pkt the packet to be sent
+     * @return a RED packet which carries the payload of <tt>pkt</tt> as its
+     * primary or <tt>pkt</tt> if no RED payload type has been negotiated
+     */
+    public RawPacket transform(RawPacket pkt)
+    {
+        if (pkt == null)
+            return pkt;
+
+        byte redPayloadType
+            = mediaStream.getDynamicRTPPayloadType(Constants.RED);
+
+        if ((redPayloadType == -1) || (redPayloadType == pkt.getPayloadType()))
+            return pkt;
+
+        long ssrc = pkt.getSSRC() & 0xFFFFFFFFL;
+        Sender sender = senders.get(ssrc);
+
+        if (sender == null)
+        {
+            sender = new Sender();
+
+            Sender existingSender = senders.putIfAbsent(ssrc, sender);
+
+            if (existingSender != null)
+                sender = existingSender;
+        }
+        return sender.transform(pkt, redPayloadType);
+    }
+
+    /**
+     * Recovers the lost packets of one received SSRC and unwraps its RED
+     * packets.
+     */
+    private class Receiver
+    {
+        /**
+         * The lengths of the redundant blocks of the RED packet being
+         * unwrapped.
+         */
+        private final int[] blockLengths = new int[MAX_DEPTH];
+
+        /**
+         * The payload types of the redundant blocks of the RED packet being
+         * unwrapped.
+         */
+        private final int[] blockPayloadTypes = new int[MAX_DEPTH];
+
+        /**
+         * The timestamp offsets of the redundant blocks of the RED packet
+         * being unwrapped.
+         */
+        private final int[] blockTimestampOffsets = new int[MAX_DEPTH];
+
+        /**
+         * The highest sequence number received or <tt>-1</tt> if no packet
+         * has been received yet.
+         */
+        private int highestSequenceNumber = -1;
+
+        /**
+         * The timestamp of the packet with {@link #highestSequenceNumber}.
+         */
+        private long highestTimestamp;
+
+        /**
+         * The timestamp increment between consecutive packets or <tt>0</tt>
+         * if it is not known yet.
+         */
+        private long timestampIncrement;
+
+        /**
+         * Recovers the packet of a specific redundant block if it is one of
+         * the missing packets preceding a specific RED packet.
+         *
+         * @param pkt the received RED packet
+         * @param blockOffset the offset in the buffer of <tt>pkt</tt> of the
+         * data of the redundant block
+         * @param blockLength the length of the redundant block
+         * @param blockPayloadType the payload type of the redundant block
+         * @param timestampOffset the timestamp offset of the redundant block
+         * @param missingCount the number of missing packets preceding
+         * <tt>pkt</tt>
+         */
+        private void recover(
+                RawPacket pkt,
+                int blockOffset,
+                int blockLength,
+                int blockPayloadType,
+                int timestampOffset,
+                int missingCount)
+        {
+            if ((timestampIncrement <= 0)
+                    || (timestampOffset % timestampIncrement != 0))
+                return;
+
+            long packetOffset = timestampOffset / timestampIncrement;
+
+            if ((packetOffset < 1) || (packetOffset > missingCount))
+                return;
+
+            int length = RawPacket.FIXED_HEADER_SIZE + blockLength;
+            RawPacket recovered
+                = RawPacketPool.getRawPacket(
+                        RawPacketPool.getBuffer(length),
+                        0,
+                        length);
+            byte[] buffer = recovered.getBuffer();
+
+            // Version 2 without padding, extension, CSRCs and marker.
+            buffer[0] = (byte) 0x80;
+            buffer[1] = (byte) (blockPayloadType & 0x7F);
+            recovered.writeUnsignedShort(
+                    2,
+                    (pkt.getSequenceNumber() - (int) packetOffset) & 0xFFFF);
+            recovered.writeInt(
+                    4,
+                    (int) (pkt.getTimestamp() - timestampOffset));
+            recovered.writeInt(8, pkt.getSSRC());
+            System.arraycopy(
+                    pkt.getBuffer(), pkt.getOffset() + blockOffset,
+                    buffer, RawPacket.FIXED_HEADER_SIZE,
+                    blockLength);
+            recovered(recovered);
+        }
+
+        /**
+         * Tracks the sequence number and timestamp of a specific received
+         * packet and unwraps it if it is a RED packet.
+         *
+         * @param pkt the received packet
+         * @param red <tt>true</tt> if <tt>pkt</tt> is a RED packet
+         * @return <tt>pkt</tt> with its primary payload only or <tt>null</tt>
+         * if it is a malformed RED packet
+         */
+        synchronized RawPacket reverseTransform(RawPacket pkt, boolean red)
+        {
+            int sequenceNumber = pkt.getSequenceNumber();
+            long timestamp = pkt.getTimestamp();
+            int missingCount = 0;
+
+            if (highestSequenceNumber == -1)
+            {
+                highestSequenceNumber = sequenceNumber;
+                highestTimestamp = timestamp;
+            }
+            else
+            {
+                int delta = (sequenceNumber - highestSequenceNumber) & 0xFFFF;
+
+                // Late packets neither advance nor recover anything.
+                if ((delta != 0) && (delta < 0x8000))
+                {
+                    if (delta == 1)
+                    {
+                        long timestampDelta
+                            = (timestamp - highestTimestamp) & 0xFFFFFFFFL;
+
+                        if ((timestampDelta > 0)
+                                && (timestampDelta <= MAX_TIMESTAMP_OFFSET))
+                            timestampIncrement = timestampDelta;
+                    }
+                    missingCount = delta - 1;
+                    highestSequenceNumber = sequenceNumber;
+                    highestTimestamp = timestamp;
+                }
+            }
+
+            return red ? unwrap(pkt, missingCount) : pkt;
+        }
+
+        /**
+         * Unwraps a specific RED packet into its primary payload after
+         * recovering the missing packets preceding it from its redundant
+         * blocks.
+         *
+         * @param pkt the RED packet to unwrap
+         * @param missingCount the number of missing packets preceding
+         * <tt>pkt</tt>
+         * @return <tt>pkt</tt> with its primary payload only or <tt>null</tt>
+         * if it is malformed
+         */
+        private RawPacket unwrap(RawPacket pkt, int missingCount)
+        {
+            int headerLength = pkt.getHeaderLength();
+            int end = pkt.getLength() - pkt.getPaddingSize();
+            int off = headerLength;
+            int blockCount = 0;
+            int primaryPayloadType = -1;
+
+            // The block headers.
+            while (off < end)
+            {
+                int b = pkt.readByte(off) & 0xFF;
+
+                if ((b & 0x80) == 0)
+                {
+                    primaryPayloadType = b;
+                    off++;
+                    break;
+                }
+                if ((off + 4 > end) || (blockCount == MAX_DEPTH))
+                    break;
+
+                int header = pkt.readInt(off);
+
+                blockPayloadTypes[blockCount] = (header >>> 24) & 0x7F;
+                blockTimestampOffsets[blockCount]
+                    = (header >>> 10) & MAX_TIMESTAMP_OFFSET;
+                blockLengths[blockCount] = header & MAX_BLOCK_LENGTH;
+                blockCount++;
+                off += 4;
+            }
+            if (primaryPayloadType == -1)
+            {
+                if (logger.isTraceEnabled())
+                    logger.trace("Dropping a malformed RED packet.");
+                return null;
+            }
+
+            // The redundant blocks.
+            for (int i = 0; i < blockCount; i++)
+            {
+                int blockLength = blockLengths[i];
+
+                if (off + blockLength > end)
+                {
+                    if (logger.isTraceEnabled())
+                        logger.trace("Dropping a malformed RED packet.");
+                    return null;
+                }
+                if (missingCount != 0)
+                {
+                    recover(
+                            pkt,
+                            off,
+                            blockLength,
+                            blockPayloadTypes[i],
+                            blockTimestampOffsets[i],
+                            missingCount);
+                }
+                off += blockLength;
+            }
+
+            // The primary replaces the RED payload (and any padding).
+            int primaryLength = end - off;
+            byte[] buffer = pkt.getBuffer();
+            int offset = pkt.getOffset();
+
+            System.arraycopy(
+                    buffer, offset + off,
+                    buffer, offset + headerLength,
+                    primaryLength);
+            buffer[offset] &= (byte) ~0x20;
+            pkt.setLength(headerLength + primaryLength);
+            pkt.setPayload((byte) primaryPayloadType);
+            return pkt;
+        }
+    }
+
+    /**
+     * Remembers the payloads most recently sent for one SSRC and wraps the
+     * packets to be sent into RED packets.
+     */
+    private class Sender
+    {
+        /**
+         * The remaining number of bytes of redundancy which may be sent
+         * without exceeding {@link #maxBitrate}.
+         */
+        private long budget;
+
+        /**
+         * The time in nanoseconds at which {@link #budget} has been updated
+         * most recently or <tt>-1</tt> if it has never been updated.
+         */
+        private long budgetTime = -1;
+
+        /**
+         * The lengths of the payloads in the respective slots of the history
+         * or <tt>0</tt> if the respective slot is empty.
+         */
+        private final int[] lengths;
+
+        /**
+         * The payload types of the packets in the respective slots of the
+         * history.
+         */
+        private final byte[] payloadTypes;
+
+        /**
+         * The payloads in the respective slots of the history.
+         */
+        private final byte[][] payloads;
+
+        /**
+         * The sequence numbers of the packets in the respective slots of the
+         * history.
+         */
+        private final int[] sequenceNumbers;
+
+        /**
+         * The timestamps of the packets in the respective slots of the
+         * history.
+         */
+        private final long[] timestamps;
+
+        /**
+         * Initializes a new <tt>Sender</tt> instance.
+         */
+        Sender()
+        {
+            int capacity
+                = Integer.highestOneBit(Math.max(1, depth * distance)) << 1;
+
+            lengths = new int[capacity];
+            payloadTypes = new byte[capacity];
+            payloads = new byte[capacity][];
+            sequenceNumbers = new int[capacity];
+            timestamps = new long[capacity];
+        }
+
+        /**
+         * Remembers the payload of a specific sent packet.
+         *
+         * @param pkt the sent packet
+         * @param payloadOffset the offset of the payload of <tt>pkt</tt> in
+         * its buffer
+         * @param payloadLength the length of the payload of <tt>pkt</tt>
+         */
+        private void add(RawPacket pkt, int payloadOffset, int payloadLength)
+        {
+            int sequenceNumber = pkt.getSequenceNumber();
+            int index = sequenceNumber & (payloads.length - 1);
+
+            if (payloadLength > MAX_BLOCK_LENGTH)
+            {
+                lengths[index] = 0;
+                return;
+            }
+
+            byte[] payload = payloads[index];
+
+            if ((payload == null) || (payload.length < payloadLength))
+                payloads[index] = payload = new byte[payloadLength];
+            System.arraycopy(
+                    pkt.getBuffer(), payloadOffset,
+                    payload, 0,
+                    payloadLength);
+            lengths[index] = payloadLength;
+            payloadTypes[index] = pkt.getPayloadType();
+            sequenceNumbers[index] = sequenceNumber;
+            timestamps[index] = pkt.getTimestamp();
+        }
+
+        /**
+         * Adds the bitrate allowed since the last update to {@link #budget}.
+         */
+        private void updateBudget()
+        {
+            if (maxBitrate <= 0)
+                return;
+
+            long now = System.nanoTime();
+            long maxBudget = maxBitrate * MAX_BUDGET_INTERVAL / 8000;
+
+            if (budgetTime == -1)
+            {
+                budget = maxBudget;
+            }
+            else
+            {
+                long elapsed = Math.min(now - budgetTime, 1000000000L);
+
+                budget
+                    = Math.min(
+                            budget + elapsed * maxBitrate / 8000000000L,
+                            maxBudget);
+            }
+            budgetTime = now;
+        }
+
+        /**
+         * Wraps a specific packet to be sent into a RED packet. The RED packet
+         * is acquired from the <tt>RawPacketPool</tt> and <tt>pkt</tt> is
+         * released to it once its payload has been copied.
+         *
+         * @param pkt the packet to be sent
+         * @param redPayloadType the negotiated RED payload type
+         * @return a RED packet which carries the payload of <tt>pkt</tt> as
+         * its primary or <tt>pkt</tt> if it cannot be wrapped
+         */
+        synchronized RawPacket transform(RawPacket pkt, byte redPayloadType)
+        {
+            int headerLength = pkt.getHeaderLength();
+            int primaryLength = pkt.getLength() - headerLength;
+
+            // Padded packets are rare in audio and are not worth the trouble.
+            if ((primaryLength < 0) || (pkt.getPaddingSize() != 0))
+                return pkt;
+
+            int sequenceNumber = pkt.getSequenceNumber();
+            long timestamp = pkt.getTimestamp();
+            int mask = payloads.length - 1;
+            int redLength = 1 + primaryLength;
+            int blockMask = 0;
+
+            updateBudget();
+            for (int k = depth; k >= 1; k--)
+            {
+                int index = (sequenceNumber - k * distance) & mask;
+                int length = lengths[index];
+
+                if ((length == 0)
+                        || (sequenceNumbers[index]
+                                != ((sequenceNumber - k * distance) & 0xFFFF)))
+                    continue;
+
+                long timestampOffset
+                    = (timestamp - timestamps[index]) & 0xFFFFFFFFL;
+
+                if ((timestampOffset == 0)
+                        || (timestampOffset > MAX_TIMESTAMP_OFFSET)
+                        || (redLength + 4 + length > MAX_PAYLOAD_LENGTH)
+                        || ((maxBitrate > 0) && (budget < 4 + length)))
+                    continue;
+
+                redLength += 4 + length;
+                budget -= 4 + length;
+                blockMask |= 1 << k;
+            }
+
+            int length = headerLength + redLength;
+            RawPacket red
+                = RawPacketPool.getRawPacket(
+                        RawPacketPool.getBuffer(length),
+                        0,
+                        length);
+            byte[] buffer = red.getBuffer();
+            int off = headerLength;
+
+            System.arraycopy(
+                    pkt.getBuffer(), pkt.getOffset(),
+                    buffer, 0,
+                    headerLength);
+            // The headers of the redundant blocks, oldest first.
+            for (int k = depth; k >= 1; k--)
+            {
+                if ((blockMask & (1 << k)) == 0)
+                    continue;
+
+                int index = (sequenceNumber - k * distance) & mask;
+                long timestampOffset
+                    = (timestamp - timestamps[index]) & 0xFFFFFFFFL;
+
+                red.writeInt(
+                        off,
+                        0x80000000
+                            | ((payloadTypes[index] & 0x7F) << 24)
+                            | ((int) timestampOffset << 10)
+                            | lengths[index]);
+                off += 4;
+            }
+            buffer[off++] = (byte) (pkt.getPayloadType() & 0x7F);
+            // The data of the redundant blocks.
+            for (int k = depth; k >= 1; k--)
+            {
+                if ((blockMask & (1 << k)) == 0)
+                    continue;
+
+                int index = (sequenceNumber - k * distance) & mask;
+
+                System.arraycopy(payloads[index], 0, buffer, off, lengths[index]);
+                off += lengths[index];
+            }
+            System.arraycopy(
+                    pkt.getBuffer(), pkt.getOffset() + headerLength,
+                    buffer, off,
+                    primaryLength);
+            red.setPayload(redPayloadType);
+
+            add(pkt, pkt.getOffset() + headerLength, primaryLength);
+            // The caller does not release pkt because it gets red in return.
+            RawPacketPool.returnRawPacket(pkt);
+            if (blockMask != 0)
+            {
+                int blockCount = Integer.bitCount(blockMask);
+
+                synchronized (RedTransformEngine.this)
+                {
+                    redundantBlockCount += blockCount;
+                }
+            }
+            return red;
+        }
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package org.jitsi.impl.neomedia.transform.remb;
+
+import java.util.*;
+
+import org.jitsi.impl.neomedia.*;
+import org.jitsi.impl.neomedia.device.*;
+import org.jitsi.service.neomedia.control.*;
+import org.jitsi.util.*;
+
+/**
+ * Adapts the bitrate of the encoders of a <tt>MediaStream</tt> to the
+ * bandwidth available on the way to the remote peer (as described in
+ * draft-ietf-rmcat-gcc). The remote peer reports the bandwidth it estimates
+ * from the delay of the received packets in REMB messages and the fraction of
+ * the packets it has lost in its RTCP receiver reports. The loss-based
+ * bitrate is decreased when more than 10% of the packets are lost and is
+ * increased by 5% when less than 2% of them are lost. The encoders are told
+ * to aim at the smaller of the loss-based bitrate and the REMB bitrate.
+ * <p>
+ * Every <tt>MediaStreamImpl</tt> has a <tt>BitrateController</tt> so that,
+ * for example, the Opus encoder of an audio stream adapts to the packet loss
+ * as well. REMB messages are only handed to it by the
+ * <tt>RembTransformEngine</tt> of a video stream which has negotiated REMB;
+ * otherwise, the loss-based bitrate applies alone.
+ * </p>
+ * <p>
+ * The encoders are found among the <tt>BitrateAwareEncoder</tt> controls of
+ * the <tt>MediaDeviceSession</tt> of the stream and never exceed the
+ * bitrates they have been configured with.
+ * </p>
+ */
+public class BitrateController
+{
+    /**
+     * The fraction of lost packets above which the loss-based bitrate is
+     * decreased.
+     */
+    private static final double HIGH_LOSS = 0.1;
+
+    /**
+     * The factor by which the loss-based bitrate is increased when few
+     * packets are lost.
+     */
+    private static final double INCREASE_FACTOR = 1.05;
+
+    /**
+     * The <tt>Logger</tt> used by the <tt>BitrateController</tt> class and its
+     * instances for logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(BitrateController.class);
+
+    /**
+     * The fraction of lost packets below which the loss-based bitrate is
+     * increased.
+     */
+    private static final double LOW_LOSS = 0.02;
+
+    /**
+     * The minimum bitrate in bits per second the encoders are told to aim at.
+     */
+    private static final long MIN_BITRATE = 10000;
+
+    /**
+     * The bitrate in bits per second derived from the packet loss reported by
+     * the remote peer or <tt>-1</tt> if it is not known yet.
+     */
+    private long lossBasedBitrate = -1;
+
+    /**
+     * The <tt>MediaStreamImpl</tt> whose encoders are controlled by this
+     * instance.
+     */
+    private final MediaStreamImpl mediaStream;
+
+    /**
+     * The bitrate in bits per second most recently reported by the remote
+     * peer in a REMB message or <tt>-1</tt> if no REMB message has been
+     * received yet.
+     */
+    private long rembBitrate = -1;
+
+    /**
+     * The bitrate in bits per second the encoders have most recently been
+     * told to aim at or <tt>-1</tt> if they have not been told yet.
+     */
+    private long targetBitrate = -1;
+
+    /**
+     * Initializes a new <tt>BitrateController</tt> instance.
+     *
+     * @param mediaStream the <tt>MediaStreamImpl</tt> whose encoders are to
+     * be controlled by the new instance
+     */
+    public BitrateController(MediaStreamImpl mediaStream)
+    {
+        this.mediaStream = mediaStream;
+    }
+
+    /**
+     * Gets the <tt>BitrateAwareEncoder</tt>s of the <tt>MediaStream</tt> of
+     * this instance.
+     *
+     * @return the <tt>BitrateAwareEncoder</tt>s of the <tt>MediaStream</tt>
+     * of this instance
+     */
+    private Set<BitrateAwareEncoder> getEncoders()
+    {
+        MediaDeviceSession deviceSession = mediaStream.getDeviceSession();
+
+        return
+            (deviceSession == null)
+                ? Collections.<BitrateAwareEncoder>emptySet()
+                : deviceSession.getEncoderControls(BitrateAwareEncoder.class);
+    }
+
+    /**
+     * Gets the sum of the bitrates the <tt>BitrateAwareEncoder</tt>s of the
+     * <tt>MediaStream</tt> of this instance currently aim at.
+     *
+     * @param encoders the <tt>BitrateAwareEncoder</tt>s
+     * @return the sum of the bitrates <tt>encoders</tt> currently aim at or
+     * <tt>-1</tt> if none of them is known
+     */
+    private static long getEncoderBitrate(Set<BitrateAwareEncoder> encoders)
+    {
+        long bitrate = -1;
+
+        for (BitrateAwareEncoder encoder : encoders)
+        {
+            int encoderBitrate = encoder.getTargetBitrate();
+
+            if (encoderBitrate > 0)
+                bitrate = ((bitrate == -1) ? 0 : bitrate) + encoderBitrate;
+        }
+        return bitrate;
+    }
+
+    /**
+     * Gets the bitrate the encoders have most recently been told to aim at.
+     *
+     * @return the bitrate in bits per second the encoders have most recently
+     * been told to aim at or <tt>-1</tt> if they have not been told yet
+     */
+    public synchronized long getTargetBitrate()
+    {
+        return targetBitrate;
+    }
+
+    /**
+     * Notifies this instance that the remote peer has reported the fraction
+     * of the packets sent by the local peer which it has lost.
+     *
+     * @param fractionLost the fraction of lost packets as defined by RFC 3550
+     * i.e. in units of 1/256
+     */
+    public synchronized void lossReported(int fractionLost)
+    {
+        Set<BitrateAwareEncoder> encoders = getEncoders();
+
+        if (encoders.isEmpty())
+            return;
+
+        long bitrate = lossBasedBitrate;
+
+        if (bitrate == -1)
+        {
+            bitrate = getEncoderBitrate(encoders);
+            if (bitrate == -1)
+                return;
+        }
+
+        double loss = fractionLost / 256.0;
+
+        if (loss > HIGH_LOSS)
+            bitrate = (long) (bitrate * (1 - 0.5 * loss));
+        else if (loss < LOW_LOSS)
+            bitrate = (long) (bitrate * INCREASE_FACTOR);
+        lossBasedBitrate = Math.max(bitrate, MIN_BITRATE);
+
+        update(encoders);
+    }
+
+    /**
+     * Notifies this instance that the remote peer has reported the bandwidth
+     * it estimates to be available in a REMB message.
+     *
+     * @param bitrate the estimated bandwidth in bits per second
+     */
+    public synchronized void rembReceived(long bitrate)
+    {
+        rembBitrate = bitrate;
+
+        Set<BitrateAwareEncoder> encoders = getEncoders();
+
+        if (!encoders.isEmpty())
+            update(encoders);
+    }
+
+    /**
+     * Tells specific encoders to aim at the smaller of the loss-based bitrate
+     * and the REMB bitrate.
+     *
+     * @param encoders the encoders to update
+     */
+    private void update(Set<BitrateAwareEncoder> encoders)
+    {
+        long bitrate;
+
+        if (lossBasedBitrate == -1)
+            bitrate = rembBitrate;
+        else if (rembBitrate == -1)
+            bitrate = lossBasedBitrate;
+        else
+            bitrate = Math.min(lossBasedBitrate, rembBitrate);
+        if (bitrate == -1)
+            return;
+        bitrate = Math.max(Math.min(bitrate, Integer.MAX_VALUE), MIN_BITRATE);
+
+        // A stream has a single encoder in practice so each of them is told
+        // to aim at the whole bitrate.
+        for (BitrateAwareEncoder encoder : encoders)
+            encoder.setTargetBitrate((int) bitrate);
+
+        // The loss-based bitrate does not grow beyond what the encoders are
+        // able to send or it would take long to decrease it below that when
+        // packets start being lost.
+        long encoderBitrate = getEncoderBitrate(encoders);
+
+        if ((encoderBitrate != -1)
+                && (encoderBitrate < bitrate)
+                && (lossBasedBitrate > encoderBitrate))
+            lossBasedBitrate = encoderBitrate;
+
+        if ((bitrate != targetBitrate) && logger.isDebugEnabled())
+        {
+            logger.debug(
+                    "Setting the target bitrate of the encoders to " + bitrate
+                        + " bps (loss-based " + lossBasedBitrate + ", REMB "
+                        + rembBitrate + ").");
+        }
+        targetBitrate = bitrate;
+    }
+}
@@ -0,0 +1,623 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package org.jitsi.impl.neomedia.transform.remb;
+
+import java.io.*;
+import java.util.*;
+
+import org.jitsi.impl.neomedia.*;
+import org.jitsi.impl.neomedia.transform.*;
+import org.jitsi.impl.neomedia.transform.rtx.*;
+import org.jitsi.service.configuration.*;
+import org.jitsi.service.libjitsi.*;
+import org.jitsi.service.neomedia.*;
+import org.jitsi.service.neomedia.event.*;
+import org.jitsi.service.neomedia.format.*;
+import org.jitsi.util.*;
+
+/**
+ * Estimates the bandwidth available on the way from the remote peer from the
+ * arrival times of the received RTP packets and reports it to the remote peer
+ * in REMB messages (draft-alvestrand-rmcat-remb). Conversely, hands the REMB
+ * messages received from the remote peer to the <tt>BitrateController</tt> of
+ * the stream which adapts the bitrate of the local encoders.
+ * <p>
+ * A REMB message is sent once per second and as soon as the estimate has
+ * dropped by more than 3% so that the remote peer backs off before the
+ * queues on the way overflow.
+ * </p>
+ * <p>
+ * The engine is disabled by default. It is enabled by the
+ * <tt>MediaStreamImpl</tt> of a video stream when the remote peer supports
+ * REMB (i.e. when the <tt>goog-remb</tt> RTCP feedback has been negotiated for
+ * a payload type of the stream), with {@link #ENABLED_PNAME} or with
+ * {@link #setEnabled(boolean)}.
+ * </p>
+ */
+public class RembTransformEngine
+    extends SinglePacketTransformer
+    implements TransformEngine
+{
+    /**
+     * The default value of the property {@link #MAX_BITRATE_PNAME}.
+     */
+    private static final long DEFAULT_MAX_BITRATE = 20000000;
+
+    /**
+     * The default value of the property {@link #MIN_BITRATE_PNAME}.
+     */
+    private static final long DEFAULT_MIN_BITRATE = 30000;
+
+    /**
+     * The name of the boolean <tt>ConfigurationService</tt> property which
+     * specifies whether REMB messages are to be sent and the local encoders
+     * are to be adapted to the available bandwidth even if the remote peer
+     * has not signaled support for REMB. The default value is <tt>false</tt>.
+     */
+    public static final String ENABLED_PNAME
+        = "org.jitsi.impl.neomedia.transform.remb.RembTransformEngine"
+            + ".enabled";
+
+    /**
+     * The REMB feedback message type (with payload type
+     * {@link RTCPFeedbackEvent#PT_PS}) i.e. application layer feedback.
+     */
+    private static final int FMT_AFB = 15;
+
+    /**
+     * The RTCP feedback parameter (of an <tt>rtcp-fb</tt> SDP attribute) which
+     * indicates that the remote peer supports REMB.
+     */
+    public static final String GOOG_REMB = "goog-remb";
+
+    /**
+     * The <tt>Logger</tt> used by the <tt>RembTransformEngine</tt> class and
+     * its instances for logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(RembTransformEngine.class);
+
+    /**
+     * The name of the integer <tt>ConfigurationService</tt> property which
+     * specifies the maximum bandwidth in bits per second reported in REMB
+     * messages. The default value is {@link #DEFAULT_MAX_BITRATE}.
+     */
+    public static final String MAX_BITRATE_PNAME
+        = "org.jitsi.impl.neomedia.transform.remb.RembTransformEngine"
+            + ".maxBitrate";
+
+    /**
+     * The name of the integer <tt>ConfigurationService</tt> property which
+     * specifies the minimum bandwidth in bits per second reported in REMB
+     * messages. The default value is {@link #DEFAULT_MIN_BITRATE}.
+     */
+    public static final String MIN_BITRATE_PNAME
+        = "org.jitsi.impl.neomedia.transform.remb.RembTransformEngine"
+            + ".minBitrate";
+
+    /**
+     * The interval in milliseconds at which the estimate is checked for being
+     * due to be reported.
+     */
+    private static final long PROCESS_INTERVAL = 100;
+
+    /**
+     * The fraction of the most recently reported estimate below which a
+     * decreased estimate is reported immediately.
+     */
+    private static final double REMB_DECREASE_THRESHOLD = 0.97;
+
+    /**
+     * The ASCII unique identifier of REMB messages.
+     */
+    private static final int REMB_IDENTIFIER = 0x52454D42; // "REMB"
+
+    /**
+     * The interval in milliseconds at which the estimate is reported if it
+     * does not decrease.
+     */
+    private static final long REMB_INTERVAL = 1000;
+
+    /**
+     * The <tt>Timer</tt> which checks the estimates of all
+     * <tt>RembTransformEngine</tt>s for being due to be reported.
+     */
+    private static Timer timer;
+
+    /**
+     * Gets the <tt>Timer</tt> which checks the estimates of all
+     * <tt>RembTransformEngine</tt>s for being due to be reported and creates
+     * it if it does not exist yet.
+     *
+     * @return the <tt>Timer</tt> which checks the estimates of all
+     * <tt>RembTransformEngine</tt>s
+     */
+    private static synchronized Timer getTimer()
+    {
+        if (timer == null)
+            timer = new Timer(RembTransformEngine.class.getName(), true);
+        return timer;
+    }
+
+    /**
+     * The RTP clock rate of the received packets or <tt>-1</tt> if it is not
+     * known yet.
+     */
+    private int clockRate = -1;
+
+    /**
+     * The <tt>AbstractRTPConnector</tt> through which the REMB messages are to
+     * be sent.
+     */
+    private volatile AbstractRTPConnector connector;
+
+    /**
+     * Whether REMB messages are to be sent and the local encoders are to be
+     * adapted to the available bandwidth.
+     */
+    private volatile boolean enabled;
+
+    /**
+     * The estimator of the bandwidth available on the way from the remote
+     * peer.
+     */
+    private final RemoteBitrateEstimator estimator;
+
+    /**
+     * The estimate most recently reported in a REMB message or <tt>-1</tt> if
+     * no REMB message has been sent yet.
+     */
+    private long lastRembBitrate = -1;
+
+    /**
+     * The time in milliseconds at which the most recent REMB message has been
+     * sent.
+     */
+    private long lastRembTime;
+
+    /**
+     * The <tt>MediaStreamImpl</tt> whose packets are transformed by this
+     * instance.
+     */
+    private final MediaStreamImpl mediaStream;
+
+    /**
+     * The number of REMB messages received by this instance.
+     */
+    private long receivedRembCount;
+
+    /**
+     * The RTCP <tt>PacketTransformer</tt> of this engine which reads the
+     * received REMB messages.
+     */
+    private final PacketTransformer rtcpTransformer = new RtcpTransformer();
+
+    /**
+     * The number of REMB messages sent by this instance.
+     */
+    private long sentRembCount;
+
+    /**
+     * The <tt>TimerTask</tt> which checks the estimate of this instance for
+     * being due to be reported.
+     */
+    private volatile TimerTask timerTask;
+
+    /**
+     * Initializes a new <tt>RembTransformEngine</tt> instance.
+     *
+     * @param mediaStream the <tt>MediaStreamImpl</tt> whose packets are to be
+     * transformed by the new instance
+     */
+    public RembTransformEngine(MediaStreamImpl mediaStream)
+    {
+        this.mediaStream = mediaStream;
+
+        ConfigurationService cfg = LibJitsi.getConfigurationService();
+        boolean enabled = false;
+        long maxBitrate = DEFAULT_MAX_BITRATE;
+        long minBitrate = DEFAULT_MIN_BITRATE;
+
+        if (cfg != null)
+        {
+            enabled = cfg.getBoolean(ENABLED_PNAME, enabled);
+            maxBitrate = cfg.getLong(MAX_BITRATE_PNAME, maxBitrate);
+            minBitrate = cfg.getLong(MIN_BITRATE_PNAME, minBitrate);
+        }
+        this.enabled = enabled;
+        estimator
+            = new RemoteBitrateEstimator(Math.max(0, minBitrate), maxBitrate);
+    }
+
+    /**
+     * Stops this engine.
+     */
+    public synchronized void close()
+    {
+        if (timerTask != null)
+        {
+            timerTask.cancel();
+            timerTask = null;
+        }
+    }
+
+    /**
+     * Creates the feedback control information of a REMB message.
+     *
+     * @param bitrate the bitrate in bits per second to report
+     * @param ssrcs the SSRCs which the reported bitrate applies to
+     * @return the feedback control information of a REMB message which
+     * reports <tt>bitrate</tt> for <tt>ssrcs</tt>
+     */
+    static byte[] createRembFCI(long bitrate, long[] ssrcs)
+    {
+        int ssrcCount = Math.min(ssrcs.length, 0xFF);
+        byte[] fci = new byte[8 + 4 * ssrcCount];
+        long mantissa = bitrate;
+        int exp = 0;
+
+        while (mantissa > 0x3FFFF)
+        {
+            mantissa >>= 1;
+            exp++;
+        }
+
+        writeInt(fci, 0, REMB_IDENTIFIER);
+        writeInt(
+                fci, 4,
+                (ssrcCount << 24) | (exp << 18) | (int) mantissa);
+        for (int i = 0; i < ssrcCount; i++)
+            writeInt(fci, 8 + 4 * i, (int) ssrcs[i]);
+        return fci;
+    }
+
+    /**
+     * Gets the RTP clock rate of the packets received by the
+     * <tt>MediaStream</tt> of this instance.
+     *
+     * @return the RTP clock rate of the received packets or <tt>-1</tt> if it
+     * is not known
+     */
+    private int getClockRate()
+    {
+        int clockRate = this.clockRate;
+
+        if (clockRate == -1)
+        {
+            MediaFormat format = mediaStream.getFormat();
+
+            if (format != null)
+            {
+                double formatClockRate = format.getClockRate();
+
+                if (formatClockRate > 0)
+                    this.clockRate = clockRate = (int) formatClockRate;
+            }
+            else if (MediaType.VIDEO.equals(mediaStream.getMediaType()))
+            {
+                // All video RTP payload formats use a 90 kHz clock.
+                this.clockRate = clockRate = 90000;
+            }
+        }
+        return clockRate;
+    }
+
+    /**
+     * Gets the bandwidth available on the way from the remote peer which has
+     * been estimated most recently.
+     *
+     * @return the estimated bandwidth in bits per second or <tt>-1</tt> if it
+     * has not been estimated yet
+     */
+    public long getEstimatedBitrate()
+    {
+        return estimator.getEstimate(System.currentTimeMillis());
+    }
+
+    /**
+     * Gets the number of REMB messages received by this instance.
+     *
+     * @return the number of REMB messages received by this instance
+     */
+    public synchronized long getReceivedRembCount()
+    {
+        return receivedRembCount;
+    }
+
+    /**
+     * Gets the RTCP <tt>PacketTransformer</tt> of this engine which reads the
+     * received REMB messages.
+     *
+     * @return the RTCP <tt>PacketTransformer</tt> of this engine
+     */
+    public PacketTransformer getRTCPTransformer()
+    {
+        return rtcpTransformer;
+    }
+
+    /**
+     * Returns a reference to this class since it is performing RTP
+     * transformations in here.
+     *
+     * @return a reference to <tt>this</tt> instance of the
+     * <tt>RembTransformEngine</tt>
+     */
+    public PacketTransformer getRTPTransformer()
+    {
+        return this;
+    }
+
+    /**
+     * Gets the number of REMB messages sent by this instance.
+     *
+     * @return the number of REMB messages sent by this instance
+     */
+    public synchronized long getSentRembCount()
+    {
+        return sentRembCount;
+    }
+
+    /**
+     * Determines whether REMB messages are sent and the local encoders are
+     * adapted to the available bandwidth.
+     *
+     * @return <tt>true</tt> if this engine is enabled; otherwise,
+     * <tt>false</tt>
+     */
+    public boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    /**
+     * Sends a REMB message if the estimate has dropped significantly or has
+     * not been reported for {@link #REMB_INTERVAL} milliseconds. Invoked
+     * periodically by {@link #timer}.
+     */
+    private void process()
+    {
+        long now = System.currentTimeMillis();
+        long bitrate = estimator.getEstimate(now);
+        AbstractRTPConnector connector = this.connector;
+
+        if ((bitrate <= 0) || (connector == null))
+            return;
+
+        long[] ssrcs = estimator.getSSRCs();
+
+        if (ssrcs.length == 0)
+            return;
+
+        synchronized (this)
+        {
+            if ((now - lastRembTime < REMB_INTERVAL)
+                    && (bitrate
+                            >= lastRembBitrate * REMB_DECREASE_THRESHOLD))
+                return;
+
+            lastRembBitrate = bitrate;
+            lastRembTime = now;
+            sentRembCount++;
+        }
+
+        RTCPFeedbackPacket remb
+            = new RTCPFeedbackPacket(
+                    FMT_AFB,
+                    RTCPFeedbackEvent.PT_PS,
+                    mediaStream.getLocalSourceID(),
+                    0,
+                    createRembFCI(bitrate, ssrcs));
+
+        try
+        {
+            remb.writeTo(connector.getControlOutputStream());
+        }
+        catch (IOException ioe)
+        {
+            logger.warn("Failed to send REMB.", ioe);
+        }
+    }
+
+    /**
+     * Reads the REMB messages in a specific (compound) RTCP packet and hands
+     * the bitrates reported in them to the <tt>BitrateController</tt> of the
+     * <tt>MediaStream</tt> of this instance.
+     *
+     * @param pkt the received (compound) RTCP packet
+     */
+    private void rembsReceived(RawPacket pkt)
+    {
+        int length = pkt.getLength();
+        int off = 0;
+
+        while (off + 12 <= length)
+        {
+            int b0 = pkt.readByte(off) & 0xFF;
+
+            if ((b0 & 0xC0) != 0x80)
+                break;
+
+            int packetLength = (pkt.readUnsignedShortAsInt(off + 2) + 1) * 4;
+
+            if (off + packetLength > length)
+                break;
+
+            if (((pkt.readByte(off + 1) & 0xFF) == RTCPFeedbackEvent.PT_PS)
+                    && ((b0 & 0x1F) == FMT_AFB)
+                    && (packetLength >= 20)
+                    && (pkt.readInt(off + 12) == REMB_IDENTIFIER))
+            {
+                int brExpMantissa = pkt.readInt(off + 16);
+                int exp = (brExpMantissa >>> 18) & 0x3F;
+                long mantissa = brExpMantissa & 0x3FFFF;
+                // Larger bitrates than Long.MAX_VALUE cannot be meant.
+                long bitrate
+                    = (exp > 63 - 18) ? Long.MAX_VALUE : (mantissa << exp);
+
+                synchronized (this)
+                {
+                    receivedRembCount++;
+                }
+                mediaStream.getBitrateController().rembReceived(bitrate);
+            }
+            off += packetLength;
+        }
+    }
+
+    /**
+     * Notes the arrival time and the size of a specific received RTP packet.
+     *
+     * @param pkt the received RTP packet
+     * @return <tt>pkt</tt>
+     */
+    public RawPacket reverseTransform(RawPacket pkt)
+    {
+        if (!enabled || (pkt == null))
+            return pkt;
+
+        long now = System.currentTimeMillis();
+        RtxTransformEngine rtxTransformEngine
+            = mediaStream.getRtxTransformEngine();
+        // The retransmissions add to the incoming bitrate but they were sent
+        // later than their RTP timestamps indicate.
+        boolean useDelay
+            = (rtxTransformEngine == null)
+                || !rtxTransformEngine.isRtxPayloadType(pkt.getPayloadType());
+
+        estimator.packetReceived(
+                pkt.getSSRC() & 0xFFFFFFFFL,
+                pkt.getTimestamp(),
+                getClockRate(),
+                pkt.getLength(),
+                useDelay,
+                now);
+        if (timerTask == null)
+            startTimer();
+        return pkt;
+    }
+
+    /**
+     * Sets the <tt>AbstractRTPConnector</tt> through which the REMB messages
+     * are to be sent.
+     *
+     * @param connector the <tt>AbstractRTPConnector</tt> through which the
+     * REMB messages are to be sent
+     */
+    public void setConnector(AbstractRTPConnector connector)
+    {
+        this.connector = connector;
+    }
+
+    /**
+     * Enables or disables this engine.
+     *
+     * @param enabled <tt>true</tt> to enable this engine or <tt>false</tt> to
+     * disable it
+     */
+    public void setEnabled(boolean enabled)
+    {
+        this.enabled = enabled;
+        if (!enabled)
+            close();
+    }
+
+    /**
+     * Starts checking the estimate of this instance for being due to be
+     * reported if it has not been started yet.
+     */
+    private synchronized void startTimer()
+    {
+        if (timerTask != null)
+            return;
+
+        timerTask
+            = new TimerTask()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        process();
+                    }
+                    catch (Throwable t)
+                    {
+                        if (t instanceof ThreadDeath)
+                            throw (ThreadDeath) t;
+                        logger.error("Failed to send REMB.", t);
+                    }
+                }
+            };
+        getTimer().schedule(timerTask, PROCESS_INTERVAL, PROCESS_INTERVAL);
+    }
+
+    /**
+     * Passes a specific packet through without modification.
+     *
+     * @param pkt the packet to be sent
+     * @return <tt>pkt</tt>
+     */
+    public RawPacket transform(RawPacket pkt)
+    {
+        return pkt;
+    }
+
+    /**
+     * Writes a 32-bit big-endian integer into a specific buffer.
+     *
+     * @param buf the buffer to write into
+     * @param off the offset in <tt>buf</tt> at which to write
+     * @param value the value to write
+     */
+    private static void writeInt(byte[] buf, int off, int value)
+    {
+        buf[off] = (byte) (value >>> 24);
+        buf[off + 1] = (byte) (value >>> 16);
+        buf[off + 2] = (byte) (value >>> 8);
+        buf[off + 3] = (byte) value;
+    }
+
+    /**
+     * Implements the RTCP <tt>PacketTransformer</tt> of
+     * <tt>RembTransformEngine</tt>.
+     */
+    private class RtcpTransformer
+        extends SinglePacketTransformer
+    {
+        /**
+         * {@inheritDoc}
+         */
+        public void close()
+        {
+        }
+
+        /**
+         * Reads the REMB messages in a specific received (compound) RTCP
+         * packet. The packet is passed through without modification.
+         *
+         * @param pkt the received (compound) RTCP packet
+         * @return <tt>pkt</tt>
+         */
+        public RawPacket reverseTransform(RawPacket pkt)
+        {
+            if (enabled && (pkt != null))
+                rembsReceived(pkt);
+            return pkt;
+        }
+
+        /**
+         * Passes a specific packet through without modification.
+         *
+         * @param pkt the packet to be sent
+         * @return <tt>pkt</tt>
+         */
+        public RawPacket transform(RawPacket pkt)
+        {
+            return pkt;
+        }
+    }
+}
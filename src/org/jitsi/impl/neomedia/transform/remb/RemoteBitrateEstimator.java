@@ -0,0 +1,753 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package org.jitsi.impl.neomedia.transform.remb;
+
+/**
+ * Estimates the bandwidth available on the way from the remote peer from the
+ * variation of the delay with which the RTP packets arrive (as described in
+ * draft-ietf-rmcat-gcc). The packets of an SSRC are grouped by their RTP
+ * timestamps (i.e. by video frames) and the difference between the
+ * inter-arrival time and the inter-departure time (known from the RTP
+ * timestamps) of consecutive groups is the delay gradient. A Kalman filter
+ * estimates the queuing delay trend from the gradients and an over-use
+ * detector compares it (multiplied by the number of gradients it is based on,
+ * up to {@link #MAX_DELTA_COUNT}, so that a small but steady trend is
+ * detected) with an adaptive threshold. The estimate is then decreased
+ * multiplicatively to a fraction of the incoming bitrate when the link is
+ * over-used, held when it is under-used (i.e. the queues drain) and increased
+ * multiplicatively otherwise.
+ * <p>
+ * The methods take the current time as an argument so that the estimator can
+ * be driven by a simulated clock. An instance allocates nothing per packet
+ * once the SSRCs have been seen.
+ * </p>
+ */
+class RemoteBitrateEstimator
+{
+    /**
+     * The factor of the incoming bitrate to which the estimate is decreased
+     * when the link is over-used.
+     */
+    private static final double BETA = 0.85;
+
+    /**
+     * The coefficient of the exponential averaging of the noise variance of
+     * the Kalman filter per 30 milliseconds.
+     */
+    private static final double CHI = 0.01;
+
+    /**
+     * The maximum factor by which the estimate is increased per second.
+     */
+    private static final double ETA = 1.08;
+
+    /**
+     * The initial value of the over-use threshold in milliseconds.
+     */
+    private static final double INITIAL_THRESHOLD = 12.5;
+
+    /**
+     * The gain of the adaptation of the over-use threshold when the delay
+     * trend is below the threshold.
+     */
+    private static final double K_DOWN = 0.00018;
+
+    /**
+     * The gain of the adaptation of the over-use threshold when the delay
+     * trend is above the threshold.
+     */
+    private static final double K_UP = 0.01;
+
+    /**
+     * The maximum number of delay gradients by which the delay trend is
+     * multiplied before it is compared with the over-use threshold.
+     */
+    private static final int MAX_DELTA_COUNT = 60;
+
+    /**
+     * The maximum value of the over-use threshold in milliseconds.
+     */
+    private static final double MAX_THRESHOLD = 600;
+
+    /**
+     * The maximum time in milliseconds between two adaptations of the
+     * over-use threshold which is taken into account.
+     */
+    private static final long MAX_THRESHOLD_UPDATE_INTERVAL = 100;
+
+    /**
+     * The minimum value of the over-use threshold in milliseconds.
+     */
+    private static final double MIN_THRESHOLD = 6;
+
+    /**
+     * The hypothesis that the link is neither over-used nor under-used.
+     */
+    static final int NORMAL = 0;
+
+    /**
+     * The hypothesis that the link is over-used i.e. the queues grow.
+     */
+    static final int OVERUSING = 2;
+
+    /**
+     * The time in milliseconds for which the delay trend has to be above the
+     * over-use threshold before the link is considered over-used.
+     */
+    private static final double OVERUSE_TIME_THRESHOLD = 10;
+
+    /**
+     * The process noise of the Kalman filter.
+     */
+    private static final double PROCESS_NOISE = 1e-3;
+
+    /**
+     * The rate control state in which the estimate is decreased.
+     */
+    private static final int RC_DECREASE = 2;
+
+    /**
+     * The rate control state in which the estimate is held.
+     */
+    private static final int RC_HOLD = 0;
+
+    /**
+     * The rate control state in which the estimate is increased.
+     */
+    private static final int RC_INCREASE = 1;
+
+    /**
+     * The duration in milliseconds of a bucket of {@link #rateBuckets}.
+     */
+    private static final int RATE_BUCKET_DURATION = 10;
+
+    /**
+     * The duration in milliseconds of the window over which the incoming
+     * bitrate is measured.
+     */
+    static final int RATE_WINDOW = 500;
+
+    /**
+     * The time in milliseconds after which an SSRC from which no packets have
+     * been received is no longer taken into account.
+     */
+    static final long SSRC_TIMEOUT = 2000;
+
+    /**
+     * The hypothesis that the link is under-used i.e. the queues drain.
+     */
+    static final int UNDERUSING = 1;
+
+    /**
+     * The <tt>Detector</tt>s of the SSRCs received by this estimator.
+     */
+    private Detector[] detectors = new Detector[0];
+
+    /**
+     * The estimated available bandwidth in bits per second or <tt>-1</tt> if
+     * it has not been estimated yet.
+     */
+    private long estimate = -1;
+
+    /**
+     * The time in milliseconds at which {@link #estimate} has been updated
+     * most recently or <tt>-1</tt> if it has not been updated yet.
+     */
+    private long estimateTime = -1;
+
+    /**
+     * The hypothesis about the state of the link derived from the
+     * <tt>Detector</tt>s most recently.
+     */
+    private int hypothesis = NORMAL;
+
+    /**
+     * The time in milliseconds of the first packet received by this estimator
+     * or <tt>-1</tt> if no packet has been received yet.
+     */
+    private long firstPacketTime = -1;
+
+    /**
+     * The maximum estimate in bits per second.
+     */
+    private final long maxBitrate;
+
+    /**
+     * The minimum estimate in bits per second.
+     */
+    private final long minBitrate;
+
+    /**
+     * The numbers of bytes received in the most recent
+     * {@link #RATE_BUCKET_DURATION} millisecond long buckets.
+     */
+    private final long[] rateBuckets
+        = new long[RATE_WINDOW / RATE_BUCKET_DURATION];
+
+    /**
+     * The sum of {@link #rateBuckets}.
+     */
+    private long rateByteCount;
+
+    /**
+     * The index of the most recent bucket of {@link #rateBuckets} i.e. the
+     * time divided by {@link #RATE_BUCKET_DURATION}.
+     */
+    private long rateBucketIndex = -1;
+
+    /**
+     * The rate control state.
+     */
+    private int state = RC_HOLD;
+
+    /**
+     * Initializes a new <tt>RemoteBitrateEstimator</tt> instance.
+     *
+     * @param minBitrate the minimum estimate in bits per second
+     * @param maxBitrate the maximum estimate in bits per second
+     */
+    RemoteBitrateEstimator(long minBitrate, long maxBitrate)
+    {
+        this.minBitrate = minBitrate;
+        this.maxBitrate = Math.max(minBitrate, maxBitrate);
+    }
+
+    /**
+     * Gets the <tt>Detector</tt> of a specific SSRC and creates it if it does
+     * not exist yet.
+     *
+     * @param ssrc the SSRC
+     * @param clockRate the RTP clock rate of the SSRC
+     * @return the <tt>Detector</tt> of <tt>ssrc</tt>
+     */
+    private Detector getDetector(long ssrc, int clockRate)
+    {
+        for (Detector detector : detectors)
+        {
+            if (detector.ssrc == ssrc)
+                return detector;
+        }
+
+        Detector[] newDetectors = new Detector[detectors.length + 1];
+
+        System.arraycopy(detectors, 0, newDetectors, 0, detectors.length);
+        newDetectors[detectors.length] = new Detector(ssrc, clockRate);
+        detectors = newDetectors;
+        return newDetectors[detectors.length - 1];
+    }
+
+    /**
+     * Gets the estimated available bandwidth and forgets the SSRCs which have
+     * timed out.
+     *
+     * @param now the current time in milliseconds
+     * @return the estimated available bandwidth in bits per second or
+     * <tt>-1</tt> if it has not been estimated yet
+     */
+    synchronized long getEstimate(long now)
+    {
+        int active = 0;
+
+        for (Detector detector : detectors)
+        {
+            if (now - detector.lastPacketTime < SSRC_TIMEOUT)
+                active++;
+        }
+        if (active != detectors.length)
+        {
+            Detector[] newDetectors = new Detector[active];
+            int i = 0;
+
+            for (Detector detector : detectors)
+            {
+                if (now - detector.lastPacketTime < SSRC_TIMEOUT)
+                    newDetectors[i++] = detector;
+            }
+            detectors = newDetectors;
+        }
+        return estimate;
+    }
+
+    /**
+     * Gets the hypothesis about the state of the link derived most recently.
+     *
+     * @return {@link #NORMAL}, {@link #OVERUSING} or {@link #UNDERUSING}
+     */
+    synchronized int getHypothesis()
+    {
+        return hypothesis;
+    }
+
+    /**
+     * Gets the bitrate at which the packets have been received over the most
+     * recent {@link #RATE_WINDOW} milliseconds.
+     *
+     * @param now the current time in milliseconds
+     * @return the incoming bitrate in bits per second or <tt>-1</tt> if the
+     * packets have not been received for long enough yet
+     */
+    synchronized long getIncomingBitrate(long now)
+    {
+        updateRateBuckets(now);
+        if ((firstPacketTime == -1) || (now - firstPacketTime < RATE_WINDOW))
+            return -1;
+        return rateByteCount * 8 * 1000 / RATE_WINDOW;
+    }
+
+    /**
+     * Gets the SSRCs which are taken into account by this estimator.
+     *
+     * @return the SSRCs which are taken into account by this estimator
+     */
+    synchronized long[] getSSRCs()
+    {
+        long[] ssrcs = new long[detectors.length];
+
+        for (int i = 0; i < ssrcs.length; i++)
+            ssrcs[i] = detectors[i].ssrc;
+        return ssrcs;
+    }
+
+    /**
+     * Notifies this estimator that an RTP packet has been received.
+     *
+     * @param ssrc the SSRC of the packet
+     * @param rtpTimestamp the RTP timestamp of the packet
+     * @param clockRate the RTP clock rate of the packet
+     * @param length the length in bytes of the packet
+     * @param useDelay <tt>true</tt> if the arrival time of the packet is to
+     * be taken into account or <tt>false</tt> if the packet only adds to the
+     * incoming bitrate (e.g. because it is a retransmission)
+     * @param now the time in milliseconds at which the packet has arrived
+     */
+    synchronized void packetReceived(
+            long ssrc,
+            long rtpTimestamp,
+            int clockRate,
+            int length,
+            boolean useDelay,
+            long now)
+    {
+        if (firstPacketTime == -1)
+            firstPacketTime = now;
+        updateRateBuckets(now);
+        rateBuckets[(int) (rateBucketIndex % rateBuckets.length)] += length;
+        rateByteCount += length;
+
+        if (!useDelay || (clockRate <= 0))
+            return;
+
+        Detector detector = getDetector(ssrc, clockRate);
+
+        if (detector.packetReceived(rtpTimestamp, now))
+        {
+            // A group has been completed so the hypothesis of the detector
+            // has been updated. The link is over-used if any of the SSRCs
+            // over-uses it and is under-used if any of them under-uses it.
+            int hypothesis = NORMAL;
+
+            for (Detector d : detectors)
+            {
+                if ((now - d.lastPacketTime < SSRC_TIMEOUT)
+                        && (d.hypothesis > hypothesis))
+                    hypothesis = d.hypothesis;
+            }
+            this.hypothesis = hypothesis;
+            updateEstimate(now);
+        }
+    }
+
+    /**
+     * Updates the estimate according to the current hypothesis about the
+     * state of the link.
+     *
+     * @param now the current time in milliseconds
+     */
+    private void updateEstimate(long now)
+    {
+        long incomingBitrate = getIncomingBitrate(now);
+
+        // The estimate starts as soon as the incoming bitrate is known.
+        if (incomingBitrate == -1)
+            return;
+
+        switch (hypothesis)
+        {
+        case OVERUSING:
+            state = RC_DECREASE;
+            break;
+        case UNDERUSING:
+            state = RC_HOLD;
+            break;
+        default:
+            if (state == RC_HOLD)
+                state = RC_INCREASE;
+            else if (state == RC_DECREASE)
+                state = RC_HOLD;
+            break;
+        }
+
+        long estimate = this.estimate;
+
+        if (estimate == -1)
+        {
+            estimate = incomingBitrate;
+        }
+        else if (state == RC_INCREASE)
+        {
+            long interval = Math.min(now - estimateTime, 1000);
+
+            estimate = (long) (estimate * Math.pow(ETA, interval / 1000.0));
+
+            // The estimate cannot be verified beyond the incoming bitrate so
+            // it is kept close to it.
+            long maxEstimate = (long) (1.5 * incomingBitrate) + 10000;
+
+            if (estimate > maxEstimate)
+                estimate = Math.max(maxEstimate, this.estimate);
+        }
+        else if (state == RC_DECREASE)
+        {
+            estimate = Math.min(estimate, (long) (BETA * incomingBitrate));
+            // The estimate is decreased once per over-use.
+            state = RC_HOLD;
+        }
+
+        if (estimate < minBitrate)
+            estimate = minBitrate;
+        else if (estimate > maxBitrate)
+            estimate = maxBitrate;
+        this.estimate = estimate;
+        estimateTime = now;
+    }
+
+    /**
+     * Moves the window over which the incoming bitrate is measured to a
+     * specific time.
+     *
+     * @param now the current time in milliseconds
+     */
+    private void updateRateBuckets(long now)
+    {
+        long bucketIndex = now / RATE_BUCKET_DURATION;
+
+        if (rateBucketIndex == -1)
+        {
+            rateBucketIndex = bucketIndex;
+            return;
+        }
+
+        long expired = bucketIndex - rateBucketIndex;
+
+        if (expired <= 0)
+            return;
+        if (expired >= rateBuckets.length)
+        {
+            for (int i = 0; i < rateBuckets.length; i++)
+                rateBuckets[i] = 0;
+            rateByteCount = 0;
+        }
+        else
+        {
+            for (long i = rateBucketIndex + 1; i <= bucketIndex; i++)
+            {
+                int index = (int) (i % rateBuckets.length);
+
+                rateByteCount -= rateBuckets[index];
+                rateBuckets[index] = 0;
+            }
+        }
+        rateBucketIndex = bucketIndex;
+    }
+
+    /**
+     * Estimates the queuing delay trend of one SSRC and detects whether it
+     * indicates that the link is over-used or under-used.
+     */
+    private static class Detector
+    {
+        /**
+         * The RTP clock rate of the SSRC.
+         */
+        private final int clockRate;
+
+        /**
+         * The number of delay gradients which have been taken into account
+         * (up to {@link #MAX_DELTA_COUNT}).
+         */
+        private int deltaCount;
+
+        /**
+         * The time in milliseconds at which the last packet of the current
+         * group has arrived.
+         */
+        private long groupArrivalTime;
+
+        /**
+         * The RTP timestamp of the current group or <tt>-1</tt> if no packet
+         * has been received yet.
+         */
+        private long groupTimestamp = -1;
+
+        /**
+         * The hypothesis about the state of the link derived from the delay
+         * trend of the SSRC.
+         */
+        int hypothesis = NORMAL;
+
+        /**
+         * The time in milliseconds at which the most recent packet of the SSRC
+         * has arrived.
+         */
+        long lastPacketTime;
+
+        /**
+         * The time in milliseconds at which {@link #threshold} has been adapted
+         * most recently or <tt>-1</tt> if it has not been adapted yet.
+         */
+        private long lastThresholdUpdateTime = -1;
+
+        /**
+         * The estimated queuing delay trend in milliseconds (i.e. the state of
+         * the Kalman filter).
+         */
+        private double offset;
+
+        /**
+         * The number of consecutive delay trends above {@link #threshold}.
+         */
+        private int overuseCount;
+
+        /**
+         * The estimated variance of the measurement noise of the Kalman
+         * filter.
+         */
+        private double noiseVariance = 50;
+
+        /**
+         * The error covariance of the Kalman filter.
+         */
+        private double errorCovariance = 0.1;
+
+        /**
+         * The time in milliseconds at which the last packet of the previous
+         * group has arrived.
+         */
+        private long previousGroupArrivalTime;
+
+        /**
+         * The RTP timestamp of the previous group or <tt>-1</tt> if there is
+         * no previous group yet.
+         */
+        private long previousGroupTimestamp = -1;
+
+        /**
+         * The delay trend of the previous group multiplied by the number of
+         * delay gradients.
+         */
+        private double previousTrend;
+
+        /**
+         * The SSRC.
+         */
+        final long ssrc;
+
+        /**
+         * The adaptive over-use threshold in milliseconds.
+         */
+        private double threshold = INITIAL_THRESHOLD;
+
+        /**
+         * The time in milliseconds for which the delay trend has been above
+         * {@link #threshold} or <tt>-1</tt> if it is not above it.
+         */
+        private double timeOverusing = -1;
+
+        /**
+         * Initializes a new <tt>Detector</tt> instance.
+         *
+         * @param ssrc the SSRC
+         * @param clockRate the RTP clock rate of the SSRC
+         */
+        Detector(long ssrc, int clockRate)
+        {
+            this.ssrc = ssrc;
+            this.clockRate = clockRate;
+        }
+
+        /**
+         * Detects whether the delay trend indicates that the link is
+         * over-used or under-used.
+         *
+         * @param timestampDelta the inter-departure time in milliseconds of
+         * the most recent groups
+         * @param now the current time in milliseconds
+         */
+        private void detect(double timestampDelta, long now)
+        {
+            double trend = offset * deltaCount;
+
+            if (trend > threshold)
+            {
+                if (timeOverusing == -1)
+                    timeOverusing = timestampDelta / 2;
+                else
+                    timeOverusing += timestampDelta;
+                overuseCount++;
+                if ((timeOverusing > OVERUSE_TIME_THRESHOLD)
+                        && (overuseCount > 1)
+                        && (trend >= previousTrend))
+                {
+                    timeOverusing = 0;
+                    overuseCount = 0;
+                    hypothesis = OVERUSING;
+                }
+            }
+            else if (trend < -threshold)
+            {
+                timeOverusing = -1;
+                overuseCount = 0;
+                hypothesis = UNDERUSING;
+            }
+            else
+            {
+                timeOverusing = -1;
+                overuseCount = 0;
+                hypothesis = NORMAL;
+            }
+            previousTrend = trend;
+            updateThreshold(trend, now);
+        }
+
+        /**
+         * Notifies this detector that a packet of its SSRC has been received.
+         *
+         * @param rtpTimestamp the RTP timestamp of the packet
+         * @param now the time in milliseconds at which the packet has arrived
+         * @return <tt>true</tt> if the packet has completed a group and
+         * {@link #hypothesis} has been updated; otherwise, <tt>false</tt>
+         */
+        boolean packetReceived(long rtpTimestamp, long now)
+        {
+            lastPacketTime = now;
+            if (groupTimestamp == -1)
+            {
+                groupTimestamp = rtpTimestamp;
+                groupArrivalTime = now;
+                return false;
+            }
+            if (rtpTimestamp == groupTimestamp)
+            {
+                groupArrivalTime = now;
+                return false;
+            }
+
+            // Reordered packets of earlier groups are ignored.
+            if (((rtpTimestamp - groupTimestamp) & 0xFFFFFFFFL) >= 0x80000000L)
+                return false;
+
+            boolean updated = false;
+
+            if (previousGroupTimestamp != -1)
+            {
+                double timestampDelta
+                    = ((groupTimestamp - previousGroupTimestamp) & 0xFFFFFFFFL)
+                        * 1000.0
+                        / clockRate;
+                long arrivalDelta = groupArrivalTime - previousGroupArrivalTime;
+
+                if (deltaCount < MAX_DELTA_COUNT)
+                    deltaCount++;
+                update(arrivalDelta - timestampDelta, timestampDelta);
+                detect(timestampDelta, now);
+                updated = true;
+            }
+            previousGroupTimestamp = groupTimestamp;
+            previousGroupArrivalTime = groupArrivalTime;
+            groupTimestamp = rtpTimestamp;
+            groupArrivalTime = now;
+            return updated;
+        }
+
+        /**
+         * Updates the Kalman filter with a specific delay gradient.
+         *
+         * @param delayGradient the delay gradient in milliseconds
+         * @param timestampDelta the inter-departure time in milliseconds of
+         * the groups of <tt>delayGradient</tt>
+         */
+        private void update(double delayGradient, double timestampDelta)
+        {
+            double residual = delayGradient - offset;
+            // Outliers (e.g. after a gap in the stream) are limited to three
+            // standard deviations of the noise.
+            double maxResidual = 3 * Math.sqrt(noiseVariance);
+
+            if (residual > maxResidual)
+                residual = maxResidual;
+            else if (residual < -maxResidual)
+                residual = -maxResidual;
+
+            // The noise variance is averaged over a time rather than over a
+            // number of groups so that it does not depend on the frame rate.
+            double alpha
+                = Math.pow(1 - CHI, Math.min(timestampDelta, 1000) / 30);
+
+            noiseVariance
+                = Math.max(
+                        alpha * noiseVariance
+                            + (1 - alpha) * residual * residual,
+                        1);
+
+            double gain
+                = (errorCovariance + PROCESS_NOISE)
+                    / (noiseVariance + errorCovariance + PROCESS_NOISE);
+
+            offset += gain * residual;
+            errorCovariance
+                = (1 - gain) * (errorCovariance + PROCESS_NOISE);
+        }
+
+        /**
+         * Adapts the over-use threshold to the delay trend so that the
+         * detector is neither starved by concurrent TCP flows nor triggered
+         * by the noise.
+         *
+         * @param trend the delay trend multiplied by the number of delay
+         * gradients
+         * @param now the current time in milliseconds
+         */
+        private void updateThreshold(double trend, long now)
+        {
+            double absTrend = Math.abs(trend);
+
+            if (lastThresholdUpdateTime == -1)
+                lastThresholdUpdateTime = now;
+
+            // Sudden large spikes (e.g. after a route change) do not affect
+            // the threshold.
+            if (absTrend > threshold + 15)
+            {
+                lastThresholdUpdateTime = now;
+                return;
+            }
+
+            double k = (absTrend < threshold) ? K_DOWN : K_UP;
+            long interval
+                = Math.min(
+                        now - lastThresholdUpdateTime,
+                        MAX_THRESHOLD_UPDATE_INTERVAL);
+
+            threshold += k * (absTrend - threshold) * interval;
+            if (threshold < MIN_THRESHOLD)
+                threshold = MIN_THRESHOLD;
+            else if (threshold > MAX_THRESHOLD)
+                threshold = MAX_THRESHOLD;
+            lastThresholdUpdateTime = now;
+        }
+    }
+}
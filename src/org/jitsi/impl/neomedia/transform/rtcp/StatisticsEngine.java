@@ -37,7 +37,7 @@ import org.jitsi.util.*;
  */
 public class StatisticsEngine
     implements TransformEngine,
-               PacketTransformer
+               BatchPacketTransformer
 {
     /**
      * The <tt>Logger</tt> used by the <tt>StatisticsEngine</tt> class and its
@@ -1118,6 +1118,58 @@ public class StatisticsEngine
         return pkt;
      }
 
+    /**
+     * {@inheritDoc}
+     *
+     * Looks the <tt>RTCPReports</tt> of the associated <tt>MediaStream</tt> up
+     * once per batch and checks the time of the first received packet once per
+     * run of consecutive RTP packets with the same SSRC.
+     */
+    @Override
+    public void reverseTransform(RawPacket[] pkts, int count)
+    {
+        RTCPReports rtcpReports = null;
+        int lastSSRC = 0;
+
+        for (int i = 0; i < count; i++)
+        {
+            RawPacket pkt = pkts[i];
+
+            if (pkt == null)
+                continue;
+
+            // SRTP may send non-RTCP packets.
+            if (isRTCP(pkt))
+            {
+                pkts[i] = reverseTransform(pkt);
+            }
+            else
+            {
+                int ssrc = pkt.getSSRC();
+
+                if (rtcpReports == null)
+                {
+                    rtcpReports
+                        = mediaStream.getMediaStreamStats().getRTCPReports();
+                }
+                else if (ssrc == lastSSRC)
+                {
+                    continue;
+                }
+                lastSSRC = ssrc;
+
+                // If this is the first packet received, store the time.
+                if (rtcpReports.getFirstReceivedPacketTime(ssrc) == 0)
+                {
+                    logger.debug("Setting first packet received for " + ssrc);
+                    rtcpReports.setFirstReceivedPacketTime(
+                            ssrc,
+                            System.currentTimeMillis());
+                }
+            }
+        }
+    }
+
     /**
      * Transfers RTCP sender report feedback as new information about the
      * download stream for the MediaStreamStats. Finds the info needed for
@@ -1229,6 +1281,62 @@ public class StatisticsEngine
         return pkt;
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * Looks the <tt>RTCPReports</tt> of the associated <tt>MediaStream</tt> up
+     * once per batch and records the last sent sequence number and checks the
+     * time of the first sent packet once per run of consecutive RTP packets
+     * with the same SSRC.
+     */
+    @Override
+    public void transform(RawPacket[] pkts, int count)
+    {
+        RTCPReports rtcpReports = null;
+
+        for (int i = 0; i < count; i++)
+        {
+            RawPacket pkt = pkts[i];
+
+            if (pkt == null)
+                continue;
+
+            // SRTP may send non-RTCP packets.
+            if (isRTCP(pkt))
+            {
+                pkts[i] = transform(pkt);
+                continue;
+            }
+
+            int ssrc = pkt.getSSRC();
+            RawPacket next = null;
+
+            // Skip to the last packet of the run of packets of ssrc.
+            for (int j = i + 1; j < count; j++)
+            {
+                next = pkts[j];
+                if (next != null)
+                    break;
+            }
+            if ((next != null) && !isRTCP(next) && (next.getSSRC() == ssrc))
+                continue;
+
+            if (rtcpReports == null)
+                rtcpReports = mediaStream.getMediaStreamStats().getRTCPReports();
+
+            mLastSentSeqNum.put(ssrc, pkt.getSequenceNumber());
+
+            // If this is the first packet sent store the time.
+            if (rtcpReports.getFirstSentPacketTime(ssrc) == 0)
+            {
+                logger.debug("Setting first packet sent for " + ssrc);
+                rtcpReports.setFirstSentPacketTime(
+                        ssrc,
+                        System.currentTimeMillis());
+            }
+        }
+    }
+
     /**
      * Transfers RTCP sender/receiver report feedback as new information about
      * the upload stream for the <tt>MediaStreamStats</tt>.
@@ -0,0 +1,152 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package org.jitsi.impl.neomedia.transform.rtx;
+
+import java.util.concurrent.atomic.*;
+
+import org.jitsi.impl.neomedia.*;
+
+/**
+ * Keeps copies of the most recently sent RTP packets of one SSRC in a ring
+ * buffer indexed by (the low bits of) their sequence numbers. A newly added
+ * packet overwrites the packet with the same index. The buffers of the slots
+ * are reused and the total number of bytes allocated for them is accounted in
+ * a counter which may be shared by multiple <tt>PacketHistory</tt> instances
+ * in order to cap their memory use.
+ */
+class PacketHistory
+{
+    /**
+     * The buffers of the slots of this ring buffer.
+     */
+    private final byte[][] buffers;
+
+    /**
+     * The lengths of the packets in the respective slots of this ring buffer
+     * or <tt>0</tt> if the respective slot is empty.
+     */
+    private final int[] lengths;
+
+    /**
+     * The maximum number of bytes which may be allocated (as accounted by
+     * {@link #memoryUsed}) for the buffers of the slots.
+     */
+    private final long maxMemory;
+
+    /**
+     * The number of bytes allocated for the buffers of the slots of this and
+     * possibly other <tt>PacketHistory</tt> instances.
+     */
+    private final AtomicLong memoryUsed;
+
+    /**
+     * The sequence numbers of the packets in the respective slots of this
+     * ring buffer.
+     */
+    private final int[] sequenceNumbers;
+
+    /**
+     * Initializes a new <tt>PacketHistory</tt> instance.
+     *
+     * @param capacity the number of slots of the new instance. Rounded up to a
+     * power of two.
+     * @param memoryUsed the counter in which the number of bytes allocated for
+     * the buffers of the slots is to be accounted
+     * @param maxMemory the maximum number of bytes which may be accounted in
+     * <tt>memoryUsed</tt>
+     */
+    public PacketHistory(int capacity, AtomicLong memoryUsed, long maxMemory)
+    {
+        capacity = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        if (capacity > 0x10000)
+            capacity = 0x10000;
+
+        buffers = new byte[capacity][];
+        lengths = new int[capacity];
+        sequenceNumbers = new int[capacity];
+        this.memoryUsed = memoryUsed;
+        this.maxMemory = maxMemory;
+    }
+
+    /**
+     * Adds a copy of a specific RTP packet to this history.
+     *
+     * @param pkt the RTP packet to add
+     * @return <tt>true</tt> if a copy of <tt>pkt</tt> has been added;
+     * <tt>false</tt> if it could not be added without exceeding the maximum
+     * memory use (in which case the slot of <tt>pkt</tt> is emptied)
+     */
+    public synchronized boolean add(RawPacket pkt)
+    {
+        int sequenceNumber = pkt.getSequenceNumber();
+        int index = sequenceNumber & (buffers.length - 1);
+        int length = pkt.getLength();
+        byte[] buffer = buffers[index];
+
+        if ((buffer == null) || (buffer.length < length))
+        {
+            int oldLength = (buffer == null) ? 0 : buffer.length;
+
+            if (memoryUsed.get() + length - oldLength > maxMemory)
+            {
+                buffers[index] = null;
+                lengths[index] = 0;
+                memoryUsed.addAndGet(-oldLength);
+                return false;
+            }
+
+            buffer = new byte[length];
+            buffers[index] = buffer;
+            memoryUsed.addAndGet(length - oldLength);
+        }
+
+        System.arraycopy(pkt.getBuffer(), pkt.getOffset(), buffer, 0, length);
+        lengths[index] = length;
+        sequenceNumbers[index] = sequenceNumber;
+        return true;
+    }
+
+    /**
+     * Releases the memory allocated by this history.
+     */
+    public synchronized void clear()
+    {
+        for (int i = 0; i < buffers.length; i++)
+        {
+            byte[] buffer = buffers[i];
+
+            if (buffer != null)
+            {
+                memoryUsed.addAndGet(-buffer.length);
+                buffers[i] = null;
+            }
+            lengths[i] = 0;
+        }
+    }
+
+    /**
+     * Gets a copy of the packet with a specific sequence number if it is still
+     * in this history.
+     *
+     * @param sequenceNumber the sequence number of the packet to get
+     * @return a copy of the packet with the specified sequence number or
+     * <tt>null</tt> if it is no longer (or has never been) in this history
+     */
+    public synchronized RawPacket get(int sequenceNumber)
+    {
+        int index = sequenceNumber & (buffers.length - 1);
+        int length = lengths[index];
+
+        if ((length == 0) || (sequenceNumbers[index] != sequenceNumber))
+            return null;
+
+        byte[] buffer = new byte[length];
+
+        System.arraycopy(buffers[index], 0, buffer, 0, length);
+        return new RawPacket(buffer, 0, length);
+    }
+}
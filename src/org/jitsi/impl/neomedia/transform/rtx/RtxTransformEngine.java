@@ -0,0 +1,733 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package org.jitsi.impl.neomedia.transform.rtx;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.jitsi.impl.neomedia.*;
+import org.jitsi.impl.neomedia.transform.*;
+import org.jitsi.service.configuration.*;
+import org.jitsi.service.libjitsi.*;
+import org.jitsi.service.neomedia.event.*;
+import org.jitsi.util.*;
+
+/**
+ * Implements RTP retransmission as defined by RFC 4588 in SSRC-multiplexing
+ * mode. Keeps a bounded history of the RTP packets sent by the associated
+ * <tt>MediaStream</tt> (for the payload types which have an associated RTX
+ * payload type), answers the generic NACKs (RFC 4585) received for them by
+ * re-sending them encapsulated in RTX packets with a separate SSRC and
+ * de-encapsulates the RTX packets received from the remote peer so that the
+ * rest of the stack sees the original packets.
+ *
+ * The engine is inactive (i.e. it passes all packets through without
+ * keeping any history) until an RTX payload type is added with
+ * {@link #addRtxPayloadType(byte, byte)} (e.g. because an <tt>rtx</tt>
+ * payload type has been negotiated for the <tt>MediaStream</tt>).
+ */
+public class RtxTransformEngine
+    implements TransformEngine
+{
+    /**
+     * The default value of the property {@link #HISTORY_MAX_BYTES_PNAME}.
+     */
+    private static final long DEFAULT_HISTORY_MAX_BYTES = 2 * 1024 * 1024;
+
+    /**
+     * The default value of the property {@link #HISTORY_SIZE_PNAME}.
+     */
+    private static final int DEFAULT_HISTORY_SIZE = 512;
+
+    /**
+     * The name of the <tt>ConfigurationService</tt> property which specifies
+     * the maximum number of bytes that an <tt>RtxTransformEngine</tt> may
+     * allocate for the histories of the packets sent by its
+     * <tt>MediaStream</tt>. The default value is
+     * {@link #DEFAULT_HISTORY_MAX_BYTES}.
+     */
+    public static final String HISTORY_MAX_BYTES_PNAME
+        = "org.jitsi.impl.neomedia.transform.rtx.RtxTransformEngine"
+            + ".historyMaxBytes";
+
+    /**
+     * The name of the integer <tt>ConfigurationService</tt> property which
+     * specifies the number of packets kept in the history of each SSRC sent
+     * by the <tt>MediaStream</tt> of an <tt>RtxTransformEngine</tt>. The
+     * value is rounded up to a power of two. The default value is
+     * {@link #DEFAULT_HISTORY_SIZE}.
+     */
+    public static final String HISTORY_SIZE_PNAME
+        = "org.jitsi.impl.neomedia.transform.rtx.RtxTransformEngine"
+            + ".historySize";
+
+    /**
+     * The <tt>Logger</tt> used by the <tt>RtxTransformEngine</tt> class and
+     * its instances for logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(RtxTransformEngine.class);
+
+    /**
+     * The RTX payload types (to be) used to retransmit the packets of the
+     * respective associated (i.e. original) payload types.
+     */
+    private final Map<Byte, Byte> aptToRtx
+        = new ConcurrentHashMap<Byte, Byte>();
+
+    /**
+     * The <tt>AbstractRTPConnector</tt> through which the retransmissions are
+     * to be sent.
+     */
+    private volatile AbstractRTPConnector connector;
+
+    /**
+     * The maximum number of bytes that this instance may allocate for the
+     * histories of the sent packets.
+     */
+    private final long historyMaxBytes;
+
+    /**
+     * The number of packets kept in the history of each sent SSRC.
+     */
+    private final int historySize;
+
+    /**
+     * The <tt>MediaStreamImpl</tt> whose packets are transformed by this
+     * instance.
+     */
+    private final MediaStreamImpl mediaStream;
+
+    /**
+     * The number of bytes allocated by this instance for the histories of the
+     * sent packets.
+     */
+    private final AtomicLong memoryUsed = new AtomicLong();
+
+    /**
+     * The <tt>PacketTransformer</tt> which applies the transformations which
+     * the retransmissions are to undergo before they are sent (e.g. the
+     * encryption) or <tt>null</tt> if they are to be sent as they are.
+     */
+    private volatile PacketTransformer retransmissionTransformer;
+
+    /**
+     * The <tt>Random</tt> used to generate the RTX SSRCs and the initial RTX
+     * sequence numbers.
+     */
+    private final Random random = new Random();
+
+    /**
+     * The number of RTX packets received and de-encapsulated by this
+     * instance.
+     */
+    private final AtomicLong receivedRtxPacketCount = new AtomicLong();
+
+    /**
+     * The SSRCs of the original packets retransmitted by the remote peer in
+     * the RTX packets with the respective SSRCs.
+     */
+    private final CopyOnWriteLongHashMap<Long> remoteRtxSsrcs
+        = new CopyOnWriteLongHashMap<Long>();
+
+    /**
+     * The number of requested retransmissions which have been sent.
+     */
+    private final AtomicLong retransmissionHitCount = new AtomicLong();
+
+    /**
+     * The number of requested retransmissions which could not be sent
+     * because the requested packets were no longer in the history.
+     */
+    private final AtomicLong retransmissionMissCount = new AtomicLong();
+
+    /**
+     * The <tt>PacketTransformer</tt> which handles the RTCP packets (i.e.
+     * reads the received generic NACKs).
+     */
+    private final PacketTransformer rtcpTransformer = new RtcpTransformer();
+
+    /**
+     * The <tt>PacketTransformer</tt> which handles the RTP packets (i.e.
+     * records the sent packets and de-encapsulates the received RTX packets).
+     */
+    private final PacketTransformer rtpTransformer = new RtpTransformer();
+
+    /**
+     * The associated (i.e. original) payload types of the respective RTX
+     * payload types.
+     */
+    private final Map<Byte, Byte> rtxToApt
+        = new ConcurrentHashMap<Byte, Byte>();
+
+    /**
+     * The <tt>Sender</tt>s which keep the histories of the SSRCs sent by the
+     * <tt>MediaStream</tt> of this instance.
+     */
+    private final CopyOnWriteLongHashMap<Sender> senders
+        = new CopyOnWriteLongHashMap<Sender>();
+
+    /**
+     * Initializes a new <tt>RtxTransformEngine</tt> instance.
+     *
+     * @param mediaStream the <tt>MediaStreamImpl</tt> whose packets are to be
+     * transformed by the new instance
+     */
+    public RtxTransformEngine(MediaStreamImpl mediaStream)
+    {
+        this.mediaStream = mediaStream;
+
+        ConfigurationService cfg = LibJitsi.getConfigurationService();
+        int historySize = DEFAULT_HISTORY_SIZE;
+        long historyMaxBytes = DEFAULT_HISTORY_MAX_BYTES;
+
+        if (cfg != null)
+        {
+            historySize = cfg.getInt(HISTORY_SIZE_PNAME, historySize);
+            historyMaxBytes
+                = cfg.getLong(HISTORY_MAX_BYTES_PNAME, historyMaxBytes);
+        }
+        this.historySize = Math.max(1, historySize);
+        this.historyMaxBytes = Math.max(0, historyMaxBytes);
+    }
+
+    /**
+     * Associates a specific SSRC of RTX packets sent by the remote peer with
+     * the SSRC of the original packets retransmitted in them (e.g. as
+     * signaled by an <tt>ssrc-group:FID</tt> SDP attribute). The RTX packets
+     * with an SSRC which has not been associated are assumed to retransmit
+     * packets with the SSRC returned by
+     * {@link MediaStreamImpl#getRemoteSourceID()}.
+     *
+     * @param rtxSSRC the SSRC of RTX packets sent by the remote peer
+     * @param mediaSSRC the SSRC of the packets retransmitted in the RTX
+     * packets with SSRC <tt>rtxSSRC</tt>
+     */
+    public void addRemoteRtxSSRC(long rtxSSRC, long mediaSSRC)
+    {
+        remoteRtxSsrcs.put(rtxSSRC & 0xFFFFFFFFL, mediaSSRC & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Adds an RTX payload type i.e. enables the retransmission of the packets
+     * of a specific payload type with a specific RTX payload type and the
+     * de-encapsulation of the received RTX packets with that payload type.
+     *
+     * @param rtxPayloadType the RTX payload type
+     * @param associatedPayloadType the payload type of the packets
+     * retransmitted in RTX packets with payload type <tt>rtxPayloadType</tt>
+     * (i.e. the value of the <tt>apt</tt> format parameter)
+     */
+    public void addRtxPayloadType(
+            byte rtxPayloadType,
+            byte associatedPayloadType)
+    {
+        rtxToApt.put(rtxPayloadType, associatedPayloadType);
+        aptToRtx.put(associatedPayloadType, rtxPayloadType);
+    }
+
+    /**
+     * Closes this <tt>RtxTransformEngine</tt> and releases the histories of
+     * the sent packets.
+     */
+    public void close()
+    {
+        for (long ssrc : senders.keys())
+        {
+            Sender sender = senders.remove(ssrc);
+
+            if (sender != null)
+                sender.history.clear();
+        }
+    }
+
+    /**
+     * Gets the number of bytes allocated by this instance for the histories
+     * of the sent packets.
+     *
+     * @return the number of bytes allocated by this instance for the
+     * histories of the sent packets
+     */
+    public long getHistoryMemoryUsed()
+    {
+        return memoryUsed.get();
+    }
+
+    /**
+     * Gets the SSRC of the RTX packets which retransmit the packets with a
+     * specific SSRC sent by the <tt>MediaStream</tt> of this instance (e.g. in
+     * order to signal it in an <tt>ssrc-group:FID</tt> SDP attribute).
+     *
+     * @param mediaSSRC the SSRC of packets sent by the <tt>MediaStream</tt> of
+     * this instance
+     * @return the SSRC of the RTX packets which retransmit the packets with
+     * SSRC <tt>mediaSSRC</tt>
+     */
+    public long getLocalRtxSSRC(long mediaSSRC)
+    {
+        return getSender((int) mediaSSRC).rtxSSRC & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Gets the number of RTX packets received and de-encapsulated by this
+     * instance.
+     *
+     * @return the number of RTX packets received and de-encapsulated by this
+     * instance
+     */
+    public long getReceivedRtxPacketCount()
+    {
+        return receivedRtxPacketCount.get();
+    }
+
+    /**
+     * Gets the number of requested retransmissions which have been sent.
+     *
+     * @return the number of requested retransmissions which have been sent
+     */
+    public long getRetransmissionHitCount()
+    {
+        return retransmissionHitCount.get();
+    }
+
+    /**
+     * Gets the number of requested retransmissions which could not be sent
+     * because the requested packets were no longer in the history.
+     *
+     * @return the number of requested retransmissions which could not be sent
+     */
+    public long getRetransmissionMissCount()
+    {
+        return retransmissionMissCount.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public PacketTransformer getRTCPTransformer()
+    {
+        return rtcpTransformer;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public PacketTransformer getRTPTransformer()
+    {
+        return rtpTransformer;
+    }
+
+    /**
+     * Determines whether a specific RTP payload type is used to retransmit
+     * the packets of another (i.e. whether it is an RTX payload type).
+     *
+     * @param payloadType the RTP payload type to check
+     * @return <tt>true</tt> if <tt>payloadType</tt> is an RTX payload type;
+     * otherwise, <tt>false</tt>
+     */
+    public boolean isRtxPayloadType(byte payloadType)
+    {
+        return rtxToApt.containsKey(payloadType);
+    }
+
+    /**
+     * Gets the <tt>Sender</tt> which keeps the history of a specific SSRC and
+     * creates it if it does not exist yet.
+     *
+     * @param ssrc the SSRC to get the <tt>Sender</tt> of
+     * @return the <tt>Sender</tt> which keeps the history of <tt>ssrc</tt>
+     */
+    private Sender getSender(int ssrc)
+    {
+        long key = ssrc & 0xFFFFFFFFL;
+        Sender sender = senders.get(key);
+
+        if (sender == null)
+        {
+            int rtxSSRC;
+
+            do
+            {
+                rtxSSRC = random.nextInt();
+            }
+            while (rtxSSRC == ssrc);
+
+            sender = new Sender(rtxSSRC, random.nextInt(0x10000));
+
+            Sender existingSender = senders.putIfAbsent(key, sender);
+
+            if (existingSender != null)
+                sender = existingSender;
+        }
+        return sender;
+    }
+
+    /**
+     * Reads the generic NACKs in a specific (compound) RTCP packet and
+     * retransmits the packets requested by them.
+     *
+     * @param pkt the received (compound) RTCP packet
+     */
+    private void nacksReceived(RawPacket pkt)
+    {
+        int length = pkt.getLength();
+        int off = 0;
+
+        while (off + 12 <= length)
+        {
+            int b0 = pkt.readByte(off) & 0xFF;
+
+            if ((b0 & 0xC0) != 0x80)
+                break;
+
+            int packetLength = (pkt.readUnsignedShortAsInt(off + 2) + 1) * 4;
+
+            if (off + packetLength > length)
+                break;
+
+            if (((pkt.readByte(off + 1) & 0xFF) == RTCPFeedbackEvent.PT_TL)
+                    && ((b0 & 0x1F) == RTCPFeedbackEvent.FMT_NACK))
+            {
+                int mediaSSRC = pkt.readInt(off + 8);
+
+                for (int fci = off + 12;
+                        fci + 4 <= off + packetLength;
+                        fci += 4)
+                {
+                    int pid = pkt.readUnsignedShortAsInt(fci);
+                    int blp = pkt.readUnsignedShortAsInt(fci + 2);
+
+                    retransmit(mediaSSRC, pid);
+                    for (int i = 0; i < 16; i++)
+                    {
+                        if ((blp & (1 << i)) != 0)
+                            retransmit(mediaSSRC, (pid + i + 1) & 0xFFFF);
+                    }
+                }
+            }
+            off += packetLength;
+        }
+    }
+
+    /**
+     * Retransmits a specific packet sent by the <tt>MediaStream</tt> of this
+     * instance if it is still in the history. The RTX packet is transformed
+     * by {@link #retransmissionTransformer} only (rather than by the whole
+     * <tt>TransformEngineChain</tt> of the <tt>MediaStream</tt> again) and is
+     * paced as a retransmission.
+     *
+     * @param mediaSSRC the SSRC of the packet to retransmit
+     * @param sequenceNumber the sequence number of the packet to retransmit
+     */
+    private void retransmit(int mediaSSRC, int sequenceNumber)
+    {
+        Sender sender = senders.get(mediaSSRC & 0xFFFFFFFFL);
+
+        // The NACK is not about a packet sent by this instance.
+        if (sender == null)
+            return;
+
+        RawPacket pkt = sender.history.get(sequenceNumber);
+        Byte rtxPayloadType
+            = (pkt == null) ? null : aptToRtx.get(pkt.getPayloadType());
+        AbstractRTPConnector connector = this.connector;
+
+        if ((rtxPayloadType == null) || (connector == null))
+        {
+            retransmissionMissCount.incrementAndGet();
+            return;
+        }
+
+        RawPacket rtx = sender.createRtxPacket(pkt, rtxPayloadType);
+        PacketTransformer retransmissionTransformer
+            = this.retransmissionTransformer;
+
+        if (retransmissionTransformer != null)
+        {
+            RawPacket transformed = retransmissionTransformer.transform(rtx);
+
+            if (transformed == null)
+            {
+                RawPacketPool.returnRawPacket(rtx);
+                retransmissionMissCount.incrementAndGet();
+                return;
+            }
+            rtx = transformed;
+        }
+
+        try
+        {
+            boolean written
+                = connector.getDataOutputStream().writeTransformed(
+                        rtx,
+                        RTPPacer.Priority.RETRANSMISSION);
+
+            if (written)
+
+                retransmissionHitCount.incrementAndGet();
+            else
+                retransmissionMissCount.incrementAndGet();
+        }
+        catch (IOException ioe)
+        {
+            RawPacketPool.returnRawPacket(rtx);
+            retransmissionMissCount.incrementAndGet();
+            logger.warn("Failed to retransmit an RTP packet.", ioe);
+        }
+    }
+
+    /**
+     * Sets the <tt>AbstractRTPConnector</tt> through which the retransmissions
+     * are to be sent.
+     *
+     * @param connector the <tt>AbstractRTPConnector</tt> through which the
+     * retransmissions are to be sent
+     */
+    public void setConnector(AbstractRTPConnector connector)
+    {
+        this.connector = connector;
+    }
+
+    /**
+     * Sets the <tt>PacketTransformer</tt> which is to apply the
+     * transformations which the retransmissions are to undergo before they are
+     * sent (e.g. the engines which follow this instance in the
+     * <tt>TransformEngineChain</tt> of the <tt>MediaStream</tt> such as the
+     * encryption).
+     *
+     * @param retransmissionTransformer the <tt>PacketTransformer</tt> which is
+     * to transform the retransmissions or <tt>null</tt> if they are to be sent
+     * as they are
+     */
+    public void setRetransmissionTransformer(
+            PacketTransformer retransmissionTransformer)
+    {
+        this.retransmissionTransformer = retransmissionTransformer;
+    }
+
+    /**
+     * Implements the RTCP <tt>PacketTransformer</tt> of
+     * <tt>RtxTransformEngine</tt>.
+     */
+    private class RtcpTransformer
+        extends SinglePacketTransformer
+    {
+        /**
+         * {@inheritDoc}
+         */
+        public void close()
+        {
+        }
+
+        /**
+         * Retransmits the packets requested by the generic NACKs in a specific
+         * received (compound) RTCP packet. The packet itself is passed through
+         * without modification.
+         *
+         * @param pkt the received (compound) RTCP packet
+         * @return <tt>pkt</tt>
+         */
+        public RawPacket reverseTransform(RawPacket pkt)
+        {
+            if (!aptToRtx.isEmpty() && (pkt != null))
+            {
+                try
+                {
+                    nacksReceived(pkt);
+                }
+                catch (Throwable t)
+                {
+                    if (t instanceof ThreadDeath)
+                        throw (ThreadDeath) t;
+                    logger.error("Failed to handle an RTCP packet.", t);
+                }
+            }
+            return pkt;
+        }
+
+        /**
+         * Passes a specific packet through without modification.
+         *
+         * @param pkt the packet to be sent
+         * @return <tt>pkt</tt>
+         */
+        public RawPacket transform(RawPacket pkt)
+        {
+            return pkt;
+        }
+    }
+
+    /**
+     * Implements the RTP <tt>PacketTransformer</tt> of
+     * <tt>RtxTransformEngine</tt>.
+     */
+    private class RtpTransformer
+        extends SinglePacketTransformer
+    {
+        /**
+         * {@inheritDoc}
+         */
+        public void close()
+        {
+            RtxTransformEngine.this.close();
+        }
+
+        /**
+         * De-encapsulates a specific packet if it is an RTX packet. Other
+         * packets are passed through without modification.
+         *
+         * @param pkt the received packet
+         * @return the original packet retransmitted in <tt>pkt</tt> if
+         * <tt>pkt</tt> is an RTX packet; <tt>pkt</tt> if it is not an RTX
+         * packet; <tt>null</tt> if <tt>pkt</tt> is an RTX packet which does not
+         * retransmit a packet (e.g. a padding-only one)
+         */
+        public RawPacket reverseTransform(RawPacket pkt)
+        {
+            if (rtxToApt.isEmpty() || (pkt == null))
+                return pkt;
+
+            Byte apt = rtxToApt.get(pkt.getPayloadType());
+
+            if (apt == null)
+                return pkt;
+
+            int headerLength = pkt.getHeaderLength();
+            int length = pkt.getLength();
+
+            if (length - headerLength - pkt.getPaddingSize() < 2)
+                return null;
+
+            Long mediaSSRC = remoteRtxSsrcs.get(pkt.getSSRC() & 0xFFFFFFFFL);
+            long ssrc
+                = (mediaSSRC == null)
+                    ? mediaStream.getRemoteSourceID()
+                    : mediaSSRC;
+
+            if (ssrc == -1)
+                return null;
+
+            int osn = pkt.readUnsignedShortAsInt(headerLength);
+            byte[] buffer = pkt.getBuffer();
+            int offset = pkt.getOffset();
+
+            System.arraycopy(
+                    buffer, offset + headerLength + 2,
+                    buffer, offset + headerLength,
+                    length - headerLength - 2);
+            pkt.setLength(length - 2);
+            pkt.writeUnsignedShort(2, osn);
+            pkt.setPayload(apt);
+            pkt.writeInt(8, (int) ssrc);
+
+            receivedRtxPacketCount.incrementAndGet();
+            return pkt;
+        }
+
+        /**
+         * Records a copy of a specific packet in the history of its SSRC if
+         * its payload type has an associated RTX payload type. RTX packets
+         * (i.e. retransmissions) are passed through without recording.
+         *
+         * @param pkt the packet to be sent
+         * @return <tt>pkt</tt>
+         */
+        public RawPacket transform(RawPacket pkt)
+        {
+            if (aptToRtx.isEmpty() || (pkt == null))
+                return pkt;
+
+            if (aptToRtx.containsKey(pkt.getPayloadType()))
+                getSender(pkt.getSSRC()).history.add(pkt);
+            return pkt;
+        }
+    }
+
+    /**
+     * Represents an SSRC sent by the <tt>MediaStream</tt> of an
+     * <tt>RtxTransformEngine</tt> i.e. keeps the history of its packets and
+     * the state of its RTX stream.
+     */
+    private class Sender
+    {
+        /**
+         * The history of the packets sent with the SSRC of this
+         * <tt>Sender</tt>.
+         */
+        final PacketHistory history
+            = new PacketHistory(historySize, memoryUsed, historyMaxBytes);
+
+        /**
+         * The SSRC of the RTX packets which retransmit the packets of this
+         * <tt>Sender</tt>.
+         */
+        final int rtxSSRC;
+
+        /**
+         * The sequence number of the next RTX packet of this <tt>Sender</tt>.
+         */
+        private int rtxSequenceNumber;
+
+        /**
+         * Initializes a new <tt>Sender</tt> instance.
+         *
+         * @param rtxSSRC the SSRC of the RTX packets which are to retransmit
+         * the packets of the new instance
+         * @param rtxSequenceNumber the sequence number of the first RTX packet
+         * of the new instance
+         */
+        Sender(int rtxSSRC, int rtxSequenceNumber)
+        {
+            this.rtxSSRC = rtxSSRC;
+            this.rtxSequenceNumber = rtxSequenceNumber;
+        }
+
+        /**
+         * Creates an RTX packet which retransmits a specific packet of this
+         * <tt>Sender</tt>.
+         *
+         * @param pkt the packet to retransmit
+         * @param rtxPayloadType the payload type of the RTX packet
+         * @return an RTX packet acquired from the <tt>RawPacketPool</tt> which
+         * retransmits <tt>pkt</tt>
+         */
+        RawPacket createRtxPacket(RawPacket pkt, byte rtxPayloadType)
+        {
+            int headerLength = pkt.getHeaderLength();
+            int length = pkt.getLength();
+            RawPacket rtx = RawPacketPool.getRawPacket(length + 2);
+            byte[] buffer = rtx.getBuffer();
+
+            System.arraycopy(
+                    pkt.getBuffer(), pkt.getOffset(),
+                    buffer, 0,
+                    headerLength);
+            System.arraycopy(
+                    pkt.getBuffer(), pkt.getOffset() + headerLength,
+                    buffer, headerLength + 2,
+                    length - headerLength);
+            rtx.setLength(length + 2);
+
+            int rtxSequenceNumber;
+
+            synchronized (this)
+            {
+                rtxSequenceNumber = this.rtxSequenceNumber;
+                this.rtxSequenceNumber = (rtxSequenceNumber + 1) & 0xFFFF;
+            }
+
+            // The original sequence number (OSN) precedes the payload.
+            rtx.writeUnsignedShort(headerLength, pkt.getSequenceNumber());
+            rtx.setPayload(rtxPayloadType);
+            rtx.writeUnsignedShort(2, rtxSequenceNumber);
+            rtx.writeInt(8, rtxSSRC);
+            return rtx;
+        }
+    }
+}
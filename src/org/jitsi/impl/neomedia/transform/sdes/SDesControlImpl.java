@@ -20,7 +20,10 @@ import ch.imvs.sdes4j.srtp.*;
 
 /**
  * Default implementation of {@link SDesControl} that supports the crypto suites
- * of the original RFC4568 and the KDR parameter, but nothing else.
+ * of the original RFC4568, the AES-GCM crypto suites of RFC 7714 and the KDR
+ * parameter, but nothing else. Crypto attributes offered by the peer are to be
+ * parsed with {@link SrtpGcmSDesFactory#parseCryptoAttribute(String)} in order
+ * for the AES-GCM crypto suites to be recognized.
  *
  * @author Ingo Bauersachs
  */
@@ -30,11 +33,13 @@ public class SDesControlImpl
     /**
      * List of enabled crypto suites.
      */
-    private List<String> enabledCryptoSuites = new ArrayList<String>(3)
+    private List<String> enabledCryptoSuites = new ArrayList<String>(5)
     {
         private static final long serialVersionUID = 0L;
 
         {
+            add(SrtpGcmCryptoSuite.AEAD_AES_128_GCM);
+            add(SrtpGcmCryptoSuite.AEAD_AES_256_GCM);
             add(SrtpCryptoSuite.AES_CM_128_HMAC_SHA1_80);
             add(SrtpCryptoSuite.AES_CM_128_HMAC_SHA1_32);
             add(SrtpCryptoSuite.F8_128_HMAC_SHA1_80);
@@ -45,11 +50,13 @@ public class SDesControlImpl
     /**
      * List of supported crypto suites.
      */
-    private final List<String> supportedCryptoSuites = new ArrayList<String>(3)
+    private final List<String> supportedCryptoSuites = new ArrayList<String>(5)
      {
         private static final long serialVersionUID = 0L;
 
         {
+            add(SrtpGcmCryptoSuite.AEAD_AES_128_GCM);
+            add(SrtpGcmCryptoSuite.AEAD_AES_256_GCM);
             add(SrtpCryptoSuite.AES_CM_128_HMAC_SHA1_80);
             add(SrtpCryptoSuite.AES_CM_128_HMAC_SHA1_32);
             add(SrtpCryptoSuite.F8_128_HMAC_SHA1_80);
@@ -68,7 +75,7 @@ public class SDesControlImpl
      */
     public SDesControlImpl()
     {
-        sdesFactory = new SrtpSDesFactory();
+        sdesFactory = new SrtpGcmSDesFactory();
         Random r = new Random()
         {
             private static final long serialVersionUID = 0L;
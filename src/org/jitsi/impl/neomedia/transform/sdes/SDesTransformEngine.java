@@ -103,6 +103,9 @@ public class SDesTransformEngine
                 return SRTPPolicy.AESCM_ENCRYPTION;
             case SrtpCryptoSuite.ENCRYPTION_AES128_F8:
                 return SRTPPolicy.AESF8_ENCRYPTION;
+            case SrtpGcmCryptoSuite.ENCRYPTION_AES128_GCM:
+            case SrtpGcmCryptoSuite.ENCRYPTION_AES256_GCM:
+                return SRTPPolicy.AESGCM_ENCRYPTION;
             default:
                 throw new IllegalArgumentException("Unsupported cipher");
         }
@@ -114,6 +117,9 @@ public class SDesTransformEngine
         {
             case SrtpCryptoSuite.HASH_HMAC_SHA1:
                 return SRTPPolicy.HMACSHA1_AUTHENTICATION;
+            case SrtpGcmCryptoSuite.HASH_NONE:
+                // AES-GCM authenticates the packets itself.
+                return SRTPPolicy.NULL_AUTHENTICATION;
             default:
                 throw new IllegalArgumentException("Unsupported hash");
         }
@@ -0,0 +1,173 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package org.jitsi.impl.neomedia.transform.sdes;
+
+import ch.imvs.sdes4j.srtp.*;
+
+/**
+ * Describes the AEAD_AES_128_GCM and AEAD_AES_256_GCM SRTP crypto suites
+ * defined in RFC 7714 which sdes4j does not know about. They authenticate the
+ * packets with the GCM tag so there is no authentication key and the salt is
+ * 96 bits long.
+ */
+public class SrtpGcmCryptoSuite
+    extends SrtpCryptoSuite
+{
+    /**
+     * The name of the AEAD_AES_128_GCM crypto suite defined in RFC 7714.
+     */
+    public static final String AEAD_AES_128_GCM = "AEAD_AES_128_GCM";
+
+    /**
+     * The name of the AEAD_AES_256_GCM crypto suite defined in RFC 7714.
+     */
+    public static final String AEAD_AES_256_GCM = "AEAD_AES_256_GCM";
+
+    /**
+     * The value of {@link #getEncryptionAlgorithm()} for AEAD_AES_128_GCM.
+     */
+    public static final int ENCRYPTION_AES128_GCM = 101;
+
+    /**
+     * The value of {@link #getEncryptionAlgorithm()} for AEAD_AES_256_GCM.
+     */
+    public static final int ENCRYPTION_AES256_GCM = 102;
+
+    /**
+     * The value of {@link #getHashAlgorithm()} for the AEAD crypto suites
+     * which do not use a separate authentication algorithm.
+     */
+    public static final int HASH_NONE = 0;
+
+    /**
+     * The length in bits of the encryption key of this crypto suite.
+     */
+    private final int encKeyLength;
+
+    /**
+     * The name of this crypto suite.
+     */
+    private final String suite;
+
+    /**
+     * Determines whether a specific crypto suite name denotes one of the
+     * AES-GCM crypto suites defined in RFC 7714.
+     *
+     * @param suite the crypto suite name to check
+     * @return <tt>true</tt> if <tt>suite</tt> denotes an AES-GCM crypto
+     * suite; otherwise, <tt>false</tt>
+     */
+    public static boolean isGcmCryptoSuite(String suite)
+    {
+        return
+            AEAD_AES_128_GCM.equals(suite) || AEAD_AES_256_GCM.equals(suite);
+    }
+
+    /**
+     * Initializes a new <tt>SrtpGcmCryptoSuite</tt> instance.
+     *
+     * @param suite {@link #AEAD_AES_128_GCM} or {@link #AEAD_AES_256_GCM}
+     * @throws IllegalArgumentException if <tt>suite</tt> is neither
+     */
+    public SrtpGcmCryptoSuite(String suite)
+    {
+        // The super constructor rejects the names it does not know and all
+        // the accessors are overridden anyway.
+        super(AES_CM_128_HMAC_SHA1_80);
+
+        if (AEAD_AES_128_GCM.equals(suite))
+            encKeyLength = 128;
+        else if (AEAD_AES_256_GCM.equals(suite))
+            encKeyLength = 256;
+        else
+            throw new IllegalArgumentException("Unknown crypto suite");
+        this.suite = suite;
+    }
+
+    @Override
+    public String encode()
+    {
+        return suite;
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        return
+            (obj instanceof SrtpGcmCryptoSuite)
+                && suite.equals(((SrtpGcmCryptoSuite) obj).suite);
+    }
+
+    @Override
+    public int getEncKeyLength()
+    {
+        return encKeyLength;
+    }
+
+    @Override
+    public int getEncryptionAlgorithm()
+    {
+        return
+            (encKeyLength == 128)
+                ? ENCRYPTION_AES128_GCM
+                : ENCRYPTION_AES256_GCM;
+    }
+
+    @Override
+    public int getHashAlgorithm()
+    {
+        return HASH_NONE;
+    }
+
+    @Override
+    public int getSaltKeyLength()
+    {
+        return 96;
+    }
+
+    @Override
+    public int getSrtcpAuthKeyLength()
+    {
+        return 0;
+    }
+
+    @Override
+    public int getSrtcpAuthTagLength()
+    {
+        return 128;
+    }
+
+    @Override
+    public long getSrtcpLifetime()
+    {
+        return 1L << 31;
+    }
+
+    @Override
+    public int getSrtpAuthKeyLength()
+    {
+        return 0;
+    }
+
+    @Override
+    public int getSrtpAuthTagLength()
+    {
+        return 128;
+    }
+
+    @Override
+    public long getSrtpLifetime()
+    {
+        return 1L << 48;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return suite.hashCode();
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package org.jitsi.impl.neomedia.transform.sdes;
+
+import ch.imvs.sdes4j.*;
+import ch.imvs.sdes4j.srtp.*;
+
+/**
+ * Extends the sdes4j <tt>SrtpSDesFactory</tt> with the AES-GCM crypto suites
+ * defined in RFC 7714 (see {@link SrtpGcmCryptoSuite}). Crypto attributes
+ * received from the peer which may use these suites are to be parsed with
+ * {@link #parseCryptoAttribute(String)} rather than
+ * <tt>SrtpCryptoAttribute.create(String)</tt>.
+ */
+public class SrtpGcmSDesFactory
+    extends SrtpSDesFactory
+{
+    /**
+     * Parses a specific encoded SDES crypto attribute, including one which
+     * uses an AES-GCM crypto suite.
+     *
+     * @param encoded the encoded crypto attribute (i.e. the value of the
+     * <tt>a=crypto</tt> SDP attribute)
+     * @return the <tt>SrtpCryptoAttribute</tt> parsed from <tt>encoded</tt>
+     */
+    public static SrtpCryptoAttribute parseCryptoAttribute(String encoded)
+    {
+        return
+            (SrtpCryptoAttribute)
+                CryptoAttribute.create(encoded, new SrtpGcmSDesFactory());
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Creates a {@link SrtpGcmCryptoSuite} for the AES-GCM crypto suites.
+     */
+    @Override
+    public SrtpCryptoSuite createCryptoSuite(String suite)
+    {
+        return
+            SrtpGcmCryptoSuite.isGcmCryptoSuite(suite)
+                ? new SrtpGcmCryptoSuite(suite)
+                : super.createCryptoSuite(suite);
+    }
+}
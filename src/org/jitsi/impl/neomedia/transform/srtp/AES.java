@@ -0,0 +1,254 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package org.jitsi.impl.neomedia.transform.srtp;
+
+import java.security.*;
+import java.util.*;
+
+import org.bouncycastle.crypto.engines.*;
+import org.jitsi.service.configuration.*;
+import org.jitsi.service.libjitsi.*;
+import org.jitsi.util.*;
+
+/**
+ * Selects the implementation of AES with which SRTP encrypts and decrypts i.e.
+ * either the BouncyCastle (lightweight) API or the Java Cryptography Extension
+ * (JCE). The JCE computes the cipher stream of a whole packet per call and is
+ * implemented with the AES instructions of the CPU by modern Java virtual
+ * machines but is not available (or not fast) everywhere. Unless the
+ * implementation is specified with {@link #PROVIDER_PNAME}, the faster of the
+ * two is determined by a micro-benchmark the first time it is needed.
+ */
+public class AES
+{
+    /**
+     * The value of {@link #PROVIDER_PNAME} which selects the BouncyCastle
+     * implementation of AES.
+     */
+    public static final String BOUNCYCASTLE = "BouncyCastle";
+
+    /**
+     * The value of {@link #PROVIDER_PNAME} which selects the Java Cryptography
+     * Extension implementation of AES.
+     */
+    public static final String JCE = "JCE";
+
+    /**
+     * The number of times each implementation encrypts the benchmark packet
+     * per round of the micro-benchmark.
+     */
+    private static final int BENCHMARK_ITERATIONS = 1000;
+
+    /**
+     * The length in bytes of the payload encrypted by the micro-benchmark.
+     */
+    private static final int BENCHMARK_LENGTH = 1200;
+
+    /**
+     * The number of rounds of the micro-benchmark. The first round warms up
+     * the implementations and is not measured.
+     */
+    private static final int BENCHMARK_ROUNDS = 4;
+
+    /**
+     * The <tt>Logger</tt> used by the <tt>AES</tt> class to print debug
+     * information.
+     */
+    private static final Logger logger = Logger.getLogger(AES.class);
+
+    /**
+     * The name of the <tt>ConfigurationService</tt> property which specifies
+     * the implementation of AES to be used by SRTP i.e. {@link #BOUNCYCASTLE}
+     * or {@link #JCE}. If the property is not set (or has any other value),
+     * the faster implementation is selected by a micro-benchmark.
+     */
+    public static final String PROVIDER_PNAME
+        = "org.jitsi.impl.neomedia.transform.srtp.AES.provider";
+
+    /**
+     * The implementation of AES selected by {@link #getProvider()} i.e.
+     * {@link #BOUNCYCASTLE} or {@link #JCE} or <tt>null</tt> if no
+     * implementation has been selected yet.
+     */
+    private static String provider;
+
+    /**
+     * Measures how long a specific <tt>SRTPCipherCTR</tt> takes to encrypt
+     * {@link #BENCHMARK_ITERATIONS} packets.
+     *
+     * @param ctr the <tt>SRTPCipherCTR</tt> to measure
+     * @param data the payload to encrypt
+     * @param iv the initialization vector to encrypt with
+     * @return the number of nanoseconds <tt>ctr</tt> took to encrypt
+     * {@link #BENCHMARK_ITERATIONS} packets
+     */
+    private static long benchmark(SRTPCipherCTR ctr, byte[] data, byte[] iv)
+    {
+        long startTime = System.nanoTime();
+
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++)
+            ctr.process(data, 0, data.length, iv);
+        return System.nanoTime() - startTime;
+    }
+
+    /**
+     * Initializes a new <tt>SRTPCipherCTR</tt> instance which implements
+     * AES-CM with the implementation of AES selected by
+     * {@link #getProvider()}.
+     *
+     * @return a new <tt>SRTPCipherCTR</tt> instance which implements AES-CM
+     */
+    public static SRTPCipherCTR createCTR()
+    {
+        if (JCE.equals(getProvider()))
+        {
+            try
+            {
+                return new SRTPCipherCTRJCE();
+            }
+            catch (GeneralSecurityException gse)
+            {
+                logger.warn("Failed to initialize AES/CTR of the JCE.", gse);
+            }
+        }
+        return new SRTPCipherCTRBlockCipher(new AESFastEngine());
+    }
+
+    /**
+     * Initializes a new <tt>SRTPCipherF8</tt> instance which implements
+     * AES-f8 with the implementation of AES selected by
+     * {@link #getProvider()}.
+     *
+     * @return a new <tt>SRTPCipherF8</tt> instance which implements AES-f8
+     */
+    public static SRTPCipherF8 createF8()
+    {
+        if (JCE.equals(getProvider()))
+        {
+            try
+            {
+                return new SRTPCipherF8JCE();
+            }
+            catch (GeneralSecurityException gse)
+            {
+                logger.warn("Failed to initialize AES/CBC of the JCE.", gse);
+            }
+        }
+        return
+            new SRTPCipherF8BlockCipher(
+                    new AESFastEngine(),
+                    new AESFastEngine());
+    }
+
+    /**
+     * Gets the implementation of AES specified by {@link #PROVIDER_PNAME}.
+     *
+     * @return {@link #BOUNCYCASTLE} or {@link #JCE} if the respective
+     * implementation of AES is specified by {@link #PROVIDER_PNAME};
+     * otherwise, <tt>null</tt>
+     */
+    public static String getConfiguredProvider()
+    {
+        ConfigurationService cfg = LibJitsi.getConfigurationService();
+        String provider
+            = (cfg == null) ? null : cfg.getString(PROVIDER_PNAME);
+
+        if (BOUNCYCASTLE.equalsIgnoreCase(provider))
+            return BOUNCYCASTLE;
+        else if (JCE.equalsIgnoreCase(provider))
+            return JCE;
+        else
+            return null;
+    }
+
+    /**
+     * Gets the implementation of AES to be used by SRTP. It is either
+     * specified by {@link #PROVIDER_PNAME} or, otherwise, selected by a
+     * micro-benchmark the first time this method is invoked.
+     *
+     * @return {@link #BOUNCYCASTLE} or {@link #JCE}
+     */
+    public static synchronized String getProvider()
+    {
+        if (provider == null)
+        {
+            provider = getConfiguredProvider();
+            if (provider == null)
+                provider = selectProvider();
+        }
+        return provider;
+    }
+
+    /**
+     * Selects the faster of the BouncyCastle and the Java Cryptography
+     * Extension implementations of AES-CM by means of a micro-benchmark.
+     *
+     * @return {@link #BOUNCYCASTLE} or {@link #JCE}
+     */
+    private static String selectProvider()
+    {
+        SRTPCipherCTR bc = new SRTPCipherCTRBlockCipher(new AESFastEngine());
+        SRTPCipherCTR jce;
+
+        try
+        {
+            jce = new SRTPCipherCTRJCE();
+        }
+        catch (GeneralSecurityException gse)
+        {
+            logger.info("AES/CTR of the JCE is not available.");
+            return BOUNCYCASTLE;
+        }
+
+        Random random = new Random();
+        byte[] key = new byte[16];
+        byte[] iv = new byte[16];
+        byte[] data = new byte[BENCHMARK_LENGTH];
+
+        random.nextBytes(key);
+        random.nextBytes(iv);
+        iv[14] = iv[15] = 0;
+        random.nextBytes(data);
+        bc.init(key);
+        jce.init(key);
+
+        long bcTime = Long.MAX_VALUE;
+        long jceTime = Long.MAX_VALUE;
+
+        try
+        {
+            for (int round = 0; round < BENCHMARK_ROUNDS; round++)
+            {
+                long t = benchmark(bc, data, iv);
+
+                if (round != 0 && t < bcTime)
+                    bcTime = t;
+                t = benchmark(jce, data, iv);
+                if (round != 0 && t < jceTime)
+                    jceTime = t;
+            }
+        }
+        catch (IllegalStateException ise)
+        {
+            logger.warn("AES/CTR of the JCE failed.", ise);
+            return BOUNCYCASTLE;
+        }
+
+        String provider = (jceTime < bcTime) ? JCE : BOUNCYCASTLE;
+
+        if (logger.isInfoEnabled())
+        {
+            logger.info(
+                    "Selected the " + provider + " implementation of AES for"
+                        + " SRTP (" + BENCHMARK_LENGTH + "-byte packet: "
+                        + BOUNCYCASTLE + " "
+                        + (bcTime / BENCHMARK_ITERATIONS) + " ns, " + JCE + " "
+                        + (jceTime / BENCHMARK_ITERATIONS) + " ns).");
+        }
+        return provider;
+    }
+}
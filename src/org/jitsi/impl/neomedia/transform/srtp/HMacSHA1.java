@@ -0,0 +1,381 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package org.jitsi.impl.neomedia.transform.srtp;
+
+import org.bouncycastle.crypto.*;
+import org.bouncycastle.crypto.params.*;
+
+/**
+ * Implements HMAC-SHA1 (RFC 2104) for the authentication of SRTP and SRTCP
+ * packets. Unlike the BouncyCastle <tt>HMac</tt>, which hashes the inner and
+ * the outer padded keys again for every packet, the SHA-1 chaining states
+ * after the inner and the outer padded keys are computed once by
+ * {@link #init(byte[])} and are merely copied for every packet. The
+ * computation of a tag allocates no memory.
+ */
+public class HMacSHA1
+    implements Mac
+{
+    /**
+     * The length in bytes of the block of SHA-1.
+     */
+    private static final int BLOCK_LENGTH = 64;
+
+    /**
+     * The length in bytes of the digest of SHA-1 i.e. of the tag of
+     * HMAC-SHA1.
+     */
+    public static final int DIGEST_LENGTH = 20;
+
+    /**
+     * The initial chaining state of SHA-1.
+     */
+    private static final int[] IV
+        = {
+            0x67452301, 0xEFCDAB89, 0x98BADCFE, 0x10325476, 0xC3D2E1F0
+        };
+
+    /**
+     * The block which is being filled by {@link #update(byte[], int, int)}.
+     */
+    private final byte[] block = new byte[BLOCK_LENGTH];
+
+    /**
+     * The number of bytes in {@link #block}.
+     */
+    private int blockOff;
+
+    /**
+     * The number of bytes hashed by the inner hash including the inner padded
+     * key.
+     */
+    private long byteCount;
+
+    /**
+     * The SHA-1 chaining state after the inner padded key.
+     */
+    private final int[] innerState = new int[5];
+
+    /**
+     * The SHA-1 chaining state after the outer padded key.
+     */
+    private final int[] outerState = new int[5];
+
+    /**
+     * The current SHA-1 chaining state.
+     */
+    private final int[] state = new int[5];
+
+    /**
+     * The message schedule of SHA-1.
+     */
+    private final int[] w = new int[80];
+
+    /**
+     * Processes a block of 64 bytes into {@link #state}.
+     *
+     * @param buf the buffer which contains the block
+     * @param off the offset in <tt>buf</tt> at which the block starts
+     */
+    private void compress(byte[] buf, int off)
+    {
+        int[] w = this.w;
+
+        for (int i = 0; i < 16; i++, off += 4)
+        {
+            w[i]
+                = (buf[off] << 24)
+                    | ((buf[off + 1] & 0xFF) << 16)
+                    | ((buf[off + 2] & 0xFF) << 8)
+                    | (buf[off + 3] & 0xFF);
+        }
+        for (int i = 16; i < 80; i++)
+        {
+            int x = w[i - 3] ^ w[i - 8] ^ w[i - 14] ^ w[i - 16];
+
+            w[i] = (x << 1) | (x >>> 31);
+        }
+
+        int a = state[0];
+        int b = state[1];
+        int c = state[2];
+        int d = state[3];
+        int e = state[4];
+        int i = 0;
+
+        for (; i < 20; i++)
+        {
+            int t
+                = ((a << 5) | (a >>> 27)) + ((b & c) | (~b & d)) + e + w[i]
+                    + 0x5A827999;
+
+            e = d; d = c; c = (b << 30) | (b >>> 2); b = a; a = t;
+        }
+        for (; i < 40; i++)
+        {
+            int t
+                = ((a << 5) | (a >>> 27)) + (b ^ c ^ d) + e + w[i]
+                    + 0x6ED9EBA1;
+
+            e = d; d = c; c = (b << 30) | (b >>> 2); b = a; a = t;
+        }
+        for (; i < 60; i++)
+        {
+            int t
+                = ((a << 5) | (a >>> 27)) + ((b & c) | (b & d) | (c & d)) + e
+                    + w[i] + 0x8F1BBCDC;
+
+            e = d; d = c; c = (b << 30) | (b >>> 2); b = a; a = t;
+        }
+        for (; i < 80; i++)
+        {
+            int t
+                = ((a << 5) | (a >>> 27)) + (b ^ c ^ d) + e + w[i]
+                    + 0xCA62C1D6;
+
+            e = d; d = c; c = (b << 30) | (b >>> 2); b = a; a = t;
+        }
+
+        state[0] += a;
+        state[1] += b;
+        state[2] += c;
+        state[3] += d;
+        state[4] += e;
+    }
+
+    /**
+     * Completes the SHA-1 hash in {@link #state} by hashing the final padding
+     * which encodes a specific total length.
+     *
+     * @param byteCount the number of bytes hashed in total
+     */
+    private void finish(long byteCount)
+    {
+        block[blockOff++] = (byte) 0x80;
+        if (blockOff > BLOCK_LENGTH - 8)
+        {
+            while (blockOff < BLOCK_LENGTH)
+                block[blockOff++] = 0;
+            compress(block, 0);
+            blockOff = 0;
+        }
+        while (blockOff < BLOCK_LENGTH - 8)
+            block[blockOff++] = 0;
+
+        long bitCount = byteCount << 3;
+
+        for (int i = BLOCK_LENGTH - 1; i >= BLOCK_LENGTH - 8; i--)
+        {
+            block[i] = (byte) bitCount;
+            bitCount >>>= 8;
+        }
+        compress(block, 0);
+        blockOff = 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Computes the tag of the data supplied since the last reset, writes it
+     * into <tt>out</tt> at <tt>outOff</tt> and resets this instance.
+     */
+    public int doFinal(byte[] out, int outOff)
+    {
+        // The inner hash.
+        finish(byteCount);
+        for (int i = 0; i < 5; i++)
+            writeInt(state[i], block, i * 4);
+
+        // The outer hash.
+        System.arraycopy(outerState, 0, state, 0, 5);
+        blockOff = DIGEST_LENGTH;
+        finish(BLOCK_LENGTH + DIGEST_LENGTH);
+        for (int i = 0; i < 5; i++)
+            writeInt(state[i], out, outOff + i * 4);
+
+        reset();
+        return DIGEST_LENGTH;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String getAlgorithmName()
+    {
+        return "SHA-1/HMAC";
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int getMacSize()
+    {
+        return DIGEST_LENGTH;
+    }
+
+    /**
+     * Initializes this instance with a specific key i.e. computes the SHA-1
+     * chaining states after the inner and the outer padded keys.
+     *
+     * @param key the key
+     */
+    public void init(byte[] key)
+    {
+        int keyLength = key.length;
+
+        // Keys longer than the block are hashed first.
+        if (keyLength > BLOCK_LENGTH)
+        {
+            System.arraycopy(IV, 0, state, 0, 5);
+            blockOff = 0;
+            update(key, 0, keyLength);
+            finish(keyLength);
+            for (int i = 0; i < 5; i++)
+                writeInt(state[i], block, i * 4);
+            keyLength = DIGEST_LENGTH;
+        }
+        else
+        {
+            System.arraycopy(key, 0, block, 0, keyLength);
+        }
+        for (int i = keyLength; i < BLOCK_LENGTH; i++)
+            block[i] = 0;
+
+        for (int i = 0; i < BLOCK_LENGTH; i++)
+            block[i] ^= 0x36;
+        System.arraycopy(IV, 0, state, 0, 5);
+        compress(block, 0);
+        System.arraycopy(state, 0, innerState, 0, 5);
+
+        for (int i = 0; i < BLOCK_LENGTH; i++)
+            block[i] ^= (0x36 ^ 0x5C);
+        System.arraycopy(IV, 0, state, 0, 5);
+        compress(block, 0);
+        System.arraycopy(state, 0, outerState, 0, 5);
+
+        // Do not keep the (padded) key around.
+        for (int i = 0; i < BLOCK_LENGTH; i++)
+            block[i] = 0;
+
+        reset();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @throws IllegalArgumentException if <tt>params</tt> is not a
+     * <tt>KeyParameter</tt>
+     */
+    public void init(CipherParameters params)
+    {
+        if (params instanceof KeyParameter)
+            init(((KeyParameter) params).getKey());
+        else
+            throw new IllegalArgumentException("params");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void reset()
+    {
+        System.arraycopy(innerState, 0, state, 0, 5);
+        blockOff = 0;
+        byteCount = BLOCK_LENGTH;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void update(byte in)
+    {
+        block[blockOff++] = in;
+        byteCount++;
+        if (blockOff == BLOCK_LENGTH)
+        {
+            compress(block, 0);
+            blockOff = 0;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void update(byte[] in, int inOff, int len)
+    {
+        byteCount += len;
+
+        // Complete a partially filled block.
+        if (blockOff != 0)
+        {
+            int n = Math.min(len, BLOCK_LENGTH - blockOff);
+
+            System.arraycopy(in, inOff, block, blockOff, n);
+            blockOff += n;
+            inOff += n;
+            len -= n;
+            if (blockOff < BLOCK_LENGTH)
+                return;
+            compress(block, 0);
+            blockOff = 0;
+        }
+        // Process whole blocks in place.
+        while (len >= BLOCK_LENGTH)
+        {
+            compress(in, inOff);
+            inOff += BLOCK_LENGTH;
+            len -= BLOCK_LENGTH;
+        }
+        if (len > 0)
+        {
+            System.arraycopy(in, inOff, block, 0, len);
+            blockOff = len;
+        }
+    }
+
+    /**
+     * Verifies in constant time (i.e. without returning at the first
+     * mismatching byte) that specific regions of two buffers are equal.
+     *
+     * @param a the first buffer
+     * @param aOff the offset in <tt>a</tt> at which the region to compare
+     * starts
+     * @param b the second buffer
+     * @param bOff the offset in <tt>b</tt> at which the region to compare
+     * starts
+     * @param len the length of the regions to compare
+     * @return <tt>true</tt> if the specified regions are equal; otherwise,
+     * <tt>false</tt>
+     */
+    public static boolean equals(
+            byte[] a, int aOff,
+            byte[] b, int bOff,
+            int len)
+    {
+        int diff = 0;
+
+        for (int i = 0; i < len; i++)
+            diff |= a[aOff + i] ^ b[bOff + i];
+        return (diff == 0);
+    }
+
+    /**
+     * Writes a specific <tt>int</tt> in network byte order into a specific
+     * buffer.
+     *
+     * @param v the <tt>int</tt> to write
+     * @param buf the buffer to write into
+     * @param off the offset in <tt>buf</tt> at which to write
+     */
+    private static void writeInt(int v, byte[] buf, int off)
+    {
+        buf[off] = (byte) (v >>> 24);
+        buf[off + 1] = (byte) (v >>> 16);
+        buf[off + 2] = (byte) (v >>> 8);
+        buf[off + 3] = (byte) v;
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package org.jitsi.impl.neomedia.transform.srtp;
+
+import java.util.*;
+
+import org.jitsi.service.configuration.*;
+import org.jitsi.service.libjitsi.*;
+
+/**
+ * Implements the replay list of a SRTP or SRTCP cryptographic context (refer
+ * to section 3.3.2 of RFC 3711) as a sliding window of a configurable size
+ * over the packet indices. A window of the default size is a single
+ * <tt>long</tt> which is shifted as the window slides forward. A larger window
+ * is a bitmap of <tt>long</tt> words used as a ring i.e. the bit of a packet
+ * index is at a fixed position and sliding the window forward merely clears
+ * the bits of the skipped indices. Both the check and the update take constant
+ * time for in-order packets.
+ */
+public class ReplayWindow
+{
+    /**
+     * The default size in packets of the replay window.
+     */
+    public static final int DEFAULT_SIZE = 64;
+
+    /**
+     * The maximum size in packets of the replay window. An SRTP receiver
+     * cannot tell apart packets which are further apart than half the range
+     * of the sequence number anyway.
+     */
+    public static final int MAX_SIZE = 32768;
+
+    /**
+     * The name of the <tt>ConfigurationService</tt> property which specifies
+     * the size in packets of the replay windows of the SRTP and SRTCP
+     * cryptographic contexts. The size is rounded up to a power of two between
+     * {@link #DEFAULT_SIZE} and {@link #MAX_SIZE}. Larger windows accept
+     * packets which are reordered further (e.g. by multi-path links) at the
+     * cost of <tt>size / 8</tt> bytes per context.
+     */
+    public static final String SIZE_PNAME
+        = "org.jitsi.impl.neomedia.transform.srtp.ReplayWindow.size";
+
+    /**
+     * Gets the size of the replay window specified by {@link #SIZE_PNAME}.
+     *
+     * @return the size of the replay window specified by {@link #SIZE_PNAME}
+     * or {@link #DEFAULT_SIZE}
+     */
+    public static int getConfiguredSize()
+    {
+        ConfigurationService cfg = LibJitsi.getConfigurationService();
+
+        return
+            (cfg == null) ? DEFAULT_SIZE : cfg.getInt(SIZE_PNAME, DEFAULT_SIZE);
+    }
+
+    /**
+     * The bitmap of the packet indices which have been received if the size
+     * of this window is larger than {@link #DEFAULT_SIZE}; otherwise,
+     * <tt>null</tt>. The bit of index <tt>i</tt> is bit <tt>i % 64</tt> of
+     * word <tt>(i / 64) % bitmap.length</tt>.
+     */
+    private final long[] bitmap;
+
+    /**
+     * The size in packets of this replay window.
+     */
+    private final int size;
+
+    /**
+     * The mask of the index of a word in {@link #bitmap}.
+     */
+    private final int wordMask;
+
+    /**
+     * The bit mask of the packet indices which have been received if the size
+     * of this window is {@link #DEFAULT_SIZE}. Bit <tt>n</tt> is the bit of
+     * the index which is <tt>n</tt> less than the highest index.
+     */
+    private long window;
+
+    /**
+     * Initializes a new <tt>ReplayWindow</tt> instance with the size
+     * specified by {@link #SIZE_PNAME}.
+     */
+    public ReplayWindow()
+    {
+        this(getConfiguredSize());
+    }
+
+    /**
+     * Initializes a new <tt>ReplayWindow</tt> instance with a specific size.
+     *
+     * @param size the size in packets of the new instance. It is rounded up to
+     * a power of two between {@link #DEFAULT_SIZE} and {@link #MAX_SIZE}.
+     */
+    public ReplayWindow(int size)
+    {
+        if (size <= DEFAULT_SIZE)
+            size = DEFAULT_SIZE;
+        else if (size >= MAX_SIZE)
+            size = MAX_SIZE;
+        else
+            size = Integer.highestOneBit(size - 1) << 1;
+
+        this.size = size;
+        if (size == DEFAULT_SIZE)
+        {
+            bitmap = null;
+            wordMask = 0;
+        }
+        else
+        {
+            bitmap = new long[size / 64];
+            wordMask = bitmap.length - 1;
+        }
+    }
+
+    /**
+     * Checks whether a packet with a specific index may be accepted i.e. it
+     * is newer than the newest packet received so far or it is within this
+     * window and has not been received yet.
+     *
+     * @param index the index of the packet to check
+     * @param highestIndex the index of the newest packet received so far
+     * @return <tt>true</tt> if the packet with the specified <tt>index</tt>
+     * is not a replayed one; otherwise, <tt>false</tt>
+     */
+    public boolean check(long index, long highestIndex)
+    {
+        long delta = index - highestIndex;
+
+        if (delta > 0)
+        {
+            /* Packet not yet received */
+            return true;
+        }
+        else if (-delta >= size)
+        {
+            /* Packet too old */
+            return false;
+        }
+        else if (bitmap == null)
+        {
+            /* Packet not yet received unless its bit is set */
+            return ((window >>> -delta) & 1) == 0;
+        }
+        else
+        {
+            /* Packet not yet received unless its bit is set */
+            return
+                (bitmap[(int) (index >>> 6) & wordMask] & (1L << index)) == 0;
+        }
+    }
+
+    /**
+     * Gets the size in packets of this replay window.
+     *
+     * @return the size in packets of this replay window
+     */
+    public int getSize()
+    {
+        return size;
+    }
+
+    /**
+     * Records the reception of a packet with a specific index which has been
+     * accepted by {@link #check(long, long)}. If the packet is newer than the
+     * newest packet received so far, the window slides forward.
+     *
+     * @param index the index of the received packet
+     * @param highestIndex the index of the newest packet received so far (i.e.
+     * before the specified one)
+     */
+    public void update(long index, long highestIndex)
+    {
+        long delta = index - highestIndex;
+
+        if (bitmap == null)
+        {
+            if (delta > 0)
+                window = ((delta < 64) ? (window << delta) : 0) | 1;
+            else
+                window |= 1L << -delta;
+        }
+        else
+        {
+            updateBitmap(index, highestIndex, delta);
+        }
+    }
+
+    /**
+     * Implements {@link #update(long, long)} for a window which is larger
+     * than {@link #DEFAULT_SIZE}. Kept apart from the former so that the
+     * former remains small enough to be inlined.
+     *
+     * @param index the index of the received packet
+     * @param highestIndex the index of the newest packet received so far
+     * @param delta <tt>index - highestIndex</tt>
+     */
+    private void updateBitmap(long index, long highestIndex, long delta)
+    {
+        int word = (int) (index >>> 6) & wordMask;
+
+        if (delta > 0)
+        {
+            // Clear the bits of the indices highestIndex + 1 to index
+            // (inclusive) because they fall out of the window at its old end.
+            long i = highestIndex + 1;
+
+            if (delta < 64)
+            {
+                // The common case of (almost) in-order packets: the bits are
+                // in the word of highestIndex + 1 and, if they wrap around,
+                // in the next one (i.e. the word of index).
+                long mask = Long.rotateLeft((1L << delta) - 1, (int) i);
+                long iMask = -1L << i;
+
+                bitmap[(int) (i >>> 6) & wordMask] &= ~(mask & iMask);
+                bitmap[word] &= ~(mask & ~iMask);
+            }
+            else if (delta >= size)
+            {
+                Arrays.fill(bitmap, 0);
+            }
+            else
+            {
+                // The tail of the word of highestIndex + 1, the words in
+                // between and the head of the word of index.
+                long iWord = i >>> 6;
+                long indexWord = index >>> 6;
+
+                bitmap[(int) iWord & wordMask] &= ~(-1L << i);
+                for (iWord++; iWord < indexWord; iWord++)
+                    bitmap[(int) iWord & wordMask] = 0;
+                bitmap[word] &= ~(-1L >>> (63 - (index & 63)));
+            }
+        }
+        bitmap[word] |= 1L << index;
+    }
+}
@@ -6,10 +6,9 @@
  */
 package org.jitsi.impl.neomedia.transform.srtp;
 
-import java.util.*;
-
 import org.jitsi.impl.neomedia.*;
 import org.jitsi.impl.neomedia.transform.*;
+import org.jitsi.util.*;
 
 /**
  * SRTCPTransformer implements PacketTransformer.
@@ -19,15 +18,22 @@ import org.jitsi.impl.neomedia.transform.*;
  * @author Werner Dittmann &lt;Werner.Dittmann@t-online.de>
  */
 public class SRTCPTransformer
-    implements PacketTransformer
+    extends SinglePacketTransformer
 {
     private final SRTPContextFactory forwardFactory;
     private final SRTPContextFactory reverseFactory;
 
+    /**
+     * Whether this transformer has been closed. A context derived
+     * concurrently with {@link #close()} is discarded rather than added to
+     * {@link #contexts} after they have been closed.
+     */
+    private volatile boolean closed = false;
+
     /**
      * All the known SSRC's corresponding SRTCPCryptoContexts
      */
-    private final Hashtable<Long,SRTCPCryptoContext> contexts;
+    private final CopyOnWriteLongHashMap<SRTCPCryptoContext> contexts;
 
     /**
      * Constructs a SRTCPTransformer object.
@@ -54,7 +60,7 @@ public class SRTCPTransformer
     {
         this.forwardFactory = forwardFactory;
         this.reverseFactory = reverseFactory;
-        this.contexts = new Hashtable<Long, SRTCPCryptoContext>();
+        this.contexts = new CopyOnWriteLongHashMap<SRTCPCryptoContext>();
     }
 
     /**
@@ -64,45 +70,64 @@ public class SRTCPTransformer
      */
     public void close()
     {
-        synchronized (contexts)
-        {
-            forwardFactory.close();
-            if (reverseFactory != forwardFactory)
-                reverseFactory.close();
-
-            Iterator<Map.Entry<Long, SRTCPCryptoContext>> iter
-                = contexts.entrySet().iterator();
+        closed = true;
+        forwardFactory.close();
+        if (reverseFactory != forwardFactory)
+            reverseFactory.close();
 
-            while (iter.hasNext())
-            {
-                Map.Entry<Long, SRTCPCryptoContext> entry = iter.next();
-                SRTCPCryptoContext context = entry.getValue();
+        for (long ssrc : contexts.keys())
+        {
+            SRTCPCryptoContext context = contexts.remove(ssrc);
 
-                iter.remove();
-                if (context != null)
-                    context.close();
-            }
+            if (context != null)
+                context.close();
         }
     }
 
+    /**
+     * Gets the <tt>SRTCPCryptoContext</tt> of a specific SSRC if it exists
+     * (e.g. to read its counters of authentication failures and replay drops).
+     *
+     * @param ssrc the SSRC to get the <tt>SRTCPCryptoContext</tt> of
+     * @return the <tt>SRTCPCryptoContext</tt> of <tt>ssrc</tt> or
+     * <tt>null</tt> if no packet of <tt>ssrc</tt> has been transformed yet
+     */
+    public SRTCPCryptoContext getCryptoContext(long ssrc)
+    {
+        return contexts.get(ssrc);
+    }
+
     private SRTCPCryptoContext getContext(
             RawPacket pkt,
             SRTPContextFactory engine)
     {
         long ssrc = pkt.getRTCPSSRC();
-        SRTCPCryptoContext context = null;
+        SRTCPCryptoContext context = contexts.get(ssrc);
 
-        synchronized (contexts)
+        // The derivation of a new context is performed without holding a lock
+        // so that it does not stall the lookups of the other contexts.
+        if (context == null && engine != null)
         {
-            context = contexts.get(ssrc);
-            if (context == null && engine != null)
+            context = engine.getDefaultContextControl();
+            if (context != null)
             {
-                context = engine.getDefaultContextControl();
-                if (context != null)
+                context = context.deriveContext(ssrc);
+                context.deriveSrtcpKeys();
+
+                SRTCPCryptoContext existingContext
+                    = contexts.putIfAbsent(ssrc, context);
+
+                if (existingContext != null)
+                {
+                    context.close();
+                    context = existingContext;
+                }
+                else if (closed)
                 {
-                    context = context.deriveContext(ssrc);
-                    context.deriveSrtcpKeys();
-                    contexts.put(ssrc, context);
+                    // close() may have missed the new context.
+                    if (contexts.remove(ssrc) == context)
+                        context.close();
+                    context = null;
                 }
             }
         }
@@ -136,9 +161,8 @@ public class SRTCPTransformer
     {
         SRTCPCryptoContext context = getContext(pkt, forwardFactory);
 
-        if(context != null)
+        if((context != null) && context.transformPacket(pkt))
         {
-            context.transformPacket(pkt);
             return pkt;
         }
         else
@@ -25,7 +25,7 @@
 */
 package org.jitsi.impl.neomedia.transform.srtp;
 
-import org.bouncycastle.crypto.*;
+import java.util.*;
 
 /**
  * SRTPCipherCTR implements SRTP Counter Mode AES Encryption (AES-CM).
@@ -49,52 +49,15 @@ import org.bouncycastle.crypto.*;
  *   message integrity    HMAC-SHA1                -          HMAC-SHA1
  *   key derivation       (PRF) AES-CM             -          AES-CM
  *
- * We use AESCipher to handle basic AES encryption / decryption.
+ * The implementations of this class differ in the way they compute the
+ * cipher stream. {@link AES#createCTR()} selects the fastest implementation of
+ * AES-CM available.
  *
  * @author Werner Dittmann (Werner.Dittmann@t-online.de)
  * @author Bing SU (nova.su@gmail.com)
  */
-public class SRTPCipherCTR
+public abstract class SRTPCipherCTR
 {
-
-    private final static int BLKLEN = 16;
-    private final static int MAX_BUFFER_LENGTH = 10*1024;
-    private final byte[] cipherInBlock = new byte[BLKLEN];
-    private final byte[] tmpCipherBlock = new byte[BLKLEN];
-    private byte[] streamBuf = new byte[1024];
-
-    public SRTPCipherCTR()
-    {
-    }
-
-    public void process(BlockCipher cipher, byte[] data, int off, int len,
-        byte[] iv)
-    {
-        if (off + len > data.length)
-            return;
-
-        // if data fits in inter buffer - use it. Otherwise allocate bigger
-        // buffer store it to use it for later processing - up to a defined
-        // maximum size.
-        byte[] cipherStream = null;
-        if (len > streamBuf.length)
-        {
-            cipherStream = new byte[len];
-            if (cipherStream.length <= MAX_BUFFER_LENGTH)
-            {
-                streamBuf = cipherStream;
-            }
-        }
-        else
-        {
-            cipherStream = streamBuf;
-        }
-
-        getCipherStream(cipher, cipherStream, len, iv);
-        for (int i = 0; i < len; i++)
-            data[i + off] ^= cipherStream[i];
-    }
-
     /**
      * Computes the cipher stream for AES CM mode. See section 4.1.1 in RFC3711
      * for detailed description.
@@ -106,26 +69,28 @@ public class SRTPCipherCTR
      * @param iv
      *            initialization vector used to generate this cipher stream
      */
-    public void getCipherStream(BlockCipher aesCipher, byte[] out, int length,
-        byte[] iv)
+    public void getCipherStream(byte[] out, int length, byte[] iv)
     {
-        System.arraycopy(iv, 0, cipherInBlock, 0, 14);
-
-        int ctr;
-        for (ctr = 0; ctr < length / BLKLEN; ctr++)
-        {
-            // compute the cipher stream
-            cipherInBlock[14] = (byte) ((ctr & 0xFF00) >> 8);
-            cipherInBlock[15] = (byte) ((ctr & 0x00FF));
-
-            aesCipher.processBlock(cipherInBlock, 0, out, ctr * BLKLEN);
-        }
+        Arrays.fill(out, 0, length, (byte) 0);
+        process(out, 0, length, iv);
+    }
 
-        // Treat the last bytes:
-        cipherInBlock[14] = (byte) ((ctr & 0xFF00) >> 8);
-        cipherInBlock[15] = (byte) ((ctr & 0x00FF));
+    /**
+     * Initializes this cipher with a specific key.
+     *
+     * @param key the key to encrypt / decrypt with
+     */
+    public abstract void init(byte[] key);
 
-        aesCipher.processBlock(cipherInBlock, 0, tmpCipherBlock, 0);
-        System.arraycopy(tmpCipherBlock, 0, out, ctr * BLKLEN, length % BLKLEN);
-    }
+    /**
+     * Encrypts / decrypts (i.e. XORs with the cipher stream) a specific region
+     * of a specific buffer in place.
+     *
+     * @param data the buffer which contains the data to encrypt / decrypt
+     * @param off the offset in <tt>data</tt> at which the data to encrypt /
+     * decrypt starts
+     * @param len the length of the data to encrypt / decrypt
+     * @param iv the initialization vector used to generate the cipher stream
+     */
+    public abstract void process(byte[] data, int off, int len, byte[] iv);
 }
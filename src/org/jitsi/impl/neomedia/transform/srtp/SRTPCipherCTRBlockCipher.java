@@ -0,0 +1,129 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ *
+ * Some of the code in this class is derived from ccRtp's SRTP implementation,
+ * which has the following copyright notice:
+ *
+  Copyright (C) 2004-2006 the Minisip Team
+
+  This library is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307 USA
+*/
+package org.jitsi.impl.neomedia.transform.srtp;
+
+import org.bouncycastle.crypto.*;
+import org.bouncycastle.crypto.params.*;
+
+/**
+ * Implements SRTP Counter Mode Encryption with a BouncyCastle
+ * <tt>BlockCipher</tt> i.e. computes the cipher stream one block at a time.
+ * Works with any 128-bit block cipher (e.g. AES and Twofish).
+ *
+ * @author Werner Dittmann (Werner.Dittmann@t-online.de)
+ * @author Bing SU (nova.su@gmail.com)
+ */
+public class SRTPCipherCTRBlockCipher
+    extends SRTPCipherCTR
+{
+    private final static int BLKLEN = 16;
+    private final static int MAX_BUFFER_LENGTH = 10*1024;
+    private final byte[] cipherInBlock = new byte[BLKLEN];
+    private final byte[] tmpCipherBlock = new byte[BLKLEN];
+    private byte[] streamBuf = new byte[1024];
+
+    /**
+     * The <tt>BlockCipher</tt> which computes the cipher stream.
+     */
+    private final BlockCipher cipher;
+
+    /**
+     * Initializes a new <tt>SRTPCipherCTRBlockCipher</tt> instance which is to
+     * compute the cipher stream with a specific <tt>BlockCipher</tt>.
+     *
+     * @param cipher the <tt>BlockCipher</tt> to compute the cipher stream with
+     */
+    public SRTPCipherCTRBlockCipher(BlockCipher cipher)
+    {
+        this.cipher = cipher;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void init(byte[] key)
+    {
+        cipher.init(true, new KeyParameter(key));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void process(byte[] data, int off, int len, byte[] iv)
+    {
+        if (off + len > data.length)
+            return;
+
+        // if data fits in inter buffer - use it. Otherwise allocate bigger
+        // buffer store it to use it for later processing - up to a defined
+        // maximum size.
+        byte[] cipherStream = null;
+        if (len > streamBuf.length)
+        {
+            cipherStream = new byte[len];
+            if (cipherStream.length <= MAX_BUFFER_LENGTH)
+            {
+                streamBuf = cipherStream;
+            }
+        }
+        else
+        {
+            cipherStream = streamBuf;
+        }
+
+        getCipherStream(cipherStream, len, iv);
+        for (int i = 0; i < len; i++)
+            data[i + off] ^= cipherStream[i];
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void getCipherStream(byte[] out, int length, byte[] iv)
+    {
+        System.arraycopy(iv, 0, cipherInBlock, 0, 14);
+
+        int ctr;
+        for (ctr = 0; ctr < length / BLKLEN; ctr++)
+        {
+            // compute the cipher stream
+            cipherInBlock[14] = (byte) ((ctr & 0xFF00) >> 8);
+            cipherInBlock[15] = (byte) ((ctr & 0x00FF));
+
+            cipher.processBlock(cipherInBlock, 0, out, ctr * BLKLEN);
+        }
+
+        // Treat the last bytes:
+        cipherInBlock[14] = (byte) ((ctr & 0xFF00) >> 8);
+        cipherInBlock[15] = (byte) ((ctr & 0x00FF));
+
+        cipher.processBlock(cipherInBlock, 0, tmpCipherBlock, 0);
+        System.arraycopy(tmpCipherBlock, 0, out, ctr * BLKLEN, length % BLKLEN);
+    }
+}
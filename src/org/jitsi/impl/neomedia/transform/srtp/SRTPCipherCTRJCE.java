@@ -0,0 +1,78 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package org.jitsi.impl.neomedia.transform.srtp;
+
+import java.security.*;
+
+import javax.crypto.*;
+import javax.crypto.spec.*;
+
+/**
+ * Implements SRTP Counter Mode AES Encryption with the
+ * <tt>AES/CTR/NoPadding</tt> <tt>Cipher</tt> of the Java Cryptography
+ * Extension i.e. computes the cipher stream of a whole packet in a single call
+ * which the Java virtual machine implements with the AES instructions of the
+ * CPU (where available). AES-CM is equivalent to AES/CTR because the block
+ * counter of AES-CM occupies the least significant 16 bits of the counter
+ * block and SRTP packets are shorter than 2^16 blocks.
+ */
+public class SRTPCipherCTRJCE
+    extends SRTPCipherCTR
+{
+    /**
+     * The <tt>AES/CTR/NoPadding</tt> <tt>Cipher</tt> which computes the
+     * cipher stream.
+     */
+    private final Cipher cipher;
+
+    /**
+     * The key of {@link #cipher}.
+     */
+    private SecretKeySpec key;
+
+    /**
+     * Initializes a new <tt>SRTPCipherCTRJCE</tt> instance.
+     *
+     * @throws GeneralSecurityException if the Java Cryptography Extension does
+     * not provide <tt>AES/CTR/NoPadding</tt>
+     */
+    public SRTPCipherCTRJCE()
+        throws GeneralSecurityException
+    {
+        cipher = Cipher.getInstance("AES/CTR/NoPadding");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void init(byte[] key)
+    {
+        this.key = new SecretKeySpec(key, "AES");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void process(byte[] data, int off, int len, byte[] iv)
+    {
+        if (off + len > data.length)
+            return;
+
+        try
+        {
+            cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(iv));
+            cipher.doFinal(data, off, len, data, off);
+        }
+        catch (GeneralSecurityException gse)
+        {
+            // The key and the initialization vector have valid lengths.
+            throw new IllegalStateException(gse);
+        }
+    }
+}
@@ -25,11 +25,6 @@
 */
 package org.jitsi.impl.neomedia.transform.srtp;
 
-import java.util.*;
-
-import org.bouncycastle.crypto.*;
-import org.bouncycastle.crypto.params.*;
-
 /**
  * SRTPCipherF8 implements SRTP F8 Mode AES Encryption (AES-f8).
  * F8 Mode AES Encryption algorithm is defined in RFC3711, section 4.1.2.
@@ -52,30 +47,31 @@ import org.bouncycastle.crypto.params.*;
  *   message integrity    HMAC-SHA1                -          HMAC-SHA1
  *   key derivation       (PRF) AES-CM             -          AES-CM
  *
- * We use AESCipher to handle basic AES encryption / decryption.
+ * The implementations of this class differ in the way they compute the
+ * cipher stream. {@link AES#createF8()} selects the fastest implementation of
+ * AES-f8 available.
  *
  * @author Bing SU (nova.su@gmail.com)
  * @author Werner Dittmann <werner.dittmann@t-online.de>
  */
-public class SRTPCipherF8
+public abstract class SRTPCipherF8
 {
     /**
      * AES block size, just a short name.
      */
-    private final static int BLKLEN = 16;
+    protected final static int BLKLEN = 16;
 
     /**
-     * F8 mode encryption context, see RFC3711 section 4.1.2 for detailed
-     * description.
+     * Computes the masked key which encrypts the initialization vector into
+     * the derived initialization vector (IV') i.e. the key XOR'ed with the
+     * salt padded with <tt>0x55</tt> to the length of the key. See RFC3711
+     * section 4.1.2.1.
+     *
+     * @param key the (session) encryption key
+     * @param salt the (session) salt
+     * @return the masked key
      */
-    class F8Context
-    {
-        public byte[] S;
-        public byte[] ivAccent;
-        long J;
-    }
-
-    public static void deriveForIV(BlockCipher f8Cipher, byte[] key, byte[] salt)
+    protected static byte[] computeMaskedKey(byte[] key, byte[] salt)
     {
         /*
          * Get memory for the special key. This is the key to compute the
@@ -99,97 +95,26 @@ public class SRTPCipherF8
         for (int i = 0; i < key.length; i++)
             maskedKey[i] = (byte) (key[i] ^ saltMask[i]);
 
-        /*
-         * Prepare the f8Cipher with the special key to compute IV'
-         */
-        KeyParameter encryptionKey = new KeyParameter(maskedKey);
-        f8Cipher.init(true, encryptionKey);
-        saltMask = null;
-        maskedKey = null;
-    }
-
-    public static void process(BlockCipher cipher, byte[] data, int off, int len,
-            byte[] iv, BlockCipher f8Cipher)
-    {
-        F8Context f8ctx = new SRTPCipherF8().new F8Context();
-
-        /*
-         * Get memory for the derived IV (IV')
-         */
-        f8ctx.ivAccent = new byte[BLKLEN];
-
-        /*
-         * Use the derived IV encryption setup to encrypt the original IV to produce IV'.
-         */
-        f8Cipher.processBlock(iv, 0, f8ctx.ivAccent, 0);
-
-        f8ctx.J = 0; // initialize the counter
-        f8ctx.S = new byte[BLKLEN]; // get the key stream buffer
-
-        Arrays.fill(f8ctx.S, (byte) 0);
-
-        int inLen = len;
-
-        while (inLen >= BLKLEN)
-        {
-            processBlock(cipher, f8ctx, data, off, data, off, BLKLEN);
-            inLen -= BLKLEN;
-            off += BLKLEN;
-        }
-
-        if (inLen > 0)
-        {
-            processBlock(cipher, f8ctx, data, off, data, off, inLen);
-        }
+        return maskedKey;
     }
 
     /**
-     * Encrypt / Decrypt a block using F8 Mode AES algorithm, read len bytes
-     * data from in at inOff and write the output into out at outOff
+     * Initializes this cipher with a specific (session) key and a specific
+     * (session) salt.
      *
-     * @param f8ctx
-     *            F8 encryption context
-     * @param in
-     *            byte array holding the data to be processed
-     * @param inOff
-     *            start offset of the data to be processed inside in array
-     * @param out
-     *            byte array that will hold the processed data
-     * @param outOff
-     *            start offset of output data in out
-     * @param len
-     *            length of the input data
+     * @param key the key to encrypt / decrypt with
+     * @param salt the salt to derive the initialization vectors with
      */
-    private static void processBlock(BlockCipher cipher, F8Context f8ctx,
-            byte[] in, int inOff, byte[] out, int outOff, int len)
-    {
-        /*
-         * XOR the previous key stream with IV'
-         * ( S(-1) xor IV' )
-         */
-        for (int i = 0; i < BLKLEN; i++)
-            f8ctx.S[i] ^= f8ctx.ivAccent[i];
-
-        /*
-         * Now XOR (S(n-1) xor IV') with the current counter, then increment
-         * the counter
-         */
-        f8ctx.S[12] ^= f8ctx.J >> 24;
-        f8ctx.S[13] ^= f8ctx.J >> 16;
-        f8ctx.S[14] ^= f8ctx.J >> 8;
-        f8ctx.S[15] ^= f8ctx.J >> 0;
-        f8ctx.J++;
+    public abstract void init(byte[] key, byte[] salt);
 
-        /*
-         * Now compute the new key stream using AES encrypt
-         */
-        cipher.processBlock(f8ctx.S, 0, f8ctx.S, 0);
-
-        /*
-         * As the last step XOR the plain text with the key stream to produce
-         * the cipher text.
-         */
-        for (int i = 0; i < len; i++)
-            out[outOff + i] = (byte) (in[inOff + i] ^ f8ctx.S[i]);
-    }
+    /**
+     * Encrypts / decrypts a specific region of a specific buffer in place.
+     *
+     * @param data the buffer which contains the data to encrypt / decrypt
+     * @param off the offset in <tt>data</tt> at which the data to encrypt /
+     * decrypt starts
+     * @param len the length of the data to encrypt / decrypt
+     * @param iv the initialization vector (IV) of the packet
+     */
+    public abstract void process(byte[] data, int off, int len, byte[] iv);
 }
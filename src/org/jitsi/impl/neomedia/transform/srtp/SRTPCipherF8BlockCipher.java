@@ -0,0 +1,169 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ *
+ * Some of the code in this class is derived from ccRtp's SRTP implementation,
+ * which has the following copyright notice:
+ *
+  Copyright (C) 2004-2006 the Minisip Team
+
+  This library is free software; you can redistribute it and/or
+  modify it under the terms of the GNU Lesser General Public
+  License as published by the Free Software Foundation; either
+  version 2.1 of the License, or (at your option) any later version.
+
+  This library is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+  Lesser General Public License for more details.
+
+  You should have received a copy of the GNU Lesser General Public
+  License along with this library; if not, write to the Free Software
+  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307 USA
+*/
+package org.jitsi.impl.neomedia.transform.srtp;
+
+import org.bouncycastle.crypto.*;
+import org.bouncycastle.crypto.params.*;
+
+/**
+ * Implements SRTP F8 Mode Encryption with BouncyCastle <tt>BlockCipher</tt>s
+ * i.e. computes the cipher stream one block at a time. Works with any 128-bit
+ * block cipher (e.g. AES and Twofish).
+ *
+ * @author Bing SU (nova.su@gmail.com)
+ * @author Werner Dittmann <werner.dittmann@t-online.de>
+ */
+public class SRTPCipherF8BlockCipher
+    extends SRTPCipherF8
+{
+    /**
+     * The <tt>BlockCipher</tt> which computes the cipher stream.
+     */
+    private final BlockCipher cipher;
+
+    /**
+     * The <tt>BlockCipher</tt> which computes the derived IV (IV') with the
+     * masked key.
+     */
+    private final BlockCipher f8Cipher;
+
+    /**
+     * The derived IV (IV') of the packet which is being processed.
+     */
+    private final byte[] ivAccent = new byte[BLKLEN];
+
+    /**
+     * The key stream block of the packet which is being processed.
+     */
+    private final byte[] S = new byte[BLKLEN];
+
+    /**
+     * Initializes a new <tt>SRTPCipherF8BlockCipher</tt> instance which is to
+     * compute the cipher stream with specific <tt>BlockCipher</tt>s.
+     *
+     * @param cipher the <tt>BlockCipher</tt> to compute the cipher stream with
+     * @param f8Cipher the <tt>BlockCipher</tt> (of the same algorithm as
+     * <tt>cipher</tt>) to compute the derived IV (IV') with
+     */
+    public SRTPCipherF8BlockCipher(BlockCipher cipher, BlockCipher f8Cipher)
+    {
+        this.cipher = cipher;
+        this.f8Cipher = f8Cipher;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void init(byte[] key, byte[] salt)
+    {
+        /*
+         * Prepare the f8Cipher with the special key to compute IV'
+         */
+        f8Cipher.init(true, new KeyParameter(computeMaskedKey(key, salt)));
+        cipher.init(true, new KeyParameter(key));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void process(byte[] data, int off, int len, byte[] iv)
+    {
+        /*
+         * Use the derived IV encryption setup to encrypt the original IV to
+         * produce IV'.
+         */
+        f8Cipher.processBlock(iv, 0, ivAccent, 0);
+
+        int J = 0; // initialize the counter
+
+        for (int i = 0; i < BLKLEN; i++) // clear the key stream buffer
+            S[i] = 0;
+
+        int inLen = len;
+
+        while (inLen >= BLKLEN)
+        {
+            processBlock(J++, data, off, data, off, BLKLEN);
+            inLen -= BLKLEN;
+            off += BLKLEN;
+        }
+
+        if (inLen > 0)
+        {
+            processBlock(J, data, off, data, off, inLen);
+        }
+    }
+
+    /**
+     * Encrypt / Decrypt a block using F8 Mode AES algorithm, read len bytes
+     * data from in at inOff and write the output into out at outOff
+     *
+     * @param J
+     *            the block counter
+     * @param in
+     *            byte array holding the data to be processed
+     * @param inOff
+     *            start offset of the data to be processed inside in array
+     * @param out
+     *            byte array that will hold the processed data
+     * @param outOff
+     *            start offset of output data in out
+     * @param len
+     *            length of the input data
+     */
+    private void processBlock(int J,
+            byte[] in, int inOff, byte[] out, int outOff, int len)
+    {
+        /*
+         * XOR the previous key stream with IV'
+         * ( S(-1) xor IV' )
+         */
+        for (int i = 0; i < BLKLEN; i++)
+            S[i] ^= ivAccent[i];
+
+        /*
+         * Now XOR (S(n-1) xor IV') with the current counter
+         */
+        S[12] ^= J >> 24;
+        S[13] ^= J >> 16;
+        S[14] ^= J >> 8;
+        S[15] ^= J >> 0;
+
+        /*
+         * Now compute the new key stream using AES encrypt
+         */
+        cipher.processBlock(S, 0, S, 0);
+
+        /*
+         * As the last step XOR the plain text with the key stream to produce
+         * the cipher text.
+         */
+        for (int i = 0; i < len; i++)
+            out[outOff + i] = (byte) (in[inOff + i] ^ S[i]);
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package org.jitsi.impl.neomedia.transform.srtp;
+
+import java.security.*;
+
+import javax.crypto.*;
+import javax.crypto.spec.*;
+
+/**
+ * Implements SRTP F8 Mode AES Encryption with the <tt>Cipher</tt>s of the Java
+ * Cryptography Extension. The key stream of F8 is
+ * <tt>S(j) = E(k_e, IV' xor j xor S(j-1))</tt> with <tt>S(-1) = 0</tt> which
+ * is the AES-CBC encryption of the blocks <tt>IV' xor j</tt> with an
+ * all-zero initialization vector. Consequently, the cipher stream of a whole
+ * packet is computed with a single <tt>AES/CBC/NoPadding</tt> call which the
+ * Java virtual machine implements with the AES instructions of the CPU (where
+ * available).
+ */
+public class SRTPCipherF8JCE
+    extends SRTPCipherF8
+{
+    /**
+     * The maximum length of {@link #streamBuf} which is retained between
+     * packets.
+     */
+    private static final int MAX_BUFFER_LENGTH = 10 * 1024;
+
+    /**
+     * The all-zero initialization vector of {@link #cipher}.
+     */
+    private static final IvParameterSpec ZERO_IV
+        = new IvParameterSpec(new byte[BLKLEN]);
+
+    /**
+     * The <tt>AES/CBC/NoPadding</tt> <tt>Cipher</tt> which computes the
+     * cipher stream.
+     */
+    private final Cipher cipher;
+
+    /**
+     * The <tt>AES/ECB/NoPadding</tt> <tt>Cipher</tt> which computes the
+     * derived IV (IV') with the masked key.
+     */
+    private final Cipher f8Cipher;
+
+    /**
+     * The derived IV (IV') of the packet which is being processed.
+     */
+    private final byte[] ivAccent = new byte[BLKLEN];
+
+    /**
+     * The key of {@link #cipher}.
+     */
+    private SecretKeySpec key;
+
+    /**
+     * The buffer in which the cipher stream is computed.
+     */
+    private byte[] streamBuf = new byte[1024];
+
+    /**
+     * Initializes a new <tt>SRTPCipherF8JCE</tt> instance.
+     *
+     * @throws GeneralSecurityException if the Java Cryptography Extension does
+     * not provide <tt>AES/CBC/NoPadding</tt> or <tt>AES/ECB/NoPadding</tt>
+     */
+    public SRTPCipherF8JCE()
+        throws GeneralSecurityException
+    {
+        cipher = Cipher.getInstance("AES/CBC/NoPadding");
+        f8Cipher = Cipher.getInstance("AES/ECB/NoPadding");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void init(byte[] key, byte[] salt)
+    {
+        this.key = new SecretKeySpec(key, "AES");
+        try
+        {
+            f8Cipher.init(
+                    Cipher.ENCRYPT_MODE,
+                    new SecretKeySpec(computeMaskedKey(key, salt), "AES"));
+        }
+        catch (InvalidKeyException ike)
+        {
+            throw new IllegalArgumentException(ike);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void process(byte[] data, int off, int len, byte[] iv)
+    {
+        if (len <= 0)
+            return;
+
+        int streamLen = (len + BLKLEN - 1) / BLKLEN * BLKLEN;
+        byte[] stream;
+
+        if (streamLen > streamBuf.length)
+        {
+            stream = new byte[streamLen];
+            if (streamLen <= MAX_BUFFER_LENGTH)
+                streamBuf = stream;
+        }
+        else
+        {
+            stream = streamBuf;
+        }
+
+        try
+        {
+            f8Cipher.doFinal(iv, 0, BLKLEN, ivAccent, 0);
+
+            // The blocks IV' xor j.
+            for (int j = 0, o = 0; o < streamLen; j++, o += BLKLEN)
+            {
+                System.arraycopy(ivAccent, 0, stream, o, BLKLEN);
+                stream[o + 12] ^= j >> 24;
+                stream[o + 13] ^= j >> 16;
+                stream[o + 14] ^= j >> 8;
+                stream[o + 15] ^= j;
+            }
+
+            cipher.init(Cipher.ENCRYPT_MODE, key, ZERO_IV);
+            cipher.doFinal(stream, 0, streamLen, stream, 0);
+        }
+        catch (GeneralSecurityException gse)
+        {
+            // The keys, the initialization vectors and the lengths are valid.
+            throw new IllegalStateException(gse);
+        }
+
+        for (int i = 0; i < len; i++)
+            data[off + i] ^= stream[i];
+    }
+}
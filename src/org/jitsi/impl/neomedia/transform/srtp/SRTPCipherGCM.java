@@ -0,0 +1,481 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package org.jitsi.impl.neomedia.transform.srtp;
+
+import java.security.*;
+import java.util.*;
+
+import javax.crypto.*;
+import javax.crypto.spec.*;
+
+import org.bouncycastle.crypto.*;
+import org.bouncycastle.crypto.engines.*;
+import org.bouncycastle.crypto.modes.*;
+import org.bouncycastle.crypto.params.*;
+import org.jitsi.util.*;
+
+/**
+ * Implements the AES Galois/Counter Mode AEAD cipher for SRTP and SRTCP
+ * according to RFC 7714 i.e. encrypts and authenticates a packet in a single
+ * pass instead of a counter mode pass followed by an HMAC pass. The
+ * encryption and the decryption are performed in place.
+ * <p>
+ * The <tt>AES/GCM/NoPadding</tt> <tt>Cipher</tt> of the Java Cryptography
+ * Extension is used if it is available because the Java virtual machine
+ * implements it with the AES and carry-less multiplication instructions of
+ * the CPU (where available). Otherwise (or if {@link AES#PROVIDER_PNAME}
+ * specifies {@link AES#BOUNCYCASTLE}), the BouncyCastle implementation is
+ * used.
+ * </p>
+ * <p>
+ * An initialization vector is never used to encrypt two different packets:
+ * when a packet is to be encrypted with the initialization vector of the
+ * packet encrypted last (e.g. because it is sent again), the ciphertext and
+ * the authentication tag of the latter are re-emitted if the two packets are
+ * byte-identical and the packet is refused otherwise.
+ * </p>
+ */
+public class SRTPCipherGCM
+{
+    /**
+     * The length in bytes of the initialization vector of AES-GCM as used by
+     * SRTP and SRTCP.
+     */
+    public static final int IV_LENGTH = 12;
+
+    /**
+     * The <tt>Logger</tt> used by the <tt>SRTPCipherGCM</tt> class and its
+     * instances to print debug information.
+     */
+    private static final Logger logger = Logger.getLogger(SRTPCipherGCM.class);
+
+    /**
+     * The length in bytes of the authentication tag of AES-GCM as used by SRTP
+     * and SRTCP.
+     */
+    public static final int TAG_LENGTH = SRTPPolicy.AESGCM_AUTH_TAG_LENGTH;
+
+    /**
+     * The associated data of the packet which is being encrypted.
+     */
+    private byte[] aad = new byte[0];
+
+    /**
+     * The length in bytes of {@link #aad}.
+     */
+    private int aadLength;
+
+    /**
+     * The BouncyCastle Galois/Counter Mode <tt>BlockCipher</tt> which
+     * implements this cipher if {@link #jceCipher} is <tt>null</tt>.
+     */
+    private final GCMBlockCipher bcCipher;
+
+    /**
+     * The indicator which determines whether the packet which is being
+     * processed is being encrypted (as opposed to decrypted).
+     */
+    private boolean encrypting;
+
+    /**
+     * The store which receives the output of {@link GCMBlockCipher#doFinal}
+     * i.e. the buffered remainder of the processed data and the
+     * authentication tag (when encrypting).
+     */
+    private final byte[] finalStore = new byte[3 * TAG_LENGTH];
+
+    /**
+     * The indicator which determines whether the packet which is being
+     * encrypted has the initialization vector of the packet encrypted last
+     * and, consequently, {@link #jceCipher} or {@link #bcCipher} have not been
+     * started for it.
+     */
+    private boolean ivRepeated;
+
+    /**
+     * The JCE <tt>Cipher</tt> which implements this cipher or <tt>null</tt> if
+     * the JCE does not provide AES-GCM.
+     */
+    private final Cipher jceCipher;
+
+    /**
+     * The (session) key of {@link #jceCipher}.
+     */
+    private SecretKeySpec jceKey;
+
+    /**
+     * The buffer which receives the output of {@link #jceCipher} when
+     * encrypting because the ciphertext is longer than the plaintext.
+     */
+    private byte[] jceOut = new byte[0];
+
+    /**
+     * The associated data of the packet encrypted last.
+     */
+    private byte[] lastAad = new byte[0];
+
+    /**
+     * The length in bytes of {@link #lastAad}.
+     */
+    private int lastAadLength;
+
+    /**
+     * The ciphertext of the packet encrypted last.
+     */
+    private byte[] lastCiphertext = new byte[0];
+
+    /**
+     * The initialization vector of the packet encrypted last.
+     */
+    private final byte[] lastIv = new byte[IV_LENGTH];
+
+    /**
+     * The indicator which determines whether {@link #lastIv},
+     * {@link #lastAad}, {@link #lastPlaintext}, {@link #lastCiphertext} and
+     * {@link #lastTag} describe a packet encrypted with the current key.
+     */
+    private boolean lastIvValid = false;
+
+    /**
+     * The length in bytes of {@link #lastPlaintext} and
+     * {@link #lastCiphertext}.
+     */
+    private int lastLength;
+
+    /**
+     * The plaintext of the packet encrypted last.
+     */
+    private byte[] lastPlaintext = new byte[0];
+
+    /**
+     * The authentication tag of the packet encrypted last.
+     */
+    private final byte[] lastTag = new byte[TAG_LENGTH];
+
+    /**
+     * Initializes a new <tt>SRTPCipherGCM</tt> instance.
+     */
+    public SRTPCipherGCM()
+    {
+        Cipher jceCipher = null;
+
+        if (!AES.BOUNCYCASTLE.equals(AES.getConfiguredProvider()))
+        {
+            try
+            {
+                jceCipher = Cipher.getInstance("AES/GCM/NoPadding");
+            }
+            catch (GeneralSecurityException gse)
+            {
+                logger.info(
+                        "AES/GCM/NoPadding is not available, using"
+                            + " BouncyCastle.");
+            }
+        }
+        this.jceCipher = jceCipher;
+        bcCipher
+            = (jceCipher == null)
+                ? new GCMBlockCipher(new AESFastEngine())
+                : null;
+    }
+
+    /**
+     * Decrypts and verifies (the authentication tag of) a specific region of
+     * a specific buffer in place. The associated data is to have been
+     * supplied to {@link #processAAD(byte[], int, int)} after
+     * {@link #start(boolean, byte[])}.
+     *
+     * @param buf the buffer which contains the data to decrypt followed by
+     * the authentication tag
+     * @param off the offset in <tt>buf</tt> at which the data to decrypt
+     * starts
+     * @param len the length of the data to decrypt including the
+     * authentication tag
+     * @return <tt>true</tt> if the authentication tag was verified and the
+     * data was decrypted into <tt>buf</tt> at <tt>off</tt> (its length is
+     * <tt>len - </tt>{@link #TAG_LENGTH}); otherwise, <tt>false</tt>
+     */
+    public boolean decrypt(byte[] buf, int off, int len)
+    {
+        if (len < TAG_LENGTH)
+            return false;
+
+        if (jceCipher != null)
+        {
+            try
+            {
+                jceCipher.doFinal(buf, off, len, buf, off);
+                return true;
+            }
+            catch (GeneralSecurityException gse)
+            {
+                // AEADBadTagException i.e. the packet is not authentic.
+                return false;
+            }
+        }
+
+        int outLen = bcCipher.processBytes(buf, off, len, buf, off);
+
+        try
+        {
+            int finalLen = bcCipher.doFinal(finalStore, 0);
+
+            System.arraycopy(finalStore, 0, buf, off + outLen, finalLen);
+            return true;
+        }
+        catch (InvalidCipherTextException icte)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Encrypts a specific region of a specific buffer in place and computes
+     * the authentication tag over it and the associated data which is to
+     * have been supplied to {@link #processAAD(byte[], int, int)} after
+     * {@link #start(boolean, byte[])}.
+     *
+     * @param buf the buffer which contains the data to encrypt
+     * @param off the offset in <tt>buf</tt> at which the data to encrypt
+     * starts
+     * @param len the length of the data to encrypt
+     * @param tag the buffer to receive the authentication tag at index zero
+     * @return <tt>true</tt> if the data was encrypted; <tt>false</tt> if the
+     * initialization vector is that of the packet encrypted last and the two
+     * packets differ i.e. the packet must not be sent
+     */
+    public boolean encrypt(byte[] buf, int off, int len, byte[] tag)
+    {
+        if (ivRepeated)
+        {
+            ivRepeated = false;
+            return reemit(buf, off, len, tag);
+        }
+
+        if (lastPlaintext.length < len)
+        {
+            lastPlaintext = new byte[len];
+            lastCiphertext = new byte[len];
+        }
+        System.arraycopy(buf, off, lastPlaintext, 0, len);
+
+        if (jceCipher != null)
+        {
+            if (jceOut.length < len + TAG_LENGTH)
+                jceOut = new byte[len + TAG_LENGTH];
+
+            try
+            {
+                jceCipher.doFinal(buf, off, len, jceOut, 0);
+            }
+            catch (GeneralSecurityException gse)
+            {
+                // The parameters have been validated by start.
+                throw new IllegalStateException(gse);
+            }
+            System.arraycopy(jceOut, 0, buf, off, len);
+            System.arraycopy(jceOut, len, tag, 0, TAG_LENGTH);
+        }
+        else
+        {
+            int outLen = bcCipher.processBytes(buf, off, len, buf, off);
+            int finalLen;
+
+            try
+            {
+                finalLen = bcCipher.doFinal(finalStore, 0);
+            }
+            catch (InvalidCipherTextException icte)
+            {
+                // Thrown while decrypting only.
+                throw new IllegalStateException(icte);
+            }
+
+            int remainderLen = finalLen - TAG_LENGTH;
+
+            System.arraycopy(finalStore, 0, buf, off + outLen, remainderLen);
+            System.arraycopy(finalStore, remainderLen, tag, 0, TAG_LENGTH);
+        }
+
+        // Remember the packet in case it is sent again.
+        System.arraycopy(buf, off, lastCiphertext, 0, len);
+        System.arraycopy(tag, 0, lastTag, 0, TAG_LENGTH);
+        lastLength = len;
+
+        byte[] swap = lastAad;
+
+        lastAad = aad;
+        lastAadLength = aadLength;
+        aad = swap;
+        lastIvValid = true;
+        return true;
+    }
+
+    /**
+     * Initializes this cipher with a specific (session) key. The key schedule
+     * (and the GHASH tables of BouncyCastle) are computed once here and are
+     * reused by every subsequent {@link #start(boolean, byte[])}.
+     *
+     * @param key the AES key (of 16 or 32 bytes)
+     */
+    public void init(byte[] key)
+    {
+        lastIvValid = false;
+        ivRepeated = false;
+        if (jceCipher != null)
+        {
+            jceKey = new SecretKeySpec(key, "AES");
+        }
+        else
+        {
+            bcCipher.init(
+                    true,
+                    new AEADParameters(
+                            new KeyParameter(key),
+                            TAG_LENGTH * 8,
+                            new byte[IV_LENGTH]));
+        }
+    }
+
+    /**
+     * Determines whether this cipher is implemented by the Java Cryptography
+     * Extension (as opposed to BouncyCastle).
+     *
+     * @return <tt>true</tt> if this cipher is implemented by the Java
+     * Cryptography Extension; otherwise, <tt>false</tt>
+     */
+    public boolean isJCE()
+    {
+        return (jceCipher != null);
+    }
+
+    /**
+     * Supplies a specific region of a specific buffer as (part of) the
+     * associated data of the packet which is being processed.
+     *
+     * @param buf the buffer which contains the associated data
+     * @param off the offset in <tt>buf</tt> at which the associated data
+     * starts
+     * @param len the length of the associated data
+     */
+    public void processAAD(byte[] buf, int off, int len)
+    {
+        if (encrypting)
+        {
+            if (aadLength + len > aad.length)
+                aad = Arrays.copyOf(aad, aadLength + len);
+            System.arraycopy(buf, off, aad, aadLength, len);
+            aadLength += len;
+        }
+
+        if (ivRepeated)
+            return;
+        if (jceCipher != null)
+            jceCipher.updateAAD(buf, off, len);
+        else
+            bcCipher.processAADBytes(buf, off, len);
+    }
+
+    /**
+     * Re-emits the ciphertext and the authentication tag of the packet
+     * encrypted last if a specific packet to be encrypted with the same
+     * initialization vector is byte-identical to it.
+     *
+     * @param buf the buffer which contains the data to encrypt
+     * @param off the offset in <tt>buf</tt> at which the data to encrypt
+     * starts
+     * @param len the length of the data to encrypt
+     * @param tag the buffer to receive the authentication tag at index zero
+     * @return <tt>true</tt> if the packet is identical to the packet
+     * encrypted last and has been replaced with its ciphertext; otherwise,
+     * <tt>false</tt>
+     */
+    private boolean reemit(byte[] buf, int off, int len, byte[] tag)
+    {
+        boolean identical = (aadLength == lastAadLength) && (len == lastLength);
+
+        for (int i = 0; identical && (i < aadLength); i++)
+        {
+            if (aad[i] != lastAad[i])
+                identical = false;
+        }
+        for (int i = 0; identical && (i < len); i++)
+        {
+            if (buf[off + i] != lastPlaintext[i])
+                identical = false;
+        }
+
+        if (!identical)
+        {
+            logger.warn(
+                    "Refusing to encrypt a packet with the initialization"
+                        + " vector of a different packet.");
+            return false;
+        }
+
+        System.arraycopy(lastCiphertext, 0, buf, off, len);
+        System.arraycopy(lastTag, 0, tag, 0, TAG_LENGTH);
+        return true;
+    }
+
+    /**
+     * Starts the processing of a packet with a specific initialization
+     * vector.
+     *
+     * @param forEncryption <tt>true</tt> to encrypt the packet or
+     * <tt>false</tt> to decrypt it
+     * @param iv the initialization vector of the packet
+     */
+    public void start(boolean forEncryption, byte[] iv)
+    {
+        aadLength = 0;
+        encrypting = forEncryption;
+        if (forEncryption)
+        {
+            /*
+             * The same packet may be sent again (e.g. retransmitted). It is
+             * not encrypted again because GCM must never encrypt with an
+             * initialization vector twice (and the JCE refuses to do it).
+             */
+            ivRepeated = lastIvValid && Arrays.equals(iv, lastIv);
+            if (ivRepeated)
+                return;
+
+            lastIvValid = false;
+            System.arraycopy(iv, 0, lastIv, 0, IV_LENGTH);
+        }
+        else
+        {
+            ivRepeated = false;
+        }
+
+        if (jceCipher != null)
+        {
+            try
+            {
+                jceCipher.init(
+                        forEncryption
+                            ? Cipher.ENCRYPT_MODE
+                            : Cipher.DECRYPT_MODE,
+                        jceKey,
+                        new GCMParameterSpec(TAG_LENGTH * 8, iv));
+            }
+            catch (GeneralSecurityException gse)
+            {
+                throw new IllegalStateException(gse);
+            }
+        }
+        else
+        {
+            // A null key makes the cipher reuse the key it was initialized
+            // with.
+            bcCipher.init(
+                    forEncryption,
+                    new AEADParameters(null, TAG_LENGTH * 8, iv));
+        }
+    }
+}
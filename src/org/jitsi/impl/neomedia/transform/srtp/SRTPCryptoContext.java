@@ -29,9 +29,7 @@ package org.jitsi.impl.neomedia.transform.srtp;
 import java.util.*;
 
 import org.bouncycastle.crypto.*;
-import org.bouncycastle.crypto.digests.*;
 import org.bouncycastle.crypto.engines.*;
-import org.bouncycastle.crypto.macs.*;
 import org.bouncycastle.crypto.params.*;
 import org.jitsi.bccontrib.macs.*;
 import org.jitsi.bccontrib.params.*;
@@ -63,11 +61,6 @@ import org.jitsi.impl.neomedia.*;
  */
 public class SRTPCryptoContext
 {
-    /**
-     * The replay check windows size
-     */
-    private static final long REPLAY_WINDOW_SIZE = 64;
-
     /**
      * RTP SSRC of this cryptographic context
      */
@@ -104,9 +97,20 @@ public class SRTPCryptoContext
     private long keyDerivationRate;
 
     /**
-     * Bit mask for replay check
+     * The replay list i.e. the window of the packet indices received so far
+     */
+    private final ReplayWindow replayWindow;
+
+    /**
+     * The number of received packets which failed authentication.
      */
-    private long replayWindow;
+    private volatile long authFailureCount;
+
+    /**
+     * The number of received packets which were dropped because they were
+     * replayed or too old for the replay window.
+     */
+    private volatile long replayDropCount;
 
     /**
      * Master encryption key
@@ -144,19 +148,22 @@ public class SRTPCryptoContext
     private Mac mac;             // used for various HMAC computations
 
     /**
-     * The symmetric cipher engines we need here
+     * implements the counter cipher mode for RTP according to RFC 3711. Also
+     * used by the key derivation of all other cipher modes.
      */
-    private BlockCipher cipher = null;
+    private SRTPCipherCTR cipherCtr = null;
 
     /**
-     * Used inside F8 mode only
+     * implements the F8 cipher mode for RTP according to RFC 3711. Used in F8
+     * mode only.
      */
-    private BlockCipher cipherF8 = null;
+    private SRTPCipherF8 cipherF8 = null;
 
     /**
-     * implements the counter cipher mode for RTP according to RFC 3711
+     * implements the AES-GCM AEAD cipher for RTP according to RFC 7714. Used
+     * in AES-GCM mode only.
      */
-    private final SRTPCipherCTR cipherCtr = new SRTPCipherCTR();
+    private SRTPCipherGCM cipherGcm = null;
 
     /**
      * Temp store.
@@ -169,15 +176,14 @@ public class SRTPCryptoContext
     private final byte[] ivStore = new byte[16];
 
     /**
-     * Temp store.
+     * Temp store for the AES-GCM initialization vector.
      */
-    private final byte[] rbStore = new byte[4];
+    private final byte[] gcmIvStore = new byte[SRTPCipherGCM.IV_LENGTH];
 
     /**
-     * this is a working store, used by some methods to avoid new operations
-     * the methods must use this only to store results for immediate processing
+     * Temp store.
      */
-    private final byte[] tempStore = new byte[100];
+    private final byte[] rbStore = new byte[4];
 
     /**
      * Construct an empty SRTPCryptoContext using ssrc.
@@ -201,6 +207,7 @@ public class SRTPCryptoContext
         seqNumSet = false;
         policy = null;
         tagStore = null;
+        replayWindow = null;
     }
 
     /**
@@ -241,6 +248,7 @@ public class SRTPCryptoContext
         seqNumSet = false;
 
         policy = policyIn;
+        replayWindow = new ReplayWindow();
 
         masterKey = new byte[policy.getEncKeyLength()];
         System.arraycopy(masterK, 0, masterKey, 0, policy
@@ -250,8 +258,6 @@ public class SRTPCryptoContext
         System.arraycopy(masterS, 0, masterSalt, 0, policy
                 .getSaltKeyLength());
 
-        mac = new HMac(new SHA1Digest());
-
         switch (policy.getEncType())
         {
         case SRTPPolicy.NULL_ENCRYPTION:
@@ -260,34 +266,49 @@ public class SRTPCryptoContext
             break;
 
         case SRTPPolicy.AESF8_ENCRYPTION:
-            cipherF8 = new AESFastEngine();
+            cipherF8 = AES.createF8();
             //$FALL-THROUGH$
 
         case SRTPPolicy.AESCM_ENCRYPTION:
-            cipher = new AESFastEngine();
+            cipherCtr = AES.createCTR();
             encKey = new byte[policy.getEncKeyLength()];
             saltKey = new byte[policy.getSaltKeyLength()];
             break;
 
         case SRTPPolicy.TWOFISHF8_ENCRYPTION:
-            cipherF8 = new TwofishEngine();
+            cipherF8
+                = new SRTPCipherF8BlockCipher(
+                        new TwofishEngine(),
+                        new TwofishEngine());
 
         case SRTPPolicy.TWOFISH_ENCRYPTION:
-            cipher = new TwofishEngine();
+            cipherCtr = new SRTPCipherCTRBlockCipher(new TwofishEngine());
             encKey = new byte[this.policy.getEncKeyLength()];
             saltKey = new byte[this.policy.getSaltKeyLength()];
             break;
+
+        case SRTPPolicy.AESGCM_ENCRYPTION:
+            // The session keys are derived with AES-CM as usual.
+            cipherCtr = AES.createCTR();
+            cipherGcm = new SRTPCipherGCM();
+            encKey = new byte[policy.getEncKeyLength()];
+            saltKey = new byte[policy.getSaltKeyLength()];
+            break;
         }
 
         switch (policy.getAuthType())
         {
         case SRTPPolicy.NULL_AUTHENTICATION:
             authKey = null;
-            tagStore = null;
+            // AES-GCM authenticates the packets itself.
+            tagStore
+                = (cipherGcm == null)
+                    ? null
+                    : new byte[SRTPCipherGCM.TAG_LENGTH];
             break;
 
         case SRTPPolicy.HMACSHA1_AUTHENTICATION:
-            mac = new HMac(new SHA1Digest());
+            mac = new HMacSHA1();
             authKey = new byte[policy.getAuthKeyLength()];
             tagStore = new byte[mac.getMacSize()];
             break;
@@ -320,6 +341,17 @@ public class SRTPCryptoContext
         Arrays.fill(masterSalt, (byte)0);
     }
 
+    /**
+     * Gets the number of received packets which failed authentication in this
+     * SRTP cryptographic context.
+     *
+     * @return the number of received packets which failed authentication
+     */
+    public long getAuthFailureCount()
+    {
+        return authFailureCount;
+    }
+
     /**
      * Get the authentication tag length of this SRTP cryptographic context
      *
@@ -330,6 +362,17 @@ public class SRTPCryptoContext
         return policy.getAuthTagLength();
     }
 
+    /**
+     * Gets the number of received packets which were dropped by the replay
+     * check of this SRTP cryptographic context.
+     *
+     * @return the number of received packets which were replayed or too old
+     */
+    public long getReplayDropCount()
+    {
+        return replayDropCount;
+    }
+
     /**
      * Get the MKI length of this SRTP cryptographic context
      *
@@ -393,20 +436,30 @@ public class SRTPCryptoContext
      * method (RTPManager managed transportation) instead.
      *
      * @param pkt the RTP packet that is going to be sent out
+     * @return <tt>true</tt> if <tt>pkt</tt> was transformed; <tt>false</tt> if
+     * it must not be sent (e.g. AES-GCM has refused to reuse an initialization
+     * vector for it)
      */
-    public void transformPacket(RawPacket pkt)
+    public boolean transformPacket(RawPacket pkt)
     {
+        /* Encrypt and authenticate the packet using AES-GCM */
+        if (policy.getEncType() == SRTPPolicy.AESGCM_ENCRYPTION)
+        {
+            if (!processPacketAESGCM(pkt, roc))
+                return false;
+            pkt.append(tagStore, SRTPCipherGCM.TAG_LENGTH);
+        }
         /* Encrypt the packet using Counter Mode encryption */
-        if (policy.getEncType() == SRTPPolicy.AESCM_ENCRYPTION ||
+        else if (policy.getEncType() == SRTPPolicy.AESCM_ENCRYPTION ||
                 policy.getEncType() == SRTPPolicy.TWOFISH_ENCRYPTION)
         {
-            processPacketAESCM(pkt);
+            processPacketAESCM(pkt, roc);
         }
         else if (policy.getEncType() == SRTPPolicy.AESF8_ENCRYPTION ||
                 policy.getEncType() == SRTPPolicy.TWOFISHF8_ENCRYPTION)
         {
             /* Encrypt the packet using F8 Mode encryption */
-            processPacketAESF8(pkt);
+            processPacketAESF8(pkt, roc);
         }
 
         /* Authenticate the packet */
@@ -422,6 +475,7 @@ public class SRTPCryptoContext
         {
             roc++;
         }
+        return true;
     }
 
     /**
@@ -458,30 +512,45 @@ public class SRTPCryptoContext
         /* Replay control */
         if (!checkReplay(seqNo, guessedIndex))
         {
+            replayDropCount++;
             return false;
         }
+        /* Authenticate and decrypt the packet using AES-GCM */
+        if (policy.getEncType() == SRTPPolicy.AESGCM_ENCRYPTION)
+        {
+            if (!reverseProcessPacketAESGCM(pkt, guessedROC))
+            {
+                authFailureCount++;
+                return false;
+            }
+        }
         /* Authenticate the packet */
-        if (policy.getAuthType() != SRTPPolicy.NULL_AUTHENTICATION)
+        else if (policy.getAuthType() != SRTPPolicy.NULL_AUTHENTICATION)
         {
             int tagLength = policy.getAuthTagLength();
 
-            // get original authentication and store in tempStore
-            pkt.readRegionToBuff(pkt.getLength() - tagLength,
-                    tagLength, tempStore);
+            if (pkt.getLength() < tagLength)
+            {
+                authFailureCount++;
+                return false;
+            }
+
+            // The received tag stays in the buffer right after the shrunk
+            // packet and is compared with the computed one in place.
+            byte[] buf = pkt.getBuffer();
 
             pkt.shrink(tagLength);
 
             // save computed authentication in tagStore
             authenticatePacketHMCSHA1(pkt, guessedROC);
 
-            for (int i = 0; i < tagLength; i++)
+            if (!HMacSHA1.equals(
+                    buf, pkt.getOffset() + pkt.getLength(),
+                    tagStore, 0,
+                    tagLength))
             {
-                if ((tempStore[i]&0xff) == (tagStore[i]&0xff))
-                    continue;
-                else
-                {
-                    return false;
-                }
+                authFailureCount++;
+                return false;
             }
         }
 
@@ -489,14 +558,14 @@ public class SRTPCryptoContext
         if (policy.getEncType() == SRTPPolicy.AESCM_ENCRYPTION ||
                 policy.getEncType() == SRTPPolicy.TWOFISH_ENCRYPTION)
         {
-            processPacketAESCM(pkt);
+            processPacketAESCM(pkt, guessedROC);
         }
 
         /* Decrypt the packet using F8 Mode encryption*/
         else if (policy.getEncType() == SRTPPolicy.AESF8_ENCRYPTION ||
                 policy.getEncType() == SRTPPolicy.TWOFISHF8_ENCRYPTION)
         {
-            processPacketAESF8(pkt);
+            processPacketAESF8(pkt, guessedROC);
         }
 
         update(seqNo, guessedIndex);
@@ -507,12 +576,14 @@ public class SRTPCryptoContext
     /**
      * Perform Counter Mode AES encryption / decryption
      * @param pkt the RTP packet to be encrypted / decrypted
+     * @param rocIn the Roll-Over-Counter of the packet (i.e. the guessed one
+     * when decrypting)
      */
-    public void processPacketAESCM(RawPacket pkt)
+    public void processPacketAESCM(RawPacket pkt, int rocIn)
     {
         long ssrc = pkt.getSSRC();
         int seqNo = pkt.getSequenceNumber();
-        long index = ((long) this.roc << 16) | seqNo;
+        long index = ((long) rocIn << 16) | seqNo;
 
         // byte[] iv = new byte[16];
         ivStore[0] = saltKey[0];
@@ -546,7 +617,7 @@ public class SRTPCryptoContext
         final int payloadOffset = pkt.getHeaderLength();
         final int payloadLength = pkt.getPayloadLength();
 
-        cipherCtr.process(cipher, pkt.getBuffer(), pkt.getOffset() +
+        cipherCtr.process(pkt.getBuffer(), pkt.getOffset() +
                 payloadOffset, payloadLength, ivStore);
     }
 
@@ -554,8 +625,10 @@ public class SRTPCryptoContext
      * Perform F8 Mode AES encryption / decryption
      *
      * @param pkt the RTP packet to be encrypted / decrypted
+     * @param rocIn the Roll-Over-Counter of the packet (i.e. the guessed one
+     * when decrypting)
      */
-    public void processPacketAESF8(RawPacket pkt)
+    public void processPacketAESF8(RawPacket pkt, int rocIn)
     {
         // byte[] iv = new byte[16];
 
@@ -565,16 +638,119 @@ public class SRTPCryptoContext
         ivStore[0] = 0;
 
         // set the ROC in network order into IV
-        ivStore[12] = (byte) (this.roc >> 24);
-        ivStore[13] = (byte) (this.roc >> 16);
-        ivStore[14] = (byte) (this.roc >> 8);
-        ivStore[15] = (byte) this.roc;
+        ivStore[12] = (byte) (rocIn >> 24);
+        ivStore[13] = (byte) (rocIn >> 16);
+        ivStore[14] = (byte) (rocIn >> 8);
+        ivStore[15] = (byte) rocIn;
 
         final int payloadOffset = pkt.getHeaderLength();
         final int payloadLength = pkt.getPayloadLength();
 
-        SRTPCipherF8.process(cipher, pkt.getBuffer(), pkt.getOffset() + payloadOffset,
-            payloadLength, ivStore, cipherF8);
+        cipherF8.process(pkt.getBuffer(), pkt.getOffset() + payloadOffset,
+            payloadLength, ivStore);
+    }
+
+    /**
+     * Computes the AES-GCM initialization vector of a specific RTP packet
+     * (refer to section 8.1 of RFC 7714) into {@link #gcmIvStore}:
+     * <pre>
+     *   0  0  0  0  0  0  0  0  0  0  1  1
+     *   0  1  2  3  4  5  6  7  8  9  0  1
+     * +--+--+--+--+--+--+--+--+--+--+--+--+
+     * |00|00|    SSRC   |     ROC   | SEQ |---+
+     * +--+--+--+--+--+--+--+--+--+--+--+--+   |
+     *                                         |
+     * +--+--+--+--+--+--+--+--+--+--+--+--+   |
+     * |         Encryption Salt           |->(+)
+     * +--+--+--+--+--+--+--+--+--+--+--+--+   |
+     *                                         |
+     * +--+--+--+--+--+--+--+--+--+--+--+--+   |
+     * |       Initialization Vector       |<--+
+     * +--+--+--+--+--+--+--+--+--+--+--+--+
+     * </pre>
+     *
+     * @param pkt the RTP packet to compute the initialization vector of
+     * @param rocIn the Roll-Over-Counter of <tt>pkt</tt>
+     */
+    private void computeGcmIv(RawPacket pkt, int rocIn)
+    {
+        int ssrc = pkt.getSSRC();
+        int seqNo = pkt.getSequenceNumber();
+
+        gcmIvStore[0] = saltKey[0];
+        gcmIvStore[1] = saltKey[1];
+        gcmIvStore[2] = (byte) ((ssrc >> 24) ^ saltKey[2]);
+        gcmIvStore[3] = (byte) ((ssrc >> 16) ^ saltKey[3]);
+        gcmIvStore[4] = (byte) ((ssrc >> 8) ^ saltKey[4]);
+        gcmIvStore[5] = (byte) (ssrc ^ saltKey[5]);
+        gcmIvStore[6] = (byte) ((rocIn >> 24) ^ saltKey[6]);
+        gcmIvStore[7] = (byte) ((rocIn >> 16) ^ saltKey[7]);
+        gcmIvStore[8] = (byte) ((rocIn >> 8) ^ saltKey[8]);
+        gcmIvStore[9] = (byte) (rocIn ^ saltKey[9]);
+        gcmIvStore[10] = (byte) ((seqNo >> 8) ^ saltKey[10]);
+        gcmIvStore[11] = (byte) (seqNo ^ saltKey[11]);
+    }
+
+    /**
+     * Perform AES-GCM encryption and authentication of a RTP packet according
+     * to RFC 7714. The RTP header (including the CSRC list and the header
+     * extension) is the associated data and the payload is encrypted in
+     * place. The authentication tag is stored in {@link #tagStore}.
+     *
+     * @param pkt the RTP packet to be encrypted
+     * @param rocIn the Roll-Over-Counter of <tt>pkt</tt>
+     * @return <tt>true</tt> if <tt>pkt</tt> was encrypted; <tt>false</tt> if
+     * it must not be sent because a different packet has been encrypted with
+     * its initialization vector
+     */
+    private boolean processPacketAESGCM(RawPacket pkt, int rocIn)
+    {
+        computeGcmIv(pkt, rocIn);
+
+        byte[] buf = pkt.getBuffer();
+        int off = pkt.getOffset();
+        int headerLength = pkt.getHeaderLength();
+
+        cipherGcm.start(true, gcmIvStore);
+        cipherGcm.processAAD(buf, off, headerLength);
+        return
+            cipherGcm.encrypt(
+                    buf,
+                    off + headerLength,
+                    pkt.getLength() - headerLength,
+                    tagStore);
+    }
+
+    /**
+     * Perform AES-GCM authentication and decryption of a SRTP packet
+     * according to RFC 7714. The payload is decrypted in place and the
+     * authentication tag is removed.
+     *
+     * @param pkt the SRTP packet to be authenticated and decrypted
+     * @param rocIn the Roll-Over-Counter of <tt>pkt</tt>
+     * @return <tt>true</tt> if <tt>pkt</tt> was authenticated and decrypted;
+     * <tt>false</tt>, otherwise
+     */
+    private boolean reverseProcessPacketAESGCM(RawPacket pkt, int rocIn)
+    {
+        int headerLength = pkt.getHeaderLength();
+        int encryptedLength = pkt.getLength() - headerLength;
+
+        if (encryptedLength < SRTPCipherGCM.TAG_LENGTH)
+            return false;
+
+        computeGcmIv(pkt, rocIn);
+
+        byte[] buf = pkt.getBuffer();
+        int off = pkt.getOffset();
+
+        cipherGcm.start(false, gcmIvStore);
+        cipherGcm.processAAD(buf, off, headerLength);
+        if (!cipherGcm.decrypt(buf, off + headerLength, encryptedLength))
+            return false;
+
+        pkt.shrink(SRTPCipherGCM.TAG_LENGTH);
+        return true;
     }
 
     /**
@@ -599,8 +775,8 @@ public class SRTPCryptoContext
     /**
      * Checks if a packet is a replayed on based on its sequence number.
      *
-     * This method supports a 64 packet history relative the the given
-     * sequence number.
+     * This method supports a history of {@link ReplayWindow#getSize()}
+     * packets (64 by default) relative the the given sequence number.
      *
      * Sequence Number is guaranteed to be real (not faked) through
      * authentication.
@@ -615,33 +791,8 @@ public class SRTPCryptoContext
         // compute the index of previously received packet and its
         // delta to the new received packet
         long localIndex = (((long) this.roc) << 16) | this.seqNum;
-        long delta = guessedIndex - localIndex;
 
-        if (delta > 0)
-        {
-            /* Packet not yet received */
-            return true;
-        }
-        else
-        {
-            if (-delta > REPLAY_WINDOW_SIZE) {
-                /* Packet too old */
-                return false;
-            }
-            else
-            {
-                if (((this.replayWindow >> (-delta)) & 0x1) != 0)
-                {
-                    /* Packet already received ! */
-                    return false;
-                }
-                else
-                {
-                    /* Packet not yet received */
-                    return true;
-                }
-            }
-        }
+        return replayWindow.check(guessedIndex, localIndex);
     }
 
     /**
@@ -664,9 +815,11 @@ public class SRTPCryptoContext
         {
             key_id = ((label << 48) | (index / keyDerivationRate));
         }
+        // The master salt of AES-GCM is 96 bits long only and is padded with
+        // zeros as per RFC 7714.
         for (int i = 0; i < 7; i++)
         {
-            ivStore[i] = masterSalt[i];
+            ivStore[i] = (i < masterSalt.length) ? masterSalt[i] : 0;
         }
         for (int i = 7; i < 14; i++)
         {
@@ -674,7 +827,7 @@ public class SRTPCryptoContext
                 (
                     (byte) (0xFF & (key_id >> (8 * (13 - i))))
                     ^
-                    masterSalt[i]
+                    ((i < masterSalt.length) ? masterSalt[i] : 0)
                 );
         }
         ivStore[14] = ivStore[15] = 0;
@@ -692,25 +845,23 @@ public class SRTPCryptoContext
         long label = 0;
         computeIv(label, index);
 
-        KeyParameter encryptionKey = new KeyParameter(masterKey);
-        cipher.init(true, encryptionKey);
+        cipherCtr.init(masterKey);
         Arrays.fill(masterKey, (byte)0);
 
-        cipherCtr.getCipherStream(cipher, encKey, policy.getEncKeyLength(), ivStore);
+        cipherCtr.getCipherStream(encKey, policy.getEncKeyLength(), ivStore);
 
         // compute the session authentication key
         if (authKey != null)
         {
             label = 0x01;
             computeIv(label, index);
-            cipherCtr.getCipherStream(cipher, authKey,
+            cipherCtr.getCipherStream(authKey,
                     policy.getAuthKeyLength(), ivStore);
 
             switch ((policy.getAuthType()))
             {
             case SRTPPolicy.HMACSHA1_AUTHENTICATION:
-                KeyParameter key =  new KeyParameter(authKey);
-                mac.init(key);
+                ((HMacSHA1) mac).init(authKey);
                 break;
 
             case SRTPPolicy.SKEIN_AUTHENTICATION:
@@ -721,20 +872,21 @@ public class SRTPCryptoContext
                 mac.init(pfs);
                 break;
             }
+            Arrays.fill(authKey, (byte)0);
         }
-        Arrays.fill(authKey, (byte)0);
 
         // compute the session salt
         label = 0x02;
         computeIv(label, index);
-        cipherCtr.getCipherStream(cipher, saltKey, policy.getSaltKeyLength(), ivStore);
+        cipherCtr.getCipherStream(saltKey, policy.getSaltKeyLength(), ivStore);
         Arrays.fill(masterSalt, (byte)0);
 
         // As last step: initialize cipher with derived encryption key.
         if (cipherF8 != null)
-            SRTPCipherF8.deriveForIV(cipherF8, encKey, saltKey);
-        encryptionKey = new KeyParameter(encKey);
-        cipher.init(true, encryptionKey);
+            cipherF8.init(encKey, saltKey);
+        if (cipherGcm != null)
+            cipherGcm.init(encKey);
+        cipherCtr.init(encKey);
         Arrays.fill(encKey, (byte)0);
     }
 
@@ -784,24 +936,13 @@ public class SRTPCryptoContext
      */
     private void update(int seqNo, long guessedIndex)
     {
-        long delta = guessedIndex - (((long) this.roc) << 16 | this.seqNum);
+        long localIndex = (((long) this.roc) << 16) | this.seqNum;
 
         /* update the replay bit mask */
-        if( delta > 0 )
-        {
-          replayWindow = replayWindow << delta;
-          replayWindow |= 1;
-        }
-        else
-        {
-          replayWindow |= ( 1 << delta );
-        }
+        replayWindow.update(guessedIndex, localIndex);
 
-        if (seqNo > seqNum)
-        {
-            seqNum = seqNo & 0xffff;
-        }
-        if (this.guessedROC > this.roc)
+        /* advance the index only if the packet is the newest one so far */
+        if (guessedIndex > localIndex)
         {
             roc = guessedROC;
             seqNum = seqNo & 0xffff;
@@ -38,6 +38,27 @@ public class SRTPPolicy
      * F8 Mode TwoFish Cipher
      */
     public final static int TWOFISHF8_ENCRYPTION = 4;
+
+    /**
+     * Galois/Counter Mode AES Cipher, defined in RFC 7714. It is an AEAD
+     * cipher i.e. it authenticates the packets itself so it is used with
+     * {@link #NULL_AUTHENTICATION} and the authentication tag length is the
+     * length of the GCM tag.
+     */
+    public final static int AESGCM_ENCRYPTION = 5;
+
+    /**
+     * The length in bytes of the authentication tag of the AEAD_AES_128_GCM
+     * and AEAD_AES_256_GCM algorithms, defined in RFC 7714.
+     */
+    public final static int AESGCM_AUTH_TAG_LENGTH = 16;
+
+    /**
+     * The length in bytes of the master and session salts of the
+     * AEAD_AES_128_GCM and AEAD_AES_256_GCM algorithms, defined in RFC 7714.
+     */
+    public final static int AESGCM_SALT_LENGTH = 12;
+
     /**
      * Null Authentication, no authentication
      */
@@ -110,6 +131,27 @@ public class SRTPPolicy
         this.saltKeyLength = saltKeyLength;
     }
 
+    /**
+     * Creates a <tt>SRTPPolicy</tt> for the AEAD_AES_128_GCM (if
+     * <tt>encKeyLength</tt> is <tt>16</tt>) or AEAD_AES_256_GCM (if
+     * <tt>encKeyLength</tt> is <tt>32</tt>) algorithm defined in RFC 7714.
+     * The same policy applies to SRTP and SRTCP.
+     *
+     * @param encKeyLength the length in bytes of the master and session
+     * encryption keys
+     * @return a new <tt>SRTPPolicy</tt> for the AES-GCM algorithm with the
+     * specified key length
+     */
+    public static SRTPPolicy createAESGCMPolicy(int encKeyLength)
+    {
+        return
+            new SRTPPolicy(
+                    AESGCM_ENCRYPTION, encKeyLength,
+                    NULL_AUTHENTICATION, 0,
+                    AESGCM_AUTH_TAG_LENGTH,
+                    AESGCM_SALT_LENGTH);
+    }
+
     /**
      * Get the authentication key length
      *
@@ -25,10 +25,9 @@
 */
 package org.jitsi.impl.neomedia.transform.srtp;
 
-import java.util.*;
-
 import org.jitsi.impl.neomedia.*;
 import org.jitsi.impl.neomedia.transform.*;
+import org.jitsi.util.*;
 
 /**
  * SRTPTransformer implements PacketTransformer and provides implementations
@@ -42,15 +41,23 @@ import org.jitsi.impl.neomedia.transform.*;
  * @author Bing SU (nova.su@gmail.com)
  */
 public class SRTPTransformer
-    implements PacketTransformer
+    implements BatchPacketTransformer
 {
     private final SRTPContextFactory forwardFactory;
     private final SRTPContextFactory reverseFactory;
 
     /**
-     * All the known SSRC's corresponding SRTPCryptoContexts
+     * Whether this transformer has been closed. A context derived
+     * concurrently with {@link #close()} is discarded rather than added to
+     * {@link #contexts} after they have been closed.
+     */
+    private volatile boolean closed = false;
+
+    /**
+     * All the known SSRC's corresponding SRTPCryptoContexts. Looked up for
+     * every packet without locking.
      */
-    private final Hashtable<Long, SRTPCryptoContext> contexts;
+    private final CopyOnWriteLongHashMap<SRTPCryptoContext> contexts;
 
     /**
      * Initializes a new <tt>SRTPTransformer</tt> instance.
@@ -77,7 +84,7 @@ public class SRTPTransformer
     {
         this.forwardFactory = forwardFactory;
         this.reverseFactory = reverseFactory;
-        this.contexts = new Hashtable<Long, SRTPCryptoContext>();
+        this.contexts = new CopyOnWriteLongHashMap<SRTPCryptoContext>();
     }
 
     /**
@@ -87,45 +94,78 @@ public class SRTPTransformer
      */
     public void close()
     {
-        synchronized (contexts)
-        {
-            forwardFactory.close();
-            if (reverseFactory != forwardFactory)
-                reverseFactory.close();
-
-            Iterator<Map.Entry<Long, SRTPCryptoContext>> iter
-                = contexts.entrySet().iterator();
+        closed = true;
+        forwardFactory.close();
+        if (reverseFactory != forwardFactory)
+            reverseFactory.close();
 
-            while (iter.hasNext())
-            {
-                Map.Entry<Long, SRTPCryptoContext> entry = iter.next();
-                SRTPCryptoContext context = entry.getValue();
+        for (long ssrc : contexts.keys())
+        {
+            SRTPCryptoContext context = contexts.remove(ssrc);
 
-                iter.remove();
-                if (context != null)
-                    context.close();
-            }
+            if (context != null)
+                context.close();
         }
     }
 
+    /**
+     * Gets the <tt>SRTPCryptoContext</tt> of a specific SSRC if it exists
+     * (e.g. to read its counters of authentication failures and replay drops).
+     *
+     * @param ssrc the SSRC to get the <tt>SRTPCryptoContext</tt> of
+     * @return the <tt>SRTPCryptoContext</tt> of <tt>ssrc</tt> or
+     * <tt>null</tt> if no packet of <tt>ssrc</tt> has been transformed yet
+     */
+    public SRTPCryptoContext getCryptoContext(long ssrc)
+    {
+        return contexts.get(ssrc);
+    }
+
+    /**
+     * Gets the <tt>SRTPCryptoContext</tt> of a specific SSRC. If there is no
+     * such context yet, it is derived from the default context of a specific
+     * <tt>SRTPContextFactory</tt>. The derivation is performed without holding
+     * a lock so that it does not stall the (lock-free) lookups of the contexts
+     * of the other SSRCs. Should two threads derive the context of the same
+     * SSRC concurrently, the context added first wins.
+     *
+     * @param ssrc the SSRC to get the <tt>SRTPCryptoContext</tt> of
+     * @param engine the <tt>SRTPContextFactory</tt> to derive a new context
+     * from if necessary
+     * @param deriveSrtpKeysIndex the packet index to derive the session keys
+     * of a new context with
+     * @return the <tt>SRTPCryptoContext</tt> of <tt>ssrc</tt> or
+     * <tt>null</tt> if there is no such context and it cannot be derived
+     */
     private SRTPCryptoContext getContext(
             long ssrc,
             SRTPContextFactory engine,
             int deriveSrtpKeysIndex)
     {
-        SRTPCryptoContext context;
+        SRTPCryptoContext context = contexts.get(ssrc);
 
-        synchronized (contexts)
+        if (context == null)
         {
-            context = contexts.get(ssrc);
-            if (context == null)
+            context = engine.getDefaultContext();
+            if (context != null)
             {
-                context = engine.getDefaultContext();
-                if (context != null)
+                context = context.deriveContext(ssrc, 0, 0);
+                context.deriveSrtpKeys(deriveSrtpKeysIndex);
+
+                SRTPCryptoContext existingContext
+                    = contexts.putIfAbsent(ssrc, context);
+
+                if (existingContext != null)
                 {
-                    context = context.deriveContext(ssrc, 0, 0);
-                    context.deriveSrtpKeys(deriveSrtpKeysIndex);
-                    contexts.put(ssrc, context);
+                    context.close();
+                    context = existingContext;
+                }
+                else if (closed)
+                {
+                    // close() may have missed the new context.
+                    if (contexts.remove(ssrc) == context)
+                        context.close();
+                    context = null;
                 }
             }
         }
@@ -166,7 +206,75 @@ public class SRTPTransformer
     {
         SRTPCryptoContext context = getContext(pkt.getSSRC(), forwardFactory, 0);
 
-        context.transformPacket(pkt);
-        return pkt;
+        return
+            ((context != null) && context.transformPacket(pkt)) ? pkt : null;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Looks the <tt>SRTPCryptoContext</tt> up once per run of consecutive
+     * packets with the same SSRC rather than once per packet.
+     */
+    public void reverseTransform(RawPacket[] pkts, int count)
+    {
+        SRTPCryptoContext context = null;
+        int contextSSRC = 0;
+
+        for (int i = 0; i < count; i++)
+        {
+            RawPacket pkt = pkts[i];
+
+            if (pkt == null)
+                continue;
+
+            // only accept RTP version 2 (see the single packet method)
+            if((pkt.readByte(0) & 0xC0) != 0x80)
+            {
+                pkts[i] = null;
+                continue;
+            }
+
+            int ssrc = pkt.getSSRC();
+
+            if ((context == null) || (ssrc != contextSSRC))
+            {
+                context
+                    = getContext(ssrc, reverseFactory, pkt.getSequenceNumber());
+                contextSSRC = ssrc;
+            }
+            if ((context == null) || !context.reverseTransformPacket(pkt))
+                pkts[i] = null;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Looks the <tt>SRTPCryptoContext</tt> up once per run of consecutive
+     * packets with the same SSRC rather than once per packet.
+     */
+    public void transform(RawPacket[] pkts, int count)
+    {
+        SRTPCryptoContext context = null;
+        int contextSSRC = 0;
+
+        for (int i = 0; i < count; i++)
+        {
+            RawPacket pkt = pkts[i];
+
+            if (pkt == null)
+                continue;
+
+            int ssrc = pkt.getSSRC();
+
+            if ((context == null) || (ssrc != contextSSRC))
+            {
+                context = getContext(ssrc, forwardFactory, 0);
+                contextSSRC = ssrc;
+            }
+            if ((context == null) || !context.transformPacket(pkt))
+                pkts[i] = null;
+        }
     }
 }
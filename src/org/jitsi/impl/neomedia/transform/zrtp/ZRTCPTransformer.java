@@ -16,7 +16,7 @@ import org.jitsi.impl.neomedia.transform.*;
  * @author Werner Dittmann <Werner.Dittmann@t-online.de>
  */
 public class ZRTCPTransformer
-    implements PacketTransformer
+    extends SinglePacketTransformer
 {
     /**
      * We support different SRTCP contexts for input and output traffic:
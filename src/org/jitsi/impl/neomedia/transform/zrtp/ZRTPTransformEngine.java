@@ -147,8 +147,8 @@ import gnu.java.zrtp.utils.*;
  *
  */
 public class ZRTPTransformEngine
+    extends SinglePacketTransformer
     implements  TransformEngine,
-                PacketTransformer,
                 ZrtpCallback
 {
     /**
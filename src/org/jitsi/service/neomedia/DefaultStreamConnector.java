@@ -6,7 +6,9 @@
  */
 package org.jitsi.service.neomedia;
 
+import java.io.*;
 import java.net.*;
+import java.nio.channels.*;
 
 import net.sf.fmj.media.*;
 
@@ -73,12 +75,30 @@ public class DefaultStreamConnector
      */
     private static int minPort = -1;
 
+    /**
+     * The name of the boolean <tt>ConfigurationService</tt> property which
+     * specifies whether <tt>DefaultStreamConnector</tt> instances which bind
+     * on demand are to create <tt>DatagramSocket</tt>s associated with
+     * <tt>DatagramChannel</tt>s. The packets received by such sockets are
+     * read by a small pool of shared selector threads rather than by a thread
+     * per socket. The default value is <tt>false</tt>.
+     */
+    public static final String USE_NIO_PNAME
+        = "org.jitsi.service.neomedia.DefaultStreamConnector.useNIO";
+
     /**
      * The local <tt>InetAddress</tt> this <tt>StreamConnector</tt> attempts to
      * bind to on demand.
      */
     private final InetAddress bindAddr;
 
+    /**
+     * The indicator which determines whether the <tt>DatagramSocket</tt>s
+     * created by this instance on demand are to be associated with
+     * <tt>DatagramChannel</tt>s.
+     */
+    private final boolean useNIO;
+
     /**
      * The <tt>DatagramSocket</tt> that a stream should use for control data
      * (e.g. RTCP) traffic.
@@ -115,11 +135,14 @@ public class DefaultStreamConnector
      *
      * @param bindAddr the local <tt>InetAddress</tt> the new
      * <tt>DatagramSocket</tt> is to bind to
+     * @param useNIO <tt>true</tt> if the new <tt>DatagramSocket</tt> is to be
+     * associated with a <tt>DatagramChannel</tt>; otherwise, <tt>false</tt>
      * @return a new <tt>DatagramSocket</tt> instance bound to the specified
      * local <tt>InetAddress</tt>
      */
     private static synchronized DatagramSocket createDatagramSocket(
-            InetAddress bindAddr)
+            InetAddress bindAddr,
+            boolean useNIO)
     {
         ConfigurationService cfg = LibJitsi.getConfigurationService();
         int bindRetries = BIND_RETRIES_DEFAULT_VALUE;
@@ -149,24 +172,85 @@ public class DefaultStreamConnector
 
             try
             {
-                return
-                    (bindAddr == null)
-                        ? new DatagramSocket(port)
-                        : new DatagramSocket(port, bindAddr);
+                if (useNIO)
+                    return createDatagramChannelSocket(bindAddr, port);
+                else
+                {
+                    return
+                        (bindAddr == null)
+                            ? new DatagramSocket(port)
+                            : new DatagramSocket(port, bindAddr);
+                }
             }
-            catch (SocketException se)
+            catch (IOException ioe)
             {
                 logger.warn(
                     "Retrying a bind because of a failure to bind to address "
                     + bindAddr
                     + " and port "
                     + port,
-                    se);
+                    ioe);
             }
         }
         return null;
     }
 
+    /**
+     * Creates a new <tt>DatagramSocket</tt> which is associated with a
+     * <tt>DatagramChannel</tt> and binds it to a specific local
+     * <tt>InetAddress</tt> and port.
+     *
+     * @param bindAddr the local <tt>InetAddress</tt> the new
+     * <tt>DatagramSocket</tt> is to bind to or <tt>null</tt> to bind to the
+     * wildcard address
+     * @param port the local port the new <tt>DatagramSocket</tt> is to bind
+     * to
+     * @return a new <tt>DatagramSocket</tt> associated with a
+     * <tt>DatagramChannel</tt> and bound to the specified local
+     * <tt>InetAddress</tt> and port
+     * @throws IOException if the <tt>DatagramChannel</tt> cannot be opened or
+     * its socket cannot be bound
+     */
+    private static DatagramSocket createDatagramChannelSocket(
+            InetAddress bindAddr,
+            int port)
+        throws IOException
+    {
+        DatagramChannel channel = DatagramChannel.open();
+        boolean bound = false;
+
+        try
+        {
+            DatagramSocket socket = channel.socket();
+
+            socket.bind(
+                    (bindAddr == null)
+                        ? new InetSocketAddress(port)
+                        : new InetSocketAddress(bindAddr, port));
+            bound = true;
+            return socket;
+        }
+        finally
+        {
+            if (!bound)
+                channel.close();
+        }
+    }
+
+    /**
+     * Determines whether the <tt>ConfigurationService</tt> property
+     * {@link #USE_NIO_PNAME} is set to <tt>true</tt>.
+     *
+     * @return <tt>true</tt> if the <tt>ConfigurationService</tt> property
+     * <tt>USE_NIO_PNAME</tt> is set to <tt>true</tt>; otherwise, <tt>false</tt>
+     */
+    private static boolean isNIOEnabled()
+    {
+        ConfigurationService cfg = LibJitsi.getConfigurationService();
+
+        return (cfg != null) && cfg.getBoolean(USE_NIO_PNAME, false);
+    }
+
     /**
      * Initializes a new <tt>DefaultStreamConnector</tt> instance with a
      * specific bind <tt>InetAddress</tt>. The new instance is to attempt to
@@ -180,8 +264,30 @@ public class DefaultStreamConnector
      * attempt to bind to
      */
     public DefaultStreamConnector(InetAddress bindAddr)
+    {
+        this(bindAddr, isNIOEnabled());
+    }
+
+    /**
+     * Initializes a new <tt>DefaultStreamConnector</tt> instance with a
+     * specific bind <tt>InetAddress</tt>. The new instance is to attempt to
+     * bind on demand to the specified <tt>InetAddress</tt> in the port range
+     * defined by the <tt>ConfigurationService</tt> properties
+     * {@link #MIN_PORT_NUMBER_PROPERTY_NAME} and
+     * {@link #MAX_PORT_NUMBER_PROPERTY_NAME} at most
+     * {@link #BIND_RETRIES_PROPERTY_NAME} times.
+     *
+     * @param bindAddr the local <tt>InetAddress</tt> the new instance is to
+     * attempt to bind to
+     * @param useNIO <tt>true</tt> if the <tt>DatagramSocket</tt>s of the new
+     * instance are to be associated with <tt>DatagramChannel</tt>s and, as a
+     * consequence, read by shared selector threads rather than by a thread
+     * per socket; otherwise, <tt>false</tt>
+     */
+    public DefaultStreamConnector(InetAddress bindAddr, boolean useNIO)
     {
         this.bindAddr = bindAddr;
+        this.useNIO = useNIO;
         Log.logMediaStackObjectStarted(this);
     }
 
@@ -201,6 +307,7 @@ public class DefaultStreamConnector
         this.controlSocket = controlSocket;
         this.dataSocket = dataSocket;
         this.bindAddr = null;
+        this.useNIO = false;
 
         Log.logMediaStackObjectStarted(this);
     }
@@ -231,7 +338,7 @@ public class DefaultStreamConnector
     public DatagramSocket getControlSocket()
     {
         if ((controlSocket == null) && (bindAddr != null))
-            controlSocket = createDatagramSocket(bindAddr);
+            controlSocket = createDatagramSocket(bindAddr, useNIO);
         return controlSocket;
     }
 
@@ -246,7 +353,7 @@ public class DefaultStreamConnector
     public DatagramSocket getDataSocket()
     {
         if ((dataSocket == null) && (bindAddr != null))
-            dataSocket = createDatagramSocket(bindAddr);
+            dataSocket = createDatagramSocket(bindAddr, useNIO);
         return dataSocket;
     }
 
@@ -7,6 +7,7 @@
 package org.jitsi.service.neomedia;
 
 import java.awt.Dimension;
+import java.util.*;
 
 import net.sf.fmj.media.rtp.*;
 
@@ -267,6 +268,45 @@ public interface MediaStreamStats
      */
     public long getUploadTotalPackets();
 
+    /**
+     * Returns the number of RTP packets retransmitted (RFC 4588) upon the
+     * request of the remote peer.
+     *
+     * @return the number of RTP packets retransmitted upon the request of the
+     * remote peer
+     */
+    public long getNbRetransmissions();
+
+    /**
+     * Returns the number of retransmissions requested by the remote peer which
+     * could not be satisfied because the requested RTP packets were no longer
+     * kept.
+     *
+     * @return the number of retransmissions requested by the remote peer
+     * which could not be satisfied
+     */
+    public long getNbRetransmissionMisses();
+
+    /**
+     * Returns the number of bytes allocated to keep the recently sent RTP
+     * packets for retransmission.
+     *
+     * @return the number of bytes allocated to keep the recently sent RTP
+     * packets for retransmission
+     */
+    public long getRetransmissionHistoryBytes();
+
+    /**
+     * Gets the statistics collected about the transform engines (e.g. SRTP,
+     * ZRTP, RTCP statistics, CSRC audio levels, DTMF) of the
+     * <tt>MediaStream</tt>. The collection is optional and is disabled by
+     * default.
+     *
+     * @return the statistics collected about the transform engines of the
+     * <tt>MediaStream</tt>; an empty list if the collection is disabled
+     */
+    public List<TransformEngineStats> getTransformEngineStats();
+
     /**
      * @return The average of the RTT computed from RTCP. Returns -1 if the RTT
      * has not been computed yet.
@@ -0,0 +1,87 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package org.jitsi.service.neomedia;
+
+/**
+ * Describes the statistics collected about the invocations of one of the
+ * transform engines (e.g. SRTP, ZRTP, RTCP statistics, CSRC audio levels,
+ * DTMF) of a <tt>MediaStream</tt> in one direction (i.e. sending or receiving)
+ * for one type of packets (i.e. RTP or RTCP).
+ *
+ * The times spent by the engine are collected in a histogram with
+ * {@link #HISTOGRAM_BUCKET_COUNT} buckets: bucket <tt>0</tt> counts the
+ * packets processed in less than one nanosecond and bucket <tt>i</tt> (other
+ * than the last one) counts the packets processed in at least
+ * <tt>2<sup>i-1</sup></tt> and less than <tt>2<sup>i</sup></tt>
+ * nanoseconds. The last bucket counts the remaining (i.e. the slowest)
+ * packets.
+ */
+public interface TransformEngineStats
+{
+    /**
+     * The number of buckets of the histograms returned by
+     * {@link #getTimeHistogram()}.
+     */
+    public static final int HISTOGRAM_BUCKET_COUNT = 32;
+
+    /**
+     * Gets the number of packets dropped by the engine (i.e. which the engine
+     * has been given but has not returned).
+     *
+     * @return the number of packets dropped by the engine
+     */
+    public long getDroppedPacketCount();
+
+    /**
+     * Gets the name of the engine (e.g. the simple name of its class).
+     *
+     * @return the name of the engine
+     */
+    public String getEngineName();
+
+    /**
+     * Gets the number of packets given to the engine.
+     *
+     * @return the number of packets given to the engine
+     */
+    public long getPacketCount();
+
+    /**
+     * Gets a snapshot of the histogram of the times spent by the engine per
+     * packet.
+     *
+     * @return an array of {@link #HISTOGRAM_BUCKET_COUNT} numbers of packets
+     * in which the element at index <tt>i</tt> is the number of packets
+     * processed in less than <tt>2<sup>i</sup></tt> (and, for <tt>i</tt>
+     * greater than zero, at least <tt>2<sup>i-1</sup></tt>) nanoseconds
+     */
+    public long[] getTimeHistogram();
+
+    /**
+     * Gets the total time in nanoseconds spent by the engine.
+     *
+     * @return the total time in nanoseconds spent by the engine
+     */
+    public long getTotalTimeNanos();
+
+    /**
+     * Determines whether the statistics are about received (i.e.
+     * reverse-transformed) or sent (i.e. transformed) packets.
+     *
+     * @return <tt>true</tt> if the statistics are about received packets;
+     * <tt>false</tt> if they are about sent packets
+     */
+    public boolean isReceive();
+
+    /**
+     * Determines whether the statistics are about RTCP or RTP packets.
+     *
+     * @return <tt>true</tt> if the statistics are about RTCP packets;
+     * <tt>false</tt> if they are about RTP packets
+     */
+    public boolean isRTCP();
+}
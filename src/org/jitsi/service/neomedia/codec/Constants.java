@@ -156,6 +156,12 @@ public class Constants
         = "net.java.sip.communicator.impl.neomedia.codec.audio.silk.encoder"
             + ".SPEECH_ACTIVITY_THRESHOLD";
 
+    /**
+     * Pseudo format representing redundant audio data (RED) sent over RTP as
+     * described by RFC 2198.
+     */
+    public static final String RED = "red";
+
     /**
      * The SILK constant.
      */
@@ -180,6 +186,12 @@ public class Constants
      */
     public static final String TELEPHONE_EVENT = "telephone-event";
 
+    /**
+     * Pseudo format representing generic forward error correction (ULPFEC)
+     * sent over RTP as described by RFC 5109.
+     */
+    public static final String ULPFEC = "ulpfec";
+
     /**
      * The VP* constant
      */
@@ -0,0 +1,35 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package org.jitsi.service.neomedia.control;
+
+import javax.media.*;
+
+/**
+ * An interface used to adapt the bitrate of encoders to the bandwidth which
+ * is estimated to be available on the way to the remote peer.
+ */
+public interface BitrateAwareEncoder extends Control
+{
+    /**
+     * Gets the bitrate in bits per second which the encoder currently aims
+     * at.
+     *
+     * @return the bitrate in bits per second which the encoder currently aims
+     * at or <tt>-1</tt> if it is not known (e.g. the encoder has not been
+     * opened yet)
+     */
+    public int getTargetBitrate();
+
+    /**
+     * Tells the encoder to aim at <tt>bitrate</tt> bits per second. The
+     * encoder limits the specified value to the range it supports and never
+     * exceeds the bitrate it has been configured with.
+     *
+     * @param bitrate the bitrate in bits per second to aim at
+     */
+    public void setTargetBitrate(int bitrate);
+}
@@ -32,6 +32,11 @@ public class RTCPFeedbackEvent
      */
     public static final int PT_PS = 206;
 
+    /**
+     * Generic NACK message type (with payload type {@link #PT_TL}).
+     */
+    public static final int FMT_NACK = 1;
+
     /**
      * Picture Loss Indication message type.
      */
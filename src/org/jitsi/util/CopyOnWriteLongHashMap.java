@@ -0,0 +1,301 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package org.jitsi.util;
+
+/**
+ * Implements a thread-safe map from primitive <tt>long</tt> keys (e.g. SSRCs)
+ * to (non-<tt>null</tt>) values which is optimized for frequent lookups and
+ * infrequent modifications. Lookups neither lock nor box the key: they read
+ * an immutable open-addressing table through a <tt>volatile</tt> reference.
+ * Modifications are serialized and replace the table with a modified copy.
+ *
+ * @param <V> the type of the values
+ */
+public class CopyOnWriteLongHashMap<V>
+{
+    /**
+     * The initial capacity of the table of a new
+     * <tt>CopyOnWriteLongHashMap</tt>. Must be a power of two.
+     */
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * Computes the index in a table with a specific capacity at which the
+     * linear probing for a specific key starts.
+     *
+     * @param key the key to compute the index of
+     * @param mask the capacity of the table minus one
+     * @return the index in the table at which the linear probing for
+     * <tt>key</tt> starts
+     */
+    private static int indexOf(long key, int mask)
+    {
+        int h = (int) (key ^ (key >>> 32));
+
+        h *= 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    /**
+     * The immutable table which contains the mappings of this map.
+     */
+    private volatile Table table = new Table(INITIAL_CAPACITY);
+
+    /**
+     * Removes all mappings from this map.
+     */
+    public synchronized void clear()
+    {
+        table = new Table(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Gets the value to which a specific key is mapped.
+     *
+     * @param key the key to get the value of
+     * @return the value to which <tt>key</tt> is mapped or <tt>null</tt> if
+     * this map contains no mapping for <tt>key</tt>
+     */
+    @SuppressWarnings("unchecked")
+    public V get(long key)
+    {
+        Table table = this.table;
+        long[] keys = table.keys;
+        Object[] values = table.values;
+        int mask = keys.length - 1;
+
+        for (int i = indexOf(key, mask);; i = (i + 1) & mask)
+        {
+            Object value = values[i];
+
+            if (value == null)
+                return null;
+            if (keys[i] == key)
+                return (V) value;
+        }
+    }
+
+    /**
+     * Gets a snapshot of the keys of this map.
+     *
+     * @return an array of the keys of this map at the time of the invocation
+     */
+    public long[] keys()
+    {
+        Table table = this.table;
+        long[] keys = new long[table.size];
+
+        for (int i = 0, j = 0; i < table.values.length; i++)
+        {
+            if (table.values[i] != null)
+                keys[j++] = table.keys[i];
+        }
+        return keys;
+    }
+
+    /**
+     * Maps a specific key to a specific value.
+     *
+     * @param key the key to map
+     * @param value the value to map <tt>key</tt> to
+     * @return the value to which <tt>key</tt> was mapped before the
+     * invocation or <tt>null</tt>
+     */
+    public synchronized V put(long key, V value)
+    {
+        if (value == null)
+            throw new NullPointerException("value");
+
+        V oldValue = get(key);
+
+        table = table.put(key, value, oldValue == null);
+        return oldValue;
+    }
+
+    /**
+     * Maps a specific key to a specific value unless the key is mapped to a
+     * value already.
+     *
+     * @param key the key to map
+     * @param value the value to map <tt>key</tt> to
+     * @return the value to which <tt>key</tt> is mapped already (in which case
+     * this map is not modified) or <tt>null</tt> if <tt>key</tt> has been
+     * mapped to <tt>value</tt>
+     */
+    public synchronized V putIfAbsent(long key, V value)
+    {
+        if (value == null)
+            throw new NullPointerException("value");
+
+        V oldValue = get(key);
+
+        if (oldValue == null)
+            table = table.put(key, value, true);
+        return oldValue;
+    }
+
+    /**
+     * Removes the mapping of a specific key.
+     *
+     * @param key the key to remove the mapping of
+     * @return the value to which <tt>key</tt> was mapped before the
+     * invocation or <tt>null</tt>
+     */
+    public synchronized V remove(long key)
+    {
+        V oldValue = get(key);
+
+        if (oldValue != null)
+            table = table.remove(key);
+        return oldValue;
+    }
+
+    /**
+     * Gets the number of mappings in this map.
+     *
+     * @return the number of mappings in this map
+     */
+    public int size()
+    {
+        return table.size;
+    }
+
+    /**
+     * Represents an immutable open-addressing (with linear probing) table of
+     * the mappings of a <tt>CopyOnWriteLongHashMap</tt>. A slot is empty if
+     * its value is <tt>null</tt>.
+     */
+    private static class Table
+    {
+        /**
+         * The keys of the mappings.
+         */
+        final long[] keys;
+
+        /**
+         * The number of mappings.
+         */
+        final int size;
+
+        /**
+         * The values of the mappings.
+         */
+        final Object[] values;
+
+        /**
+         * Initializes a new empty <tt>Table</tt> with a specific capacity.
+         *
+         * @param capacity the capacity of the new instance (a power of two)
+         */
+        Table(int capacity)
+        {
+            this(new long[capacity], new Object[capacity], 0);
+        }
+
+        /**
+         * Initializes a new <tt>Table</tt> with specific contents.
+         *
+         * @param keys the keys of the mappings
+         * @param values the values of the mappings
+         * @param size the number of mappings
+         */
+        private Table(long[] keys, Object[] values, int size)
+        {
+            this.keys = keys;
+            this.values = values;
+            this.size = size;
+        }
+
+        /**
+         * Inserts a specific mapping into specific arrays.
+         *
+         * @param keys the keys of the table to insert into
+         * @param values the values of the table to insert into
+         * @param key the key of the mapping to insert
+         * @param value the value of the mapping to insert
+         */
+        private static void insert(
+                long[] keys, Object[] values,
+                long key, Object value)
+        {
+            int mask = keys.length - 1;
+            int i = indexOf(key, mask);
+
+            while (values[i] != null && keys[i] != key)
+                i = (i + 1) & mask;
+            keys[i] = key;
+            values[i] = value;
+        }
+
+        /**
+         * Initializes a new <tt>Table</tt> which contains the mappings of this
+         * instance and a specific mapping.
+         *
+         * @param key the key of the mapping to add or replace
+         * @param value the value of the mapping to add or replace
+         * @param add <tt>true</tt> if this instance does not contain a mapping
+         * for <tt>key</tt>; otherwise, <tt>false</tt>
+         * @return a new <tt>Table</tt> which contains the mappings of this
+         * instance and the specified mapping
+         */
+        Table put(long key, Object value, boolean add)
+        {
+            int newSize = add ? (size + 1) : size;
+            // Keep the load factor at or below one half.
+            int capacity = keys.length;
+
+            while (newSize * 2 > capacity)
+                capacity *= 2;
+
+            Table table;
+
+            if (capacity == keys.length)
+            {
+                table = new Table(keys.clone(), values.clone(), newSize);
+            }
+            else
+            {
+                table
+                    = new Table(
+                            new long[capacity],
+                            new Object[capacity],
+                            newSize);
+                for (int i = 0; i < values.length; i++)
+                {
+                    if (values[i] != null)
+                        insert(table.keys, table.values, keys[i], values[i]);
+                }
+            }
+            insert(table.keys, table.values, key, value);
+            return table;
+        }
+
+        /**
+         * Initializes a new <tt>Table</tt> which contains the mappings of this
+         * instance except the mapping of a specific key.
+         *
+         * @param key the key of the mapping to remove
+         * @return a new <tt>Table</tt> which contains the mappings of this
+         * instance except the mapping of <tt>key</tt>
+         */
+        Table remove(long key)
+        {
+            Table table
+                = new Table(
+                        new long[keys.length],
+                        new Object[values.length],
+                        size - 1);
+
+            for (int i = 0; i < values.length; i++)
+            {
+                if (values[i] != null && keys[i] != key)
+                    insert(table.keys, table.values, keys[i], values[i]);
+            }
+            return table;
+        }
+    }
+}